@@ -145,11 +145,26 @@ function resizeContent() {
     resizePlots();
   }
 
+  updatePixelWidths();
+
   if (PrimeFaces.widgets['variableDialog'] && PF('variableDialog').isVisible()) {
     resizeVariablesDialog();
   }
 }
 
+/*
+ * Store the width of each plot panel, so the server
+ * can limit the number of points it sends
+ */
+function updatePixelWidths() {
+  for (var i = 1; i <= 2; i++) {
+    var panel = $('#plot' + i + 'Panel');
+    if (panel.length) {
+      $('#plot' + i + 'Form\\:pixelWidth').val(Math.round(panel.width()));
+    }
+  }
+}
+
 function makeJSDates(data) {
 
   for (var i = 0; i < data.length; i++) {
@@ -865,6 +880,7 @@ function applyVariables() {
     PF('variableDialog').hide();
   }
   updatePlotInputs(variablesPlotIndex);
+  updatePixelWidths();
 
   var mode = getPlotMode(variablesPlotIndex);
 
@@ -1059,6 +1075,7 @@ function getMapData(index) {
   var mapVar = 'map' + index;
   var extent = ol.proj.transformExtent(window[mapVar].getView().calculateExtent(), window[mapVar].getView().getProjection(), "EPSG:4326");
   $('#plot' + index + 'Form\\:mapBounds').val('[' + extent + ']');
+  updatePixelWidths();
   $('#plot' + variablesPlotIndex + 'Form\\:plotData').val("");
   $('#plot' + variablesPlotIndex + 'Form\\:mapData').val("");
   $('#plot' + index + 'Form\\:mapGetData').click();
@@ -1141,6 +1158,16 @@ function displayMapFeatureInfo(event, pixel) {
     featureInfo += ' ';
     featureInfo += ' <b>Value:</b> '
       featureInfo += feature['data'][5];
+
+    // Aggregated map tiles include the number of values and their range
+    if (feature['data'].length > 6) {
+      featureInfo += ' <b>Count:</b> ';
+      featureInfo += feature['data'][6];
+      featureInfo += ' <b>Range:</b> ';
+      featureInfo += feature['data'][7];
+      featureInfo += ' - ';
+      featureInfo += feature['data'][8];
+    }
   }
 
   $('#map' + index + 'Value').html(featureInfo);
@@ -0,0 +1,219 @@
+package junit.uk.ac.exeter.QuinCe.data.Calculation;
+
+import static org.junit.Assert.*;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.exeter.QuinCe.data.Calculation.ExternalStandardsModel;
+import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataSet;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.ExternalStandard;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.ExternalStandardDB;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+
+/**
+ * Tests that the {@link ExternalStandardsModel} gives the same results as
+ * the regression calculation it replaces
+ * @author Steve Jones
+ *
+ */
+public class ExternalStandardsModelTest {
+
+  /**
+   * The sensor being calibrated
+   */
+  private static final String SENSOR = "CO2";
+
+  /**
+   * The names of the standards
+   */
+  private static final String[] TARGETS = {"STD1", "STD2", "STD3"};
+
+  /**
+   * The concentrations of the standards
+   */
+  private static final double[] CONCENTRATIONS = {0.0, 250.0, 450.0};
+
+  /**
+   * The time of the first standard run
+   */
+  private static final LocalDateTime START = LocalDateTime.of(2018, 1, 1, 0, 0);
+
+  /**
+   * The number of runs of each standard
+   */
+  private static final int RUNS = 200;
+
+  /**
+   * The largest allowed difference between the model and the regression calculation
+   */
+  private static final double TOLERANCE = 1e-8;
+
+  /**
+   * The external standards
+   */
+  private CalibrationSet standards;
+
+  /**
+   * The standard runs
+   */
+  private CalibrationDataSet calibrations;
+
+  /**
+   * Build a set of standards that are run every hour,
+   * with a different drift and noise for each run
+   * @throws Exception If the test data cannot be built
+   */
+  @Before
+  public void setUp() throws Exception {
+    standards = new CalibrationSet(1, ExternalStandardDB.EXTERNAL_STANDARD_CALIBRATION_TYPE, Arrays.asList(TARGETS)) {
+      private static final long serialVersionUID = 1L;
+    };
+
+    for (int i = 0; i < TARGETS.length; i++) {
+      standards.add(new ExternalStandard(1, TARGETS[i], START, Arrays.asList(CONCENTRATIONS[i], 0.0)) {});
+    }
+
+    calibrations = new CalibrationDataSet();
+    Random random = new Random(42);
+
+    for (int run = 0; run < RUNS; run++) {
+      for (int i = 0; i < TARGETS.length; i++) {
+        // The standards are run a few minutes apart
+        LocalDateTime runTime = START.plusHours(run).plusMinutes(i * 5);
+        DataSetRawDataRecord record = new DataSetRawDataRecord(null, runTime, 0.0, 0.0, TARGETS[i], null);
+        record.setSensorValue(SENSOR, CONCENTRATIONS[i] + run * 0.01 + random.nextGaussian());
+        calibrations.add(record);
+      }
+    }
+  }
+
+  /**
+   * Check values between standard runs, including zero standard
+   * @throws Exception If the calibration fails
+   */
+  @Test
+  public void testBetweenRuns() throws Exception {
+    checkRandomTimes(false);
+  }
+
+  /**
+   * Check values between standard runs, ignoring the zero standard
+   * @throws Exception If the calibration fails
+   */
+  @Test
+  public void testBetweenRunsIgnoreZero() throws Exception {
+    checkRandomTimes(true);
+  }
+
+  /**
+   * Check values before the first standard run and after the last,
+   * where the standard values are not interpolated
+   * @throws Exception If the calibration fails
+   */
+  @Test
+  public void testOutsideRuns() throws Exception {
+    ExternalStandardsModel model = new ExternalStandardsModel(standards, calibrations, SENSOR, false);
+
+    checkValue(model, START.minusHours(3), 300.0, false);
+    checkValue(model, START.plusMinutes(2), 300.0, false);
+    checkValue(model, START.plusHours(RUNS - 1).plusMinutes(7), 300.0, false);
+    checkValue(model, START.plusHours(RUNS + 5), 300.0, false);
+  }
+
+  /**
+   * Check that times of standard runs are not covered by the model
+   * @throws Exception If the model cannot be built
+   */
+  @Test
+  public void testRunTimesNotCovered() throws Exception {
+    ExternalStandardsModel model = new ExternalStandardsModel(standards, calibrations, SENSOR, false);
+
+    assertFalse(model.isCovered(DateTimeUtils.dateToLong(START)));
+    assertFalse(model.isCovered(DateTimeUtils.dateToLong(START.plusHours(10).plusMinutes(5))));
+    assertTrue(model.isCovered(DateTimeUtils.dateToLong(START.plusHours(10).plusMinutes(1))));
+  }
+
+  /**
+   * Compare the model with the regression calculation at
+   * random times throughout the standard runs
+   * @param ignoreZero Indicates whether or not the zero standard should be ignored
+   * @throws Exception If the calibration fails
+   */
+  private void checkRandomTimes(boolean ignoreZero) throws Exception {
+    ExternalStandardsModel model = new ExternalStandardsModel(standards, calibrations, SENSOR, ignoreZero);
+    Random random = new Random(7);
+
+    for (int i = 0; i < 20000; i++) {
+      LocalDateTime time = START.plusSeconds(random.nextInt(RUNS * 3600));
+      if (model.isCovered(DateTimeUtils.dateToLong(time))) {
+        checkValue(model, time, 200.0 + random.nextDouble() * 300.0, ignoreZero);
+      }
+    }
+  }
+
+  /**
+   * Check that the model gives the same calibrated value as the regression calculation
+   * @param model The model
+   * @param time The time of the value
+   * @param value The value
+   * @param ignoreZero Indicates whether or not the zero standard should be ignored
+   * @throws Exception If the calibration fails
+   */
+  private void checkValue(ExternalStandardsModel model, LocalDateTime time, double value, boolean ignoreZero) throws Exception {
+    double expected = calibrateByRegression(time, value, ignoreZero);
+    double actual = model.calibrate(DateTimeUtils.dateToLong(time), value);
+    assertEquals("Calibrated value at " + time, expected, actual, TOLERANCE);
+  }
+
+  /**
+   * Calibrate a value by building regressions from the standard runs
+   * either side of it, in the same way as the calculation replaced by the model
+   * @param time The time of the value
+   * @param value The value
+   * @param ignoreZero Indicates whether or not the zero standard should be ignored
+   * @return The calibrated value
+   * @throws Exception If the calibration fails
+   */
+  private double calibrateByRegression(LocalDateTime time, double value, boolean ignoreZero) throws Exception {
+    Map<String, Double> standardMeasurements = new HashMap<String, Double>();
+
+    for (String target : standards.getTargets()) {
+      double concentration = standards.getCalibrationValue(target, SENSOR);
+      if (!ignoreZero || concentration > 0.0) {
+        DataSetRawDataRecord prior = calibrations.getCalibrationBefore(time, target);
+        DataSetRawDataRecord post = calibrations.getCalibrationAfter(time, target);
+
+        double measured;
+        if (null == prior) {
+          measured = post.getSensorValue(SENSOR);
+        } else if (null == post) {
+          measured = prior.getSensorValue(SENSOR);
+        } else {
+          SimpleRegression regression = new SimpleRegression(true);
+          regression.addData(DateTimeUtils.dateToLong(prior.getDate()), prior.getSensorValue(SENSOR));
+          regression.addData(DateTimeUtils.dateToLong(post.getDate()), post.getSensorValue(SENSOR));
+          measured = regression.predict(DateTimeUtils.dateToLong(time));
+        }
+
+        standardMeasurements.put(target, measured);
+      }
+    }
+
+    SimpleRegression regression = new SimpleRegression(true);
+    for (String target : standardMeasurements.keySet()) {
+      regression.addData(standardMeasurements.get(target), standards.getCalibrationValue(target, SENSOR));
+    }
+
+    return regression.predict(value);
+  }
+}
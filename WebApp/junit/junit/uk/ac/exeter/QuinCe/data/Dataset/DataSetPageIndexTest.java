@@ -0,0 +1,87 @@
+package junit.uk.ac.exeter.QuinCe.data.Dataset;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetPageIndex;
+
+/**
+ * Tests for the seek positions given by {@link DataSetPageIndex}
+ * @author Steve Jones
+ *
+ */
+public class DataSetPageIndexTest {
+
+  /**
+   * Index of a data set of 2500 rows, with keys at rows 0, 1000 and 2000
+   */
+  private static final DataSetPageIndex INDEX = new DataSetPageIndex(
+      new long[] {100L, 200L, 300L}, new long[] {1L, 1001L, 2001L}, 0L);
+
+  /**
+   * Check that pages in the first block are read from the start of the data set
+   */
+  @Test
+  public void testFirstBlock() {
+    assertFalse(INDEX.hasSeekKey(0));
+    assertEquals(0, INDEX.getSkipCount(0));
+
+    assertFalse(INDEX.hasSeekKey(DataSetPageIndex.INTERVAL - 1));
+    assertEquals(DataSetPageIndex.INTERVAL - 1, INDEX.getSkipCount(DataSetPageIndex.INTERVAL - 1));
+  }
+
+  /**
+   * Check pages that start exactly on an indexed key
+   */
+  @Test
+  public void testOnKey() {
+    assertTrue(INDEX.hasSeekKey(DataSetPageIndex.INTERVAL));
+    assertEquals(200L, INDEX.getSeekDate(DataSetPageIndex.INTERVAL));
+    assertEquals(1001L, INDEX.getSeekId(DataSetPageIndex.INTERVAL));
+    assertEquals(0, INDEX.getSkipCount(DataSetPageIndex.INTERVAL));
+
+    assertEquals(300L, INDEX.getSeekDate(DataSetPageIndex.INTERVAL * 2));
+    assertEquals(2001L, INDEX.getSeekId(DataSetPageIndex.INTERVAL * 2));
+    assertEquals(0, INDEX.getSkipCount(DataSetPageIndex.INTERVAL * 2));
+  }
+
+  /**
+   * Check pages that start on the last row before the next indexed key
+   */
+  @Test
+  public void testBeforeKey() {
+    int start = DataSetPageIndex.INTERVAL * 2 - 1;
+    assertTrue(INDEX.hasSeekKey(start));
+    assertEquals(200L, INDEX.getSeekDate(start));
+    assertEquals(1001L, INDEX.getSeekId(start));
+    assertEquals(DataSetPageIndex.INTERVAL - 1, INDEX.getSkipCount(start));
+  }
+
+  /**
+   * Check that pages beyond the last indexed block are read from the last key
+   */
+  @Test
+  public void testBeyondLastKey() {
+    int start = DataSetPageIndex.INTERVAL * 5;
+    assertTrue(INDEX.hasSeekKey(start));
+    assertEquals(300L, INDEX.getSeekDate(start));
+    assertEquals(2001L, INDEX.getSeekId(start));
+    assertEquals(DataSetPageIndex.INTERVAL * 3, INDEX.getSkipCount(start));
+  }
+
+  /**
+   * Check that data sets with only one block, or no measurements,
+   * are always read from the start
+   */
+  @Test
+  public void testSingleBlock() {
+    DataSetPageIndex single = new DataSetPageIndex(new long[] {100L}, new long[] {1L}, 0L);
+    assertFalse(single.hasSeekKey(DataSetPageIndex.INTERVAL + 500));
+    assertEquals(DataSetPageIndex.INTERVAL + 500, single.getSkipCount(DataSetPageIndex.INTERVAL + 500));
+
+    DataSetPageIndex empty = new DataSetPageIndex(new long[0], new long[0], 0L);
+    assertFalse(empty.hasSeekKey(DataSetPageIndex.INTERVAL));
+    assertEquals(DataSetPageIndex.INTERVAL, empty.getSkipCount(DataSetPageIndex.INTERVAL));
+  }
+}
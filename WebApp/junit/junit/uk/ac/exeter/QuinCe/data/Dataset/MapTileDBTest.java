@@ -0,0 +1,101 @@
+package junit.uk.ac.exeter.QuinCe.data.Dataset;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.ac.exeter.QuinCe.data.Dataset.MapTileDB;
+
+/**
+ * Tests for the tile positions and zoom levels calculated by {@link MapTileDB}
+ * @author Steve Jones
+ *
+ */
+public class MapTileDBTest {
+
+  /**
+   * Check that the whole world is a single tile at zoom level zero
+   */
+  @Test
+  public void testZoomZero() {
+    assertEquals(0, MapTileDB.getTileX(0, -180));
+    assertEquals(0, MapTileDB.getTileX(0, 0));
+    assertEquals(0, MapTileDB.getTileX(0, 180));
+    assertEquals(0, MapTileDB.getTileY(0, -90));
+    assertEquals(0, MapTileDB.getTileY(0, 90));
+  }
+
+  /**
+   * Check positions either side of the boundaries between tiles
+   */
+  @Test
+  public void testTileBoundaries() {
+    assertEquals(0, MapTileDB.getTileX(1, -0.0001));
+    assertEquals(1, MapTileDB.getTileX(1, 0));
+    assertEquals(0, MapTileDB.getTileY(1, -0.0001));
+    assertEquals(1, MapTileDB.getTileY(1, 0));
+
+    // Tile 5 at the most detailed zoom level starts at -180 + 5 * 360 / 4096
+    assertEquals(4, MapTileDB.getTileX(MapTileDB.MAX_ZOOM, -179.5606));
+    assertEquals(5, MapTileDB.getTileX(MapTileDB.MAX_ZOOM, -179.560546875));
+    assertEquals(4, MapTileDB.getTileY(MapTileDB.MAX_ZOOM, -89.7804));
+    assertEquals(5, MapTileDB.getTileY(MapTileDB.MAX_ZOOM, -89.7802734375));
+  }
+
+  /**
+   * Check that the edges of the world, and positions beyond them,
+   * are in the first and last tiles
+   */
+  @Test
+  public void testWorldEdges() {
+    int lastTile = (1 << MapTileDB.MAX_ZOOM) - 1;
+
+    assertEquals(0, MapTileDB.getTileX(MapTileDB.MAX_ZOOM, -180));
+    assertEquals(lastTile, MapTileDB.getTileX(MapTileDB.MAX_ZOOM, 180));
+    assertEquals(0, MapTileDB.getTileY(MapTileDB.MAX_ZOOM, -90));
+    assertEquals(lastTile, MapTileDB.getTileY(MapTileDB.MAX_ZOOM, 90));
+
+    assertEquals(0, MapTileDB.getTileX(MapTileDB.MAX_ZOOM, -200));
+    assertEquals(lastTile, MapTileDB.getTileX(MapTileDB.MAX_ZOOM, 200));
+  }
+
+  /**
+   * Check the zoom level chosen for map views of different sizes
+   */
+  @Test
+  public void testZoomLevel() {
+    // 1024 pixels across the world gives 128 tiles, which is zoom level 7
+    assertEquals(7, MapTileDB.getZoomLevel(Arrays.asList(-180.0, -90.0, 180.0, 90.0), 1024));
+    assertEquals(8, MapTileDB.getZoomLevel(Arrays.asList(-180.0, -90.0, 180.0, 90.0), 1025));
+
+    // Views wider than the world are treated as the whole world
+    assertEquals(7, MapTileDB.getZoomLevel(Arrays.asList(-400.0, -90.0, 400.0, 90.0), 1024));
+
+    // Small views of a large map use the least detailed zoom level
+    assertEquals(0, MapTileDB.getZoomLevel(Arrays.asList(-180.0, -90.0, 180.0, 90.0), 4));
+  }
+
+  /**
+   * Check views at and beyond the most detailed zoom level
+   */
+  @Test
+  public void testMaxZoom() {
+    // 128 tiles across 11.25 degrees is exactly the most detailed zoom level
+    assertEquals(MapTileDB.MAX_ZOOM, MapTileDB.getZoomLevel(Arrays.asList(0.0, 0.0, 11.25, 5.0), 1024));
+    assertEquals(MapTileDB.NO_ZOOM, MapTileDB.getZoomLevel(Arrays.asList(0.0, 0.0, 11.0, 5.0), 1024));
+    assertEquals(MapTileDB.NO_ZOOM, MapTileDB.getZoomLevel(Arrays.asList(0.0, 0.0, 0.001, 0.001), 1024));
+  }
+
+  /**
+   * Check that no zoom level is chosen if the view size is not known
+   */
+  @Test
+  public void testUnknownView() {
+    assertEquals(MapTileDB.NO_ZOOM, MapTileDB.getZoomLevel(null, 1024));
+    assertEquals(MapTileDB.NO_ZOOM, MapTileDB.getZoomLevel(Arrays.asList(0.0, 0.0, 10.0), 1024));
+    assertEquals(MapTileDB.NO_ZOOM, MapTileDB.getZoomLevel(Arrays.asList(0.0, 0.0, 10.0, 10.0), 0));
+    assertEquals(MapTileDB.NO_ZOOM, MapTileDB.getZoomLevel(Arrays.asList(5.0, 0.0, 5.0, 10.0), 1024));
+  }
+}
@@ -0,0 +1,237 @@
+package junit.uk.ac.exeter.QuinCe.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.primefaces.json.JSONArray;
+import org.primefaces.json.JSONObject;
+
+import uk.ac.exeter.QuinCe.utils.Downsampler;
+
+/**
+ * Tests for the Downsampler class
+ * @author Steve Jones
+ *
+ */
+public class DownsamplerTest {
+
+  /**
+   * Check that all rows are kept when there are fewer rows than the target
+   * @throws Exception If the downsampler cannot be created
+   */
+  @Test
+  public void testFewerRowsThanTarget() throws Exception {
+    double[] values = {3.0, 1.0, 4.0, 1.0, 5.0};
+
+    for (int method : new int[] {Downsampler.LARGEST_TRIANGLE, Downsampler.MIN_MAX}) {
+      JSONArray result = downsample(method, values, 10);
+      assertEquals(values.length, result.length());
+      for (int i = 0; i < values.length; i++) {
+        assertEquals(i, getIndex(result, i));
+      }
+    }
+  }
+
+  /**
+   * Check that the first and last rows are always kept
+   * @throws Exception If the downsampler cannot be created
+   */
+  @Test
+  public void testFirstAndLastKept() throws Exception {
+    double[] values = new double[1000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.sin(i / 10.0);
+    }
+
+    JSONArray result = downsample(Downsampler.LARGEST_TRIANGLE, values, 50);
+    assertEquals(50, result.length());
+    assertEquals(0, getIndex(result, 0));
+    assertEquals(values.length - 1, getIndex(result, result.length() - 1));
+    checkOrdered(result);
+  }
+
+  /**
+   * Check row counts that do not divide evenly into the buckets
+   * @throws Exception If the downsampler cannot be created
+   */
+  @Test
+  public void testUnevenBuckets() throws Exception {
+    for (int rowCount = 11; rowCount < 40; rowCount++) {
+      double[] values = new double[rowCount];
+      for (int i = 0; i < rowCount; i++) {
+        values[i] = (i * 7) % 5;
+      }
+
+      JSONArray result = downsample(Downsampler.LARGEST_TRIANGLE, values, 10);
+      assertEquals("Rows: " + rowCount, 10, result.length());
+      assertEquals(0, getIndex(result, 0));
+      assertEquals(rowCount - 1, getIndex(result, result.length() - 1));
+      checkOrdered(result);
+
+      result = downsample(Downsampler.MIN_MAX, values, 10);
+      assertTrue("Rows: " + rowCount, result.length() <= 10);
+      checkOrdered(result);
+    }
+  }
+
+  /**
+   * Check that a single spike is kept
+   * @throws Exception If the downsampler cannot be created
+   */
+  @Test
+  public void testSpikeKept() throws Exception {
+    double[] values = new double[1000];
+    values[537] = 100.0;
+
+    for (int method : new int[] {Downsampler.LARGEST_TRIANGLE, Downsampler.MIN_MAX}) {
+      JSONArray result = downsample(method, values, 20);
+      assertTrue(contains(result, 537));
+    }
+  }
+
+  /**
+   * Check that the smallest and largest values of each bucket
+   * are kept by the min/max method
+   * @throws Exception If the downsampler cannot be created
+   */
+  @Test
+  public void testMinMax() throws Exception {
+    // 5 buckets of 20 rows
+    double[] values = new double[100];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (i * 37) % 101;
+    }
+
+    JSONArray result = downsample(Downsampler.MIN_MAX, values, 10);
+    assertEquals(10, result.length());
+    checkOrdered(result);
+
+    for (int bucket = 0; bucket < 5; bucket++) {
+      int min = bucket * 20;
+      int max = bucket * 20;
+      for (int i = bucket * 20; i < (bucket + 1) * 20; i++) {
+        if (values[i] < values[min]) {
+          min = i;
+        }
+        if (values[i] > values[max]) {
+          max = i;
+        }
+      }
+
+      assertTrue(contains(result, min));
+      assertTrue(contains(result, max));
+    }
+  }
+
+  /**
+   * Check that missing and null values are never selected
+   * from the middle of the data
+   * @throws Exception If the downsampler cannot be created
+   */
+  @Test
+  public void testMissingValues() throws Exception {
+    double[] values = new double[500];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i % 3 == 0 ? Math.cos(i) : Double.NaN;
+    }
+    values[values.length - 1] = 0.0;
+
+    for (int method : new int[] {Downsampler.LARGEST_TRIANGLE, Downsampler.MIN_MAX}) {
+      JSONArray result = downsample(method, values, 20);
+      assertTrue(result.length() <= 20);
+      checkOrdered(result);
+
+      for (int i = 0; i < result.length(); i++) {
+        assertFalse(Double.isNaN(values[getIndex(result, i)]));
+      }
+    }
+  }
+
+  /**
+   * Check that a column with no values only keeps the first and last rows
+   * @throws Exception If the downsampler cannot be created
+   */
+  @Test
+  public void testAllMissing() throws Exception {
+    double[] values = new double[200];
+    Arrays.fill(values, Double.NaN);
+
+    JSONArray result = downsample(Downsampler.LARGEST_TRIANGLE, values, 20);
+    assertEquals(2, result.length());
+    assertEquals(0, getIndex(result, 0));
+    assertEquals(values.length - 1, getIndex(result, 1));
+
+    result = downsample(Downsampler.MIN_MAX, values, 20);
+    assertEquals(0, result.length());
+  }
+
+  /**
+   * Downsample a set of values. Each row contains the row index followed by
+   * the value; {@code NaN} values are stored as {@code null}, and every
+   * fourth {@code NaN} value is left out of the row.
+   * @param method The downsampling method
+   * @param values The values
+   * @param targetPoints The target number of points
+   * @return The selected rows
+   * @throws Exception If the downsampler cannot be created
+   */
+  private JSONArray downsample(int method, double[] values, int targetPoints) throws Exception {
+    Downsampler downsampler = new Downsampler(method, 0, Arrays.asList(1), targetPoints);
+    downsampler.setRowCount(values.length);
+
+    for (int i = 0; i < values.length; i++) {
+      JSONArray row = new JSONArray();
+      row.put(i);
+      if (!Double.isNaN(values[i])) {
+        row.put(values[i]);
+      } else if (i % 4 != 0) {
+        row.put(JSONObject.NULL);
+      }
+
+      downsampler.add(row);
+    }
+
+    return downsampler.getResult();
+  }
+
+  /**
+   * Get the row index of a selected row
+   * @param result The selected rows
+   * @param position The position of the row in the selected rows
+   * @return The row index
+   */
+  private int getIndex(JSONArray result, int position) {
+    return result.getJSONArray(position).getInt(0);
+  }
+
+  /**
+   * Determine whether the selected rows contain a given row
+   * @param result The selected rows
+   * @param index The row index
+   * @return {@code true} if the row was selected; {@code false} if it was not
+   */
+  private boolean contains(JSONArray result, int index) {
+    boolean found = false;
+
+    for (int i = 0; i < result.length(); i++) {
+      if (getIndex(result, i) == index) {
+        found = true;
+        break;
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Check that the selected rows are in their original order with no duplicates
+   * @param result The selected rows
+   */
+  private void checkOrdered(JSONArray result) {
+    for (int i = 1; i < result.length(); i++) {
+      assertTrue(getIndex(result, i) > getIndex(result, i - 1));
+    }
+  }
+}
@@ -1,10 +1,9 @@
 package uk.ac.exeter.QuinCe.EquilibratorPco2;
 
 import java.time.LocalDateTime;
-import java.util.HashMap;
-import java.util.Map;
 
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationValueBuffer;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculatorException;
 import uk.ac.exeter.QuinCe.data.Calculation.DataReductionCalculator;
 import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataSet;
@@ -28,6 +27,46 @@ public class EquilibratorPco2Calculator extends DataReductionCalculator {
    */
   private static final double PASCALS_TO_ATMOSPHERES = 0.00000986923266716013;
 
+  /**
+   * Buffer index of the delta temperature
+   */
+  private static final int DELTA_TEMPERATURE = 0;
+
+  /**
+   * Buffer index of the true moisture
+   */
+  private static final int TRUE_MOISTURE = 1;
+
+  /**
+   * Buffer index of pH<sub>2</sub>O
+   */
+  private static final int PH2O = 2;
+
+  /**
+   * Buffer index of the dried CO<sub>2</sub>
+   */
+  private static final int DRIED_CO2 = 3;
+
+  /**
+   * Buffer index of the calibrated CO<sub>2</sub>
+   */
+  private static final int CALIBRATED_CO2 = 4;
+
+  /**
+   * Buffer index of pCO<sub>2</sub> at equilibrator temperature
+   */
+  private static final int PCO2_TE_WET = 5;
+
+  /**
+   * Buffer index of pCO<sub>2</sub> at intake temperature
+   */
+  private static final int PCO2_SST = 6;
+
+  /**
+   * Buffer index of fCO<sub>2</sub>
+   */
+  private static final int FCO2 = 7;
+
   /**
    * Base constructor
    * @param externalStandards The external standards for the data set
@@ -44,7 +83,7 @@ public class EquilibratorPco2Calculator extends DataReductionCalculator {
   }
 
   @Override
-  public Map<String, Double> performDataReduction(DataSetRawDataRecord measurement) throws CalculatorException {
+  public void performDataReduction(DataSetRawDataRecord measurement, CalculationValueBuffer buffer, int row) throws CalculatorException {
 
     LocalDateTime date = measurement.getDate();
     double intakeTemperature = measurement.getSensorValue("Intake Temperature");
@@ -89,19 +128,16 @@ public class EquilibratorPco2Calculator extends DataReductionCalculator {
     double pCO2SST = calcPco2SST(pCo2TEWet, equilibratorTemperature, intakeTemperature);
     double fCO2 = calcFco2SST(pCO2SST, co2Calibrated, equilibratorPressure, equilibratorTemperature);
 
-    Map<String, Double> calculatedValues = new HashMap<String, Double>();
-    calculatedValues.put("delta_temperature", Math.abs(intakeTemperature - equilibratorTemperature));
+    buffer.setValue(DELTA_TEMPERATURE, row, Math.abs(intakeTemperature - equilibratorTemperature));
     if (null != xH2O) {
-      calculatedValues.put("true_moisture", truexH2O);
+      buffer.setValue(TRUE_MOISTURE, row, truexH2O);
     }
-    calculatedValues.put("ph2o", pH2O);
-    calculatedValues.put("dried_co2", co2Dried);
-    calculatedValues.put("calibrated_co2", co2Calibrated);
-    calculatedValues.put("pco2_te_wet", pCo2TEWet);
-    calculatedValues.put("pco2_sst", pCO2SST);
-    calculatedValues.put("fco2", fCO2);
-
-    return calculatedValues;
+    buffer.setValue(PH2O, row, pH2O);
+    buffer.setValue(DRIED_CO2, row, co2Dried);
+    buffer.setValue(CALIBRATED_CO2, row, co2Calibrated);
+    buffer.setValue(PCO2_TE_WET, row, pCo2TEWet);
+    buffer.setValue(PCO2_SST, row, pCO2SST);
+    buffer.setValue(FCO2, row, fCO2);
   }
 
   /**
@@ -5,6 +5,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -58,15 +60,27 @@ public class EquilibratorPco2DB extends CalculationDB {
       + "pco2_te_wet = NULL, pco2_sst = NULL, fco2 = NULL " // 8
       + "WHERE measurement_id = ?";
 
+  /**
+   * The fields read by {@link #readCalculationValues(ResultSet, int, CalculationRecord)}, in order
+   */
+  private static final List<String> CALCULATION_VALUE_FIELDS = Arrays.asList(
+      "delta_temperature", "true_moisture", "ph2o", // 3
+      "dried_co2", "calibrated_co2", // 5
+      "pco2_te_wet", "pco2_sst", "fco2", // 8
+      "auto_flag", "auto_message", "user_flag", "user_message"); // 12
+
+  /**
+   * The fields holding calculated values, in order. This must match
+   * the buffer indices used by {@link EquilibratorPco2Calculator}
+   */
+  private static final List<String> CALCULATED_VALUE_FIELDS = Collections.unmodifiableList(CALCULATION_VALUE_FIELDS.subList(0, 8));
+
   /**
    * The query to retrieve calculation values
    */
   private static final String GET_CALCULATION_VALUES_STATEMENT = "SELECT "
-      + "delta_temperature, true_moisture, ph2o, " // 3
-      + "dried_co2, calibrated_co2, " // 5
-      + "pco2_te_wet, pco2_sst, fco2, " // 9
-      + "auto_flag, auto_message, user_flag, user_message " // 12
-      + "FROM " + TABLE_NAME
+      + String.join(", ", CALCULATION_VALUE_FIELDS)
+      + " FROM " + TABLE_NAME
       + " WHERE measurement_id = ?";
 
 
@@ -120,7 +134,7 @@ public class EquilibratorPco2DB extends CalculationDB {
 
     PreparedStatement stmt = null;
     ResultSet dbRecord = null;
-    Map<String, Double> values = new HashMap<String, Double>();
+    Map<String, Double> values = null;
 
     try {
       stmt = conn.prepareStatement(GET_CALCULATION_VALUES_STATEMENT);
@@ -131,29 +145,7 @@ public class EquilibratorPco2DB extends CalculationDB {
       if (!dbRecord.next()) {
         throw new RecordNotFoundException("Calculation data record not found", TABLE_NAME, record.getLineNumber());
       } else {
-
-        values.put("delta_temperature", dbRecord.getDouble(1));
-        values.put("true_moisture", dbRecord.getDouble(2));
-        values.put("ph2o", dbRecord.getDouble(3));
-        values.put("dried_co2", dbRecord.getDouble(4));
-        values.put("calibrated_co2", dbRecord.getDouble(5));
-        values.put("pco2_te_wet", dbRecord.getDouble(6));
-        values.put("pco2_sst", dbRecord.getDouble(7));
-        values.put("fco2", dbRecord.getDouble(8));
-
-        for (int i = 1; i < record.getData().size(); i++) {
-          DataColumn column = record.getData().get(i);
-          String fieldName = DatabaseUtils.getDatabaseFieldName(column.getName());
-          Double value = values.get(fieldName);
-          if (null != value) {
-            column.setValue(String.valueOf(value));
-          }
-        }
-
-        record.setAutoFlag(new Flag(dbRecord.getInt(9)));
-        record.setMessages(RebuildCode.getMessagesFromRebuildCodes(dbRecord.getString(10)));
-        record.setUserFlag(new Flag(dbRecord.getInt(11)));
-        record.setUserMessage(dbRecord.getString(12));
+        values = readCalculationValues(dbRecord, 1, record);
       }
     } catch (SQLException|InvalidDataException|InvalidFlagException e) {
       throw new DatabaseException("Error retrieving calculations" , e);
@@ -165,6 +157,47 @@ public class EquilibratorPco2DB extends CalculationDB {
     return values;
   }
 
+  @Override
+  public List<String> getCalculatedValueFields() {
+    return CALCULATED_VALUE_FIELDS;
+  }
+
+  @Override
+  protected List<String> getCalculationValueFields() {
+    return CALCULATION_VALUE_FIELDS;
+  }
+
+  @Override
+  protected Map<String, Double> readCalculationValues(ResultSet dbRecord, int firstColumn, CalculationRecord record) throws SQLException, InvalidDataException, InvalidFlagException, MessageException, NoSuchColumnException {
+
+    Map<String, Double> values = new HashMap<String, Double>();
+
+    values.put("delta_temperature", dbRecord.getDouble(firstColumn));
+    values.put("true_moisture", dbRecord.getDouble(firstColumn + 1));
+    values.put("ph2o", dbRecord.getDouble(firstColumn + 2));
+    values.put("dried_co2", dbRecord.getDouble(firstColumn + 3));
+    values.put("calibrated_co2", dbRecord.getDouble(firstColumn + 4));
+    values.put("pco2_te_wet", dbRecord.getDouble(firstColumn + 5));
+    values.put("pco2_sst", dbRecord.getDouble(firstColumn + 6));
+    values.put("fco2", dbRecord.getDouble(firstColumn + 7));
+
+    for (int i = 1; i < record.getData().size(); i++) {
+      DataColumn column = record.getData().get(i);
+      String fieldName = DatabaseUtils.getDatabaseFieldName(column.getName());
+      Double value = values.get(fieldName);
+      if (null != value) {
+        column.setValue(String.valueOf(value));
+      }
+    }
+
+    record.setAutoFlag(new Flag(dbRecord.getInt(firstColumn + 8)));
+    record.setMessages(RebuildCode.getMessagesFromRebuildCodes(dbRecord.getString(firstColumn + 9)));
+    record.setUserFlag(new Flag(dbRecord.getInt(firstColumn + 10)));
+    record.setUserMessage(dbRecord.getString(firstColumn + 11));
+
+    return values;
+  }
+
   @Override
   public void clearCalculationValues(Connection conn, long measurementId) throws MissingParamException, DatabaseException {
 
@@ -0,0 +1,51 @@
+package uk.ac.exeter.QuinCe.data.Calculation;
+
+import java.util.List;
+
+import uk.ac.exeter.QCRoutines.messages.Flag;
+import uk.ac.exeter.QCRoutines.messages.Message;
+
+/**
+ * The automatic QC flag and messages stored in the
+ * database for a single measurement
+ * @author Steve Jones
+ * @see CalculationDB#getAutoQCResults(java.sql.Connection, long)
+ */
+public class AutoQCResult {
+
+  /**
+   * The automatic QC flag
+   */
+  private Flag flag;
+
+  /**
+   * The automatic QC messages
+   */
+  private List<Message> messages;
+
+  /**
+   * Basic constructor
+   * @param flag The automatic QC flag
+   * @param messages The automatic QC messages
+   */
+  protected AutoQCResult(Flag flag, List<Message> messages) {
+    this.flag = flag;
+    this.messages = messages;
+  }
+
+  /**
+   * Get the automatic QC flag
+   * @return The flag
+   */
+  public Flag getFlag() {
+    return flag;
+  }
+
+  /**
+   * Get the automatic QC messages
+   * @return The messages
+   */
+  public List<Message> getMessages() {
+    return messages;
+  }
+}
@@ -5,7 +5,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -14,6 +16,7 @@ import javax.sql.DataSource;
 import org.apache.commons.math3.stat.descriptive.rank.Percentile;
 import org.primefaces.json.JSONArray;
 
+import uk.ac.exeter.QCRoutines.data.InvalidDataException;
 import uk.ac.exeter.QCRoutines.data.NoSuchColumnException;
 import uk.ac.exeter.QCRoutines.messages.Flag;
 import uk.ac.exeter.QCRoutines.messages.InvalidFlagException;
@@ -21,17 +24,21 @@ import uk.ac.exeter.QCRoutines.messages.Message;
 import uk.ac.exeter.QCRoutines.messages.MessageException;
 import uk.ac.exeter.QCRoutines.messages.RebuildCode;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetCache;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetColumns;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
 import uk.ac.exeter.QuinCe.data.Dataset.DiagnosticDataDB;
 import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
 import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+import uk.ac.exeter.QuinCe.utils.Downsampler;
 import uk.ac.exeter.QuinCe.utils.MissingParam;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
 import uk.ac.exeter.QuinCe.utils.StringUtils;
 import uk.ac.exeter.QuinCe.web.VariableList;
-import uk.ac.exeter.QuinCe.web.system.ResourceManager;
 
 /**
  * Class for dealing with database calls related to calculation data
@@ -62,13 +69,7 @@ public abstract class CalculationDB {
 
     try {
       statement = getInsertStatement(conn);
-
-      statement.setLong(1, measurementId);
-      statement.setInt(2, Flag.VALUE_NOT_SET);
-      statement.setNull(3, Types.VARCHAR);
-      statement.setInt(4, Flag.VALUE_NOT_SET);
-      statement.setNull(5, Types.VARCHAR);
-
+      setInsertParameters(statement, measurementId);
       statement.execute();
 
     } catch (SQLException e) {
@@ -78,6 +79,33 @@ public abstract class CalculationDB {
     }
   }
 
+  /**
+   * Add a new calculation record for the given measurement to a batch
+   * created by {@link #getInsertStatement(Connection)}. The batch must
+   * be executed by the caller.
+   * @param statement The insert statement
+   * @param measurementId The measurement's ID
+   * @throws SQLException If the record cannot be added to the batch
+   */
+  public void addCalculationRecord(PreparedStatement statement, long measurementId) throws SQLException {
+    setInsertParameters(statement, measurementId);
+    statement.addBatch();
+  }
+
+  /**
+   * Set the parameters on the insert statement for a new calculation record
+   * @param statement The insert statement
+   * @param measurementId The measurement's ID
+   * @throws SQLException If the parameters cannot be set
+   */
+  private void setInsertParameters(PreparedStatement statement, long measurementId) throws SQLException {
+    statement.setLong(1, measurementId);
+    statement.setInt(2, Flag.VALUE_NOT_SET);
+    statement.setNull(3, Types.VARCHAR);
+    statement.setInt(4, Flag.VALUE_NOT_SET);
+    statement.setNull(5, Types.VARCHAR);
+  }
+
   /**
    * Generate the insert statement for a new calculation record
    * @param conn A database connection
@@ -85,7 +113,7 @@ public abstract class CalculationDB {
    * @throws MissingParamException If any required parameters are missing
    * @throws SQLException If the statement cannot be created
    */
-  private PreparedStatement getInsertStatement(Connection conn) throws MissingParamException, SQLException {
+  public PreparedStatement getInsertStatement(Connection conn) throws MissingParamException, SQLException {
 
     List<String> fields = new ArrayList<String>();
 
@@ -125,6 +153,37 @@ public abstract class CalculationDB {
       DatabaseUtils.closeStatements(stmt);
     }
   }
+  /**
+   * Delete the calculation data for the measurements in a given
+   * data set from the specified time onwards
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param from The time of the first measurement whose calculation data is to be deleted
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public void deleteDatasetCalculationData(Connection conn, DataSet dataSet, LocalDateTime from) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(from, "from");
+
+    PreparedStatement stmt = null;
+
+    try {
+      String deleteStatement = "DELETE c.* FROM " + getCalculationTable() + " AS c INNER JOIN dataset_data AS d ON c.measurement_id = d.id WHERE d.dataset_id = ? AND d.date >= ?";
+
+      stmt = conn.prepareStatement(deleteStatement);
+      stmt.setLong(1, dataSet.getId());
+      stmt.setLong(2, DateTimeUtils.dateToLong(from));
+
+      stmt.execute();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while deleting dataset data", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+  }
+
 
   /**
    * Get the Automatic QC flag for a measurement
@@ -211,6 +270,50 @@ public abstract class CalculationDB {
     }
   }
 
+  /**
+   * Get the automatic QC flags and messages for all the measurements
+   * in a data set
+   * @param conn A database connection
+   * @param datasetId The data set's database ID
+   * @return The automatic QC results, keyed by measurement ID
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws MessageException If the messages cannot be parsed
+   */
+  public Map<Long, AutoQCResult> getAutoQCResults(Connection conn, long datasetId) throws MissingParamException, DatabaseException, MessageException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+
+    Map<Long, AutoQCResult> result = new HashMap<Long, AutoQCResult>();
+
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    try {
+      String query = "SELECT c.measurement_id, c.auto_flag, c.auto_message FROM "
+          + getCalculationTable() + " c INNER JOIN dataset_data d ON c.measurement_id = d.id "
+          + "WHERE d.dataset_id = ?";
+
+      stmt = conn.prepareStatement(query);
+      stmt.setLong(1, datasetId);
+      records = stmt.executeQuery();
+
+      while (records.next()) {
+        Flag flag = new Flag(records.getInt(2));
+        List<Message> messages = RebuildCode.getMessagesFromRebuildCodes(records.getString(3));
+        result.put(records.getLong(1), new AutoQCResult(flag, messages));
+      }
+    } catch (SQLException|InvalidFlagException e) {
+      throw new DatabaseException("An error occurred while retrieving QC results", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return result;
+  }
+
   /**
    * Store the QC information for a given record
    * @param conn A database connection
@@ -227,32 +330,52 @@ public abstract class CalculationDB {
     PreparedStatement stmt = null;
 
     try {
-      // TODO I think this could be done better. But maybe not.
-      String sql = "UPDATE " + getCalculationTable() + " SET auto_flag = ?, "
-          + "auto_message = ?, user_flag = ?, user_message = ? "
-          + "WHERE measurement_id = ?";
+      stmt = conn.prepareStatement(getStoreQCStatement());
+      setStoreQCParameters(stmt, record);
+      stmt.execute();
 
-      stmt = conn.prepareStatement(sql);
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while storing QC info", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+  }
 
-      stmt.setInt(1, record.getAutoFlag().getFlagValue());
-      String rebuildCodes = RebuildCode.getRebuildCodes(record.getAutoQCMessages());
-      if (null == rebuildCodes || rebuildCodes.length() == 0) {
-        stmt.setNull(2, Types.VARCHAR);
-      } else {
-        stmt.setString(2, RebuildCode.getRebuildCodes(record.getAutoQCMessages()));
-      }
+  /**
+   * Store the QC information for a set of records using batched updates
+   * @param conn A database connection
+   * @param records The records
+   * @param batchSize The number of records in each batch
+   * @throws MessageException If the messages cannot be serialized for storage
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public void storeQC(Connection conn, List<CalculationRecord> records, int batchSize) throws MissingParamException, DatabaseException, MessageException {
 
-      stmt.setInt(3, record.getUserFlag().getFlagValue());
-      String userMessage = record.getUserMessage();
-      if (null == userMessage || userMessage.length() == 0) {
-        stmt.setNull(4, Types.VARCHAR);
-      } else {
-        stmt.setString(4, record.getUserMessage());
-      }
-      stmt.setLong(5, record.getLineNumber());
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(records, "records", true);
+    MissingParam.checkPositive(batchSize, "batchSize");
 
-      stmt.execute();
+    PreparedStatement stmt = null;
 
+    try {
+      stmt = conn.prepareStatement(getStoreQCStatement());
+
+      int batchCount = 0;
+      for (CalculationRecord record : records) {
+        setStoreQCParameters(stmt, record);
+        stmt.addBatch();
+        batchCount++;
+
+        if (batchCount == batchSize) {
+          stmt.executeBatch();
+          batchCount = 0;
+        }
+      }
+
+      if (batchCount > 0) {
+        stmt.executeBatch();
+      }
     } catch (SQLException e) {
       throw new DatabaseException("Error while storing QC info", e);
     } finally {
@@ -260,6 +383,42 @@ public abstract class CalculationDB {
     }
   }
 
+  /**
+   * Get the statement for storing the QC information for a record
+   * @return The statement
+   */
+  private String getStoreQCStatement() {
+    return "UPDATE " + getCalculationTable() + " SET auto_flag = ?, "
+        + "auto_message = ?, user_flag = ?, user_message = ? "
+        + "WHERE measurement_id = ?";
+  }
+
+  /**
+   * Set the parameters of the QC storage statement for a record
+   * @param stmt The statement
+   * @param record The record
+   * @throws SQLException If the parameters cannot be set
+   * @throws MessageException If the messages cannot be serialized for storage
+   */
+  private void setStoreQCParameters(PreparedStatement stmt, CalculationRecord record) throws SQLException, MessageException {
+    stmt.setInt(1, record.getAutoFlag().getFlagValue());
+    String rebuildCodes = RebuildCode.getRebuildCodes(record.getAutoQCMessages());
+    if (null == rebuildCodes || rebuildCodes.length() == 0) {
+      stmt.setNull(2, Types.VARCHAR);
+    } else {
+      stmt.setString(2, rebuildCodes);
+    }
+
+    stmt.setInt(3, record.getUserFlag().getFlagValue());
+    String userMessage = record.getUserMessage();
+    if (null == userMessage || userMessage.length() == 0) {
+      stmt.setNull(4, Types.VARCHAR);
+    } else {
+      stmt.setString(4, userMessage);
+    }
+    stmt.setLong(5, record.getLineNumber());
+  }
+
   /**
    * Store the calculation values for a given measurement. This method
    * must only update an existing record in the database.
@@ -271,6 +430,81 @@ public abstract class CalculationDB {
    */
   public abstract void storeCalculationValues(Connection conn, long measurementId, Map<String, Double> values) throws MissingParamException, DatabaseException;
 
+  /**
+   * Get the names of the fields in the calculation table that hold
+   * calculated values, in the order used by {@link CalculationValueBuffer}s
+   * @return The field names
+   */
+  public abstract List<String> getCalculatedValueFields();
+
+  /**
+   * Create an empty buffer for the calculated values of this calculation
+   * @param capacity The maximum number of measurements in the buffer
+   * @return The buffer
+   * @throws MissingParamException If the capacity is not positive
+   */
+  public CalculationValueBuffer createValueBuffer(int capacity) throws MissingParamException {
+    return new CalculationValueBuffer(getCalculatedValueFields(), capacity);
+  }
+
+  /**
+   * Store the calculation values for all the measurements in a buffer
+   * using a single batched update. Missing values are stored as
+   * {@code NULL}. This method must only update existing records in
+   * the database.
+   * @param conn A database connection
+   * @param values The values to be stored
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public void storeCalculationValues(Connection conn, CalculationValueBuffer values) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(values, "values");
+
+    if (values.size() > 0) {
+      PreparedStatement stmt = null;
+
+      try {
+        List<String> fields = values.getFields();
+
+        StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(getCalculationTable());
+        sql.append(" SET ");
+        for (int i = 0; i < fields.size(); i++) {
+          if (i > 0) {
+            sql.append(", ");
+          }
+          sql.append(fields.get(i));
+          sql.append(" = ?");
+        }
+        sql.append(" WHERE measurement_id = ?");
+
+        stmt = conn.prepareStatement(sql.toString());
+
+        for (int row = 0; row < values.size(); row++) {
+          for (int field = 0; field < fields.size(); field++) {
+            double value = values.getValue(field, row);
+            if (Double.isNaN(value)) {
+              stmt.setNull(field + 1, Types.DOUBLE);
+            } else {
+              stmt.setDouble(field + 1, value);
+            }
+          }
+
+          stmt.setLong(fields.size() + 1, values.getMeasurementId(row));
+          stmt.addBatch();
+        }
+
+        stmt.executeBatch();
+      } catch (SQLException e) {
+        throw new DatabaseException("Error storing calculations", e);
+      } finally {
+        DatabaseUtils.closeStatements(stmt);
+      }
+    }
+  }
+
   /**
    * Add the calculation values to a {@link CalculationRecord}
    * @param dataSource A data source
@@ -311,6 +545,160 @@ public abstract class CalculationDB {
    */
   public abstract Map<String, Double> getCalculationValues(Connection conn, CalculationRecord record) throws MissingParamException, DatabaseException, RecordNotFoundException, NoSuchColumnException, MessageException;
 
+  /**
+   * Get the fields of the calculation table that are read by
+   * {@link #readCalculationValues(ResultSet, int, CalculationRecord)}, in the order
+   * in which they must appear in the result set
+   * @return The field names
+   */
+  protected abstract List<String> getCalculationValueFields();
+
+  /**
+   * Read the calculation values and QC details for a record from the current row of
+   * a result set, and add them to the record. The fields must be those returned by
+   * {@link #getCalculationValueFields()}, starting at the specified column.
+   * @param dbRecord The result set
+   * @param firstColumn The index of the first calculation field
+   * @param record The record
+   * @return The calculation values
+   * @throws SQLException If the values cannot be read
+   * @throws InvalidDataException If a value cannot be added to the record
+   * @throws InvalidFlagException If a QC flag is invalid
+   * @throws MessageException If the automatic QC messages cannot be parsed
+   * @throws NoSuchColumnException If the automatic QC messages cannot be parsed
+   */
+  protected abstract Map<String, Double> readCalculationValues(ResultSet dbRecord, int firstColumn, CalculationRecord record) throws SQLException, InvalidDataException, InvalidFlagException, MessageException, NoSuchColumnException;
+
+  /**
+   * Load the calculation records for all the measurements in a data set,
+   * in date order.
+   *
+   * <p>
+   *   The measurements and their calculation values are read with a single
+   *   joined query, which is streamed from the database rather than being
+   *   held in memory in full.
+   * </p>
+   *
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @return The calculation records
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the data set's instrument cannot be retrieved
+   * @see CalculationRecordReader
+   */
+  public List<CalculationRecord> getCalculationRecords(Connection conn, DataSet dataSet) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+
+    List<CalculationRecord> result = new ArrayList<CalculationRecord>();
+
+    CalculationRecordReader reader = new CalculationRecordReader(conn, this, dataSet);
+
+    try {
+      CalculationRecord record = reader.next();
+      while (null != record) {
+        result.add(record);
+        record = reader.next();
+      }
+    } finally {
+      reader.close();
+    }
+
+    return result;
+  }
+
+  /**
+   * Create a calculation record for a measurement whose calculated values
+   * are held in a buffer, without reading anything from the database.
+   * The record has no QC information.
+   * @param sensorData The measurement's sensor data
+   * @param values The buffer containing the calculated values
+   * @param row The buffer row for the measurement
+   * @return The calculation record
+   * @throws MissingParamException If any required parameters are missing
+   * @throws InvalidDataException If a value cannot be added to the record
+   * @see #storeCalculationRecords(Connection, List, CalculationValueBuffer, int)
+   */
+  public CalculationRecord makeCalculationRecord(DataSetRawDataRecord sensorData, CalculationValueBuffer values, int row) throws MissingParamException, InvalidDataException {
+
+    MissingParam.checkMissing(sensorData, "sensorData");
+    MissingParam.checkMissing(values, "values");
+
+    CalculationRecord record = CalculationRecordFactory.makeCalculationRecord(sensorData.getDatasetId(), sensorData.getId());
+    record.setSensorData(sensorData);
+    record.setCalculationValues(values, row);
+
+    return record;
+  }
+
+  /**
+   * Insert complete calculation records, with their calculated values and
+   * QC information, as a single batch. This is used instead of creating
+   * empty records and updating them later. Missing values are stored as
+   * {@code NULL}.
+   * @param conn A database connection
+   * @param records The records
+   * @param values The buffer containing the calculated values
+   * @param firstRow The buffer row for the first record. The remaining records
+   *                 must be in the following rows
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs, or the buffer rows do not match the records
+   * @throws MessageException If the QC messages cannot be serialized for storage
+   */
+  public void storeCalculationRecords(Connection conn, List<CalculationRecord> records, CalculationValueBuffer values, int firstRow) throws MissingParamException, DatabaseException, MessageException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(records, "records", true);
+    MissingParam.checkMissing(values, "values");
+    MissingParam.checkZeroPositive(firstRow, "firstRow");
+
+    if (records.size() > 0) {
+      PreparedStatement stmt = null;
+
+      try {
+        // The first five fields are set in the same
+        // order as the QC update statement
+        List<String> fields = new ArrayList<String>();
+        fields.add("auto_flag");
+        fields.add("auto_message");
+        fields.add("user_flag");
+        fields.add("user_message");
+        fields.add("measurement_id");
+        fields.addAll(values.getFields());
+
+        stmt = DatabaseUtils.createInsertStatement(conn, getCalculationTable(), fields);
+
+        for (int i = 0; i < records.size(); i++) {
+          CalculationRecord record = records.get(i);
+          int row = firstRow + i;
+
+          if (values.getMeasurementId(row) != record.getLineNumber()) {
+            throw new DatabaseException("Calculation values for measurement " + values.getMeasurementId(row)
+              + " do not match record " + record.getLineNumber());
+          }
+
+          setStoreQCParameters(stmt, record);
+          for (int field = 0; field < values.getFields().size(); field++) {
+            double value = values.getValue(field, row);
+            if (Double.isNaN(value)) {
+              stmt.setNull(field + 6, Types.DOUBLE);
+            } else {
+              stmt.setDouble(field + 6, value);
+            }
+          }
+
+          stmt.addBatch();
+        }
+
+        stmt.executeBatch();
+      } catch (SQLException e) {
+        throw new DatabaseException("Error storing calculation records", e);
+      } finally {
+        DatabaseUtils.closeStatements(stmt);
+      }
+    }
+  }
+
   /**
    * Clear the calculation values for a given measurement. This method
    * must only update an existing record in the database.
@@ -524,6 +912,57 @@ public abstract class CalculationDB {
     return result;
   }
 
+  /**
+   * Get the automatic and user QC messages for a set of measurements, for
+   * the QC table. Each measurement's entry holds the automatic QC messages
+   * in the form given by {@link CalculationRecord#getAutoQCMessagesString()},
+   * followed by the user QC message, which may be {@code null}.
+   * @param dataSource A data source
+   * @param measurementIds The measurement IDs
+   * @return The messages, keyed by measurement ID
+   * @throws DatabaseException If a database error occurs
+   * @throws MessageException If a QC message cannot be reconstructed from its rebuild code
+   * @throws MissingParamException If any required parameters are missing
+   */
+  public Map<Long, String[]> getTableMessages(DataSource dataSource, List<Long> measurementIds) throws DatabaseException, MessageException, MissingParamException {
+
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkMissing(measurementIds, "measurementIds", true);
+
+    Map<Long, String[]> result = new HashMap<Long, String[]>();
+
+    if (measurementIds.size() > 0) {
+      Connection conn = null;
+      PreparedStatement stmt = null;
+      ResultSet records = null;
+
+      try {
+        conn = dataSource.getConnection();
+
+        String sql = "SELECT measurement_id, auto_message, user_message FROM "
+            + getCalculationTable()
+            + " WHERE measurement_id IN ("
+            + StringUtils.collectionToDelimited(measurementIds, ",")
+            + ")";
+
+        stmt = conn.prepareStatement(sql);
+        records = stmt.executeQuery();
+        while (records.next()) {
+          String autoMessages = CalculationRecord.getMessagesString(RebuildCode.getMessagesFromRebuildCodes(records.getString(2)));
+          result.put(records.getLong(1), new String[] {autoMessages, records.getString(3)});
+        }
+      } catch (SQLException e) {
+        throw new DatabaseException("Error while retrieving QC messages", e);
+      } finally {
+        DatabaseUtils.closeResultSets(records);
+        DatabaseUtils.closeStatements(stmt);
+        DatabaseUtils.closeConnection(conn);
+      }
+    }
+
+    return result;
+  }
+
   /**
    * Apply a manual flag and comment to a set of rows
    * @param dataSource A data source
@@ -584,7 +1023,7 @@ public abstract class CalculationDB {
      * @throws MissingParamException If any required parameters are missing
    */
   public String getJsonData(DataSource dataSource, DataSet dataset, List<String> fields, String sortField) throws DatabaseException, MissingParamException, RecordNotFoundException, InstrumentException {
-    return getJsonData(dataSource, dataset, fields, sortField, null, false);
+    return getJsonData(dataSource, dataset, fields, sortField, null, null);
   }
 
   /**
@@ -594,19 +1033,49 @@ public abstract class CalculationDB {
    * @param fields The fields to retrieve
    * @param sortField The field used to sort the data. If {@code null}, default ordering will be used
    * @param bounds The geographical limits of the query
-   * @param limitPoints Indicates whether the number of points returned should be limited
+   * @param downsampler The downsampler used to limit the number of points returned. If {@code null}, all points are returned
    * @return The JSON array
    * @throws InstrumentException If the dataset's instrument cannot be retrieved
    * @throws RecordNotFoundException If the dataset does not exist
    * @throws DatabaseException If a database error occurs
    * @throws MissingParamException If any required parameters are missing
+   * @see DataSetCache
    */
-  public String getJsonData(DataSource dataSource, DataSet dataset, List<String> fields, String sortField, List<Double> bounds, boolean limitPoints) throws DatabaseException, MissingParamException, RecordNotFoundException, InstrumentException {
+  public String getJsonData(DataSource dataSource, DataSet dataset, List<String> fields, String sortField, List<Double> bounds, Downsampler downsampler) throws DatabaseException, MissingParamException, RecordNotFoundException, InstrumentException {
 
     MissingParam.checkMissing(dataSource, "dataSource");
     MissingParam.checkMissing(dataset, "dataset");
     MissingParam.checkMissing(fields, "fields");
 
+    String result;
+
+    DataSetColumns columns = DataSetCache.getColumns(dataSource, this, dataset);
+    if (null != columns && columns.hasFields(fields) && (null == sortField || columns.hasField(sortField))) {
+      result = columns.getJsonData(fields, sortField, bounds, downsampler);
+    } else {
+      result = getDatabaseJsonData(dataSource, dataset, fields, sortField, bounds, downsampler);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get a JSON data array for a dataset with the given fields from the database,
+   * for fields that are not held in the {@link DataSetCache}
+   * @param dataSource A data source
+   * @param dataset The dataset
+   * @param fields The fields to retrieve
+   * @param sortField The field used to sort the data. If {@code null}, default ordering will be used
+   * @param bounds The geographical limits of the query
+   * @param downsampler The downsampler used to limit the number of points returned. If {@code null}, all points are returned
+   * @return The JSON array
+   * @throws InstrumentException If the dataset's instrument cannot be retrieved
+   * @throws RecordNotFoundException If the dataset does not exist
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   */
+  private String getDatabaseJsonData(DataSource dataSource, DataSet dataset, List<String> fields, String sortField, List<Double> bounds, Downsampler downsampler) throws DatabaseException, MissingParamException, RecordNotFoundException, InstrumentException {
+
     Connection conn = null;
     PreparedStatement stmt = null;
     ResultSet records = null;
@@ -634,6 +1103,34 @@ public abstract class CalculationDB {
 
       Map<Long, Map<String, Double>> diagnosticData = DiagnosticDataDB.getDiagnosticValues(conn, dataset.getInstrumentId(), DataSetDataDB.getMeasurementIds(conn, dataset.getId()), diagnosticFields);
 
+      StringBuilder from = new StringBuilder();
+      from.append(" FROM dataset_data d INNER JOIN ");
+      from.append(getCalculationTable());
+      from.append(" c ON d.id = c.measurement_id WHERE d.dataset_id = ?");
+
+      if (null != bounds) {
+        from.append(" AND d.longitude >= ");
+        from.append(bounds.get(0));
+        from.append(" AND d.longitude <= ");
+        from.append(bounds.get(2));
+        from.append(" AND d.latitude >= ");
+        from.append(bounds.get(1));
+        from.append(" AND d.latitude <= ");
+        from.append(bounds.get(3));
+      }
+
+      // The downsampler needs to know how many rows there
+      // are before it is given any of them
+      if (null != downsampler) {
+        stmt = conn.prepareStatement("SELECT COUNT(*)" + from.toString());
+        stmt.setLong(1, dataset.getId());
+        records = stmt.executeQuery();
+        records.next();
+        downsampler.setRowCount(records.getLong(1));
+        DatabaseUtils.closeResultSets(records);
+        DatabaseUtils.closeStatements(stmt);
+      }
+
       StringBuilder sql = new StringBuilder();
 
       sql.append("SELECT ");
@@ -645,20 +1142,7 @@ public abstract class CalculationDB {
         }
       }
 
-      sql.append(" FROM dataset_data d INNER JOIN ");
-      sql.append(getCalculationTable());
-      sql.append(" c ON d.id = c.measurement_id WHERE d.dataset_id = ?");
-
-      if (null != bounds) {
-        sql.append(" AND d.longitude >= ");
-        sql.append(bounds.get(0));
-        sql.append(" AND d.longitude <= ");
-        sql.append(bounds.get(2));
-        sql.append(" AND d.latitude >= ");
-        sql.append(bounds.get(1));
-        sql.append(" AND d.latitude <= ");
-        sql.append(bounds.get(3));
-      }
+      sql.append(from);
 
       if (null != sortField) {
         sql.append(" ORDER BY ");
@@ -672,29 +1156,13 @@ public abstract class CalculationDB {
         sql.append(sortField);
       }
 
-      stmt = conn.prepareStatement(sql.toString());
+      stmt = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchSize(Integer.MIN_VALUE);
       stmt.setLong(1, dataset.getId());
 
       records = stmt.executeQuery();
-      int recordCount = 0;
-      try {
-          records.last();
-          recordCount = records.getRow();
-          records.beforeFirst();
-      } catch (SQLException e) {
-        recordCount = 0;
-      }
-
-      int everyNthRecord = 1;
-      if (limitPoints) {
-        int maxPoints = Integer.parseInt(ResourceManager.getInstance().getConfig().getProperty("map.max_points"));
-        everyNthRecord = recordCount / maxPoints;
-        if (everyNthRecord < 1) {
-          everyNthRecord = 1;
-        }
-      }
 
-      while (records.relative(everyNthRecord)) {
+      while (records.next()) {
 
         JSONArray recordJson = new JSONArray();
         long measurementId = -1;
@@ -715,7 +1183,15 @@ public abstract class CalculationDB {
           }
         }
 
-        json.put(recordJson);
+        if (null != downsampler) {
+          downsampler.add(recordJson);
+        } else {
+          json.put(recordJson);
+        }
+      }
+
+      if (null != downsampler) {
+        json = downsampler.getResult();
       }
 
     } catch (SQLException e) {
@@ -752,15 +1228,24 @@ public abstract class CalculationDB {
     MissingParam.checkMissing(field, "field");
 
     List<Double> result = null;
-    Connection conn = null;
 
-    try {
-      conn = dataSource.getConnection();
-      result = getValueRange(conn, dataset, field, true);
-    } catch (SQLException e) {
-      throw new DatabaseException("Excpeption while getting scale bounds", e);
-    } finally {
-      DatabaseUtils.closeConnection(conn);
+    DataSetColumns columns = DataSetCache.getColumns(dataSource, this, dataset);
+    if (null != columns && columns.hasField(field)) {
+      result = columns.getValueRange(field);
+    }
+
+    // Fields that are not cached, or have no values, are read from the database
+    if (null == result) {
+      Connection conn = null;
+
+      try {
+        conn = dataSource.getConnection();
+        result = getValueRange(conn, dataset, field, true);
+      } catch (SQLException e) {
+        throw new DatabaseException("Excpeption while getting scale bounds", e);
+      } finally {
+        DatabaseUtils.closeConnection(conn);
+      }
     }
 
 
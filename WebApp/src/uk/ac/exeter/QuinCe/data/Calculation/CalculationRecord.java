@@ -25,6 +25,7 @@ import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
 import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
@@ -229,8 +230,16 @@ public abstract class CalculationRecord extends DataRecord {
    */
   private void loadSensorData(Connection conn) throws MissingParamException, DatabaseException, RecordNotFoundException, InvalidDataException {
     dataSet = DataSetDB.getDataSet(conn, datasetId);
-    DataSetRawDataRecord sensorData = DataSetDataDB.getMeasurement(conn, dataSet, lineNumber);
+    setSensorData(DataSetDataDB.getMeasurement(conn, dataSet, lineNumber));
+  }
 
+  /**
+   * Set the base sensor data for the measurement from
+   * a record that has already been loaded
+   * @param sensorData The measurement's sensor data
+   * @throws InvalidDataException If a value cannot be added to the record
+   */
+  protected void setSensorData(DataSetRawDataRecord sensorData) throws InvalidDataException {
     date = sensorData.getDate();
     longitude = sensorData.getLongitude();
     latitude = sensorData.getLatitude();
@@ -247,6 +256,26 @@ public abstract class CalculationRecord extends DataRecord {
   }
 
 
+  /**
+   * Set the calculated values for the measurement from a row of a
+   * calculation value buffer. Missing values are set to zero, since that
+   * is how they are read from the database by {@link CalculationDB}; the
+   * QC routines therefore see the same values however the record was built.
+   * @param values The buffer
+   * @param row The buffer row for the measurement
+   * @throws InvalidDataException If a value cannot be added to the record
+   */
+  protected void setCalculationValues(CalculationValueBuffer values, int row) throws InvalidDataException {
+    for (int i = 1; i < data.size(); i++) {
+      DataColumn column = data.get(i);
+      int field = values.getFieldIndex(DatabaseUtils.getDatabaseFieldName(column.getName()));
+      if (field > -1) {
+        double value = values.getValue(field, row);
+        column.setValue(String.valueOf(Double.isNaN(value) ? 0.0 : value));
+      }
+    }
+  }
+
   /**
    * Load the calculation data for the measurement
    * @param conn A database connection
@@ -304,6 +333,16 @@ public abstract class CalculationRecord extends DataRecord {
    * @return The message strings
    */
   public String getAutoQCMessagesString() {
+    return getMessagesString(messages);
+  }
+
+  /**
+   * Get the message strings for a list of automatic QC messages,
+   * in the form shown in the QC table
+   * @param messages The messages
+   * @return The message strings
+   */
+  public static String getMessagesString(List<Message> messages) {
     StringBuilder result = new StringBuilder();
 
     for (int i = 0; i < messages.size(); i++) {
@@ -0,0 +1,294 @@
+package uk.ac.exeter.QuinCe.data.Calculation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.ac.exeter.QCRoutines.data.InvalidDataException;
+import uk.ac.exeter.QCRoutines.data.NoSuchColumnException;
+import uk.ac.exeter.QCRoutines.messages.InvalidFlagException;
+import uk.ac.exeter.QCRoutines.messages.MessageException;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetPageIndex;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
+import uk.ac.exeter.QuinCe.data.Instrument.Instrument;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentDB;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
+import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.NoSuchCategoryException;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+import uk.ac.exeter.QuinCe.web.system.ResourceManager;
+
+/**
+ * Forward-only reader for the calculation records of a data set.
+ *
+ * <p>
+ *   The measurements and their calculation values are read with a single
+ *   joined query, in date order, and streamed from the database one record
+ *   at a time. While the reader is open no other queries can be run on its
+ *   connection. {@link #close()} must be called when the reader is no longer needed.
+ * </p>
+ *
+ * <p>
+ *   A reader can also be opened for a single page of records, in which case
+ *   the values of the requested diagnostic sensors are read in the same query.
+ *   Pages are located using the data set's {@link DataSetPageIndex}.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see CalculationDB#getCalculationRecords(Connection, DataSet)
+ */
+public class CalculationRecordReader {
+
+  /**
+   * Page length indicating that all records are to be read
+   */
+  private static final int ALL_RECORDS = -1;
+
+  /**
+   * The calculation database handler
+   */
+  private CalculationDB calculationDB;
+
+  /**
+   * The data set
+   */
+  private DataSet dataSet;
+
+  /**
+   * The instrument to which the data set belongs
+   */
+  private Instrument instrument;
+
+  /**
+   * The query statement
+   */
+  private PreparedStatement stmt = null;
+
+  /**
+   * The streamed query results
+   */
+  private ResultSet records = null;
+
+  /**
+   * The column indices for the base columns
+   */
+  private Map<String, Integer> baseColumns = new HashMap<String, Integer>();
+
+  /**
+   * The column indices for the sensor columns
+   */
+  private Map<Integer, String> sensorColumns = new HashMap<Integer, String>();
+
+  /**
+   * The index of the first calculation column in the results
+   */
+  private int firstCalculationColumn;
+
+  /**
+   * The diagnostic sensors whose values are read, indexed by database ID
+   */
+  private Map<Long, String> diagnosticSensors;
+
+  /**
+   * The index of the first diagnostic column in the results
+   */
+  private int firstDiagnosticColumn;
+
+  /**
+   * The measurement for the last record returned by {@link #next()}
+   */
+  private DataSetRawDataRecord currentMeasurement = null;
+
+  /**
+   * The diagnostic values for the last record returned by {@link #next()}
+   */
+  private Map<String, Double> currentDiagnosticValues = null;
+
+  /**
+   * Open a reader for a data set's calculation records
+   * @param conn A database connection
+   * @param calculationDB The calculation database handler
+   * @param dataSet The data set
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  public CalculationRecordReader(Connection conn, CalculationDB calculationDB, DataSet dataSet) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    this(conn, calculationDB, dataSet, new HashMap<Long, String>(), 0, ALL_RECORDS);
+  }
+
+  /**
+   * Open a reader for a page of a data set's calculation records,
+   * including the values of the specified diagnostic sensors
+   * @param conn A database connection
+   * @param calculationDB The calculation database handler
+   * @param dataSet The data set
+   * @param diagnosticSensors The diagnostic sensors whose values are to be read, indexed by database ID
+   * @param start The index of the first record in the page
+   * @param length The number of records in the page
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  public CalculationRecordReader(Connection conn, CalculationDB calculationDB, DataSet dataSet, Map<Long, String> diagnosticSensors, int start, int length) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(calculationDB, "calculationDB");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(diagnosticSensors, "diagnosticSensors", true);
+    MissingParam.checkZeroPositive(start, "start");
+
+    this.calculationDB = calculationDB;
+    this.dataSet = dataSet;
+    this.diagnosticSensors = diagnosticSensors;
+
+    // Load the instrument before the query is run, since no other
+    // queries can be made on the connection while the results are streamed
+    ResourceManager resourceManager = ResourceManager.getInstance();
+    instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), resourceManager.getSensorsConfiguration(), resourceManager.getRunTypeCategoryConfiguration());
+
+    // Pages are read from the nearest indexed position before them
+    boolean seek = false;
+    DataSetPageIndex pageIndex = null;
+    if (length != ALL_RECORDS) {
+      pageIndex = DataSetPageIndex.getIndex(conn, dataSet.getId());
+      seek = pageIndex.hasSeekKey(start);
+    }
+
+    try {
+      StringBuilder sql = new StringBuilder("SELECT d.*");
+      for (String field : calculationDB.getCalculationValueFields()) {
+        sql.append(", c.");
+        sql.append(field);
+      }
+
+      // Each diagnostic value is a lookup on the primary key
+      // of the diagnostic data, so they are read as sub-queries
+      for (int i = 0; i < diagnosticSensors.size(); i++) {
+        sql.append(", (SELECT value FROM diagnostic_data WHERE measurement_id = d.id AND file_column_id = ?)");
+      }
+
+      sql.append(" FROM dataset_data d INNER JOIN ");
+      sql.append(calculationDB.getCalculationTable());
+      sql.append(" c ON d.id = c.measurement_id WHERE d.dataset_id = ?");
+      if (seek) {
+        sql.append(" AND (d.date > ? OR (d.date = ? AND d.id >= ?))");
+      }
+      sql.append(" ORDER BY d.date ASC, d.id ASC");
+
+      if (length != ALL_RECORDS) {
+        sql.append(" LIMIT ?, ?");
+      }
+
+      stmt = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchSize(Integer.MIN_VALUE);
+
+      int param = 0;
+      for (long sensorId : diagnosticSensors.keySet()) {
+        param++;
+        stmt.setLong(param, sensorId);
+      }
+
+      param++;
+      stmt.setLong(param, dataSet.getId());
+
+      if (seek) {
+        param++;
+        stmt.setLong(param, pageIndex.getSeekDate(start));
+        param++;
+        stmt.setLong(param, pageIndex.getSeekDate(start));
+        param++;
+        stmt.setLong(param, pageIndex.getSeekId(start));
+      }
+
+      if (length != ALL_RECORDS) {
+        param++;
+        stmt.setInt(param, null == pageIndex ? start : pageIndex.getSkipCount(start));
+        param++;
+        stmt.setInt(param, length);
+      }
+
+      records = stmt.executeQuery();
+
+      firstDiagnosticColumn = records.getMetaData().getColumnCount() - diagnosticSensors.size() + 1;
+      firstCalculationColumn = firstDiagnosticColumn - calculationDB.getCalculationValueFields().size();
+    } catch (SQLException e) {
+      close();
+      throw new DatabaseException("Error while retrieving calculation records", e);
+    }
+  }
+
+  /**
+   * Get the next calculation record
+   * @return The record, or {@code null} if there are no more records
+   * @throws DatabaseException If a database error occurs
+   */
+  public CalculationRecord next() throws DatabaseException {
+
+    CalculationRecord result = null;
+    currentMeasurement = null;
+    currentDiagnosticValues = null;
+
+    try {
+      if (null != records && records.next()) {
+        currentMeasurement = DataSetDataDB.getRecordFromResultSet(dataSet, instrument.getSensorAssignments(), records, baseColumns, sensorColumns);
+
+        result = CalculationRecordFactory.makeCalculationRecord(dataSet.getId(), currentMeasurement.getId());
+        result.setSensorData(currentMeasurement);
+        calculationDB.readCalculationValues(records, firstCalculationColumn, result);
+
+        currentDiagnosticValues = new HashMap<String, Double>();
+        int column = firstDiagnosticColumn;
+        for (String sensorName : diagnosticSensors.values()) {
+          double value = records.getDouble(column);
+          if (!records.wasNull()) {
+            currentDiagnosticValues.put(sensorName, value);
+          }
+          column++;
+        }
+      }
+    } catch (SQLException|MissingParamException|InvalidDataException|InvalidFlagException|MessageException|NoSuchColumnException|NoSuchCategoryException e) {
+      throw new DatabaseException("Error while retrieving calculation records", e);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the measurement for the last record returned by {@link #next()}.
+   * This contains all the sensor values for the measurement, whereas the
+   * calculation record only contains those used in the calculation.
+   * @return The measurement, or {@code null} if there are no more records
+   */
+  public DataSetRawDataRecord getCurrentMeasurement() {
+    return currentMeasurement;
+  }
+
+  /**
+   * Get the diagnostic values for the last record returned by {@link #next()}.
+   * Sensors without a value for the record are not included.
+   * @return The diagnostic values, or {@code null} if there are no more records
+   */
+  public Map<String, Double> getCurrentDiagnosticValues() {
+    return currentDiagnosticValues;
+  }
+
+  /**
+   * Close the reader. Any remaining records are discarded.
+   */
+  public void close() {
+    DatabaseUtils.closeResultSets(records);
+    DatabaseUtils.closeStatements(stmt);
+    records = null;
+    stmt = null;
+  }
+}
@@ -0,0 +1,149 @@
+package uk.ac.exeter.QuinCe.data.Calculation;
+
+import java.util.List;
+
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+
+/**
+ * Fixed-size buffer of calculated values for a chunk of measurements.
+ *
+ * <p>
+ *   Values are held in one primitive array per calculated field, so
+ *   no objects are created for each measurement. Missing values are
+ *   stored as {@link Double#NaN}. The buffer is filled by
+ *   {@link DataReductionCalculator#performDataReduction(uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord, CalculationValueBuffer, int)}
+ *   and written to the database by
+ *   {@link CalculationDB#storeCalculationValues(java.sql.Connection, CalculationValueBuffer)}.
+ * </p>
+ *
+ * @author Steve Jones
+ *
+ */
+public class CalculationValueBuffer {
+
+  /**
+   * The names of the calculated fields
+   */
+  private List<String> fields;
+
+  /**
+   * The measurement ID for each row
+   */
+  private long[] measurementIds;
+
+  /**
+   * The calculated values, indexed by field and then row
+   */
+  private double[][] values;
+
+  /**
+   * The number of rows currently in the buffer
+   */
+  private int size = 0;
+
+  /**
+   * Create an empty buffer
+   * @param fields The names of the calculated fields
+   * @param capacity The maximum number of rows
+   * @throws MissingParamException If any required parameters are missing
+   */
+  public CalculationValueBuffer(List<String> fields, int capacity) throws MissingParamException {
+    MissingParam.checkMissing(fields, "fields");
+    MissingParam.checkPositive(capacity, "capacity");
+
+    this.fields = fields;
+    measurementIds = new long[capacity];
+    values = new double[fields.size()][capacity];
+  }
+
+  /**
+   * Add a row for a measurement. All its values are initially missing.
+   * @param measurementId The measurement's database ID
+   * @return The index of the new row
+   * @throws IndexOutOfBoundsException If the buffer is full
+   */
+  public int addRow(long measurementId) {
+    if (isFull()) {
+      throw new IndexOutOfBoundsException("Calculation value buffer is full");
+    }
+
+    int row = size;
+    measurementIds[row] = measurementId;
+    for (int i = 0; i < values.length; i++) {
+      values[i][row] = Double.NaN;
+    }
+
+    size++;
+    return row;
+  }
+
+  /**
+   * Set a calculated value
+   * @param field The field index
+   * @param row The row index
+   * @param value The value
+   */
+  public void setValue(int field, int row, double value) {
+    values[field][row] = value;
+  }
+
+  /**
+   * Get a calculated value
+   * @param field The field index
+   * @param row The row index
+   * @return The value, or {@link Double#NaN} if it is missing
+   */
+  public double getValue(int field, int row) {
+    return values[field][row];
+  }
+
+  /**
+   * Get the measurement ID for a row
+   * @param row The row index
+   * @return The measurement ID
+   */
+  public long getMeasurementId(int row) {
+    return measurementIds[row];
+  }
+
+  /**
+   * Get the names of the calculated fields
+   * @return The field names
+   */
+  public List<String> getFields() {
+    return fields;
+  }
+
+  /**
+   * Get the index of a calculated field
+   * @param field The field name
+   * @return The field index, or {@code -1} if the field is not in the buffer
+   */
+  public int getFieldIndex(String field) {
+    return fields.indexOf(field);
+  }
+
+  /**
+   * Get the number of rows in the buffer
+   * @return The number of rows
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Determine whether the buffer is full
+   * @return {@code true} if no more rows can be added; {@code false} otherwise
+   */
+  public boolean isFull() {
+    return size == measurementIds.length;
+  }
+
+  /**
+   * Remove all rows from the buffer
+   */
+  public void clear() {
+    size = 0;
+  }
+}
@@ -2,7 +2,10 @@ package uk.ac.exeter.QuinCe.data.Calculation;
 
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 
@@ -10,6 +13,7 @@ import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
 import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
 
 /**
@@ -34,6 +38,18 @@ public abstract class DataReductionCalculator {
    */
   private CalibrationSet externalStandards;
 
+  /**
+   * The external standards models for each sensor that include the
+   * zero standard, built when first needed
+   */
+  private Map<String, ExternalStandardsModel> externalStandardsModels = new ConcurrentHashMap<String, ExternalStandardsModel>();
+
+  /**
+   * The external standards models for each sensor that ignore the
+   * zero standard, built when first needed
+   */
+  private Map<String, ExternalStandardsModel> nonZeroExternalStandardsModels = new ConcurrentHashMap<String, ExternalStandardsModel>();
+
   /**
    * The base constructor - sets up things that
    * are universal to all calculators
@@ -56,17 +72,115 @@ public abstract class DataReductionCalculator {
   protected abstract CalculationDB getDbInstance();
 
   /**
-   * Perform the data reduction calculation for a given measurement,
-   * and store the results in the database.
+   * Perform the data reduction calculation for a given measurement.
    * @param measurement The measurement
    * @return The calculated values
    * @throws CalculatorException if the calculation cannot be completed
    */
-  public abstract Map<String, Double> performDataReduction(DataSetRawDataRecord measurement) throws CalculatorException;
+  public Map<String, Double> performDataReduction(DataSetRawDataRecord measurement) throws CalculatorException {
+
+    Map<String, Double> result = new HashMap<String, Double>();
+
+    try {
+      CalculationValueBuffer buffer = db.createValueBuffer(1);
+      int row = buffer.addRow(measurement.getId());
+      performDataReduction(measurement, buffer, row);
+
+      List<String> fields = buffer.getFields();
+      for (int i = 0; i < fields.size(); i++) {
+        double value = buffer.getValue(i, row);
+        if (!Double.isNaN(value)) {
+          result.put(fields.get(i), value);
+        }
+      }
+    } catch (MissingParamException e) {
+      throw new CalculatorException(e);
+    }
+
+    return result;
+  }
+
+  /**
+   * Perform the data reduction calculation for a given measurement, and
+   * write the calculated values to a row of a buffer. Values that cannot
+   * be calculated are left missing.
+   * @param measurement The measurement
+   * @param buffer The buffer
+   * @param row The buffer row for the measurement
+   * @throws CalculatorException if the calculation cannot be completed
+   */
+  public abstract void performDataReduction(DataSetRawDataRecord measurement, CalculationValueBuffer buffer, int row) throws CalculatorException;
+
+  /**
+   * Perform the data reduction calculation for a list of measurements, and
+   * add the calculated values to a buffer in the same order. The buffer must
+   * be empty and large enough to hold all the measurements.
+   *
+   * <p>
+   *   If a fork/join pool is supplied, the measurements are split into
+   *   chunks which are calculated in parallel on the pool. Calculators must
+   *   therefore not modify any shared state while calculating.
+   * </p>
+   *
+   * @param measurements The measurements
+   * @param buffer The buffer
+   * @param pool The pool on which to run the calculations, or {@code null}
+   *             to calculate on the current thread
+   * @throws CalculatorException if the calculation cannot be completed
+   */
+  public void performDataReduction(List<DataSetRawDataRecord> measurements, CalculationValueBuffer buffer, ForkJoinPool pool) throws CalculatorException {
+
+    if (buffer.size() > 0) {
+      throw new CalculatorException("Calculation value buffer is not empty");
+    }
+
+    for (DataSetRawDataRecord measurement : measurements) {
+      buffer.addRow(measurement.getId());
+    }
+
+    if (null == pool || pool.getParallelism() == 1 || measurements.size() <= DataReductionTask.THRESHOLD) {
+      for (int i = 0; i < measurements.size(); i++) {
+        performDataReduction(measurements.get(i), buffer, i);
+      }
+    } else {
+      try {
+        pool.invoke(new DataReductionTask(this, measurements, buffer, 0, measurements.size()));
+      } catch (RuntimeException e) {
+        // The pool may rethrow a copy of the task's exception,
+        // so look for the original calculator exception in the causes
+        Throwable cause = e.getCause();
+        while (null != cause && !(cause instanceof CalculatorException)) {
+          cause = cause.getCause();
+        }
+
+        if (null == cause) {
+          throw e;
+        } else {
+          throw (CalculatorException) cause;
+        }
+      }
+    }
+  }
+
+  /**
+   * Create an empty buffer for the values calculated by this calculator
+   * @param capacity The maximum number of measurements in the buffer
+   * @return The buffer
+   * @throws MissingParamException If the capacity is not positive
+   */
+  public CalculationValueBuffer createValueBuffer(int capacity) throws MissingParamException {
+    return db.createValueBuffer(capacity);
+  }
 
   // TODO Document this properly
   /**
-   * Apply external standards calibration to a sensor value
+   * Apply external standards calibration to a sensor value.
+   *
+   * <p>
+   *   This uses a precomputed {@link ExternalStandardsModel} for the sensor.
+   *   Values recorded at the same time as a standard run are not covered by
+   *   the model, and are calibrated with the full regression calculation.
+   * </p>
    *
    * @param recordDate The date of the record from which the sensor value was taken
    * @param sensorName The name of the sensor
@@ -79,6 +193,64 @@ public abstract class DataReductionCalculator {
 
     double calibratedValue;
 
+    long recordTime = DateTimeUtils.dateToLong(recordDate);
+    ExternalStandardsModel model = getExternalStandardsModel(sensorName, ignoreZero);
+
+    if (model.isCovered(recordTime)) {
+      calibratedValue = model.calibrate(recordTime, originalValue);
+    } else {
+      calibratedValue = applyExternalStandardsByRegression(recordDate, sensorName, originalValue, ignoreZero);
+    }
+
+    return calibratedValue;
+  }
+
+  /**
+   * Get the external standards model for a sensor, building it if
+   * it does not already exist
+   * @param sensorName The name of the sensor
+   * @param ignoreZero Indicates whether or not the zero standard should be ignored
+   * @return The model
+   * @throws CalculatorException If the model cannot be built
+   */
+  private ExternalStandardsModel getExternalStandardsModel(String sensorName, boolean ignoreZero) throws CalculatorException {
+
+    Map<String, ExternalStandardsModel> models = ignoreZero ? nonZeroExternalStandardsModels : externalStandardsModels;
+    ExternalStandardsModel model = models.get(sensorName);
+
+    if (null == model) {
+      synchronized (models) {
+        model = models.get(sensorName);
+        if (null == model) {
+          try {
+            model = new ExternalStandardsModel(externalStandards, calibrations, sensorName, ignoreZero);
+          } catch (RecordNotFoundException e) {
+            throw new CalculatorException(e);
+          }
+
+          models.put(sensorName, model);
+        }
+      }
+    }
+
+    return model;
+  }
+
+  /**
+   * Apply external standards calibration to a sensor value by
+   * building regressions from the standard runs either side of the record
+   *
+   * @param recordDate The date of the record from which the sensor value was taken
+   * @param sensorName The name of the sensor
+   * @param originalValue The sensor value to be calibrated
+   * @param ignoreZero Indicates whether or not the zero standard should be ignored
+   * @return The calibrated sensor value
+   * @throws CalculatorException If there are not sufficient standard measurements
+   */
+  private double applyExternalStandardsByRegression(LocalDateTime recordDate, String sensorName, double originalValue, boolean ignoreZero) throws CalculatorException {
+
+    double calibratedValue;
+
     try {
 
       // For each external standard target, calculate the offset from the external
@@ -0,0 +1,113 @@
+package uk.ac.exeter.QuinCe.data.Calculation;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
+
+/**
+ * Fork/join task that performs data reduction on a range of measurements.
+ *
+ * <p>
+ *   The range is split in half until it is no larger than {@link #THRESHOLD},
+ *   and each part is calculated separately. Each measurement is written to
+ *   its own row of the buffer, so the parts can be calculated in parallel
+ *   without any locking.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see DataReductionCalculator#performDataReduction(List, CalculationValueBuffer, java.util.concurrent.ForkJoinPool)
+ */
+class DataReductionTask extends RecursiveAction {
+
+  /**
+   * Serial version UID
+   */
+  private static final long serialVersionUID = 2381741398402361574L;
+
+  /**
+   * The largest number of measurements calculated in a single task
+   */
+  protected static final int THRESHOLD = 100;
+
+  /**
+   * The calculator
+   */
+  private DataReductionCalculator calculator;
+
+  /**
+   * The measurements
+   */
+  private List<DataSetRawDataRecord> measurements;
+
+  /**
+   * The buffer for the calculated values. Row {@code i}
+   * holds the values for measurement {@code i}.
+   */
+  private CalculationValueBuffer buffer;
+
+  /**
+   * The index of the first measurement in the range
+   */
+  private int start;
+
+  /**
+   * The index after the last measurement in the range
+   */
+  private int end;
+
+  /**
+   * Create a task for a range of measurements
+   * @param calculator The calculator
+   * @param measurements The measurements
+   * @param buffer The buffer for the calculated values
+   * @param start The index of the first measurement in the range
+   * @param end The index after the last measurement in the range
+   */
+  protected DataReductionTask(DataReductionCalculator calculator, List<DataSetRawDataRecord> measurements, CalculationValueBuffer buffer, int start, int end) {
+    this.calculator = calculator;
+    this.measurements = measurements;
+    this.buffer = buffer;
+    this.start = start;
+    this.end = end;
+  }
+
+  @Override
+  protected void compute() {
+    if (end - start <= THRESHOLD) {
+      try {
+        for (int i = start; i < end; i++) {
+          calculator.performDataReduction(measurements.get(i), buffer, i);
+        }
+      } catch (CalculatorException e) {
+        // Checked exceptions cannot be thrown from a fork/join task.
+        // This is unwrapped by the calculator.
+        throw new DataReductionTaskException(e);
+      }
+    } else {
+      int middle = (start + end) >>> 1;
+      invokeAll(new DataReductionTask(calculator, measurements, buffer, start, middle),
+          new DataReductionTask(calculator, measurements, buffer, middle, end));
+    }
+  }
+
+  /**
+   * Unchecked wrapper for a {@link CalculatorException}
+   * thrown while a task is running
+   */
+  protected static class DataReductionTaskException extends RuntimeException {
+
+    /**
+     * Serial version UID
+     */
+    private static final long serialVersionUID = -4619370271540158410L;
+
+    /**
+     * Wrap a calculator exception
+     * @param cause The calculator exception
+     */
+    protected DataReductionTaskException(CalculatorException cause) {
+      super(cause);
+    }
+  }
+}
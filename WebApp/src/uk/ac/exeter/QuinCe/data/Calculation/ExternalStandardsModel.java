@@ -0,0 +1,242 @@
+package uk.ac.exeter.QuinCe.data.Calculation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataSet;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+
+/**
+ * Precomputed model of the external standard measurements for
+ * one sensor, used to apply the external standards calibration.
+ *
+ * <p>
+ *   The calibration times of all the standards split the data set into
+ *   intervals. Within each interval the standard runs on either side of a
+ *   measurement are always the same, so the measured value of each standard
+ *   is a fixed linear function of time. The model stores the coefficients of
+ *   these functions for every interval. Calibrating a value then needs a
+ *   binary search for the interval, one multiply-add per standard, and a
+ *   closed-form least squares fit of the standards' true concentrations
+ *   against their measured values.
+ * </p>
+ *
+ * <p>
+ *   Measurements taken at exactly the same time as a standard run are not
+ *   covered by the model, because the run at that time is excluded from the
+ *   interpolation. {@link #isCovered(long)} must be checked before calling
+ *   {@link #calibrate(long, double)}.
+ * </p>
+ *
+ * <p>
+ *   The model is not modified once it is built, so it can be shared
+ *   between threads.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see DataReductionCalculator#applyExternalStandards(java.time.LocalDateTime, String, double, boolean)
+ */
+public class ExternalStandardsModel {
+
+  /**
+   * The names of the standards used in the model
+   */
+  private String[] targets;
+
+  /**
+   * The true concentration of each standard
+   */
+  private double[] concentrations;
+
+  /**
+   * The times of all the standard runs, in UTC milliseconds.
+   * Interval {@code i} ends at {@code breakpoints[i]}.
+   */
+  private long[] breakpoints;
+
+  /**
+   * The time from which each standard's value is extrapolated, by interval and then standard
+   */
+  private long[][] baseTimes;
+
+  /**
+   * The standard values at the base times, by interval and then standard
+   */
+  private double[][] baseValues;
+
+  /**
+   * The rate of change of the standard values, by interval and then standard
+   */
+  private double[][] slopes;
+
+  /**
+   * The first standard with no runs at all, or {@code null} if all standards have runs
+   */
+  private String missingTarget = null;
+
+  /**
+   * Build the model for a sensor
+   * @param externalStandards The external standards for the data set
+   * @param calibrations The calibration data for the data set
+   * @param sensorName The name of the sensor
+   * @param ignoreZero Indicates whether or not the zero standard should be ignored
+   * @throws RecordNotFoundException If the sensor's concentration for a standard is not available
+   */
+  public ExternalStandardsModel(CalibrationSet externalStandards, CalibrationDataSet calibrations, String sensorName, boolean ignoreZero) throws RecordNotFoundException {
+
+    List<String> targetList = new ArrayList<String>();
+    List<Double> concentrationList = new ArrayList<Double>();
+    for (String target : externalStandards.getTargets()) {
+      double concentration = externalStandards.getCalibrationValue(target, sensorName);
+      if (!ignoreZero || concentration > 0.0) {
+        targetList.add(target);
+        concentrationList.add(concentration);
+      }
+    }
+
+    targets = targetList.toArray(new String[targetList.size()]);
+    concentrations = new double[targets.length];
+    for (int i = 0; i < concentrations.length; i++) {
+      concentrations[i] = concentrationList.get(i);
+    }
+
+    // Get the run times and values for each standard
+    long[][] runTimes = new long[targets.length][];
+    double[][] runValues = new double[targets.length][];
+    TreeSet<Long> allTimes = new TreeSet<Long>();
+
+    for (int i = 0; i < targets.length; i++) {
+      List<DataSetRawDataRecord> runs = calibrations.getRecordsWithRunType(targets[i]);
+      if (runs.size() == 0 && null == missingTarget) {
+        missingTarget = targets[i];
+      }
+
+      runTimes[i] = new long[runs.size()];
+      runValues[i] = new double[runs.size()];
+      for (int j = 0; j < runs.size(); j++) {
+        runTimes[i][j] = DateTimeUtils.dateToLong(runs.get(j).getDate());
+        runValues[i][j] = runs.get(j).getSensorValue(sensorName);
+        allTimes.add(runTimes[i][j]);
+      }
+    }
+
+    breakpoints = new long[allTimes.size()];
+    int breakpoint = 0;
+    for (long time : allTimes) {
+      breakpoints[breakpoint] = time;
+      breakpoint++;
+    }
+
+    // Calculate the coefficients for each interval. Interval i
+    // covers the times between breakpoints i - 1 and i.
+    int intervalCount = breakpoints.length + 1;
+    baseTimes = new long[intervalCount][targets.length];
+    baseValues = new double[intervalCount][targets.length];
+    slopes = new double[intervalCount][targets.length];
+
+    if (null == missingTarget) {
+      for (int target = 0; target < targets.length; target++) {
+        long[] times = runTimes[target];
+        double[] values = runValues[target];
+
+        // The index of the first run after the current interval
+        int postRun = 0;
+
+        for (int interval = 0; interval < intervalCount; interval++) {
+          while (postRun < times.length && interval > 0 && times[postRun] <= breakpoints[interval - 1]) {
+            postRun++;
+          }
+
+          int priorRun = postRun - 1;
+
+          if (priorRun < 0) {
+            baseTimes[interval][target] = times[postRun];
+            baseValues[interval][target] = values[postRun];
+            slopes[interval][target] = 0.0;
+          } else if (postRun >= times.length) {
+            baseTimes[interval][target] = times[priorRun];
+            baseValues[interval][target] = values[priorRun];
+            slopes[interval][target] = 0.0;
+          } else {
+            baseTimes[interval][target] = times[priorRun];
+            baseValues[interval][target] = values[priorRun];
+            slopes[interval][target] = (values[postRun] - values[priorRun]) / (times[postRun] - times[priorRun]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Determine whether a time is covered by the model.
+   * Times at which a standard was run are not covered.
+   * @param time The time, in UTC milliseconds
+   * @return {@code true} if the model can be used at the time; {@code false} otherwise
+   */
+  public boolean isCovered(long time) {
+    return Arrays.binarySearch(breakpoints, time) < 0;
+  }
+
+  /**
+   * Apply the external standards calibration to a sensor value
+   * @param time The time of the measurement, in UTC milliseconds
+   * @param originalValue The sensor value to be calibrated
+   * @return The calibrated sensor value
+   * @throws CalculatorException If a standard has no runs
+   * @see #isCovered(long)
+   */
+  public double calibrate(long time, double originalValue) throws CalculatorException {
+
+    if (null != missingTarget) {
+      throw new CalculatorException(new RecordNotFoundException("No calibrations found for external standard '" + missingTarget + "'"));
+    }
+
+    int interval = Arrays.binarySearch(breakpoints, time);
+    if (interval >= 0) {
+      throw new CalculatorException("Time " + time + " is not covered by the external standards model");
+    }
+
+    // The insertion point is the interval index
+    interval = -interval - 1;
+    long[] intervalBaseTimes = baseTimes[interval];
+    double[] intervalBaseValues = baseValues[interval];
+    double[] intervalSlopes = slopes[interval];
+
+    // Least squares fit of the concentrations against the measured standard values
+    int count = targets.length;
+    double result = Double.NaN;
+
+    if (count > 1) {
+      double sumMeasured = 0.0;
+      double sumConcentration = 0.0;
+
+      for (int i = 0; i < count; i++) {
+        sumMeasured += intervalBaseValues[i] + intervalSlopes[i] * (time - intervalBaseTimes[i]);
+        sumConcentration += concentrations[i];
+      }
+
+      double meanMeasured = sumMeasured / count;
+      double meanConcentration = sumConcentration / count;
+
+      double sumSquares = 0.0;
+      double sumProducts = 0.0;
+      for (int i = 0; i < count; i++) {
+        double measuredDeviation = intervalBaseValues[i] + intervalSlopes[i] * (time - intervalBaseTimes[i]) - meanMeasured;
+        sumSquares += measuredDeviation * measuredDeviation;
+        sumProducts += measuredDeviation * (concentrations[i] - meanConcentration);
+      }
+
+      // Matches the behaviour of SimpleRegression when all measured values are equal
+      if (sumSquares >= 10 * Double.MIN_VALUE) {
+        result = meanConcentration + (sumProducts / sumSquares) * (originalValue - meanMeasured);
+      }
+    }
+
+    return result;
+  }
+}
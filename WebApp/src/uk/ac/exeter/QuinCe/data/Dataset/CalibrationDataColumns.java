@@ -0,0 +1,361 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.primefaces.json.JSONArray;
+import org.primefaces.json.JSONObject;
+
+import uk.ac.exeter.QCRoutines.messages.Flag;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationException;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.ExternalStandardDB;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+
+/**
+ * The calibration records of a data set used by the calibration
+ * review table and plot, held as one array per column.
+ *
+ * <p>
+ *   The records are held in ID order. The Use flags and messages
+ *   are updated in place when the user changes them. The external standards
+ *   in use at the time of the first record are held with the records.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see DataSetCache
+ */
+public class CalibrationDataColumns extends DataSetCacheEntry {
+
+  /**
+   * Query to count the calibration records in a data set
+   */
+  private static final String GET_RECORD_COUNT_QUERY = "SELECT COUNT(*) FROM calibration_data "
+      + "WHERE dataset_id = ?";
+
+  /**
+   * The number of records
+   */
+  private int size = 0;
+
+  /**
+   * The record IDs
+   */
+  private long[] ids;
+
+  /**
+   * The record dates, as stored in the database
+   */
+  private long[] dates;
+
+  /**
+   * The Run Types of the records
+   */
+  private String[] runTypes;
+
+  /**
+   * The values of the calibration fields, in the same order as the fields
+   */
+  private List<double[]> values;
+
+  /**
+   * The Use flags
+   */
+  private boolean[] useFlags;
+
+  /**
+   * The Use messages
+   */
+  private String[] useMessages;
+
+  /**
+   * The external standards in use at the time of the first record
+   */
+  private CalibrationSet externalStandards = null;
+
+  /**
+   * The approximate number of bytes used by the columns when they were loaded
+   */
+  private long byteSize = 0;
+
+  /**
+   * Create an empty set of columns
+   * @param datasetId The database ID of the data set
+   * @param lastTouched The data set's last change time
+   * @param capacity The number of records
+   * @param fieldCount The number of calibration fields
+   */
+  private CalibrationDataColumns(long datasetId, long lastTouched, int capacity, int fieldCount) {
+    super(datasetId, lastTouched);
+    ids = new long[capacity];
+    dates = new long[capacity];
+    runTypes = new String[capacity];
+    useFlags = new boolean[capacity];
+    useMessages = new String[capacity];
+
+    values = new ArrayList<double[]>(fieldCount);
+    for (int i = 0; i < fieldCount; i++) {
+      values.add(new double[capacity]);
+    }
+  }
+
+  /**
+   * Load the calibration records for a data set
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param calibrationFields The database fields of the sensors that have external standards
+   * @return The columns
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the external standards cannot be found
+   */
+  protected static CalibrationDataColumns load(Connection conn, DataSet dataSet, List<String> calibrationFields) throws MissingParamException, DatabaseException, RecordNotFoundException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(calibrationFields, "calibrationFields", true);
+
+    // The change time is read first so changes made during the load are not missed
+    long lastTouched = DataSetDB.getLastTouched(conn, dataSet.getId());
+
+    StringBuilder sql = new StringBuilder("SELECT id, date, run_type, use_record, use_message");
+    for (String field : calibrationFields) {
+      sql.append(", ");
+      sql.append(field);
+    }
+    sql.append(" FROM calibration_data WHERE dataset_id = ? ORDER BY id ASC");
+
+    PreparedStatement countStmt = null;
+    ResultSet count = null;
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    CalibrationDataColumns result = null;
+
+    try {
+      countStmt = conn.prepareStatement(GET_RECORD_COUNT_QUERY);
+      countStmt.setLong(1, dataSet.getId());
+      count = countStmt.executeQuery();
+      count.next();
+
+      int capacity = count.getInt(1);
+      result = new CalibrationDataColumns(dataSet.getId(), lastTouched, capacity, calibrationFields.size());
+
+      stmt = conn.prepareStatement(sql.toString());
+      stmt.setLong(1, dataSet.getId());
+      records = stmt.executeQuery();
+
+      // Run Types and messages are repeated on many records, so only one copy of each is kept
+      Map<String, String> strings = new HashMap<String, String>();
+
+      // Records added since the count was taken are left for the next load
+      int row = 0;
+      while (row < capacity && records.next()) {
+        result.ids[row] = records.getLong(1);
+        result.dates[row] = records.getLong(2);
+        result.runTypes[row] = getString(strings, records.getString(3));
+        result.useFlags[row] = records.getBoolean(4);
+        result.useMessages[row] = getString(strings, records.getString(5));
+
+        for (int i = 0; i < calibrationFields.size(); i++) {
+          result.values.get(i)[row] = records.getDouble(i + 6);
+        }
+
+        row++;
+      }
+
+      result.size = row;
+
+      long bytesPerRow = Long.BYTES * 2 + Double.BYTES * calibrationFields.size() + 1 + Long.BYTES * 2;
+      result.byteSize = OBJECT_OVERHEAD * (calibrationFields.size() + 5 + strings.size()) + bytesPerRow * capacity;
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while loading calibration data", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records, count);
+      DatabaseUtils.closeStatements(stmt, countStmt);
+    }
+
+    if (result.size > 0) {
+      result.externalStandards = ExternalStandardDB.getInstance().getStandardsSet(conn,
+          dataSet.getInstrumentId(), DateTimeUtils.longToDate(result.dates[0]));
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the single stored copy of a string
+   * @param strings The stored strings
+   * @param string The string
+   * @return The stored copy of the string
+   */
+  private static String getString(Map<String, String> strings, String string) {
+    String result = null;
+    if (null != string) {
+      result = strings.computeIfAbsent(string, s -> s);
+    }
+    return result;
+  }
+
+  @Override
+  protected long getByteSize() {
+    return byteSize;
+  }
+
+  /**
+   * Get the number of records
+   * @return The number of records
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the IDs of all the records
+   * @return The record IDs
+   */
+  public List<Long> getIds() {
+    List<Long> result = new ArrayList<Long>(size);
+    for (int row = 0; row < size; row++) {
+      result.add(ids[row]);
+    }
+    return result;
+  }
+
+  /**
+   * Set the Use flag of a set of records
+   * @param recordIds The record IDs
+   * @param use The Use flag
+   * @param useMessage The message for the flag. Not stored if the flag is {@code true}
+   */
+  protected synchronized void setUse(Collection<Long> recordIds, boolean use, String useMessage) {
+    Set<Long> idSet = new HashSet<Long>(recordIds);
+
+    for (int row = 0; row < size && !idSet.isEmpty(); row++) {
+      if (idSet.remove(ids[row])) {
+        useFlags[row] = use;
+        useMessages[row] = use ? null : useMessage;
+      }
+    }
+  }
+
+  /**
+   * Get the external standards, checking that they are complete
+   * @return The external standards
+   * @throws CalibrationException If there is no complete set of external standards
+   */
+  private CalibrationSet getExternalStandards() throws CalibrationException {
+    if (!externalStandards.isComplete()) {
+      throw new CalibrationException("No complete set of external standards available");
+    }
+
+    return externalStandards;
+  }
+
+  /**
+   * Get a page of records for the table view, in the same form as
+   * {@link CalibrationDataDB#getJsonTableData(javax.sql.DataSource, long, String, int, int)}
+   * @param start The first record to return
+   * @param length The number of records to return. If negative, all records from {@code start} are returned
+   * @return The records
+   * @throws RecordNotFoundException If the external standard for a record's Run Type cannot be found
+   */
+  public synchronized String getJsonTableData(int start, int length) throws RecordNotFoundException {
+    JSONArray json = new JSONArray();
+
+    int end = length < 0 ? size : Math.min(start + length, size);
+    for (int row = start; row < end; row++) {
+      CalibrationSet standards = getExternalStandards();
+
+      JSONObject jsonRecord = new JSONObject();
+      jsonRecord.put("DT_RowId", "row" + row);
+
+      int column = 0;
+      jsonRecord.put(String.valueOf(column), ids[row]);
+      column++;
+      jsonRecord.put(String.valueOf(column), dates[row]);
+      column++;
+      jsonRecord.put(String.valueOf(column), runTypes[row]);
+
+      double value = 0;
+      for (double[] fieldValues : values) {
+        value = fieldValues[row];
+        column++;
+        jsonRecord.put(String.valueOf(column), value);
+      }
+
+      // The offset is calculated from the last calibration field
+      double calibrationValue = standards.getCalibrationValue(runTypes[row], "CO2");
+      column++;
+      jsonRecord.put(String.valueOf(column), calibrationValue);
+      column++;
+      jsonRecord.put(String.valueOf(column), value - calibrationValue);
+
+      column++;
+      jsonRecord.put(String.valueOf(column), useFlags[row]);
+      column++;
+      jsonRecord.put(String.valueOf(column), null == useMessages[row] ? "" : useMessages[row]);
+
+      json.put(jsonRecord);
+    }
+
+    return json.toString();
+  }
+
+  /**
+   * Get the records of a set of standards for the plot, in the same form as
+   * {@link CalibrationDataDB#getJsonPlotData(javax.sql.DataSource, DataSet, List)}
+   * @param standardNames The names of the standards. If {@code null} or empty, all records are returned
+   * @return The records
+   * @throws RecordNotFoundException If the external standard for a record's Run Type cannot be found
+   */
+  public synchronized String getJsonPlotData(List<String> standardNames) throws RecordNotFoundException {
+    List<String> names = null == standardNames ? new ArrayList<String>() : standardNames;
+
+    JSONArray json = new JSONArray();
+
+    for (int row = 0; row < size; row++) {
+      if (names.isEmpty() || names.contains(runTypes[row])) {
+        CalibrationSet standards = getExternalStandards();
+
+        JSONArray jsonRecord = new JSONArray();
+        jsonRecord.put(dates[row]);
+        jsonRecord.put(ids[row]);
+
+        // The Use Record flag is converted to BAD or GOOD for the plot highlighting functions
+        if (useFlags[row]) {
+          jsonRecord.put(Flag.GOOD.getFlagValue());
+        } else {
+          jsonRecord.put(Flag.BAD.getFlagValue());
+        }
+
+        for (double[] fieldValues : values) {
+          for (String name : names) {
+            if (runTypes[row].equals(name)) {
+              jsonRecord.put(fieldValues[row] - standards.getCalibrationValue(name, "CO2"));
+            } else {
+              jsonRecord.put(JSONObject.NULL);
+            }
+          }
+        }
+
+        json.put(jsonRecord);
+      }
+    }
+
+    return json.toString();
+  }
+}
@@ -76,6 +76,21 @@ public class CalibrationDataDB {
   private static final String DELETE_CALIBRATION_DATA_QUERY = "DELETE FROM calibration_data "
       + "WHERE dataset_id = ?";
 
+  /**
+   * Statement to delete the records for a given dataset from a given time onwards
+   */
+  private static final String DELETE_CALIBRATION_DATA_FROM_QUERY = "DELETE FROM calibration_data "
+      + "WHERE dataset_id = ? AND date >= ?";
+
+  /**
+   * Query to get the earliest of the last calibration dates
+   * for each Run Type before a given time
+   */
+  private static final String GET_LAST_CALIBRATION_DATE_QUERY = "SELECT MIN(last_date) FROM "
+      + "(SELECT MAX(date) AS last_date FROM calibration_data "
+      + "WHERE dataset_id = ? AND use_record = 1 AND date < ? "
+      + "GROUP BY run_type) AS l";
+
   /**
    * Statement to retrieve the count of all calibration data for a dataset
    */
@@ -209,6 +224,81 @@ public class CalibrationDataDB {
     }
   }
 
+  /**
+   * Delete the records for a given data set from the specified time onwards
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param from The time of the first record to be deleted
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static void deleteDatasetData(Connection conn, DataSet dataSet, LocalDateTime from) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(from, "from");
+
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = conn.prepareStatement(DELETE_CALIBRATION_DATA_FROM_QUERY);
+      stmt.setLong(1, dataSet.getId());
+      stmt.setLong(2, DateTimeUtils.dateToLong(from));
+
+      stmt.execute();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while deleting dataset data", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+  }
+
+  /**
+   * Get the time from which the calibration records used to calculate
+   * measurements can change if calibration records are added from a given
+   * time onwards. This is the earliest of the dates of the last calibration
+   * record before that time for each Run Type. Measurements before this
+   * date are bracketed by calibration records that will not change.
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param before The time from which calibration records are added
+   * @return The date, or {@code null} if there are no calibration records before the specified time
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static LocalDateTime getLastCalibrationDate(Connection conn, DataSet dataSet, LocalDateTime before) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(before, "before");
+
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    LocalDateTime result = null;
+
+    try {
+      stmt = conn.prepareStatement(GET_LAST_CALIBRATION_DATE_QUERY);
+      stmt.setLong(1, dataSet.getId());
+      stmt.setLong(2, DateTimeUtils.dateToLong(before));
+
+      records = stmt.executeQuery();
+      if (records.next()) {
+        long date = records.getLong(1);
+        if (!records.wasNull()) {
+          result = DateTimeUtils.longToDate(date);
+        }
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while getting calibration dates", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return result;
+  }
+
   /**
    * Get the external standard data for a given data set and standard in JSON format for the table view
    * If {@code standardName} is {@code null}, all external standards will be included in the results
@@ -221,12 +311,44 @@ public class CalibrationDataDB {
    * @throws DatabaseException If a database error occurs
    * @throws MissingParamException If any required parameters are missing
    * @throws RecordNotFoundException If the data set doesn't exist in the database
+   * @see DataSetCache
    */
   public static String getJsonTableData(DataSource dataSource, long datasetId, String standardName, int start, int length) throws MissingParamException, DatabaseException, RecordNotFoundException {
 
     MissingParam.checkMissing(dataSource, "dataSource");
     MissingParam.checkZeroPositive(datasetId, "datasetId");
 
+    String result;
+
+    CalibrationDataColumns calibrationData = null;
+    if (null == standardName) {
+      calibrationData = DataSetCache.getCalibrationData(dataSource, datasetId, getCalibrationFields());
+    }
+
+    if (null != calibrationData) {
+      result = calibrationData.getJsonTableData(start, length);
+    } else {
+      result = getDatabaseJsonTableData(dataSource, datasetId, standardName, start, length);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the external standard data for a given data set and standard in JSON format
+   * for the table view from the database, for data that is not held in the {@link DataSetCache}
+   * @param dataSource A data source
+   * @param datasetId The database ID of the data set
+   * @param standardName The name of the standard ({@code null} for all standards)
+   * @param start The first record to return
+   * @param length The number of records to return
+   * @return The standards data
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   * @throws RecordNotFoundException If the data set doesn't exist in the database
+   */
+  private static String getDatabaseJsonTableData(DataSource dataSource, long datasetId, String standardName, int start, int length) throws MissingParamException, DatabaseException, RecordNotFoundException {
+
     List<String> calibrationFields = getCalibrationFields();
 
     List<String> queryFields = new ArrayList<String>();
@@ -345,12 +467,38 @@ public class CalibrationDataDB {
    * @throws DatabaseException If a database error occurs
    * @throws MissingParamException If any required parameters are missing
    * @throws RecordNotFoundException If the dataset doesn't exist in the database
+   * @see DataSetCache
    */
   public static String getJsonPlotData(DataSource dataSource, DataSet dataset, List<String> standardNames) throws MissingParamException, DatabaseException, RecordNotFoundException {
 
     MissingParam.checkMissing(dataSource, "dataSource");
     MissingParam.checkMissing(dataset, "dataset");
 
+    String result;
+
+    CalibrationDataColumns calibrationData = DataSetCache.getCalibrationData(dataSource, dataset.getId(), getCalibrationFields());
+    if (null != calibrationData) {
+      result = calibrationData.getJsonPlotData(standardNames);
+    } else {
+      result = getDatabaseJsonPlotData(dataSource, dataset, standardNames);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the external standard data for a given data set and standards in JSON format
+   * for the plot from the database, for data that is not held in the {@link DataSetCache}
+   * @param dataSource A data source
+   * @param dataset The data set
+   * @param standardNames The names of the standards ({@code null} for all standards)
+   * @return The standards data
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   * @throws RecordNotFoundException If the dataset doesn't exist in the database
+   */
+  private static String getDatabaseJsonPlotData(DataSource dataSource, DataSet dataset, List<String> standardNames) throws MissingParamException, DatabaseException, RecordNotFoundException {
+
     List<String> calibrationFields = getCalibrationFields();
 
     StringBuilder sql = new StringBuilder();
@@ -498,12 +646,41 @@ public class CalibrationDataDB {
    * @return The standards data
    * @throws DatabaseException If a database error occurs
    * @throws MissingParamException If any required parameters are missing
+   * @throws RecordNotFoundException If the data set doesn't exist in the database
+   * @see DataSetCache
    */
-  public static List<Long> getCalibrationRowIds(DataSource dataSource, long datasetId, String standardName) throws MissingParamException, DatabaseException {
+  public static List<Long> getCalibrationRowIds(DataSource dataSource, long datasetId, String standardName) throws MissingParamException, DatabaseException, RecordNotFoundException {
 
     MissingParam.checkMissing(dataSource, "dataSource");
     MissingParam.checkZeroPositive(datasetId, "datasetId");
 
+    List<Long> result;
+
+    CalibrationDataColumns calibrationData = null;
+    if (null == standardName) {
+      calibrationData = DataSetCache.getCalibrationData(dataSource, datasetId, getCalibrationFields());
+    }
+
+    if (null != calibrationData) {
+      result = calibrationData.getIds();
+    } else {
+      result = getDatabaseCalibrationRowIds(dataSource, datasetId, standardName);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the IDs of the calibration records for a given data set and standard from
+   * the database, for data that is not held in the {@link DataSetCache}
+   * @param dataSource A data source
+   * @param datasetId The database ID of the data set
+   * @param standardName The name of the standard ({@code null} for all standards)
+   * @return The record IDs
+   * @throws DatabaseException If a database error occurs
+   */
+  private static List<Long> getDatabaseCalibrationRowIds(DataSource dataSource, long datasetId, String standardName) throws DatabaseException {
+
     List<Long> result = new ArrayList<Long>();
 
     Connection conn = null;
@@ -537,17 +714,22 @@ public class CalibrationDataDB {
   }
 
   /**
-   * Set the use flags on a set of rows in a data set
+   * Set the use flags on a set of rows in a data set. The data set's change
+   * time is updated so that other application nodes reload its calibration
+   * records; this node's cached records are updated in place if they were
+   * up to date before the change.
    * @param dataSource A data set
+   * @param datasetId The database ID of the data set
    * @param ids The row IDs
    * @param use The Use flag
    * @param useMessage The message for the flag (only used if the flag is {@code false}
    * @throws MissingParamException If any required flags are missing
    * @throws DatabaseException If a database error occurs
    */
-  public static void setCalibrationUse(DataSource dataSource, List<Long> ids, boolean use, String useMessage) throws MissingParamException, DatabaseException {
+  public static void setCalibrationUse(DataSource dataSource, long datasetId, List<Long> ids, boolean use, String useMessage) throws MissingParamException, DatabaseException {
 
     MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
     MissingParam.checkMissing(ids, "ids");
     if (!use) {
       MissingParam.checkMissing(useMessage, "useMessage");
@@ -558,6 +740,10 @@ public class CalibrationDataDB {
 
     try {
       conn = dataSource.getConnection();
+      conn.setAutoCommit(false);
+
+      long previousTouched = DataSetDB.lockLastTouched(conn, datasetId);
+
       stmt = conn.prepareStatement(DatabaseUtils.makeInStatementSql(SET_USE_FLAGS_STATEMENT, ids.size()));
       stmt.setBoolean(1, use);
 
@@ -574,8 +760,19 @@ public class CalibrationDataDB {
       }
 
       stmt.execute();
+
+      long lastTouched = DataSetDB.touchDataSet(conn, datasetId);
+      conn.commit();
+
+      // The measurements are not changed, so this node's page index can still be used
+      DataSetPageIndex.touch(datasetId, previousTouched, lastTouched);
+      DataSetCache.setCalibrationUse(datasetId, ids, use, useMessage, previousTouched, lastTouched);
     } catch (SQLException e) {
+      DatabaseUtils.rollBack(conn);
       throw new DatabaseException("Error while storing calibration use flags", e);
+    } catch (DatabaseException e) {
+      DatabaseUtils.rollBack(conn);
+      throw e;
     } finally {
       DatabaseUtils.closeStatements(stmt);
       DatabaseUtils.closeConnection(conn);
@@ -2,12 +2,25 @@ package uk.ac.exeter.QuinCe.data.Dataset;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+
 /**
  * Represents a set of calibration data records for a data set. This is
- * a standard list with some extra functions for data reduction routines
+ * a standard list with some extra functions for data reduction routines.
+ *
+ * <p>
+ *   Lookups of the calibrations before and after a given time use an index
+ *   of the records for each Run Type, which is searched with a binary search.
+ * </p>
+ *
  * @author Steve Jones
  *
  */
@@ -28,6 +41,13 @@ public class CalibrationDataSet extends TreeSet<DataSetRawDataRecord> {
    */
   public static final int AFTER = 1;
 
+  /**
+   * The index of records for each Run Type, keyed by the lower case Run Type.
+   * Built when it is first needed, and discarded whenever records are
+   * added or removed.
+   */
+  private transient volatile Map<String, RunTypeIndex> runTypeIndex = null;
+
   /**
    * Get the calibration record that relates to the specified calibration target, and
    * which was recorded immediately before the specified date
@@ -36,91 +56,206 @@ public class CalibrationDataSet extends TreeSet<DataSetRawDataRecord> {
    * @return The matching record
    */
   public DataSetRawDataRecord getCalibrationBefore(LocalDateTime recordDate, String calibrationTarget) {
-    // Make a random access version of the record set
-    List<DataSetRawDataRecord> recordsList = getRecordsWithRunType(calibrationTarget);
-    return searchForClosest(recordsList, recordDate, BEFORE);
+    DataSetRawDataRecord result = null;
+
+    RunTypeIndex index = getRunTypeIndex(calibrationTarget);
+    if (null != index) {
+      result = index.search(DateTimeUtils.dateToLong(recordDate), BEFORE);
+    }
+
+    return result;
   }
 
   /**
    * Get the calibration record that relates to the specified calibration target, and
-   * which was recorded immediately before the specified date
+   * which was recorded immediately after the specified date
    * @param recordDate The date
    * @param calibrationTarget The calibration target
    * @return The matching record
    */
   public DataSetRawDataRecord getCalibrationAfter(LocalDateTime recordDate, String calibrationTarget) {
-    // Make a random access version of the record set
-    List<DataSetRawDataRecord> recordsList = getRecordsWithRunType(calibrationTarget);
-    return searchForClosest(recordsList, recordDate, AFTER);
+    DataSetRawDataRecord result = null;
+
+    RunTypeIndex index = getRunTypeIndex(calibrationTarget);
+    if (null != index) {
+      result = index.search(DateTimeUtils.dateToLong(recordDate), AFTER);
+    }
+
+    return result;
   }
 
   /**
-   * Get a list of the records that have the specified run type
-   * @param runType The run type
+   * Get the records that have the specified Run Type, in date order
+   * @param runType The Run Type
    * @return The matching records
    */
-  private List<DataSetRawDataRecord> getRecordsWithRunType(String runType) {
+  public List<DataSetRawDataRecord> getRecordsWithRunType(String runType) {
+    List<DataSetRawDataRecord> result = Collections.emptyList();
 
-    List<DataSetRawDataRecord> result = new ArrayList<DataSetRawDataRecord>();
+    RunTypeIndex index = getRunTypeIndex(runType);
+    if (null != index) {
+      result = Collections.unmodifiableList(Arrays.asList(index.records));
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the index of records for a Run Type, building the
+   * indices for all Run Types if required.
+   * @param runType The Run Type
+   * @return The index, or {@code null} if there are no records with the Run Type
+   */
+  private RunTypeIndex getRunTypeIndex(String runType) {
+    Map<String, RunTypeIndex> index = runTypeIndex;
+    if (null == index) {
+      index = buildRunTypeIndex();
+    }
 
-    for (DataSetRawDataRecord record : this) {
-      if (record.getRunType().equalsIgnoreCase(runType)) {
-        result.add(record);
+    return index.get(runType.toLowerCase());
+  }
+
+  /**
+   * Build the index of records for each Run Type. Several threads may
+   * perform lookups at the same time, so the index is only built once.
+   * @return The index
+   */
+  private synchronized Map<String, RunTypeIndex> buildRunTypeIndex() {
+    if (null == runTypeIndex) {
+      Map<String, List<DataSetRawDataRecord>> runTypeRecords = new HashMap<String, List<DataSetRawDataRecord>>();
+
+      // The set is iterated in date order, so each list will be sorted
+      for (DataSetRawDataRecord record : this) {
+        String runType = record.getRunType().toLowerCase();
+        List<DataSetRawDataRecord> records = runTypeRecords.get(runType);
+        if (null == records) {
+          records = new ArrayList<DataSetRawDataRecord>();
+          runTypeRecords.put(runType, records);
+        }
+
+        records.add(record);
       }
+
+      Map<String, RunTypeIndex> index = new HashMap<String, RunTypeIndex>(runTypeRecords.size());
+      for (Map.Entry<String, List<DataSetRawDataRecord>> entry : runTypeRecords.entrySet()) {
+        index.put(entry.getKey(), new RunTypeIndex(entry.getValue()));
+      }
+
+      runTypeIndex = index;
     }
 
-    return result;
+    return runTypeIndex;
   }
 
   /**
-   * Find a record immediately preceding or following a given date in a list of records
-   * @param records The records to be searched
-   * @param date The date
-   * @param direction The search direction. {@link #BEFORE} indicates that the record must precede the date;
-   *            {@link #AFTER} that the record must follow the date
-   * @return The matched record, or {@code null} if no matching record is found
+   * Discard the Run Type index so it is rebuilt on the next lookup
    */
-  private DataSetRawDataRecord searchForClosest(List<DataSetRawDataRecord> records, LocalDateTime date, int direction) {
+  private void clearRunTypeIndex() {
+    runTypeIndex = null;
+  }
 
-    DataSetRawDataRecord result = null;
+  @Override
+  public boolean add(DataSetRawDataRecord record) {
+    clearRunTypeIndex();
+    return super.add(record);
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends DataSetRawDataRecord> records) {
+    clearRunTypeIndex();
+    return super.addAll(records);
+  }
+
+  @Override
+  public boolean remove(Object record) {
+    clearRunTypeIndex();
+    return super.remove(record);
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> records) {
+    clearRunTypeIndex();
+    return super.removeAll(records);
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> records) {
+    clearRunTypeIndex();
+    return super.retainAll(records);
+  }
+
+  @Override
+  public void clear() {
+    clearRunTypeIndex();
+    super.clear();
+  }
 
-    // TODO This should be done as a binary search. See issue #590
-    int position;
+  /**
+   * The calibration records for a single Run Type, in date order,
+   * with their times held in a separate array for binary searching
+   */
+  private static class RunTypeIndex {
+
+    /**
+     * The record times, in UTC milliseconds
+     */
+    private long[] times;
+
+    /**
+     * The records, in the same order as the times
+     */
+    private DataSetRawDataRecord[] records;
 
-    if (direction == BEFORE) {
-      position = records.size();
-    } else {
-      position = -1;
+    /**
+     * Build the index from a list of records in date order
+     * @param recordList The records
+     */
+    private RunTypeIndex(List<DataSetRawDataRecord> recordList) {
+      records = recordList.toArray(new DataSetRawDataRecord[recordList.size()]);
+      times = new long[records.length];
+      for (int i = 0; i < records.length; i++) {
+        times[i] = DateTimeUtils.dateToLong(records[i].getDate());
+      }
     }
 
-    boolean searchEnded = false;
-    while (!searchEnded) {
+    /**
+     * Find the record immediately preceding or following a given time
+     * @param time The time
+     * @param direction The search direction. {@link CalibrationDataSet#BEFORE} indicates that the record must precede the time;
+     *            {@link CalibrationDataSet#AFTER} that the record must follow the time
+     * @return The matched record, or {@code null} if no matching record is found
+     */
+    private DataSetRawDataRecord search(long time, int direction) {
 
-      position += direction;
-      if (direction == BEFORE) {
-        if (position < 0) {
-          searchEnded = true;
+      // Find the first record that is not before the time
+      int low = 0;
+      int high = times.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (times[middle] < time) {
+          low = middle + 1;
         } else {
-          DataSetRawDataRecord record = records.get(position);
-          if (record.compareTo(date) < 0) {
-            result = record;
-            searchEnded = true;
-          }
-
+          high = middle;
         }
+      }
+
+      int position;
+      if (direction == BEFORE) {
+        position = low - 1;
       } else {
-        if (position >= records.size()) {
-          searchEnded = true;
-        } else {
-          DataSetRawDataRecord record = records.get(position);
-          if (record.compareTo(date) > 0) {
-            result = record;
-            searchEnded = true;
-          }
+        // Skip any records at exactly the specified time
+        position = low;
+        while (position < times.length && times[position] == time) {
+          position++;
         }
       }
-    }
 
-    return result;
+      DataSetRawDataRecord result = null;
+      if (position >= 0 && position < records.length) {
+        result = records[position];
+      }
+
+      return result;
+    }
   }
 }
@@ -0,0 +1,329 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+
+/**
+ * Application-wide cache of the values of the data sets being viewed,
+ * used to serve plot and map data without reading the database
+ * on every request.
+ *
+ * <p>
+ *   Each data set's measurements are held as a {@link DataSetColumns} object,
+ *   and its calibration records as a {@link CalibrationDataColumns} object.
+ *   The cache is limited to a maximum size in bytes; when it is full, the least
+ *   recently used entries are removed.
+ * </p>
+ *
+ * <p>
+ *   Each entry records the data set's last change time from the
+ *   database (see {@link DataSetDB#getLastTouched(Connection, long)}). This is
+ *   checked every time the entry is requested, and the entry is reloaded
+ *   if the data set has been changed since it was loaded, including by another
+ *   application node. User QC flags and calibration Use flags are updated in place
+ *   with {@link #setUserFlags(long, Collection, Integer, long, long)} and
+ *   {@link #setCalibrationUse(long, Collection, boolean, String, long, long)}.
+ * </p>
+ *
+ * <p>
+ *   The cache is created by {@link #initialise(long)} when the application
+ *   starts. If it has not been created, {@link #getColumns(DataSource, CalculationDB, DataSet)}
+ *   and {@link #getCalibrationData(DataSource, long, List)} return {@code null}
+ *   and the data must be read from the database.
+ * </p>
+ *
+ * @author Steve Jones
+ */
+public class DataSetCache {
+
+  /**
+   * The singleton instance of the cache
+   */
+  private static DataSetCache instance = null;
+
+  /**
+   * The maximum size of the cache, in bytes
+   */
+  private long maxBytes;
+
+  /**
+   * The current size of the cache, in bytes
+   */
+  private long bytes = 0;
+
+  /**
+   * The cached entries, keyed by entry type and data set ID, in order of last use
+   */
+  private LinkedHashMap<String, DataSetCacheEntry> entries;
+
+  /**
+   * Create the cache
+   * @param maxBytes The maximum size of the cache, in bytes
+   */
+  private DataSetCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    entries = new LinkedHashMap<String, DataSetCacheEntry>(16, 0.75f, true);
+  }
+
+  /**
+   * Create the cache
+   * @param maxBytes The maximum size of the cache, in bytes
+   * @throws MissingParamException If the size is not positive
+   */
+  public static synchronized void initialise(long maxBytes) throws MissingParamException {
+    MissingParam.checkPositive(maxBytes, "maxBytes");
+    instance = new DataSetCache(maxBytes);
+  }
+
+  /**
+   * Remove the cache and all its contents
+   */
+  public static synchronized void destroy() {
+    instance = null;
+  }
+
+  /**
+   * Get the cached columns for a data set, loading them if they are
+   * not in the cache or the data set has been changed since they were loaded
+   * @param dataSource A data source
+   * @param calculationDB The calculation database handler
+   * @param dataSet The data set
+   * @return The columns, or {@code null} if the cache has not been created
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  public static DataSetColumns getColumns(DataSource dataSource, CalculationDB calculationDB, DataSet dataSet) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkMissing(calculationDB, "calculationDB");
+    MissingParam.checkMissing(dataSet, "dataSet");
+
+    DataSetCache cache = instance;
+    DataSetColumns result = null;
+
+    if (null != cache) {
+      Connection conn = null;
+
+      try {
+        conn = dataSource.getConnection();
+        long lastTouched = DataSetDB.getLastTouched(conn, dataSet.getId());
+
+        result = cache.get(DataSetColumns.class, dataSet.getId(), lastTouched);
+        if (null == result) {
+          // The data set is loaded outside the lock so other data sets can still be read
+          Map<Long, String> diagnosticSensors = DiagnosticDataDB.getDiagnosticSensors(dataSource, dataSet.getInstrumentId());
+          result = DataSetColumns.load(conn, calculationDB, dataSet, diagnosticSensors);
+          cache.store(result);
+        }
+      } catch (SQLException e) {
+        throw new DatabaseException("Error while loading data set columns", e);
+      } finally {
+        DatabaseUtils.closeConnection(conn);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the cached calibration records for a data set, loading them if they are
+   * not in the cache or the data set has been changed since they were loaded
+   * @param dataSource A data source
+   * @param datasetId The data set's database ID
+   * @param calibrationFields The database fields of the sensors that have external standards
+   * @return The calibration records, or {@code null} if the cache has not been created
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set or its external standards do not exist
+   */
+  public static CalibrationDataColumns getCalibrationData(DataSource dataSource, long datasetId, List<String> calibrationFields) throws MissingParamException, DatabaseException, RecordNotFoundException {
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+    MissingParam.checkMissing(calibrationFields, "calibrationFields", true);
+
+    DataSetCache cache = instance;
+    CalibrationDataColumns result = null;
+
+    if (null != cache) {
+      Connection conn = null;
+
+      try {
+        conn = dataSource.getConnection();
+        long lastTouched = DataSetDB.getLastTouched(conn, datasetId);
+
+        result = cache.get(CalibrationDataColumns.class, datasetId, lastTouched);
+        if (null == result) {
+          // The records are loaded outside the lock so other data sets can still be read
+          result = CalibrationDataColumns.load(conn, DataSetDB.getDataSet(conn, datasetId), calibrationFields);
+          cache.store(result);
+        }
+      } catch (SQLException e) {
+        throw new DatabaseException("Error while loading calibration data", e);
+      } finally {
+        DatabaseUtils.closeConnection(conn);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the cache key for an entry
+   * @param type The entry type
+   * @param datasetId The data set's database ID
+   * @return The key
+   */
+  private static String getKey(Class<? extends DataSetCacheEntry> type, long datasetId) {
+    return type.getSimpleName() + ':' + datasetId;
+  }
+
+  /**
+   * Get a cached entry if it is up to date
+   * @param type The entry type
+   * @param datasetId The data set's database ID
+   * @param lastTouched The data set's current last change time
+   * @return The entry, or {@code null} if it is not cached or is out of date
+   */
+  private synchronized <T extends DataSetCacheEntry> T get(Class<T> type, long datasetId, long lastTouched) {
+    T result = type.cast(entries.get(getKey(type, datasetId)));
+    if (null != result && result.getLastTouched() != lastTouched) {
+      result = null;
+    }
+
+    return result;
+  }
+
+  /**
+   * Add an entry to the cache, replacing any older copy and removing the
+   * least recently used entries to make room for it. The entry is not
+   * added if it is too large for the cache, or if a newer copy has been
+   * stored while it was loading.
+   * @param entry The entry
+   */
+  private synchronized void store(DataSetCacheEntry entry) {
+    String key = getKey(entry.getClass(), entry.getDatasetId());
+    long size = entry.getByteSize();
+    DataSetCacheEntry existing = entries.get(key);
+
+    if (null == existing || existing.getLastTouched() < entry.getLastTouched()) {
+      remove(key);
+
+      if (size <= maxBytes) {
+        Iterator<DataSetCacheEntry> iterator = entries.values().iterator();
+        while (bytes + size > maxBytes && iterator.hasNext()) {
+          bytes -= iterator.next().getByteSize();
+          iterator.remove();
+        }
+
+        entries.put(key, entry);
+        bytes += size;
+      }
+    }
+  }
+
+  /**
+   * Remove an entry from the cache
+   * @param key The entry's key
+   */
+  private void remove(String key) {
+    DataSetCacheEntry removed = entries.remove(key);
+    if (null != removed) {
+      bytes -= removed.getByteSize();
+    }
+  }
+
+  /**
+   * Record that a data set has been changed in a way that does not
+   * affect a cached entry. The entry is only kept up to date if it was
+   * up to date before the change.
+   * @param type The entry type
+   * @param datasetId The data set's database ID
+   * @param previousTouched The data set's last change time before the change
+   * @param lastTouched The data set's last change time after the change
+   * @return The entry if it has been kept up to date; {@code null} otherwise
+   */
+  private <T extends DataSetCacheEntry> T touch(Class<T> type, long datasetId, long previousTouched, long lastTouched) {
+    T result = type.cast(entries.get(getKey(type, datasetId)));
+
+    if (null != result) {
+      if (result.getLastTouched() == previousTouched) {
+        result.setLastTouched(lastTouched);
+      } else {
+        result = null;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Update the user QC flags of a set of measurements in a cached data set.
+   * The flags are only updated if the cached measurements were up to date before
+   * the flags were changed; otherwise they are reloaded when they are next requested.
+   * The cached calibration records are not affected by the change.
+   * @param datasetId The data set's database ID
+   * @param measurementIds The measurement IDs
+   * @param flag The flag, or {@code null} if each measurement was given a different flag
+   * @param previousTouched The data set's last change time before the flags were changed
+   * @param lastTouched The data set's last change time after the flags were changed
+   * @see DataSetDB#recordUserFlags(DataSource, long, Collection, Integer)
+   */
+  protected static void setUserFlags(long datasetId, Collection<Long> measurementIds, Integer flag, long previousTouched, long lastTouched) {
+    DataSetCache cache = instance;
+    if (null != cache) {
+      synchronized (cache) {
+        if (null != flag) {
+          DataSetColumns columns = cache.touch(DataSetColumns.class, datasetId, previousTouched, lastTouched);
+          if (null != columns) {
+            columns.setUserFlags(measurementIds, flag);
+          }
+        }
+
+        cache.touch(CalibrationDataColumns.class, datasetId, previousTouched, lastTouched);
+      }
+    }
+  }
+
+  /**
+   * Update the Use flags of a set of calibration records in a cached data set.
+   * The flags are only updated if the cached records were up to date before
+   * the flags were changed; otherwise they are reloaded when they are next requested.
+   * The cached measurements are not affected by the change.
+   * @param datasetId The data set's database ID
+   * @param recordIds The calibration record IDs
+   * @param use The Use flag
+   * @param useMessage The message for the flag
+   * @param previousTouched The data set's last change time before the flags were changed
+   * @param lastTouched The data set's last change time after the flags were changed
+   * @see CalibrationDataDB#setCalibrationUse(DataSource, long, List, boolean, String)
+   */
+  protected static void setCalibrationUse(long datasetId, Collection<Long> recordIds, boolean use, String useMessage, long previousTouched, long lastTouched) {
+    DataSetCache cache = instance;
+    if (null != cache) {
+      synchronized (cache) {
+        CalibrationDataColumns calibrationData = cache.touch(CalibrationDataColumns.class, datasetId, previousTouched, lastTouched);
+        if (null != calibrationData) {
+          calibrationData.setUse(recordIds, use, useMessage);
+        }
+
+        cache.touch(DataSetColumns.class, datasetId, previousTouched, lastTouched);
+      }
+    }
+  }
+}
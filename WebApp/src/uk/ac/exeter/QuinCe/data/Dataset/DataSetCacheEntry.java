@@ -0,0 +1,72 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+
+/**
+ * Base class for the values of a data set held in the {@link DataSetCache}.
+ * Each entry records the data set's last change time when it was loaded,
+ * so the cache can tell whether it is still up to date.
+ *
+ * @author Steve Jones
+ * @see DataSetDB#getLastTouched(Connection, long)
+ */
+public abstract class DataSetCacheEntry {
+
+  /**
+   * The approximate number of bytes used by an object, regardless of its contents
+   */
+  protected static final long OBJECT_OVERHEAD = 64;
+
+  /**
+   * The database ID of the data set
+   */
+  private long datasetId;
+
+  /**
+   * The data set's last change time when the entry was loaded
+   */
+  private long lastTouched;
+
+  /**
+   * Basic constructor
+   * @param datasetId The database ID of the data set
+   * @param lastTouched The data set's last change time
+   */
+  protected DataSetCacheEntry(long datasetId, long lastTouched) {
+    this.datasetId = datasetId;
+    this.lastTouched = lastTouched;
+  }
+
+  /**
+   * Get the database ID of the data set
+   * @return The data set ID
+   */
+  public long getDatasetId() {
+    return datasetId;
+  }
+
+  /**
+   * Get the data set's last change time when the entry was loaded
+   * @return The last change time
+   * @see DataSetDB#getLastTouched(Connection, long)
+   */
+  protected long getLastTouched() {
+    return lastTouched;
+  }
+
+  /**
+   * Set the data set's last change time after a change
+   * that has been applied to the entry, or that does not affect it
+   * @param lastTouched The last change time
+   */
+  protected void setLastTouched(long lastTouched) {
+    this.lastTouched = lastTouched;
+  }
+
+  /**
+   * Get the approximate number of bytes used by the entry.
+   * This must not change while the entry is in the cache.
+   * @return The number of bytes
+   */
+  protected abstract long getByteSize();
+}
@@ -0,0 +1,574 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.primefaces.json.JSONArray;
+import org.primefaces.json.JSONObject;
+
+import uk.ac.exeter.QCRoutines.messages.Flag;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.Downsampler;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+
+/**
+ * The values of a data set used by the plots and maps, held
+ * as one array per column.
+ *
+ * <p>
+ *   The measurements are held in {@code (date, id)} order. Each sensor,
+ *   calculated value and diagnostic sensor has an array of values, in
+ *   which missing values are {@code NaN}. The user QC flags are held so
+ *   that value ranges can be filtered by flag; they are updated in place
+ *   when a user flags measurements. The automatic QC flags are held for
+ *   the QC table, but not the QC messages.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see DataSetCache
+ */
+public class DataSetColumns extends DataSetCacheEntry {
+
+  /**
+   * The flags of the values used to calculate value ranges.
+   * If no values have these flags, all values are used.
+   */
+  private static final int[] RANGE_FLAGS = {Flag.VALUE_ASSUMED_GOOD, Flag.VALUE_GOOD,
+      Flag.VALUE_QUESTIONABLE, Flag.VALUE_NEEDED};
+
+  /**
+   * The number of measurements
+   */
+  private int size = 0;
+
+  /**
+   * The measurement IDs
+   */
+  private long[] ids;
+
+  /**
+   * The measurement dates, as stored in the database
+   */
+  private long[] dates;
+
+  /**
+   * The measurement longitudes
+   */
+  private double[] longitudes;
+
+  /**
+   * The measurement latitudes
+   */
+  private double[] latitudes;
+
+  /**
+   * The automatic QC flags
+   */
+  private short[] autoFlags;
+
+  /**
+   * The user QC flags
+   */
+  private short[] userFlags;
+
+  /**
+   * The values of each sensor, calculated field and diagnostic sensor, keyed by field name
+   */
+  private Map<String, double[]> values;
+
+  /**
+   * The names of the sensor fields
+   */
+  private Set<String> sensorFields;
+
+  /**
+   * The names of the diagnostic sensor fields
+   */
+  private Set<String> diagnosticFields;
+
+  /**
+   * Create an empty set of columns
+   * @param datasetId The database ID of the data set
+   * @param lastTouched The data set's last change time
+   * @param capacity The number of measurements
+   * @param sensorFields The sensor fields
+   * @param fields The sensor and calculated fields
+   * @param diagnosticFields The diagnostic sensor fields
+   */
+  private DataSetColumns(long datasetId, long lastTouched, int capacity, Collection<String> sensorFields, List<String> fields, Collection<String> diagnosticFields) {
+    super(datasetId, lastTouched);
+    ids = new long[capacity];
+    dates = new long[capacity];
+    longitudes = new double[capacity];
+    latitudes = new double[capacity];
+    autoFlags = new short[capacity];
+    userFlags = new short[capacity];
+
+    values = new LinkedHashMap<String, double[]>();
+    for (String field : fields) {
+      values.put(field, new double[capacity]);
+    }
+
+    this.sensorFields = new HashSet<String>(sensorFields);
+    this.diagnosticFields = new HashSet<String>(diagnosticFields);
+    for (String field : diagnosticFields) {
+      values.put(field, new double[capacity]);
+    }
+  }
+
+  /**
+   * Load the columns for a data set in a single streamed query.
+   * The diagnostic values are read as sub-queries on the primary key of the
+   * diagnostic data, in the same way as {@link uk.ac.exeter.QuinCe.data.Calculation.CalculationRecordReader}.
+   * @param conn A database connection
+   * @param calculationDB The calculation database handler
+   * @param dataSet The data set
+   * @param diagnosticSensors The instrument's diagnostic sensors, indexed by database ID
+   * @return The columns
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  protected static DataSetColumns load(Connection conn, CalculationDB calculationDB, DataSet dataSet, Map<Long, String> diagnosticSensors) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(calculationDB, "calculationDB");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(diagnosticSensors, "diagnosticSensors", true);
+
+    // The change time is read first so changes made during the load are not missed
+    long lastTouched = DataSetDB.getLastTouched(conn, dataSet.getId());
+
+    List<String> sensorFields = DataSetDataDB.getSensorFields(conn, dataSet);
+    List<String> fields = new ArrayList<String>();
+    StringBuilder sql = new StringBuilder("SELECT d.id, d.date, d.longitude, d.latitude, c.auto_flag, c.user_flag");
+
+    for (String field : sensorFields) {
+      fields.add(field);
+      sql.append(", d.");
+      sql.append(field);
+    }
+
+    for (String field : calculationDB.getCalculatedValueFields()) {
+      fields.add(field);
+      sql.append(", c.");
+      sql.append(field);
+    }
+
+    for (int i = 0; i < diagnosticSensors.size(); i++) {
+      sql.append(", (SELECT value FROM diagnostic_data WHERE measurement_id = d.id AND file_column_id = ?)");
+    }
+
+    sql.append(" FROM dataset_data d INNER JOIN ");
+    sql.append(calculationDB.getCalculationTable());
+    sql.append(" c ON d.id = c.measurement_id WHERE d.dataset_id = ? ORDER BY d.date ASC, d.id ASC");
+
+    int capacity = (int) DataSetDataDB.getMeasurementCount(conn, dataSet.getId());
+    DataSetColumns result = new DataSetColumns(dataSet.getId(), lastTouched, capacity, sensorFields, fields, diagnosticSensors.values());
+
+    List<double[]> valueColumns = new ArrayList<double[]>(result.values.values());
+
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    try {
+      stmt = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchSize(Integer.MIN_VALUE);
+
+      int param = 1;
+      for (long sensorId : diagnosticSensors.keySet()) {
+        stmt.setLong(param, sensorId);
+        param++;
+      }
+      stmt.setLong(param, dataSet.getId());
+
+      records = stmt.executeQuery();
+
+      // Measurements added since the count was taken are left for the next load
+      int row = 0;
+      while (row < capacity && records.next()) {
+        result.ids[row] = records.getLong(1);
+        result.dates[row] = records.getLong(2);
+        result.longitudes[row] = getValue(records, 3);
+        result.latitudes[row] = getValue(records, 4);
+        result.autoFlags[row] = (short) records.getInt(5);
+        result.userFlags[row] = (short) records.getInt(6);
+
+        for (int i = 0; i < valueColumns.size(); i++) {
+          valueColumns.get(i)[row] = getValue(records, i + 7);
+        }
+
+        row++;
+      }
+
+      result.size = row;
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while loading data set columns", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return result;
+  }
+
+  /**
+   * Read a value from a result set, converting {@code NULL} values to {@code NaN}
+   * @param records The result set
+   * @param column The column index
+   * @return The value
+   * @throws SQLException If the value cannot be read
+   */
+  private static double getValue(ResultSet records, int column) throws SQLException {
+    double value = records.getDouble(column);
+    return records.wasNull() ? Double.NaN : value;
+  }
+
+  /**
+   * Get the number of measurements
+   * @return The number of measurements
+   */
+  public int size() {
+    return size;
+  }
+
+  @Override
+  protected long getByteSize() {
+    long bytesPerRow = Long.BYTES * 2 + Double.BYTES * 2 + Short.BYTES * 2 + Double.BYTES * values.size();
+    return OBJECT_OVERHEAD * (values.size() + 7) + bytesPerRow * ids.length;
+  }
+
+  /**
+   * Determine whether or not a field is held in the columns
+   * @param field The field
+   * @return {@code true} if the field is held; {@code false} if it is not
+   */
+  public boolean hasField(String field) {
+    return field.equals("id") || field.equals("date") || field.equals("longitude")
+        || field.equals("latitude") || field.equals("user_flag") || values.containsKey(field);
+  }
+
+  /**
+   * Determine whether or not all of a set of fields are held in the columns
+   * @param fields The fields
+   * @return {@code true} if all the fields are held; {@code false} if any are not
+   */
+  public boolean hasFields(List<String> fields) {
+    boolean result = true;
+
+    for (String field : fields) {
+      if (!hasField(field)) {
+        result = false;
+        break;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Set the user QC flag of a set of measurements
+   * @param measurementIds The measurement IDs
+   * @param flag The flag
+   */
+  protected synchronized void setUserFlags(Collection<Long> measurementIds, int flag) {
+    Set<Long> idSet = new HashSet<Long>(measurementIds);
+
+    for (int row = 0; row < size && !idSet.isEmpty(); row++) {
+      if (idSet.remove(ids[row])) {
+        userFlags[row] = (short) flag;
+      }
+    }
+  }
+
+  /**
+   * Get the database ID of a measurement
+   * @param row The measurement's row
+   * @return The measurement ID
+   */
+  public long getId(int row) {
+    return ids[row];
+  }
+
+  /**
+   * Get the automatic QC flag of a measurement
+   * @param row The measurement's row
+   * @return The flag value
+   */
+  public int getAutoFlag(int row) {
+    return autoFlags[row];
+  }
+
+  /**
+   * Get the user QC flag of a measurement
+   * @param row The measurement's row
+   * @return The flag value
+   */
+  public int getUserFlag(int row) {
+    return userFlags[row];
+  }
+
+  /**
+   * Get the values of a measurement for the QC table: the ID, date, longitude
+   * and latitude, followed by each sensor, calculated and diagnostic field.
+   * Missing sensor and diagnostic values are {@code null}; other missing values
+   * are zero, as they are when read from the database.
+   * @param row The measurement's row
+   * @return The values
+   */
+  public JSONArray getTableValues(int row) {
+    JSONArray result = new JSONArray();
+    result.put(ids[row]);
+    result.put(dates[row]);
+    result.put(Double.isNaN(longitudes[row]) ? 0.0 : longitudes[row]);
+    result.put(Double.isNaN(latitudes[row]) ? 0.0 : latitudes[row]);
+
+    for (Map.Entry<String, double[]> entry : values.entrySet()) {
+      double value = entry.getValue()[row];
+      if (!Double.isNaN(value)) {
+        result.put(value);
+      } else if (sensorFields.contains(entry.getKey()) || diagnosticFields.contains(entry.getKey())) {
+        result.put(JSONObject.NULL);
+      } else {
+        result.put(0.0);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get a field's value for a measurement, as a double
+   * @param field The field
+   * @param row The measurement's row
+   * @return The value
+   */
+  private double getDouble(String field, int row) {
+    double result;
+
+    switch (field) {
+    case "id": {
+      result = ids[row];
+      break;
+    }
+    case "date": {
+      result = dates[row];
+      break;
+    }
+    case "longitude": {
+      result = longitudes[row];
+      break;
+    }
+    case "latitude": {
+      result = latitudes[row];
+      break;
+    }
+    case "user_flag": {
+      result = userFlags[row];
+      break;
+    }
+    default: {
+      result = values.get(field)[row];
+    }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get a JSON data array of the given fields, in the same form as
+   * {@link CalculationDB#getJsonData(javax.sql.DataSource, DataSet, List, String, List, Downsampler)}.
+   * All the fields must be held in the columns (see {@link #hasFields(List)}).
+   * @param fields The fields to retrieve
+   * @param sortField The field used to sort the data. If {@code null}, the data is in {@code (date, id)} order
+   * @param bounds The geographical limits of the data
+   * @param downsampler The downsampler used to limit the number of points returned. If {@code null}, all points are returned
+   * @return The JSON array
+   */
+  public String getJsonData(List<String> fields, String sortField, List<Double> bounds, Downsampler downsampler) {
+
+    int[] rows = getRows(bounds);
+    if (null != sortField && !sortField.equals("date")) {
+      rows = sortRows(rows, sortField);
+    }
+
+    JSONArray json = new JSONArray();
+
+    if (null != downsampler) {
+      downsampler.setRowCount(rows.length);
+    }
+
+    for (int row : rows) {
+      JSONArray recordJson = new JSONArray();
+
+      for (String field : fields) {
+        if (field.equals("id")) {
+          recordJson.put(ids[row]);
+        } else if (field.equals("date")) {
+          recordJson.put(dates[row]);
+        } else {
+          double value = getDouble(field, row);
+          if (!Double.isNaN(value)) {
+            recordJson.put(value);
+          } else if (diagnosticFields.contains(field)) {
+            recordJson.put(JSONObject.NULL);
+          } else {
+            // Missing database values are read as zero
+            recordJson.put(0.0);
+          }
+        }
+      }
+
+      if (null != downsampler) {
+        downsampler.add(recordJson);
+      } else {
+        json.put(recordJson);
+      }
+    }
+
+    if (null != downsampler) {
+      json = downsampler.getResult();
+    }
+
+    return json.toString();
+  }
+
+  /**
+   * Get the rows of the measurements within a set of geographical bounds,
+   * in {@code (date, id)} order. Measurements without a position are
+   * excluded if bounds are given.
+   * @param bounds The bounds, as {@code [minLon, minLat, maxLon, maxLat]}. If {@code null}, all rows are returned
+   * @return The rows
+   */
+  private int[] getRows(List<Double> bounds) {
+    int[] result = new int[size];
+    int count = 0;
+
+    for (int row = 0; row < size; row++) {
+      if (null == bounds || (longitudes[row] >= bounds.get(0) && longitudes[row] <= bounds.get(2)
+          && latitudes[row] >= bounds.get(1) && latitudes[row] <= bounds.get(3))) {
+        result[count] = row;
+        count++;
+      }
+    }
+
+    return count == size ? result : Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Sort a set of rows by the values of a field. Missing values are
+   * placed first, and rows with equal values are kept in {@code (date, id)} order.
+   * @param rows The rows
+   * @param sortField The field
+   * @return The sorted rows
+   */
+  private int[] sortRows(int[] rows, String sortField) {
+    Integer[] sorted = new Integer[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      sorted[i] = rows[i];
+    }
+
+    Arrays.sort(sorted, (a, b) -> {
+      double valueA = getDouble(sortField, a);
+      double valueB = getDouble(sortField, b);
+
+      int result;
+      if (Double.isNaN(valueA)) {
+        result = Double.isNaN(valueB) ? 0 : -1;
+      } else if (Double.isNaN(valueB)) {
+        result = 1;
+      } else {
+        result = Double.compare(valueA, valueB);
+      }
+
+      return result;
+    });
+
+    int[] result = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      result[i] = sorted[i];
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the range of values of a field, covering the 5th to 95th percentiles.
+   * Only values with flags of ASSUMED_GOOD, GOOD, QUESTIONABLE or NEEDED are
+   * included; if there are none, values with any flag are used.
+   * @param field The field
+   * @return The value range, or {@code null} if the field has no values
+   */
+  public List<Double> getValueRange(String field) {
+    List<Double> result = null;
+
+    double[] rangeValues = getRangeValues(field, true);
+    if (rangeValues.length == 0) {
+      rangeValues = getRangeValues(field, false);
+    }
+
+    if (rangeValues.length > 0) {
+      Percentile percentile = new Percentile();
+      result = new ArrayList<Double>(2);
+      result.add(percentile.evaluate(rangeValues, 5));
+      result.add(percentile.evaluate(rangeValues, 95));
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the non-missing values of a field for calculating its range
+   * @param field The field
+   * @param filterFlags Indicates whether only values with the range flags should be included
+   * @return The values
+   */
+  private double[] getRangeValues(String field, boolean filterFlags) {
+    double[] result = new double[size];
+    int count = 0;
+
+    for (int row = 0; row < size; row++) {
+      double value = getDouble(field, row);
+      if (!Double.isNaN(value) && (!filterFlags || isRangeFlag(userFlags[row]))) {
+        result[count] = value;
+        count++;
+      }
+    }
+
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Determine whether or not a flag is one of the flags used for value ranges
+   * @param flag The flag
+   * @return {@code true} if the flag is used for value ranges; {@code false} if it is not
+   */
+  private boolean isRangeFlag(int flag) {
+    boolean result = false;
+
+    for (int rangeFlag : RANGE_FLAGS) {
+      if (flag == rangeFlag) {
+        result = true;
+        break;
+      }
+    }
+
+    return result;
+  }
+}
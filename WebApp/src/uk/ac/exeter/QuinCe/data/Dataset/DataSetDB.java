@@ -8,6 +8,7 @@ import java.sql.Types;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
 
@@ -62,7 +63,7 @@ public class DataSetDB {
    */
   private static final String UPDATE_DATASET_STATEMENT = "Update dataset set "
       + " instrument_id = ?, name = ?, start = ?, end = ?, status = ?, " // 5
-      + " properties = ?, last_touched = ?, messages_json = ? WHERE id = ?"; // 9
+      + " properties = ?, last_touched = GREATEST(?, COALESCE(last_touched, 0) + 1), messages_json = ? WHERE id = ?"; // 9
 
   /**
    * Query to get a single data set by its ID
@@ -85,6 +86,30 @@ public class DataSetDB {
   private static final String DELETE_DATASET_QUERY = "DELETE FROM dataset_data "
       + "WHERE dataset_id = ?";
 
+  /**
+   * Statement to delete the records for a given dataset from a given time onwards
+   */
+  private static final String DELETE_DATASET_FROM_QUERY = "DELETE FROM dataset_data "
+      + "WHERE dataset_id = ? AND date >= ?";
+
+  /**
+   * Query to get the time that a data set was last changed
+   */
+  private static final String GET_LAST_TOUCHED_QUERY = "SELECT last_touched FROM dataset WHERE id = ?";
+
+  /**
+   * Query to get the time that a data set was last changed,
+   * locking it until the transaction is finished
+   */
+  private static final String LOCK_LAST_TOUCHED_QUERY = GET_LAST_TOUCHED_QUERY + " FOR UPDATE";
+
+  /**
+   * Statement to record that a data set has been changed. The time always
+   * increases, so it can be used to detect changes made by other application nodes.
+   */
+  private static final String TOUCH_DATASET_STATEMENT = "UPDATE dataset SET "
+      + "last_touched = GREATEST(?, COALESCE(last_touched, 0) + 1) WHERE id = ?";
+
   /**
    * Get the list of data sets defined for a given instrument
    * @param dataSource A data source
@@ -339,6 +364,9 @@ public class DataSetDB {
       DatabaseException {
     dataSet.setStatus(status);
     saveDataSet(dataSource, dataSet);
+
+    // The data set's measurements may have been changed
+    DataSetPageIndex.invalidate(dataSet.getId());
   }
 
   /**
@@ -416,6 +444,45 @@ public class DataSetDB {
       stmt.setLong(1, dataSet.getId());
 
       stmt.execute();
+      touchDataSet(conn, dataSet.getId());
+      DataSetPageIndex.invalidate(dataSet.getId());
+
+      // The map tiles are rebuilt after data reduction
+      MapTileDB.deleteTiles(conn, dataSet);
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while deleting dataset data", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+  }
+
+  /**
+   * Delete the records for a given data set from the specified time onwards
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param from The time of the first record to be deleted
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static void deleteDatasetData(Connection conn, DataSet dataSet, LocalDateTime from) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(from, "from");
+
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = conn.prepareStatement(DELETE_DATASET_FROM_QUERY);
+      stmt.setLong(1, dataSet.getId());
+      stmt.setLong(2, DateTimeUtils.dateToLong(from));
+
+      stmt.execute();
+      touchDataSet(conn, dataSet.getId());
+      DataSetPageIndex.invalidate(dataSet.getId());
+
+      // The map tiles are rebuilt after data reduction
+      MapTileDB.deleteTiles(conn, dataSet);
     } catch (SQLException e) {
       throw new DatabaseException("Error while deleting dataset data", e);
     } finally {
@@ -426,5 +493,141 @@ public class DataSetDB {
   public static void updateDataSet(Connection conn, DataSet dataSet)
       throws MissingParamException, DatabaseException, RecordNotFoundException {
     saveDataSet(conn, dataSet);
+
+    // Jobs update the data set when they have changed its values
+    DataSetPageIndex.invalidate(dataSet.getId());
+  }
+
+  /**
+   * Get the time that a data set was last changed, as stored in the
+   * database. This changes whenever the data set is updated or its
+   * measurements are deleted, on any application node.
+   * @param conn A database connection
+   * @param datasetId The data set's database ID
+   * @return The time the data set was last changed, or {@link DatabaseUtils#NO_DATABASE_RECORD} if it does not exist
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static long getLastTouched(Connection conn, long datasetId) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+    return getLastTouched(conn, datasetId, GET_LAST_TOUCHED_QUERY);
+  }
+
+  /**
+   * Get the time that a data set was last changed, and lock it until the end
+   * of the current transaction. Other changes to the data set that use this
+   * lock wait until the transaction is committed.
+   * @param conn A database connection, which must not be in auto-commit mode
+   * @param datasetId The data set's database ID
+   * @return The time the data set was last changed, or {@link DatabaseUtils#NO_DATABASE_RECORD} if it does not exist
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @see #touchDataSet(Connection, long)
+   */
+  public static long lockLastTouched(Connection conn, long datasetId) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+    return getLastTouched(conn, datasetId, LOCK_LAST_TOUCHED_QUERY);
+  }
+
+  /**
+   * Get the time that a data set was last changed using the specified query
+   * @param conn A database connection
+   * @param datasetId The data set's database ID
+   * @param query The query
+   * @return The time the data set was last changed, or {@link DatabaseUtils#NO_DATABASE_RECORD} if it does not exist
+   * @throws DatabaseException If a database error occurs
+   */
+  private static long getLastTouched(Connection conn, long datasetId, String query) throws DatabaseException {
+    PreparedStatement stmt = null;
+    ResultSet record = null;
+    long result = DatabaseUtils.NO_DATABASE_RECORD;
+
+    try {
+      stmt = conn.prepareStatement(query);
+      stmt.setLong(1, datasetId);
+      record = stmt.executeQuery();
+      if (record.next()) {
+        result = record.getLong(1);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while getting data set change time", e);
+    } finally {
+      DatabaseUtils.closeResultSets(record);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return result;
+  }
+
+  /**
+   * Record that the user QC flags of measurements in a data set have been
+   * changed. The data set's change time is updated so that other application
+   * nodes reload it. This node's page index is kept because flags do not change
+   * the order of the measurements, and its cached values are updated in place
+   * if they were up to date before the change.
+   * @param dataSource A data source
+   * @param datasetId The data set's database ID
+   * @param measurementIds The IDs of the flagged measurements
+   * @param userFlag The flag that was set, or {@code null} if each measurement was given a different flag
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static void recordUserFlags(DataSource dataSource, long datasetId, Collection<Long> measurementIds, Integer userFlag) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+    MissingParam.checkMissing(measurementIds, "measurementIds", true);
+
+    Connection conn = null;
+
+    try {
+      conn = dataSource.getConnection();
+      conn.setAutoCommit(false);
+
+      long previousTouched = lockLastTouched(conn, datasetId);
+      long lastTouched = touchDataSet(conn, datasetId);
+      conn.commit();
+
+      DataSetPageIndex.touch(datasetId, previousTouched, lastTouched);
+      DataSetCache.setUserFlags(datasetId, measurementIds, userFlag, previousTouched, lastTouched);
+    } catch (SQLException e) {
+      DatabaseUtils.rollBack(conn);
+      throw new DatabaseException("Error while recording user flags", e);
+    } catch (DatabaseException e) {
+      DatabaseUtils.rollBack(conn);
+      throw e;
+    } finally {
+      DatabaseUtils.closeConnection(conn);
+    }
+  }
+
+  /**
+   * Record that a data set has been changed
+   * @param conn A database connection
+   * @param datasetId The data set's database ID
+   * @return The data set's new last change time
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @see #getLastTouched(Connection, long)
+   */
+  public static long touchDataSet(Connection conn, long datasetId) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = conn.prepareStatement(TOUCH_DATASET_STATEMENT);
+      stmt.setLong(1, DateTimeUtils.dateToLong(LocalDateTime.now()));
+      stmt.setLong(2, datasetId);
+      stmt.execute();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while updating data set change time", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return getLastTouched(conn, datasetId, GET_LAST_TOUCHED_QUERY);
   }
 }
@@ -47,12 +47,32 @@ public class DataSetDataDB {
   /**
    * Query to get all measurements for a data set
    */
-  private static final String GET_ALL_MEASUREMENTS_QUERY = "SELECT * FROM dataset_data WHERE dataset_id = ? ORDER BY date ASC";
+  private static final String GET_ALL_MEASUREMENTS_QUERY = "SELECT * FROM dataset_data WHERE dataset_id = ? ORDER BY date ASC, id ASC";
+
+  /**
+   * Query to get a page of measurements for a data set, starting from
+   * a given {@code (date, id)} position
+   * @see DataSetPageIndex
+   */
+  private static final String GET_MEASUREMENTS_FROM_QUERY = "SELECT * FROM dataset_data "
+      + "WHERE dataset_id = ? AND (date > ? OR (date = ? AND id >= ?)) "
+      + "ORDER BY date ASC, id ASC LIMIT ?, ?";
 
   /**
    * Query to get all measurements IDs for a data set
    */
-  private static final String GET_ALL_MEASUREMENT_IDS_QUERY = "SELECT id FROM dataset_data WHERE dataset_id = ? ORDER BY date ASC";
+  private static final String GET_ALL_MEASUREMENT_IDS_QUERY = "SELECT id FROM dataset_data WHERE dataset_id = ? ORDER BY date ASC, id ASC";
+
+  /**
+   * Query to get the number of measurements in a data set
+   */
+  private static final String GET_MEASUREMENT_COUNT_QUERY = "SELECT COUNT(*) FROM dataset_data WHERE dataset_id = ?";
+
+  /**
+   * Query to get the ID of the last measurement in a data set before a given time
+   */
+  private static final String GET_LAST_MEASUREMENT_ID_BEFORE_QUERY = "SELECT id FROM dataset_data "
+      + "WHERE dataset_id = ? AND date < ? ORDER BY date DESC, id DESC LIMIT 1";
 
   /**
    * Query to get a single measurement
@@ -128,26 +148,7 @@ public class DataSetDataDB {
         datasetDataStatement = createInsertRecordStatement(conn, record);
       }
 
-      datasetDataStatement.setLong(1, record.getDatasetId());
-      datasetDataStatement.setLong(2, DateTimeUtils.dateToLong(record.getDate()));
-      datasetDataStatement.setDouble(3, record.getLongitude());
-      datasetDataStatement.setDouble(4, record.getLatitude());
-      datasetDataStatement.setString(5, record.getRunType());
-
-      int currentField = 5;
-      SensorsConfiguration sensorConfig = ResourceManager.getInstance().getSensorsConfiguration();
-      for (SensorType sensorType : sensorConfig.getSensorTypes()) {
-        if (sensorType.isUsedInCalculation()) {
-          currentField++;
-          Double sensorValue = record.getSensorValue(sensorType.getName());
-          if (null == sensorValue) {
-            datasetDataStatement.setNull(currentField, Types.DOUBLE);
-          } else {
-            datasetDataStatement.setDouble(currentField, sensorValue);
-          }
-        }
-      }
-
+      setRecordValues(datasetDataStatement, record);
       datasetDataStatement.execute();
 
       CalculationDB calculationDB = CalculationDBFactory.getCalculationDB();
@@ -166,6 +167,35 @@ public class DataSetDataDB {
     }
   }
 
+  /**
+   * Set the values of a record on a statement created by
+   * {@link #createInsertRecordStatement(Connection, DataSetRawDataRecord)}
+   * @param datasetDataStatement The insert statement
+   * @param record The record
+   * @throws SQLException If the values cannot be set
+   */
+  protected static void setRecordValues(PreparedStatement datasetDataStatement, DataSetRawDataRecord record) throws SQLException {
+    datasetDataStatement.setLong(1, record.getDatasetId());
+    datasetDataStatement.setLong(2, DateTimeUtils.dateToLong(record.getDate()));
+    datasetDataStatement.setDouble(3, record.getLongitude());
+    datasetDataStatement.setDouble(4, record.getLatitude());
+    datasetDataStatement.setString(5, record.getRunType());
+
+    int currentField = 5;
+    SensorsConfiguration sensorConfig = ResourceManager.getInstance().getSensorsConfiguration();
+    for (SensorType sensorType : sensorConfig.getSensorTypes()) {
+      if (sensorType.isUsedInCalculation()) {
+        currentField++;
+        Double sensorValue = record.getSensorValue(sensorType.getName());
+        if (null == sensorValue) {
+          datasetDataStatement.setNull(currentField, Types.DOUBLE);
+        } else {
+          datasetDataStatement.setDouble(currentField, sensorValue);
+        }
+      }
+    }
+  }
+
   /**
    * Get a single measurement from the database
    * @param conn A database connection
@@ -284,17 +314,30 @@ public class DataSetDataDB {
     Map<Integer, String> sensorColumns = new HashMap<Integer, String>();
 
     try {
-      StringBuilder query = new StringBuilder(GET_ALL_MEASUREMENTS_QUERY);
       if (length > 0) {
-        query.append(" LIMIT ");
-        query.append(start);
-        query.append(',');
-        query.append(length);
+        // Seek to the nearest indexed position before the page
+        // instead of reading through all the earlier measurements
+        DataSetPageIndex pageIndex = DataSetPageIndex.getIndex(conn, dataSet.getId());
+
+        if (pageIndex.hasSeekKey(start)) {
+          stmt = conn.prepareStatement(GET_MEASUREMENTS_FROM_QUERY);
+          stmt.setLong(1, dataSet.getId());
+          stmt.setLong(2, pageIndex.getSeekDate(start));
+          stmt.setLong(3, pageIndex.getSeekDate(start));
+          stmt.setLong(4, pageIndex.getSeekId(start));
+          stmt.setInt(5, pageIndex.getSkipCount(start));
+          stmt.setInt(6, length);
+        } else {
+          stmt = conn.prepareStatement(GET_ALL_MEASUREMENTS_QUERY + " LIMIT ?, ?");
+          stmt.setLong(1, dataSet.getId());
+          stmt.setInt(2, start);
+          stmt.setInt(3, length);
+        }
+      } else {
+        stmt = conn.prepareStatement(GET_ALL_MEASUREMENTS_QUERY);
+        stmt.setLong(1, dataSet.getId());
       }
 
-      stmt = conn.prepareStatement(query.toString());
-      stmt.setLong(1, dataSet.getId());
-
       records = stmt.executeQuery();
 
       while (records.next()) {
@@ -328,6 +371,37 @@ public class DataSetDataDB {
    */
   private static DataSetRawDataRecord getRecordFromResultSet(Connection conn, DataSet dataSet, ResultSet records, Map<String, Integer> baseColumns, Map<Integer, String> sensorColumns) throws MissingParamException, SQLException, DataSetException, DatabaseException, RecordNotFoundException, InstrumentException {
 
+    SensorAssignments sensorAssignments = null;
+
+    // Get the instrument details if we haven't already got the column indices
+    if (baseColumns.size() == 0) {
+      ResourceManager resourceManager = ResourceManager.getInstance();
+      Instrument instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), resourceManager.getSensorsConfiguration(), resourceManager.getRunTypeCategoryConfiguration());
+      sensorAssignments = instrument.getSensorAssignments();
+    }
+
+    return getRecordFromResultSet(dataSet, sensorAssignments, records, baseColumns, sensorColumns);
+  }
+
+  /**
+   * Read a record from a ResultSet containing the {@code dataset_data} columns.
+   * Unlike {@link #getRecordFromResultSet(Connection, DataSet, ResultSet, Map, Map)},
+   * this makes no further database calls, so it can be used while reading
+   * a streamed result set. The column indices are calculated from the
+   * result set's metadata on the first call.
+   *
+   * @param dataSet The data set to which the record belongs
+   * @param sensorAssignments The sensor assignments for the data set's instrument
+   * @param records The result set
+   * @param baseColumns The column indices for the base columns
+   * @param sensorColumns The column indices for the sensor columns
+   * @return The record
+   * @throws MissingParamException If any required parameters are missing
+   * @throws SQLException If the record details cannot be extracted
+   * @throws NoSuchCategoryException If the record's Run Type is not recognised
+   */
+  public static DataSetRawDataRecord getRecordFromResultSet(DataSet dataSet, SensorAssignments sensorAssignments, ResultSet records, Map<String, Integer> baseColumns, Map<Integer, String> sensorColumns) throws MissingParamException, SQLException, NoSuchCategoryException {
+
     MissingParam.checkMissing(records, "records");
     MissingParam.checkMissing(baseColumns, "baseColumns", true);
     MissingParam.checkMissing(sensorColumns, "sensorColumns", true);
@@ -336,11 +410,8 @@ public class DataSetDataDB {
 
     // Get the column indices if we haven't already got them
     if (baseColumns.size() == 0) {
-      ResultSetMetaData rsmd = records.getMetaData();
-      ResourceManager resourceManager = ResourceManager.getInstance();
-      Instrument instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), resourceManager.getSensorsConfiguration(), resourceManager.getRunTypeCategoryConfiguration());
-      SensorAssignments sensorAssignments = instrument.getSensorAssignments();
-      calculateColumnIndices(rsmd, sensorAssignments, baseColumns, sensorColumns);
+      MissingParam.checkMissing(sensorAssignments, "sensorAssignments");
+      calculateColumnIndices(records.getMetaData(), sensorAssignments, baseColumns, sensorColumns);
     }
 
     long id = records.getLong(baseColumns.get(ID_COL));
@@ -426,7 +497,7 @@ public class DataSetDataDB {
    * @throws MissingParamException If any required parameters are missing
    * @throws SQLException If the statement cannot be created
    */
-  private static PreparedStatement createInsertRecordStatement(Connection conn, DataSetRawDataRecord record) throws MissingParamException, SQLException {
+  protected static PreparedStatement createInsertRecordStatement(Connection conn, DataSetRawDataRecord record) throws MissingParamException, SQLException {
 
     List<String> fieldNames = new ArrayList<String>();
 
@@ -514,6 +585,82 @@ public class DataSetDataDB {
     return ids;
   }
 
+  /**
+   * Get the number of measurements in a given data set
+   * @param conn A database connection
+   * @param datasetId The dataset ID
+   * @return The number of measurements
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   */
+  public static long getMeasurementCount(Connection conn, long datasetId) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    long count = 0;
+
+    try {
+      stmt = conn.prepareStatement(GET_MEASUREMENT_COUNT_QUERY);
+      stmt.setLong(1, datasetId);
+
+      records = stmt.executeQuery();
+      if (records.next()) {
+        count = records.getLong(1);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while counting measurements", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return count;
+  }
+
+  /**
+   * Get the ID of the last measurement in a data set before a given time,
+   * in the order used by {@link DataSetDataReader}
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param before The time
+   * @return The measurement ID, or zero if there are no measurements before the time
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   */
+  public static long getLastMeasurementIdBefore(Connection conn, DataSet dataSet, LocalDateTime before) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(before, "before");
+
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    long result = 0;
+
+    try {
+      stmt = conn.prepareStatement(GET_LAST_MEASUREMENT_ID_BEFORE_QUERY);
+      stmt.setLong(1, dataSet.getId());
+      stmt.setLong(2, DateTimeUtils.dateToLong(before));
+
+      records = stmt.executeQuery();
+      if (records.next()) {
+        result = records.getLong(1);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while retrieving measurements", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return result;
+  }
+
   /**
    * Get the list of columns names for a raw dataset record
    * @param dataSource A data source
@@ -661,6 +808,52 @@ public class DataSetDataDB {
     }
   }
 
+  /**
+   * Get the database fields holding the sensor values for a data set.
+   * Only the sensors assigned on the data set's instrument are included.
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @return The sensor fields
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  public static List<String> getSensorFields(Connection conn, DataSet dataSet) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+
+    List<String> result = new ArrayList<String>();
+
+    ResourceManager resourceManager = ResourceManager.getInstance();
+    SensorsConfiguration sensorConfig = resourceManager.getSensorsConfiguration();
+    Instrument instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), sensorConfig, resourceManager.getRunTypeCategoryConfiguration());
+    SensorAssignments sensorAssignments = instrument.getSensorAssignments();
+
+    ResultSet columns = null;
+
+    try {
+      columns = conn.getMetaData().getColumns(null, null, "dataset_data", null);
+
+      while (columns.next()) {
+        String columnName = columns.getString(4);
+
+        for (SensorType sensorType : sensorConfig.getSensorTypes()) {
+          if (sensorAssignments.get(sensorType).size() > 0 && columnName.equals(sensorType.getDatabaseFieldName())) {
+            result.add(columnName);
+            break;
+          }
+        }
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while getting column names", e);
+    } finally {
+      DatabaseUtils.closeResultSets(columns);
+    }
+
+    return result;
+  }
+
   /**
    * Take a list of fields, and return those which come from the dataset data.
    * Any others will come from calculation data and will be left alone.
@@ -0,0 +1,228 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.ac.exeter.QuinCe.data.Instrument.Instrument;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentDB;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
+import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.NoSuchCategoryException;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+import uk.ac.exeter.QuinCe.web.system.ResourceManager;
+
+/**
+ * Forward-only reader for the measurement records of a data set.
+ *
+ * <p>
+ *   This returns the same records as {@link DataSetDataDB#getMeasurements(Connection, DataSet)},
+ *   in date order, but streams them from the database one at a time instead of
+ *   loading them all into memory. While the reader is open no other queries can
+ *   be run on its connection, so callers that need to write to the database
+ *   must use a separate connection. {@link #close()} must be called when the
+ *   reader is no longer needed.
+ * </p>
+ *
+ * <p>
+ *   Records with the same date are returned in ID order, so a reader can be
+ *   opened part way through a data set by giving the ID of the last record
+ *   that was processed. This allows jobs to continue from a checkpoint.
+ * </p>
+ *
+ * @author Steve Jones
+ *
+ */
+public class DataSetDataReader {
+
+  /**
+   * Query to get all measurements for a data set
+   */
+  private static final String GET_MEASUREMENTS_QUERY = "SELECT * FROM dataset_data WHERE dataset_id = ? ORDER BY date ASC, id ASC";
+
+  /**
+   * Query to get the measurements for a data set that come after a given measurement
+   */
+  private static final String GET_MEASUREMENTS_AFTER_QUERY = "SELECT d.* FROM dataset_data d "
+      + "INNER JOIN dataset_data c ON c.id = ? "
+      + "WHERE d.dataset_id = ? AND (d.date > c.date OR (d.date = c.date AND d.id > c.id)) "
+      + "ORDER BY d.date ASC, d.id ASC";
+
+  /**
+   * Query to count the measurements for a data set up to and including a given measurement
+   */
+  private static final String COUNT_MEASUREMENTS_TO_QUERY = "SELECT COUNT(*) FROM dataset_data d "
+      + "INNER JOIN dataset_data c ON c.id = ? "
+      + "WHERE d.dataset_id = ? AND (d.date < c.date OR (d.date = c.date AND d.id <= c.id))";
+
+  /**
+   * The data set
+   */
+  private DataSet dataSet;
+
+  /**
+   * The instrument to which the data set belongs
+   */
+  private Instrument instrument;
+
+  /**
+   * The query statement
+   */
+  private PreparedStatement stmt = null;
+
+  /**
+   * The streamed query results
+   */
+  private ResultSet records = null;
+
+  /**
+   * The column indices for the base columns
+   */
+  private Map<String, Integer> baseColumns = new HashMap<String, Integer>();
+
+  /**
+   * The column indices for the sensor columns
+   */
+  private Map<Integer, String> sensorColumns = new HashMap<Integer, String>();
+
+  /**
+   * The number of records in the data set that come
+   * before the next record returned by the reader
+   */
+  private long position = 0;
+
+  /**
+   * Open a reader for a data set's measurements
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  public DataSetDataReader(Connection conn, DataSet dataSet) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    this(conn, dataSet, 0);
+  }
+
+  /**
+   * Open a reader for a data set's measurements, starting after the
+   * specified measurement. If the measurement ID is zero, all the
+   * measurements are read.
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param afterMeasurementId The ID of the last measurement that should not be read
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  public DataSetDataReader(Connection conn, DataSet dataSet, long afterMeasurementId) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkZeroPositive(afterMeasurementId, "afterMeasurementId");
+
+    this.dataSet = dataSet;
+
+    // Load the instrument before the query is run, since no other
+    // queries can be made on the connection while the results are streamed
+    ResourceManager resourceManager = ResourceManager.getInstance();
+    instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), resourceManager.getSensorsConfiguration(), resourceManager.getRunTypeCategoryConfiguration());
+
+    try {
+      if (afterMeasurementId == 0) {
+        stmt = conn.prepareStatement(GET_MEASUREMENTS_QUERY, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(Integer.MIN_VALUE);
+        stmt.setLong(1, dataSet.getId());
+      } else {
+        position = countMeasurementsTo(conn, afterMeasurementId);
+
+        stmt = conn.prepareStatement(GET_MEASUREMENTS_AFTER_QUERY, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(Integer.MIN_VALUE);
+        stmt.setLong(1, afterMeasurementId);
+        stmt.setLong(2, dataSet.getId());
+      }
+
+      records = stmt.executeQuery();
+    } catch (SQLException e) {
+      close();
+      throw new DatabaseException("Error while retrieving measurements", e);
+    }
+  }
+
+  /**
+   * Get the next measurement record
+   * @return The record, or {@code null} if there are no more records
+   * @throws DatabaseException If a database error occurs
+   */
+  public DataSetRawDataRecord next() throws DatabaseException {
+
+    DataSetRawDataRecord result = null;
+
+    try {
+      if (null != records && records.next()) {
+        result = DataSetDataDB.getRecordFromResultSet(dataSet, instrument.getSensorAssignments(), records, baseColumns, sensorColumns);
+        position++;
+      }
+    } catch (SQLException|MissingParamException|NoSuchCategoryException e) {
+      throw new DatabaseException("Error while retrieving measurements", e);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the number of records in the data set that come before the
+   * next record returned by the reader. This includes any records
+   * that were skipped when the reader was opened.
+   * @return The reader's position in the data set
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Count the measurements in the data set up to and including the specified measurement
+   * @param conn A database connection
+   * @param measurementId The measurement ID
+   * @return The number of measurements
+   * @throws SQLException If a database error occurs
+   */
+  private long countMeasurementsTo(Connection conn, long measurementId) throws SQLException {
+    PreparedStatement countStmt = null;
+    ResultSet count = null;
+
+    long result = 0;
+
+    try {
+      countStmt = conn.prepareStatement(COUNT_MEASUREMENTS_TO_QUERY);
+      countStmt.setLong(1, measurementId);
+      countStmt.setLong(2, dataSet.getId());
+
+      count = countStmt.executeQuery();
+      if (count.next()) {
+        result = count.getLong(1);
+      }
+    } finally {
+      DatabaseUtils.closeResultSets(count);
+      DatabaseUtils.closeStatements(countStmt);
+    }
+
+    return result;
+  }
+
+  /**
+   * Close the reader. Any remaining records are discarded.
+   */
+  public void close() {
+    DatabaseUtils.closeResultSets(records);
+    DatabaseUtils.closeStatements(stmt);
+    records = null;
+    stmt = null;
+  }
+}
@@ -0,0 +1,263 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDBFactory;
+import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.NoSuchCategoryException;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+
+/**
+ * Batched writer for measurement records extracted from a data set.
+ *
+ * <p>
+ *   This performs the same work as {@link DataSetDataDB#storeRecord(Connection, DataSetRawDataRecord)},
+ *   but instead of running several single-row statements for each record it
+ *   reuses one statement per table and sends the records to the database in
+ *   batches. Each batch inserts the {@code dataset_data} rows, reads back their
+ *   generated keys, and then inserts the matching calculation and diagnostic
+ *   rows as two further batches. The generated keys are also set as the IDs
+ *   of the records.
+ * </p>
+ *
+ * <p>
+ *   Records are held in memory until the batch is full, so {@link #flush()}
+ *   must be called once all records have been added. The writer does not
+ *   commit the connection, and {@link #close()} must be called when it is
+ *   no longer needed.
+ * </p>
+ *
+ * @author Steve Jones
+ *
+ */
+public class DataSetDataWriter {
+
+  /**
+   * The default number of records sent to the database in each batch
+   */
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  /**
+   * The database connection
+   */
+  private Connection conn;
+
+  /**
+   * The number of records in each batch
+   */
+  private int batchSize;
+
+  /**
+   * The calculation DB for the calculation records
+   */
+  private CalculationDB calculationDB;
+
+  /**
+   * The statement for inserting {@code dataset_data} records.
+   * Created when the first record is added.
+   */
+  private PreparedStatement datasetDataStatement = null;
+
+  /**
+   * The statement for inserting calculation records, or {@code null}
+   * if calculation records are not being created
+   */
+  private PreparedStatement calculationStatement = null;
+
+  /**
+   * The statement for inserting diagnostic values
+   */
+  private PreparedStatement diagnosticStatement = null;
+
+  /**
+   * The records in the current batch
+   */
+  private List<DataSetRawDataRecord> batch;
+
+  /**
+   * The number of records written so far
+   */
+  private long recordCount = 0;
+
+  /**
+   * The database ID of the last record written
+   */
+  private long lastMeasurementId = 0;
+
+  /**
+   * The time at which the writer was created
+   */
+  private long startTime;
+
+  /**
+   * Create a writer for the given connection
+   * @param conn A database connection
+   * @param batchSize The number of records in each batch
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If the statements cannot be created
+   */
+  public DataSetDataWriter(Connection conn, int batchSize) throws MissingParamException, DatabaseException {
+    this(conn, batchSize, true);
+  }
+
+  /**
+   * Create a writer for the given connection, specifying whether empty
+   * calculation records should be created for the measurements. If they
+   * are not, the caller must store the calculation records itself.
+   * @param conn A database connection
+   * @param batchSize The number of records in each batch
+   * @param createCalculationRecords Indicates whether calculation records should be created
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If the statements cannot be created
+   * @see CalculationDB#storeCalculationRecords(Connection, List, uk.ac.exeter.QuinCe.data.Calculation.CalculationValueBuffer, int)
+   */
+  public DataSetDataWriter(Connection conn, int batchSize, boolean createCalculationRecords) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkPositive(batchSize, "batchSize");
+
+    this.conn = conn;
+    this.batchSize = batchSize;
+    this.batch = new ArrayList<DataSetRawDataRecord>(batchSize);
+    this.calculationDB = CalculationDBFactory.getCalculationDB();
+
+    try {
+      if (createCalculationRecords) {
+        calculationStatement = calculationDB.getInsertStatement(conn);
+      }
+      diagnosticStatement = DiagnosticDataDB.createStoreDiagnosticValuesStatement(conn);
+    } catch (SQLException e) {
+      DatabaseUtils.closeStatements(calculationStatement, diagnosticStatement);
+      throw new DatabaseException("Error while creating dataset record statements", e);
+    }
+
+    startTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Add a measurement record to the current batch. If the batch is
+   * full, it is written to the database.
+   * @param record The record
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DataSetException If a non-measurement record is supplied
+   * @throws DatabaseException If a database error occurs
+   * @throws NoSuchCategoryException If the record's Run Type is not recognised
+   */
+  public void addRecord(DataSetRawDataRecord record) throws MissingParamException, DataSetException, DatabaseException, NoSuchCategoryException {
+    MissingParam.checkMissing(record, "record");
+
+    if (!record.isMeasurement()) {
+      throw new DataSetException("Record is not a measurement");
+    }
+
+    try {
+      if (null == datasetDataStatement) {
+        datasetDataStatement = DataSetDataDB.createInsertRecordStatement(conn, record);
+      }
+
+      DataSetDataDB.setRecordValues(datasetDataStatement, record);
+      datasetDataStatement.addBatch();
+      batch.add(record);
+    } catch (SQLException e) {
+      throw new DatabaseException("Error storing dataset record", e);
+    }
+
+    if (batch.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Write the current batch of records to the database
+   * @throws DatabaseException If a database error occurs
+   */
+  public void flush() throws DatabaseException {
+
+    if (batch.size() > 0) {
+      ResultSet createdKeys = null;
+
+      try {
+        datasetDataStatement.executeBatch();
+
+        // The generated keys are returned in the order the records were added
+        createdKeys = datasetDataStatement.getGeneratedKeys();
+        int recordIndex = 0;
+        while (createdKeys.next()) {
+          long measurementId = createdKeys.getLong(1);
+          batch.get(recordIndex).setId(measurementId);
+          if (null != calculationStatement) {
+            calculationDB.addCalculationRecord(calculationStatement, measurementId);
+          }
+          DiagnosticDataDB.addDiagnosticValues(diagnosticStatement, measurementId, batch.get(recordIndex).getDiagnosticValues());
+          lastMeasurementId = measurementId;
+          recordIndex++;
+        }
+
+        if (recordIndex != batch.size()) {
+          throw new DatabaseException("Expected " + batch.size() + " generated keys for dataset records, got " + recordIndex);
+        }
+
+        if (null != calculationStatement) {
+          calculationStatement.executeBatch();
+        }
+        diagnosticStatement.executeBatch();
+
+        recordCount += batch.size();
+        batch.clear();
+      } catch (SQLException e) {
+        throw new DatabaseException("Error storing dataset records", e);
+      } finally {
+        DatabaseUtils.closeResultSets(createdKeys);
+      }
+    }
+  }
+
+  /**
+   * Close the writer's statements. Any records that have
+   * not been written by {@link #flush()} are discarded.
+   */
+  public void close() {
+    DatabaseUtils.closeStatements(datasetDataStatement, calculationStatement, diagnosticStatement);
+    batch.clear();
+  }
+
+  /**
+   * Get the number of records written to the database so far.
+   * Records in a batch that has not yet been written are not included.
+   * @return The number of records written
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Get the database ID of the last record written to the database
+   * @return The record ID, or zero if no records have been written
+   */
+  public long getLastMeasurementId() {
+    return lastMeasurementId;
+  }
+
+  /**
+   * Get the average number of records written per second
+   * since the writer was created
+   * @return The write rate
+   */
+  public double getRecordsPerSecond() {
+    double result = 0;
+
+    long elapsed = System.currentTimeMillis() - startTime;
+    if (elapsed > 0) {
+      result = recordCount / (elapsed / 1000.0);
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,469 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.exeter.QuinCe.data.Files.DataFile;
+import uk.ac.exeter.QuinCe.data.Files.DataFileException;
+import uk.ac.exeter.QuinCe.data.Files.DataFileLine;
+import uk.ac.exeter.QuinCe.data.Instrument.FileDefinition;
+import uk.ac.exeter.QuinCe.data.Instrument.FileDefinitionException;
+import uk.ac.exeter.QuinCe.data.Instrument.Instrument;
+import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeCategory;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+
+/**
+ * A forward-only cursor over the usable lines of one file definition
+ * within a data set.
+ *
+ * <p>
+ *   The lines of all the data files for the file definition are treated as
+ *   a single sequence, positioned by sequence number. Files are loaded
+ *   only when the cursor (or a look-ahead) reaches them, and are released once
+ *   the cursor has moved past them, so only the files around the current
+ *   position are held in memory.
+ * </p>
+ *
+ * <p>
+ *   For files with Run Types, lines with ignored Run Types and lines within the
+ *   instrument's pre- and post-flushing periods are skipped. For files without
+ *   Run Types, every line is used.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see DataSetRawData
+ */
+public class DataSetFileCursor {
+
+  /**
+   * Sequence number indicating that the cursor has not started
+   */
+  private static final int NOT_STARTED = -1;
+
+  /**
+   * Sequence number indicating that the end of the data has been reached
+   */
+  private static final int EOF = -2;
+
+  /**
+   * The file definition
+   */
+  private FileDefinition fileDefinition;
+
+  /**
+   * The instrument to which the files belong
+   */
+  private Instrument instrument;
+
+  /**
+   * The sensor columns to be parsed from each file,
+   * with their missing values
+   */
+  private Map<Integer, String> sensorColumns;
+
+  /**
+   * The start of the data set, in UTC milliseconds
+   */
+  private long dataSetStart;
+
+  /**
+   * The end of the data set, in UTC milliseconds
+   */
+  private long dataSetEnd;
+
+  /**
+   * The data files that have not yet been loaded
+   */
+  private ArrayDeque<DataFile> pendingFiles;
+
+  /**
+   * The loaded sections of the data files
+   */
+  private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+  /**
+   * The sequence number following the last loaded line
+   */
+  private int loadedEnd = 0;
+
+  /**
+   * The sequence number of the current line
+   */
+  private int current = NOT_STARTED;
+
+  /**
+   * The time of the current line
+   */
+  private long currentTime;
+
+  /**
+   * The sequence number of the next usable line, if it has been found
+   */
+  private int next = NOT_STARTED;
+
+  /**
+   * Indicates whether {@link #next} has been found
+   */
+  private boolean nextFound = false;
+
+  /**
+   * The last line whose Run Type has been examined by {@link #inPreFlushingPeriod(int)}
+   */
+  private int lastScannedLine = NOT_STARTED;
+
+  /**
+   * The Run Type of the last scanned line
+   */
+  private String scannedRunType = null;
+
+  /**
+   * The time of the first line in the current block of the scanned Run Type
+   */
+  private long scannedRunTypeStart;
+
+  /**
+   * Create a cursor positioned before the first line of the data
+   * @param fileDefinition The file definition
+   * @param instrument The instrument to which the files belong
+   * @param dataFiles The data files for the file definition, in time order
+   * @param sensorColumns The sensor columns to be parsed from each file
+   * @param dataSetStart The start of the data set, in UTC milliseconds
+   * @param dataSetEnd The end of the data set, in UTC milliseconds
+   */
+  protected DataSetFileCursor(FileDefinition fileDefinition, Instrument instrument, List<DataFile> dataFiles,
+      Map<Integer, String> sensorColumns, long dataSetStart, long dataSetEnd) {
+
+    this.fileDefinition = fileDefinition;
+    this.instrument = instrument;
+    this.pendingFiles = new ArrayDeque<DataFile>(dataFiles);
+    this.sensorColumns = sensorColumns;
+    this.dataSetStart = dataSetStart;
+    this.dataSetEnd = dataSetEnd;
+  }
+
+  /**
+   * Get the file definition for this cursor
+   * @return The file definition
+   */
+  public FileDefinition getFileDefinition() {
+    return fileDefinition;
+  }
+
+  /**
+   * Move to the next usable line
+   * @return {@code true} if a line was found; {@code false} if the end of the data has been reached
+   * @throws DataFileException If the file data cannot be extracted
+   * @throws FileDefinitionException If an invalid Run Type is found
+   */
+  public boolean next() throws DataFileException, FileDefinitionException {
+    findNext();
+
+    current = next;
+    nextFound = false;
+
+    boolean found = current != EOF;
+    if (found) {
+      currentTime = getTime(current);
+      releaseSegments();
+    }
+
+    return found;
+  }
+
+  /**
+   * Determine whether or not there is another usable line after the current one
+   * @return {@code true} if there is another line; {@code false} if there is not
+   * @throws DataFileException If the file data cannot be extracted
+   * @throws FileDefinitionException If an invalid Run Type is found
+   */
+  public boolean hasNext() throws DataFileException, FileDefinitionException {
+    findNext();
+    return next != EOF;
+  }
+
+  /**
+   * Get the time of the next usable line, in UTC milliseconds.
+   * Only valid if {@link #hasNext()} returns {@code true}.
+   * @return The time of the next line
+   * @throws DataFileException If the file data cannot be extracted
+   * @throws FileDefinitionException If an invalid Run Type is found
+   */
+  public long getNextTime() throws DataFileException, FileDefinitionException {
+    findNext();
+    return getTime(next);
+  }
+
+  /**
+   * Get the time of the current line, in UTC milliseconds
+   * @return The line time
+   */
+  public long getTime() {
+    return currentTime;
+  }
+
+  /**
+   * Get the current line
+   * @return The current line
+   */
+  public DataFileLine getLine() {
+    return getLine(current);
+  }
+
+  /**
+   * Find the next usable line after the current line, if it has not already been found
+   * @throws DataFileException If the file data cannot be extracted
+   * @throws FileDefinitionException If an invalid Run Type is found
+   */
+  private void findNext() throws DataFileException, FileDefinitionException {
+    if (!nextFound) {
+      next = current == EOF ? EOF : findNextLine(current + 1);
+      nextFound = true;
+    }
+  }
+
+  /**
+   * Find the first usable line at or after the specified line
+   * @param startLine The line from which to start searching
+   * @return The usable line, or {@link #EOF} if there are no more usable lines
+   * @throws DataFileException If the file data cannot be extracted
+   * @throws FileDefinitionException If an invalid Run Type is found
+   */
+  private int findNextLine(int startLine) throws DataFileException, FileDefinitionException {
+
+    int result = EOF;
+    int line = startLine;
+
+    while (result == EOF && hasLine(line)) {
+      if (!fileDefinition.hasRunTypes()) {
+        result = line;
+      } else {
+        // Every line must be passed through the pre-flushing check
+        // so that the Run Type changes are tracked
+        boolean preFlushing = inPreFlushingPeriod(line);
+
+        if (preFlushing || getLine(line).getRunTypeCategory().equals(RunTypeCategory.IGNORED_CATEGORY)
+            || inPostFlushingPeriod(line)) {
+          line++;
+        } else {
+          result = line;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Determine whether or not a line is within the pre-flushing period
+   * at the start of its Run Type.
+   *
+   * <p>
+   *   Every line must be examined in ascending order, so the start of each
+   *   Run Type can be tracked without looking back through the data.
+   * </p>
+   *
+   * @param line The line
+   * @return {@code true} if the line is within the pre-flushing period; {@code false} if it is not
+   * @throws DataFileException If the file data cannot be extracted
+   * @throws FileDefinitionException If an invalid Run Type is found
+   */
+  private boolean inPreFlushingPeriod(int line) throws DataFileException, FileDefinitionException {
+
+    while (lastScannedLine < line) {
+      lastScannedLine++;
+      String runType = getLine(lastScannedLine).getRunType();
+      if (!runType.equals(scannedRunType)) {
+        scannedRunType = runType;
+        scannedRunTypeStart = getTime(lastScannedLine);
+      }
+    }
+
+    return DateTimeUtils.secondsBetween(scannedRunTypeStart, getTime(line)) < instrument.getPreFlushingTime();
+  }
+
+  /**
+   * Determine whether or not a line is within the post-flushing period
+   * at the end of its Run Type.
+   * @param line The line
+   * @return {@code true} if the line is within the post-flushing period; {@code false} if it is not
+   * @throws DataFileException If the file data cannot be extracted
+   * @throws FileDefinitionException If an invalid Run Type is found
+   */
+  private boolean inPostFlushingPeriod(int line) throws DataFileException, FileDefinitionException {
+
+    boolean inPostFlushing = false;
+
+    if (instrument.getPostFlushingTime() > 0) {
+      String runType = getLine(line).getRunType();
+      long lineTime = getTime(line);
+      long previousTime = lineTime;
+
+      boolean finished = false;
+      int nextLine = line + 1;
+
+      while (!finished) {
+        if (!hasLine(nextLine)) {
+          inPostFlushing = DateTimeUtils.secondsBetween(lineTime, previousTime) <= instrument.getPostFlushingTime();
+          finished = true;
+        } else {
+          long nextTime = getTime(nextLine);
+
+          if (!getLine(nextLine).getRunType().equals(runType)) {
+            inPostFlushing = DateTimeUtils.secondsBetween(lineTime, previousTime) <= instrument.getPostFlushingTime();
+            finished = true;
+          } else if (DateTimeUtils.secondsBetween(lineTime, nextTime) > instrument.getPostFlushingTime()) {
+            inPostFlushing = false;
+            finished = true;
+          } else {
+            previousTime = nextTime;
+            nextLine++;
+          }
+        }
+      }
+    }
+
+    return inPostFlushing;
+  }
+
+  /**
+   * Determine whether or not a line exists, loading further
+   * data files if required
+   * @param line The line
+   * @return {@code true} if the line exists; {@code false} if it is beyond the end of the data
+   * @throws DataFileException If a data file cannot be loaded
+   */
+  private boolean hasLine(int line) throws DataFileException {
+    while (line >= loadedEnd && !pendingFiles.isEmpty()) {
+      loadNextFile();
+    }
+
+    return line < loadedEnd;
+  }
+
+  /**
+   * Load the next data file, and add the lines that fall within
+   * the data set to the loaded data
+   * @throws DataFileException If the file cannot be loaded
+   */
+  private void loadNextFile() throws DataFileException {
+    DataFile file = pendingFiles.poll();
+    file.parseColumns(sensorColumns);
+
+    int lastLine = file.getContentLineCount();
+
+    // Skip any lines before the data set start date
+    int firstLine = file.getFirstDataLine();
+    while (firstLine < lastLine && file.getTime(firstLine) < dataSetStart) {
+      firstLine++;
+    }
+
+    // Find the first line after the data set's end date
+    int endLine = firstLine;
+    while (endLine < lastLine && file.getTime(endLine) <= dataSetEnd) {
+      endLine++;
+    }
+
+    if (endLine > firstLine) {
+      segments.add(new Segment(file, firstLine, loadedEnd, endLine - firstLine));
+      loadedEnd += endLine - firstLine;
+    }
+  }
+
+  /**
+   * Release any loaded files that are entirely before the current line
+   */
+  private void releaseSegments() {
+    while (segments.peek().startSequence + segments.peek().lineCount <= current) {
+      segments.poll();
+    }
+  }
+
+  /**
+   * Get the time of a line
+   * @param line The line
+   * @return The line time
+   * @throws DataFileException If the time cannot be extracted
+   */
+  private long getTime(int line) throws DataFileException {
+    Segment segment = getSegment(line);
+    return segment.file.getTime(segment.getFileLine(line));
+  }
+
+  /**
+   * Get a line
+   * @param line The line
+   * @return The line
+   */
+  private DataFileLine getLine(int line) {
+    Segment segment = getSegment(line);
+    return new DataFileLine(segment.file, segment.getFileLine(line));
+  }
+
+  /**
+   * Get the loaded segment containing a line. The line must have been loaded.
+   * @param line The line
+   * @return The segment
+   */
+  private Segment getSegment(int line) {
+    Segment result = null;
+
+    for (Segment segment : segments) {
+      if (line < segment.startSequence + segment.lineCount) {
+        result = segment;
+        break;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * The section of a data file that falls within the data set
+   */
+  private static class Segment {
+
+    /**
+     * The data file
+     */
+    private DataFile file;
+
+    /**
+     * The first line of the file within the data set
+     */
+    private int firstLine;
+
+    /**
+     * The sequence number of the first line
+     */
+    private int startSequence;
+
+    /**
+     * The number of lines within the data set
+     */
+    private int lineCount;
+
+    /**
+     * Basic constructor
+     * @param file The data file
+     * @param firstLine The first line of the file within the data set
+     * @param startSequence The sequence number of the first line
+     * @param lineCount The number of lines within the data set
+     */
+    private Segment(DataFile file, int firstLine, int startSequence, int lineCount) {
+      this.file = file;
+      this.firstLine = firstLine;
+      this.startSequence = startSequence;
+      this.lineCount = lineCount;
+    }
+
+    /**
+     * Convert a sequence number to a line number in the file
+     * @param line The sequence number
+     * @return The file line number
+     */
+    private int getFileLine(int line) {
+      return firstLine + line - startSequence;
+    }
+  }
+}
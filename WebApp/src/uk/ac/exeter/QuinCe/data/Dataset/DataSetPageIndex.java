@@ -0,0 +1,230 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+
+/**
+ * Sparse index of the positions of a data set's measurements, used
+ * to read a page of measurements from any point in the data set
+ * without scanning all the measurements before it.
+ *
+ * <p>
+ *   Measurements are ordered by {@code (date, id)}. The index holds the
+ *   {@code (date, id)} key of every {@link #INTERVAL}th measurement. A page
+ *   is read by seeking to the nearest indexed key before it using the
+ *   {@code (dataset_id, date, id)} database index, and skipping at most
+ *   {@link #INTERVAL} rows from there.
+ * </p>
+ *
+ * <p>
+ *   Indexes are built when first requested and cached for each data set.
+ *   Each index records the data set's last change time from the database
+ *   (see {@link DataSetDB#getLastTouched(Connection, long)}), and is rebuilt
+ *   if the data set has been changed since, including by another application node.
+ *   Indexes are also invalidated locally using {@link #invalidate(long)} whenever
+ *   the measurements in a data set are changed.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see DataSetDataDB#getMeasurements(Connection, DataSet, int, int)
+ */
+public class DataSetPageIndex {
+
+  /**
+   * The number of measurements between indexed keys
+   */
+  public static final int INTERVAL = 1000;
+
+  /**
+   * Query to get the keys of all measurements in a data set
+   */
+  private static final String GET_KEYS_QUERY = "SELECT date, id FROM dataset_data "
+      + "WHERE dataset_id = ? ORDER BY date ASC, id ASC";
+
+  /**
+   * The cached indexes, by data set ID
+   */
+  private static Map<Long, DataSetPageIndex> indexes = new ConcurrentHashMap<Long, DataSetPageIndex>();
+
+  /**
+   * The dates of the indexed measurements
+   */
+  private long[] dates;
+
+  /**
+   * The database IDs of the indexed measurements
+   */
+  private long[] ids;
+
+  /**
+   * The data set's last change time when the index was built
+   */
+  private long lastTouched;
+
+  /**
+   * Create an index from the indexed keys
+   * @param dates The dates of the indexed measurements
+   * @param ids The database IDs of the indexed measurements
+   * @param lastTouched The data set's last change time when the keys were read
+   */
+  public DataSetPageIndex(long[] dates, long[] ids, long lastTouched) {
+    this.dates = dates;
+    this.ids = ids;
+    this.lastTouched = lastTouched;
+  }
+
+  /**
+   * Get the page index for a data set, building it if it is not cached
+   * or the data set has been changed since it was built
+   * @param conn A database connection
+   * @param datasetId The data set's database ID
+   * @return The page index
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static DataSetPageIndex getIndex(Connection conn, long datasetId) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkZeroPositive(datasetId, "datasetId");
+
+    // The change time is read first so changes made during the build are not missed
+    long lastTouched = DataSetDB.getLastTouched(conn, datasetId);
+
+    DataSetPageIndex index = indexes.get(datasetId);
+    if (null == index || index.lastTouched != lastTouched) {
+      index = buildIndex(conn, datasetId, lastTouched);
+      indexes.put(datasetId, index);
+    }
+
+    return index;
+  }
+
+  /**
+   * Remove the cached page index for a data set
+   * @param datasetId The data set's database ID
+   */
+  public static void invalidate(long datasetId) {
+    indexes.remove(datasetId);
+  }
+
+  /**
+   * Record that a data set has been changed without changing the
+   * order of its measurements, so its cached page index can still be used.
+   * The index is only kept if it was up to date before the change.
+   * @param datasetId The data set's database ID
+   * @param previousTouched The data set's last change time before the change
+   * @param lastTouched The data set's last change time after the change
+   */
+  public static void touch(long datasetId, long previousTouched, long lastTouched) {
+    indexes.computeIfPresent(datasetId, (id, index) ->
+      index.lastTouched == previousTouched ? new DataSetPageIndex(index.dates, index.ids, lastTouched) : null);
+  }
+
+  /**
+   * Build the page index for a data set. Only the {@code (date, id)} keys
+   * are read, so the query is answered from the database index.
+   * @param conn A database connection
+   * @param datasetId The data set's database ID
+   * @param lastTouched The data set's last change time
+   * @return The page index
+   * @throws DatabaseException If a database error occurs
+   */
+  private static DataSetPageIndex buildIndex(Connection conn, long datasetId, long lastTouched) throws DatabaseException {
+
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    List<long[]> keys = new ArrayList<long[]>();
+
+    try {
+      stmt = conn.prepareStatement(GET_KEYS_QUERY, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      stmt.setLong(1, datasetId);
+
+      records = stmt.executeQuery();
+
+      int row = 0;
+      while (records.next()) {
+        if (row % INTERVAL == 0) {
+          keys.add(new long[] {records.getLong(1), records.getLong(2)});
+        }
+        row++;
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while building page index", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    long[] dates = new long[keys.size()];
+    long[] ids = new long[keys.size()];
+    for (int i = 0; i < keys.size(); i++) {
+      dates[i] = keys.get(i)[0];
+      ids[i] = keys.get(i)[1];
+    }
+
+    return new DataSetPageIndex(dates, ids, lastTouched);
+  }
+
+  /**
+   * Get the position of the indexed key at or before a given row.
+   * If the row is beyond the end of the data set, the last key is used.
+   * @param start The row index
+   * @return The position of the key in the index
+   */
+  private int getKeyPosition(int start) {
+    return Math.min(start / INTERVAL, dates.length - 1);
+  }
+
+  /**
+   * Determine whether or not a page starting at the given row must be
+   * read from an indexed key. Pages in the first block of the data set
+   * can be read from the start of the data set.
+   * @param start The row index
+   * @return {@code true} if the page must be read from a key; {@code false} if it is read from the start of the data set
+   */
+  public boolean hasSeekKey(int start) {
+    return start >= INTERVAL && dates.length > 1;
+  }
+
+  /**
+   * Get the date of the indexed key from which a page starting at the given
+   * row is read. The key's row is included in the page read.
+   * @param start The row index
+   * @return The date of the key, as stored in the database
+   */
+  public long getSeekDate(int start) {
+    return dates[getKeyPosition(start)];
+  }
+
+  /**
+   * Get the database ID of the indexed key from which a page starting at the given
+   * row is read. The key's row is included in the page read.
+   * @param start The row index
+   * @return The measurement ID of the key
+   */
+  public long getSeekId(int start) {
+    return ids[getKeyPosition(start)];
+  }
+
+  /**
+   * Get the number of rows to skip after seeking to the key for
+   * a page starting at the given row
+   * @param start The row index
+   * @return The number of rows to skip
+   */
+  public int getSkipCount(int start) {
+    return hasSeekKey(start) ? start - getKeyPosition(start) * INTERVAL : start;
+  }
+}
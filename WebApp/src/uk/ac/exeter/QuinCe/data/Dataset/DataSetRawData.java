@@ -1,64 +1,47 @@
 package uk.ac.exeter.QuinCe.data.Dataset;
 
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import javax.sql.DataSource;
 
-import org.apache.commons.lang3.mutable.MutableInt;
-
 import uk.ac.exeter.QuinCe.data.Files.DataFile;
 import uk.ac.exeter.QuinCe.data.Files.DataFileDB;
 import uk.ac.exeter.QuinCe.data.Files.DataFileException;
 import uk.ac.exeter.QuinCe.data.Files.DataFileLine;
 import uk.ac.exeter.QuinCe.data.Instrument.FileDefinition;
-import uk.ac.exeter.QuinCe.data.Instrument.FileDefinitionException;
 import uk.ac.exeter.QuinCe.data.Instrument.Instrument;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationNotValidException;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.SensorCalibrationDB;
-import uk.ac.exeter.QuinCe.data.Instrument.DataFormats.PositionException;
-import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeCategory;
 import uk.ac.exeter.QuinCe.data.Instrument.SensorDefinition.SensorAssignment;
-import uk.ac.exeter.QuinCe.data.Instrument.SensorDefinition.SensorType;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
 import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
-import uk.ac.exeter.QuinCe.utils.ExtendedMutableInt;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
 
 /**
- * Class to load the raw data for a data set
+ * Class to load the raw data for a data set.
+ *
+ * <p>
+ *   The lines of each file definition are read through a {@link DataSetFileCursor}.
+ *   The cursors are merged in time order using a priority queue, so that
+ *   matching lines from all the file definitions are found in a single forward
+ *   pass through the data.
+ * </p>
+ *
  * @author Steve Jones
  *
  */
 public abstract class DataSetRawData {
 
-  /**
-   * Line index indicating the we've navigated past the end of the file
-   */
-  protected static final int EOF_VALUE = -1;
-
-  /**
-   * Line index indicating that file processing has not started
-   */
-  protected static final int NOT_STARTED_VALUE = -2;
-
-  /**
-   * Line index indicating that we've navigated past the end of the file
-   */
-  protected static final ExtendedMutableInt EOF = new ExtendedMutableInt(EOF_VALUE);
-
-  /**
-   * Line index indicating that we haven't started processing the file
-   */
-  protected static final ExtendedMutableInt NOT_STARTED = new ExtendedMutableInt(NOT_STARTED_VALUE);
-
   /**
    * Averaging mode for no averaging
    */
@@ -79,6 +62,11 @@ public abstract class DataSetRawData {
    */
   public static final String AVG_MODE_MINUTE_NAME = "Every minute";
 
+  /**
+   * The maximum allowable gap between matching lines, in seconds
+   */
+  protected static final long MAX_DIFFERENCE = 30;
+
   /**
    * The data set to which this data belongs
    */
@@ -90,25 +78,34 @@ public abstract class DataSetRawData {
   private Instrument instrument;
 
   /**
-   * The file definitions for the data set
+   * The cursors for each file definition
+   */
+  private List<DataSetFileCursor> cursors;
+
+  /**
+   * The cursors, ordered by the time of their current lines
    */
-  private List<FileDefinition> fileDefinitions;
+  private PriorityQueue<DataSetFileCursor> cursorQueue;
 
   /**
-   * The data extracted from the data files that are encompassed by the data set
+   * The index of the file definition used for the time and Run Type of each record
    */
-  protected List<List<DataFileLine>> data;
+  private int coreFileIndex;
 
   /**
-   * The rows from each file that are currently being processed.
-   * These rows are discovered using #nextRecord
+   * The index of the file definition used for the position of each record
    */
-  protected List<List<Integer>> selectedRows = null;
+  private int positionFileIndex;
 
   /**
-   * Current position pointers for each file definition
+   * Indicates whether the end of the data has been reached
    */
-  protected List<Integer> linePositions = null;
+  private boolean finished = false;
+
+  /**
+   * The totals used to build the sensor values for each record
+   */
+  private SensorValueTotals recordValues;
 
   /**
    * A calibration set for this DataSet, initialized with an empty
@@ -117,7 +114,8 @@ public abstract class DataSetRawData {
   private CalibrationSet calibrationSet;
 
   /**
-   * Constructor - loads and extracts the data for the data set
+   * Constructor - prepares the data files for the data set. The
+   * file contents are loaded as the records are read.
    * @param dataSource A data source
    * @param dataSet The data set
    * @param instrument The instrument to which the data set belongs
@@ -127,24 +125,49 @@ public abstract class DataSetRawData {
    * @throws DataFileException If the data cannot be extracted from the files
    */
   protected DataSetRawData(DataSource dataSource, DataSet dataSet, Instrument instrument) throws MissingParamException, DatabaseException, RecordNotFoundException, DataFileException {
+    this(dataSource, dataSet, instrument, dataSet.getStart());
+  }
+
+  /**
+   * Constructor - prepares the data files for part of the data set,
+   * from the specified time to the end of the data set. The
+   * file contents are loaded as the records are read.
+   * @param dataSource A data source
+   * @param dataSet The data set
+   * @param instrument The instrument to which the data set belongs
+   * @param readFrom The time from which records are to be read
+   * @throws RecordNotFoundException If no data files are found within the data set
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DataFileException If the data cannot be extracted from the files
+   */
+  protected DataSetRawData(DataSource dataSource, DataSet dataSet, Instrument instrument, LocalDateTime readFrom) throws MissingParamException, DatabaseException, RecordNotFoundException, DataFileException {
 
     this.dataSet = dataSet;
     this.instrument = instrument;
 
-    fileDefinitions = new ArrayList<FileDefinition>();
-    data = new ArrayList<List<DataFileLine>>();
-    selectedRows = new ArrayList<List<Integer>>();
-    linePositions = new ArrayList<Integer>();
+    LocalDateTime start = readFrom.isAfter(dataSet.getStart()) ? readFrom : dataSet.getStart();
+    long dataSetStart = DateTimeUtils.dateToLong(start);
+    long dataSetEnd = DateTimeUtils.dateToLong(dataSet.getEnd());
+
+    cursors = new ArrayList<DataSetFileCursor>();
 
     for (FileDefinition fileDefinition : instrument.getFileDefinitions()) {
-      fileDefinitions.add(fileDefinition);
+      List<DataFile> dataFiles = DataFileDB.getFiles(dataSource, fileDefinition, start, dataSet.getEnd());
+      cursors.add(new DataSetFileCursor(fileDefinition, instrument, dataFiles, getSensorColumns(fileDefinition), dataSetStart, dataSetEnd));
+    }
 
-      List<DataFile> dataFiles = DataFileDB.getFiles(dataSource, fileDefinition, dataSet.getStart(), dataSet.getEnd());
-      data.add(extractData(dataFiles));
+    cursorQueue = new PriorityQueue<DataSetFileCursor>(Math.max(1, cursors.size()), new Comparator<DataSetFileCursor>() {
+      @Override
+      public int compare(DataSetFileCursor o1, DataSetFileCursor o2) {
+        return Long.compare(o1.getTime(), o2.getTime());
+      }
+    });
+
+    recordValues = new SensorValueTotals(instrument);
+    coreFileIndex = getCoreFileIndex();
+    positionFileIndex = getPositionFileIndex();
 
-      selectedRows.add(null);
-      linePositions.add(NOT_STARTED_VALUE);
-    }
     CalibrationSet calibrations = new SensorCalibrationDB()
         .getMostRecentCalibrations(dataSource, instrument.getDatabaseId(),
             dataSet.getStart());
@@ -157,38 +180,23 @@ public abstract class DataSetRawData {
   }
 
   /**
-   * Extract the rows from the data files that are encompassed by a data set
-   * @param dataFiles The data files for the definition
-   * @throws DataFileException If the data cannot be extracted from the file
+   * Get the columns of a file that are assigned to sensors, along with
+   * their missing values
+   * @param fileDefinition The file definition
+   * @return The sensor columns and their missing values
    */
-  private List<DataFileLine> extractData(List<DataFile> dataFiles) throws DataFileException {
-
-    // The data from the files
-    ArrayList<DataFileLine> fileData = new ArrayList<DataFileLine>();
-
-    // Loop through each file
-    for (DataFile file : dataFiles) {
-      // Size the data array
-      fileData.ensureCapacity(fileData.size() + file.getRecordCount());
+  private Map<Integer, String> getSensorColumns(FileDefinition fileDefinition) {
+    Map<Integer, String> columns = new HashMap<Integer, String>();
 
-      // Skip any lines before the data set start date
-      int currentLine = file.getFirstDataLine();
-      while (file.getDate(currentLine).isBefore(dataSet.getStart())) {
-        currentLine++;
-      }
-
-      // Copy lines until either the end of the file or we pass the data set's end date
-      while (currentLine < file.getContentLineCount()) {
-        if (file.getDate(currentLine).isAfter(dataSet.getEnd())) {
-          break;
-        } else {
-          fileData.add(new DataFileLine(file, currentLine));
-          currentLine++;
+    for (Set<SensorAssignment> assignments : instrument.getSensorAssignments().values()) {
+      for (SensorAssignment assignment : assignments) {
+        if (assignment.getDataFile().equals(fileDefinition.getFileDescription())) {
+          columns.put(assignment.getColumn(), assignment.getMissingValue());
         }
       }
     }
 
-    return fileData;
+    return columns;
   }
 
   /**
@@ -206,459 +214,132 @@ public abstract class DataSetRawData {
   }
 
   /**
-   * Navigate to the next record in the data set.
+   * Get the next record in the data set.
    *
    * <p>
    *   This will collect all rows that are relevant under the averaging scheme
    *   for the data set.
    * </p>
    *
-   * @return {@code true} if a new record is discovered; {@code false} if there are no more records in the data set
+   * @return The next record, or {@code null} if there are no more records in the data set
    * @throws DataSetException If an error occurs during record selection
    * @throws DataFileException If any data cannot be extracted
    */
-  public DataSetRawDataRecord getNextRecord() throws DataSetException, DataFileException {
-
-    boolean found = false;
-
-    // If there is a previous selection, find the file with
-    // the smallest increment to the next row, and start searching from there. This
-    // ensures we maximise the number of records from the file.
-    //
-    // Only records from files with Run Types (i.e. those containing the base fundamental measurements)
-    // are checked, otherwise the same fundamental measurement will be used multiple times.
-    boolean begin = true;
-    int currentFile = 0;
-
-    try {
-      long smallestIncrement = Long.MAX_VALUE;
-      int smallestIncrementFile = 0;
-      for (int i = 0; i < fileDefinitions.size(); i++) {
-        if (fileDefinitions.get(i).hasRunTypes()) {
-          int currentRow = linePositions.get(i);
-
-          if (currentRow != NOT_STARTED_VALUE && currentRow + 1 < getFileSize(i)) {
-            DataFileLine currentLine = getLine(i, currentRow);
-            DataFileLine nextLine = getLine(i, currentRow + 1);
-
-            long increment = ChronoUnit.SECONDS.between(currentLine.getDate(), nextLine.getDate());
-            if (increment < smallestIncrement) {
-              smallestIncrement = increment;
-              smallestIncrementFile = i;
-            }
-          }
-        }
-      }
-
-      currentFile = smallestIncrementFile;
-    } catch (Exception e) {
-      throw new DataSetException(e);
-    }
-
-    while (begin || !allRowsMatch()) {
-
-      if (!selectNextRow(currentFile)) {
-        // We've gone off the end of this file, so we can't select a record
-        // across all files
-        break;
-      } else {
-        // If the rows aren't equal, then reset and continue from here
-        if (!selectedRowsMatch(currentFile)) {
-          resetOtherFiles(currentFile);
-        }
-
-        // Select the next file
-        currentFile++;
-        if (currentFile == fileDefinitions.size()) {
-          currentFile = 0;
-        }
-      }
-
-      begin = false;
-    }
-
-    if (allRowsMatch()) {
-      found = true;
-    }
-
-    DataSetRawDataRecord record = null;
-    if (found) {
-      record = createRecord();
-    }
-
-    return record;
-  }
-
-  /**
-   * Determine whether or not matching lines have been found
-   * for all files in the data set
-   * @return {@code true} if all files have matching lines; {@code false} otherwise
-   */
-  private boolean allRowsMatch() throws DataSetException {
-    boolean match = true;
-
-    for (int i = 0; match && i < selectedRows.size(); i++) {
-      if (null == selectedRows.get(i)) {
-        match = false;
-      }
-    }
-
-    if (match) {
-      match = selectedRowsMatch(0);
-    }
-
-    return match;
-  }
+  public abstract DataSetRawDataRecord getNextRecord() throws DataSetException, DataFileException;
 
   /**
-   * Clear the selected rows from all files except the specified one
-   * @param file The source file that should not be cleared
-   */
-  private void resetOtherFiles(int file) {
-    for (int i = 0; i < selectedRows.size(); i++) {
-      if (i != file) {
-        selectedRows.set(i, null);
-      }
-    }
-  }
-
-  /**
-   * Determine whether all the files that have selected rows
-   * match the selected rows in the specified file. Files that
-   * do not have rows assigned are not checked.
+   * Select the next set of matching lines from the file definitions.
    *
-   * @param file The file to compare
-   * @return {@code true} if the all the assigned files match; {@code false} otherwise
-   * @throws DataSetException If an error occurs during the checks
-   */
-  private boolean selectedRowsMatch(int file) throws DataSetException {
-    boolean match = true;
-
-    for (int i = 0; match && i < selectedRows.size(); i++) {
-      if (i != file) {
-        match = lineSelectionsMatch(file, i);
-      }
-    }
-
-    return match;
-  }
-
-  /**
-   * Compare the selected rows for two files to see if they match
-   * @param file1 The first file
-   * @param file2 The second file
-   * @return {@code true} if the selected rows match; {@code false} if they do not
-   * @throws DataSetException If an error occurs during the examination
-   */
-  protected abstract boolean lineSelectionsMatch(int file1, int file2) throws DataSetException;
-
-  /**
-   * Select the next row(s) in the specified file
-   * @param fileIndex The file index
-   * @return {@code true} if the next row is found; {@code false} if the end of the file has been reached
-   * @throws DataSetException If an error occurs during row selection
-   */
-  protected abstract boolean selectNextRow(int fileIndex) throws DataSetException;
-
-  /**
-   * Get a selected line from a file other than the specified file.
-   *
-   * The file from which the line is taken is not defined. If no other
-   * files have selected lines, the method returns {@code null}.
-   * @return A selected line from another file
-   */
-  protected DataFileLine getOtherSelectedLine(int fileIndex) {
-
-    DataFileLine line = null;
-
-    for (int i = 0; i < selectedRows.size(); i++) {
-      if (i != fileIndex) {
-        List<Integer> lines = selectedRows.get(i);
-        if (null != lines) {
-          line = getLine(i, lines.get(0));
-          break;
-        }
-      }
-    }
-
-    return line;
-  }
-
-  /**
-   * Reset the line processing back to the start of the files
-   */
-  public void reset() {
-    selectedRows = new ArrayList<List<Integer>>(fileDefinitions.size());
-    linePositions = new ArrayList<Integer>(fileDefinitions.size());
-
-    for (int i = 0; i < fileDefinitions.size(); i++) {
-      selectedRows.add(null);
-      linePositions.add(NOT_STARTED_VALUE);
-    }
-  }
-
-  /**
-   * Find the next usable line in the specified file, starting at the stored line position
-   * for that file. See {@link #getNextLine(int, int)} for full details.
-
-   * @param fileIndex The file whose next line is to be located
-   * @return The next line index
-   * @throws FileDefinitionException If the Run Types for the file are invalid
-   * @throws DataFileException If data cannot be extracted from the data lines
-   * @see #getNextLine(int, int)
-   */
-  protected int getNextLine(int fileIndex) throws DataFileException, FileDefinitionException {
-    return getNextLine(fileIndex, linePositions.get(fileIndex));
-  }
-
-  /**
-   * Find the next usable line in the specified file, starting at the specified line.
+   * <p>
+   *   Each cursor is moved past its previously selected line. The cursor
+   *   with the earliest line is then advanced until all the cursors' lines
+   *   are within {@link #MAX_DIFFERENCE} seconds of each other. Finally, each
+   *   cursor other than the core file's cursor is moved to its line closest
+   *   in time to the core file's line. Each line is therefore used at most once.
+   * </p>
    *
    * <p>
-   *   For files with Run Types, the method skips ignored run types and lines
-   *   within the pre- and post- flushing times of the instrument. For files
-   *   without Run Types, every line is returned.
+   *   The selected lines can be retrieved using {@link #getSelectedLine(int)}.
    * </p>
    *
-   * @param fileIndex The file whose next line is to be located
-   * @param startLine The starting point for the search
-   * @return The next line index
-   * @throws FileDefinitionException If the Run Types for the file are invalid
-   * @throws DataFileException If data cannot be extracted from the data lines
+   * @return {@code true} if a matching set of lines is found; {@code false} if the end of the data has been reached
+   * @throws DataSetException If an error occurs during line selection
    */
-  protected int getNextLine(int fileIndex, int startLine) throws DataFileException, FileDefinitionException {
-
-    // TODO This could probably be better written as a state machine
-
-    // TODO Validate date, longitude, latitude for each line. If invalid, record in the data set and move on.
-
-    ExtendedMutableInt result = EOF;
-    boolean finished = false;
-
-    int fileLastLine = getFileSize(fileIndex) - 1;
-
-    FileDefinition fileDefinition = fileDefinitions.get(fileIndex);
-    ExtendedMutableInt currentLineIndex = new ExtendedMutableInt(startLine);
+  protected boolean selectNextLines() throws DataSetException {
 
-    // If the file does not have Run Types, return the next line
-    if (!fileDefinition.hasRunTypes()) {
-
-      if (currentLineIndex.equals(NOT_STARTED)) {
-        result = new ExtendedMutableInt(0);
-      } else {
-        result = currentLineIndex.incrementedClone();
-        if (result.greaterThan(fileLastLine)) {
-          result = EOF;
+    try {
+      if (!finished) {
+        // Move all cursors on from the previous selection
+        cursorQueue.clear();
+        long latestTime = Long.MIN_VALUE;
+
+        for (int i = 0; !finished && i < cursors.size(); i++) {
+          DataSetFileCursor cursor = cursors.get(i);
+          if (!cursor.next()) {
+            finished = true;
+          } else {
+            cursorQueue.add(cursor);
+            latestTime = Math.max(latestTime, cursor.getTime());
+          }
         }
-      }
-      finished = true;
-    } else {
-      // Get the Run Type of the current line
-      RunTypeCategory currentRunType = null;
-      if (!currentLineIndex.equals(NOT_STARTED)) {
-        currentRunType = getLine(fileIndex, currentLineIndex).getRunTypeCategory();
-      }
 
-      // Get the next line index
-      ExtendedMutableInt nextLineIndex;
-      if (currentLineIndex.equals(NOT_STARTED)) {
-        nextLineIndex = new ExtendedMutableInt(0);
-      } else {
-        nextLineIndex = currentLineIndex.incrementedClone();
-      }
-
-      if (nextLineIndex.greaterThan(fileLastLine)) {
-        result = EOF;
-        finished = true;
-      } else {
-        String nextRunType = getLine(fileIndex, nextLineIndex).getRunType();
-
-        if (nextRunType.equals(currentRunType)) {
-          // Check to see if we're in the post-flushing period
-          // If we aren't, we have found the next line
-          // If we are, the method will skip us ahead to the next
-          // line with a different Run Type, and we can continue from there
-          // in the next if block below
-          if (!inPostFlushingPeriod(fileIndex, nextRunType, nextLineIndex)) {
-            result = nextLineIndex;
+        // Advance the earliest cursor until all lines are within the limit
+        while (!finished && DateTimeUtils.secondsBetween(cursorQueue.peek().getTime(), latestTime) > MAX_DIFFERENCE) {
+          DataSetFileCursor earliest = cursorQueue.poll();
+          if (!earliest.next()) {
             finished = true;
+          } else {
+            cursorQueue.add(earliest);
+            latestTime = Math.max(latestTime, earliest.getTime());
           }
         }
 
         if (!finished) {
+          long coreTime = cursors.get(coreFileIndex).getTime();
 
-          // Get the new Run Type
-          nextRunType = getLine(fileIndex, nextLineIndex).getRunType();
-
-          // We're in a new Run Type. Skip any Ignored lines
-          while (!finished && getLine(fileIndex, nextLineIndex).isIgnored()) {
-            nextLineIndex.increment();
-            if (nextLineIndex.greaterThan(fileLastLine)) {
-              result = EOF;
-              finished = true;
-            }
-          }
-
-          // Assuming we didn't fall off the end of the file...
-          if (!finished) {
-            String newRunType = getLine(fileIndex, nextLineIndex).getRunType();
-
-            // We are at the start of a new run type. Skip over the pre-flushing stage
-            boolean preFlushingTimeProcessed = false;
-
-            while (!preFlushingTimeProcessed) {
-              if (skipPreFlushingTime(fileIndex, newRunType, nextLineIndex)) {
-                result = nextLineIndex;
-                finished = true;
-                preFlushingTimeProcessed = true;
-              } else {
-                while (getLine(fileIndex, nextLineIndex).isIgnored()) {
-                  nextLineIndex.increment();
-                  if (nextLineIndex.greaterThan(getFileSize(fileIndex))) {
-                    result = EOF;
-                    finished = true;
-                    preFlushingTimeProcessed = true;
-                  }
-                }
-
-                newRunType = getLine(fileIndex, nextLineIndex).getRunType();
+          for (int i = 0; i < cursors.size(); i++) {
+            if (i != coreFileIndex) {
+              DataSetFileCursor cursor = cursors.get(i);
+              while (cursor.hasNext() && isCloser(cursor.getNextTime(), cursor.getTime(), coreTime)) {
+                cursor.next();
               }
             }
           }
         }
       }
+    } catch (Exception e) {
+      throw new DataSetException(e);
     }
 
-    return result.getValue();
+    return !finished;
   }
 
   /**
-   * Determine whether or not the specified line is within the post-flushing period for the instrument
-   * @param fileIndex The file
-   * @param runType The current Run Type
-   * @param line The line being examined
-   * @return {@code true} if the line is within the post-flushing period; {@code false} if it is not
-   * @throws DataFileException If the line data cannot be processed
-   * @throws FileDefinitionException If an invalid Run Type is detected
+   * Determine whether a line is at least as close to a target time as the current line.
+   * Lines before the target are always preferred over earlier lines.
+   * @param lineTime The line time
+   * @param currentTime The current line time
+   * @param targetTime The target time
+   * @return {@code true} if the line is closer to the target time; {@code false} if it is not
    */
-  private boolean inPostFlushingPeriod(int fileIndex, String runType, ExtendedMutableInt line) throws DataFileException, FileDefinitionException {
-
-    boolean inPostFlushing = false;
-
-    if (instrument.getPostFlushingTime() == 0) {
-      inPostFlushing = false;
-    } else {
-
-      LocalDateTime lineDate = getLine(fileIndex, line).getDate();
-
-      boolean finished = false;
-      int previousLineIndex = line.getValue();
-      LocalDateTime previousDate = lineDate;
-
-      while (!finished) {
-
-        int nextLineIndex = previousLineIndex + 1;
-        if (nextLineIndex > getFileSize(fileIndex)) {
-          inPostFlushing = (DateTimeUtils.secondsBetween(lineDate, previousDate) <= instrument.getPostFlushingTime());
-          finished = true;
-        } else {
-          DataFileLine nextLine = getLine(fileIndex, nextLineIndex);
-          LocalDateTime nextDate = nextLine.getDate();
-
-          if (!nextLine.getRunType().equals(runType)) {
-            inPostFlushing = (DateTimeUtils.secondsBetween(lineDate, previousDate) <= instrument.getPostFlushingTime());
-            finished = true;
-          } else if (DateTimeUtils.secondsBetween(lineDate, nextDate) > instrument.getPostFlushingTime()) {
-            inPostFlushing = false;
-            finished = true;
-          } else {
-            previousLineIndex = nextLineIndex;
-            previousDate = nextDate;
-          }
-        }
-      }
-    }
-
-    return inPostFlushing;
+  private boolean isCloser(long lineTime, long currentTime, long targetTime) {
+    return lineTime <= targetTime || Math.abs(lineTime - targetTime) < Math.abs(currentTime - targetTime);
   }
 
   /**
-   * Skip the pre-flushing period for the current run type.
-   *
-   * <p>
-   *   After the method is run, {@code firstLine} will point to the first record
-   *   after the flushing period, i.e. the first line that can be used. If the Run
-   *   Type changes before the pre-flushing time expires, {@code firstLine} will point
-   *   to the first line of the new Run Type.
-   * </p>
-   *
-   * <p>
-   *   This method assumes that the passed in index is the first line of that
-   *   run type.
-   * </p>
-   *
-   * @param fileIndex The file being processed
-   * @param runType The run type being processed
-   * @param lineIndex The index of the first line in the run type.
-   * @throws DataFileException If the file data cannot be processed
-   * @return {@code true} if the flushing time expires before the Run Type changes; {@code false} if a new Run Type is encountered
-   * @throws FileDefinitionException If an invalid Run Type is found
-   */
-  private boolean skipPreFlushingTime(int fileIndex, String runType, ExtendedMutableInt lineIndex) throws DataFileException, FileDefinitionException {
-
-    boolean withinRunType = true;
-
-    if (instrument.getPreFlushingTime() > 0) {
-      LocalDateTime lastTime = getLine(fileIndex, lineIndex).getDate();
-
-      lineIndex.increment();
-      LocalDateTime currentTime = getLine(fileIndex, lineIndex).getDate();
-      while (DateTimeUtils.secondsBetween(lastTime, currentTime) < instrument.getPreFlushingTime()) {
-        lineIndex.increment();
-        if (lineIndex.greaterThan(getFileSize(fileIndex))) {
-          lineIndex.setValue(EOF.getValue());
-          break;
-        } else {
-          DataFileLine newLine = getLine(fileIndex, lineIndex);
-          currentTime = newLine.getDate();
-          if (!newLine.getRunType().equals(runType)) {
-            withinRunType = false;
-            break;
-          }
-        }
-      }
-    }
-
-    return withinRunType;
+   * Get the currently selected line for a file definition
+   * @param fileIndex The file definition index
+   * @return The selected line
+   */
+  protected DataFileLine getSelectedLine(int fileIndex) {
+    return cursors.get(fileIndex).getLine();
   }
 
   /**
-   * Convenience method to get a line from a file
-   * @param fileIndex The file
-   * @param line The line index
-   * @return The line
+   * Get the currently selected line of the core file definition,
+   * which gives the time and Run Type of each record
+   * @return The selected core line
    */
-  protected DataFileLine getLine(int fileIndex, int line) {
-    return data.get(fileIndex).get(line);
+  protected DataFileLine getCoreLine() {
+    return getSelectedLine(coreFileIndex);
   }
 
   /**
-   * Convenience method to get a line from a file
-   * @param fileIndex The file
-   * @param line The line index
-   * @return The line
+   * Get the time of the currently selected line of the core file definition,
+   * in UTC milliseconds
+   * @return The core line time
    */
-  protected DataFileLine getLine(int fileIndex, MutableInt line) {
-    return getLine(fileIndex, line.getValue());
+  protected long getCoreTime() {
+    return cursors.get(coreFileIndex).getTime();
   }
 
   /**
-   * Convenience method to get number of lines in a file
-   * @param fileIndex The file
-   * @return The file's size
+   * Get the currently selected line of the file definition
+   * containing position data
+   * @return The selected position line
    */
-  protected int getFileSize(int fileIndex) {
-    return data.get(fileIndex).size();
+  protected DataFileLine getPositionLine() {
+    return getSelectedLine(positionFileIndex);
   }
 
   /**
@@ -666,55 +347,19 @@ public abstract class DataSetRawData {
    * @return The new record
    * @throws DataFileException If data cannot be extracted
    */
-  private DataSetRawDataRecord createRecord() throws DataFileException {
+  protected DataSetRawDataRecord createRecord() throws DataFileException {
 
     DataSetRawDataRecord record;
 
     try {
-      record = new DataSetRawDataRecord(dataSet, getSelectedTime(), getSelectedLongitude(), getSelectedLatitude(), getSelectedRunType(), getSelectedRunTypeCategory());
-
-      for (Map.Entry<SensorType, Set<SensorAssignment>> entry : instrument.getSensorAssignments().entrySet()) {
-
-        SensorType sensorType = entry.getKey();
-        Set<SensorAssignment> assignments = entry.getValue();
-
-        if (sensorType.isUsedInCalculation()) {
-
-          double primarySensorTotal = 0.0;
-          int primarySensorCount = 0;
+      DataFileLine coreLine = getCoreLine();
+      DataFileLine positionLine = getPositionLine();
 
-          double fallbackSensorTotal = 0.0;
-          int fallbackSensorCount = 0;
+      record = new DataSetRawDataRecord(dataSet, coreLine.getDate(), positionLine.getLongitude(), positionLine.getLatitude(), coreLine.getRunType(), coreLine.getRunTypeCategory());
 
-          for (SensorAssignment assignment : assignments) {
-            Double sensorValue = getSensorValue(assignment);
-            if (null != sensorValue) {
-              if (assignment.isPrimary()) {
-                primarySensorTotal += sensorValue;
-                primarySensorCount++;
-              } else {
-                fallbackSensorTotal+= sensorValue;
-                fallbackSensorCount++;
-              }
-            }
-          }
-
-          Double finalSensorValue = null;
-
-          if (primarySensorCount > 0) {
-            finalSensorValue = new Double(primarySensorTotal / primarySensorCount);
-          } else if (fallbackSensorCount > 0) {
-            finalSensorValue = new Double(fallbackSensorTotal / fallbackSensorCount);
-          }
-
-          record.setSensorValue(sensorType.getName(), finalSensorValue);
-        } else {
-          for (SensorAssignment assignment : assignments) {
-            record.setDiagnosticValue(assignment.getDatabaseId(), getSensorValue(assignment));
-          }
-        }
-
-      }
+      recordValues.clear();
+      recordValues.addValues(this);
+      recordValues.setRecordValues(record);
     } catch (Exception e) {
       throw new DataFileException(e);
     }
@@ -722,53 +367,6 @@ public abstract class DataSetRawData {
     return record;
   }
 
-  /**
-   * Get the date/time for the currently selected line(s)
-   * @return The date/time
-   * @throws DataFileException If the date/time cannot be extracted
-   */
-  protected abstract LocalDateTime getSelectedTime() throws DataFileException;
-
-  /**
-   * Get the longitude for the currently selected line(s)
-   * @return The longitude
-   * @throws DataFileException If the file contents cannot be extracted
-   * @throws PositionException If the latitude is invalid
-   */
-  protected abstract double getSelectedLongitude() throws DataFileException, PositionException;
-
-  /**
-   * Get the latitude for the currently selected line(s)
-   * @return The latitude
-   * @throws DataFileException If the file contents cannot be extracted
-   * @throws PositionException If the latitude is invalid
-   */
-  protected abstract double getSelectedLatitude() throws DataFileException, PositionException;
-
-  /**
-   * Get the Run Type of the currently selected row(s)
-   * @return The Run Type
-   * @throws DataFileException If the run type cannot be extracted
-   * @throws FileDefinitionException If the run type is invalid
-   */
-  private String getSelectedRunType() throws DataFileException, FileDefinitionException {
-    int fileIndex = getCoreFileIndex();
-    int currentRow = selectedRows.get(fileIndex).get(0);
-    return data.get(fileIndex).get(currentRow).getRunType();
-  }
-
-  /**
-   * Get the Run Type Category of the currently selected row(s)
-   * @return The Run Type Category
-   * @throws DataFileException If the run type cannot be extracted
-   * @throws FileDefinitionException If the run type is invalid
-   */
-  private RunTypeCategory getSelectedRunTypeCategory() throws DataFileException, FileDefinitionException {
-    int fileIndex = getCoreFileIndex();
-    int currentRow = selectedRows.get(fileIndex).get(0);
-    return data.get(fileIndex).get(currentRow).getRunTypeCategory();
-  }
-
   /**
    * Get the primary file definition that will be used as the basis for times
    * and positions in extracted data. This is the first definition that contains
@@ -779,8 +377,8 @@ public abstract class DataSetRawData {
   protected int getCoreFileIndex() {
     int result = -1;
 
-    for (int i = 0; i < fileDefinitions.size(); i++) {
-      if (fileDefinitions.get(i).hasRunTypes()) {
+    for (int i = 0; i < cursors.size(); i++) {
+      if (cursors.get(i).getFileDefinition().hasRunTypes()) {
         result = i;
         break;
       }
@@ -796,8 +394,8 @@ public abstract class DataSetRawData {
   protected int getPositionFileIndex() {
     int result = -1;
 
-    for (int i = 0; i < fileDefinitions.size(); i++) {
-      if (null != fileDefinitions.get(i).getLatitudeSpecification()) {
+    for (int i = 0; i < cursors.size(); i++) {
+      if (null != cursors.get(i).getFileDefinition().getLatitudeSpecification()) {
         result = i;
         break;
       }
@@ -807,10 +405,8 @@ public abstract class DataSetRawData {
   }
 
   /**
-   * Calculate the sensor value for a particular sensor assignment.
-   *
-   * This will be calculated from all the currently selected lines,
-   * with missing values ignored as needed
+   * Get the sensor value for a particular sensor assignment
+   * from the currently selected lines, calibrated if required.
    *
    * @param assignment The sensor assignment
    * @return The sensor value
@@ -818,42 +414,27 @@ public abstract class DataSetRawData {
    */
   public Double getSensorValue(SensorAssignment assignment) throws DataFileException {
 
-    int fileIndex = getFileDefinition(assignment.getDataFile());
-    List<Integer> rows = selectedRows.get(fileIndex);
-
-    List<Double> rowValues = new ArrayList<Double>();
-    for (int row : rows) {
-      DataFileLine line = data.get(fileIndex).get(row);
-      Double rawValue = line.getFieldValue(assignment.getColumn(), assignment.getMissingValue());
-      if (assignment.getPostCalibrated()
-          && calibrationSet.containsTarget(assignment.getTarget())) {
-        rawValue = calibrationSet.getTargetCalibration(assignment.getTarget())
-            .calibrateValue(rawValue);
-      }
-      rowValues.add(rawValue);
+    DataFileLine line = getSelectedLine(getFileDefinition(assignment.getDataFile()));
+    Double value = line.getFieldValue(assignment.getColumn(), assignment.getMissingValue());
+    if (assignment.getPostCalibrated()
+        && calibrationSet.containsTarget(assignment.getTarget())) {
+      value = calibrationSet.getTargetCalibration(assignment.getTarget())
+          .calibrateValue(value);
     }
 
-    return calculateValue(rowValues);
+    return value;
   }
 
-  /**
-   * Calculate the final value from a set of values extracted from
-   * the currently selected rows.
-   * @param rowValues The row values
-   * @return The final calculated value
-   */
-  protected abstract Double calculateValue(List<Double> rowValues);
-
   /**
    * Get the index of the file definition with the specified name
    * @param fileName The file definition name
    * @return The file definition index
    */
-  private int getFileDefinition(String fileName) {
+  protected int getFileDefinition(String fileName) {
     int result = -1;
 
-    for (int i = 0; i < fileDefinitions.size(); i++) {
-      if (fileDefinitions.get(i).getFileDescription().equals(fileName)) {
+    for (int i = 0; i < cursors.size(); i++) {
+      if (cursors.get(i).getFileDefinition().getFileDescription().equals(fileName)) {
         result = i;
         break;
       }
@@ -862,6 +443,21 @@ public abstract class DataSetRawData {
     return result;
   }
 
+  /**
+   * Get the data set to which this data belongs
+   * @return The data set
+   */
+  protected DataSet getDataSet() {
+    return dataSet;
+  }
+
+  /**
+   * Get the instrument to which the data set belongs
+   * @return The instrument
+   */
+  protected Instrument getInstrument() {
+    return instrument;
+  }
 
   /**
    * Set the calibration set for this data set. The calibration set is used when
@@ -1,5 +1,7 @@
 package uk.ac.exeter.QuinCe.data.Dataset;
 
+import java.time.LocalDateTime;
+
 import javax.sql.DataSource;
 
 import uk.ac.exeter.QuinCe.data.Files.DataFileException;
@@ -28,21 +30,43 @@ public class DataSetRawDataFactory {
    * @throws DataSetException If a suitable object cannot be created
    */
   public static DataSetRawData getDataSetRawData(DataSource dataSource, DataSet dataSet, Instrument instrument) throws MissingParamException, DatabaseException, RecordNotFoundException, DataFileException, DataSetException {
+    MissingParam.checkMissing(dataSet, "dataSet");
+    return getDataSetRawData(dataSource, dataSet, instrument, dataSet.getStart());
+  }
+
+  /**
+   * Construct a {@link DataSetRawData} object suitable for the averaging
+   * mode of the supplied instrument, that reads the data set's raw data
+   * from the specified time
+   * @param dataSource A data source
+   * @param dataSet The data set whose raw data is to be processed
+   * @param instrument The instrument to which the data set belongs
+   * @param readFrom The time from which records are to be read
+   * @return The {@link DataSetRawData} object
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If no data files are found within the data set
+   * @throws DataFileException If the data cannot be extracted from the files
+   * @throws DataSetException If a suitable object cannot be created
+   */
+  public static DataSetRawData getDataSetRawData(DataSource dataSource, DataSet dataSet, Instrument instrument, LocalDateTime readFrom) throws MissingParamException, DatabaseException, RecordNotFoundException, DataFileException, DataSetException {
 
     MissingParam.checkMissing(dataSource, "dataSource");
     MissingParam.checkMissing(dataSet, "dataSet");
     MissingParam.checkMissing(instrument, "Instrument");
+    MissingParam.checkMissing(readFrom, "readFrom");
 
 
     DataSetRawData result = null;
 
     switch (instrument.getAveragingMode()) {
     case DataSetRawData.AVG_MODE_NONE: {
-      result = new NoAverageDataSetRawData(dataSource, dataSet, instrument);
+      result = new NoAverageDataSetRawData(dataSource, dataSet, instrument, readFrom);
       break;
     }
     case DataSetRawData.AVG_MODE_MINUTE: {
-      throw new DataSetException("Minute averager hasn't been written yet!");
+      result = new MinuteAverageDataSetRawData(dataSource, dataSet, instrument, readFrom);
+      break;
     }
     default: {
       throw new DataSetException("Unrecognised averaging mode " + instrument.getAveragingMode());
@@ -158,6 +158,14 @@ public class DataSetRawDataRecord implements Comparable<DataSetRawDataRecord> {
     return id;
   }
 
+  /**
+   * Set the database ID of the record once it has been stored
+   * @param id The record ID
+   */
+  protected void setId(long id) {
+    this.id = id;
+  }
+
   /**
    * Get the database ID of the dataset to which this record
    * belongs
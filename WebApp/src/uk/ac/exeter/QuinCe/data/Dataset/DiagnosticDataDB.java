@@ -7,6 +7,7 @@ import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -62,20 +63,9 @@ public class DiagnosticDataDB {
     PreparedStatement diagnosticStatement = null;
 
     try {
-      diagnosticStatement = conn.prepareStatement(STORE_DIAGNOSTIC_VALUE_STATEMENT);
-
-      for (Map.Entry<Long, Double> entry : diagnosticValues.entrySet()) {
-        diagnosticStatement.setLong(1, measurementId);
-        diagnosticStatement.setLong(2, entry.getKey());
-
-        if (null == entry.getValue()) {
-          diagnosticStatement.setNull(3, Types.DOUBLE);
-        } else {
-          diagnosticStatement.setDouble(3, entry.getValue());
-        }
-
-        diagnosticStatement.execute();
-      }
+      diagnosticStatement = createStoreDiagnosticValuesStatement(conn);
+      addDiagnosticValues(diagnosticStatement, measurementId, diagnosticValues);
+      diagnosticStatement.executeBatch();
     } catch (SQLException e) {
       throw new DatabaseException("Error while storing diagnostic values", e);
     } finally {
@@ -83,6 +73,41 @@ public class DiagnosticDataDB {
     }
   }
 
+  /**
+   * Create a statement for storing diagnostic values using
+   * {@link #addDiagnosticValues(PreparedStatement, long, Map)}
+   * @param conn A database connection
+   * @return The statement
+   * @throws SQLException If the statement cannot be created
+   */
+  protected static PreparedStatement createStoreDiagnosticValuesStatement(Connection conn) throws SQLException {
+    return conn.prepareStatement(STORE_DIAGNOSTIC_VALUE_STATEMENT);
+  }
+
+  /**
+   * Add a set of diagnostic values for a measurement to the batch of
+   * a statement created by {@link #createStoreDiagnosticValuesStatement(Connection)}.
+   * The batch must be executed by the caller.
+   * @param diagnosticStatement The statement
+   * @param measurementId The database ID of the measurement to which the values belong
+   * @param diagnosticValues The diagnostic values
+   * @throws SQLException If the values cannot be added to the batch
+   */
+  protected static void addDiagnosticValues(PreparedStatement diagnosticStatement, long measurementId, Map<Long, Double> diagnosticValues) throws SQLException {
+    for (Map.Entry<Long, Double> entry : diagnosticValues.entrySet()) {
+      diagnosticStatement.setLong(1, measurementId);
+      diagnosticStatement.setLong(2, entry.getKey());
+
+      if (null == entry.getValue()) {
+        diagnosticStatement.setNull(3, Types.DOUBLE);
+      } else {
+        diagnosticStatement.setDouble(3, entry.getValue());
+      }
+
+      diagnosticStatement.addBatch();
+    }
+  }
+
   /**
    * Add the diagnostic variables to the list of variables
    * for a data set
@@ -337,6 +362,33 @@ public class DiagnosticDataDB {
     return result;
   }
 
+  /**
+   * Get the diagnostic sensors for a given instrument with their database IDs,
+   * in the same order as {@link #getDiagnosticSensorNames(DataSource, long)}
+   * @param dataSource A data source
+   * @param instrumentId The instrument's database ID
+   * @return The diagnostic sensor names, indexed by database ID
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static Map<Long, String> getDiagnosticSensors(DataSource dataSource, long instrumentId) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(dataSource, "dataSource");
+
+    Connection conn = null;
+    Map<Long, String> result = null;
+
+    try {
+      conn = dataSource.getConnection();
+      result = getDiagnosticSensorIdMap(conn, instrumentId);
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while retrieving diagnostic data", e);
+    } finally {
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    return result;
+  }
+
   /**
    * Get the list of diagnostic sensors for a given instrument
    * @param conn A database connection
@@ -413,7 +465,7 @@ public class DiagnosticDataDB {
     MissingParam.checkMissing(conn, "conn");
     MissingParam.checkZeroPositive(instrumentId, "instrumentId");
 
-    Map<Long, String> result = new HashMap<Long, String>();
+    Map<Long, String> result = new LinkedHashMap<Long, String>();
 
     PreparedStatement stmt = null;
     ResultSet records = null;
@@ -0,0 +1,511 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.primefaces.json.JSONArray;
+import org.primefaces.json.JSONObject;
+
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParam;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+
+/**
+ * Class for handling the aggregated map tiles of a data set,
+ * stored in the {@code map_tile} table.
+ *
+ * <p>
+ *   The world is divided into a quadtree of equal-angle tiles. At zoom level
+ *   {@code z} there are {@code 2^z} tiles in each direction, numbered from
+ *   {@code (-180, -90)}. For each sensor and calculated field of a data set,
+ *   every tile containing measurements holds the number of values, their
+ *   minimum, maximum and mean, the mean position of the measurements, and
+ *   the first measurement in the tile.
+ * </p>
+ *
+ * <p>
+ *   The tiles are built once the data reduction for a data set is complete.
+ *   The map then reads the tiles for the zoom level that suits its view
+ *   instead of reading every measurement in the area it is showing. If the
+ *   view is zoomed in beyond {@link #MAX_ZOOM}, the measurements are shown
+ *   individually.
+ * </p>
+ *
+ * @author Steve Jones
+ */
+public class MapTileDB {
+
+  /**
+   * The most detailed zoom level for which tiles are built
+   */
+  public static final int MAX_ZOOM = 12;
+
+  /**
+   * Indicates that no zoom level is suitable for a map view
+   */
+  public static final int NO_ZOOM = -1;
+
+  /**
+   * The approximate size of a tile on screen, in pixels
+   */
+  private static final int TILE_PIXELS = 8;
+
+  /**
+   * The number of tiles stored in each database batch
+   */
+  private static final int BATCH_SIZE = 1000;
+
+  /**
+   * Statement to delete the tiles for a data set
+   */
+  private static final String DELETE_TILES_STATEMENT = "DELETE FROM map_tile WHERE dataset_id = ?";
+
+  /**
+   * Statement to store a tile
+   */
+  private static final String STORE_TILE_STATEMENT = "INSERT INTO map_tile "
+      + "(dataset_id, field, zoom, tile_x, tile_y, count, min, max, mean, longitude, latitude, measurement_id, date) "
+      + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  /**
+   * Query to determine whether tiles exist for a field of a data set
+   */
+  private static final String HAS_TILES_QUERY = "SELECT zoom FROM map_tile "
+      + "WHERE dataset_id = ? AND field = ? LIMIT 1";
+
+  /**
+   * Query to get the tiles in an area
+   */
+  private static final String GET_TILES_QUERY = "SELECT longitude, latitude, date, measurement_id, mean, count, min, max "
+      + "FROM map_tile WHERE dataset_id = ? AND field = ? AND zoom = ? "
+      + "AND tile_x BETWEEN ? AND ? AND tile_y BETWEEN ? AND ?";
+
+  /**
+   * Build the map tiles for a data set, replacing any existing tiles.
+   * The measurements are read in a single streamed query, and the tiles
+   * for all fields and zoom levels are calculated from it.
+   * @param conn A database connection
+   * @param calculationDB The calculation database handler
+   * @param dataSet The data set
+   * @return The number of tiles stored
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws RecordNotFoundException If the data set's instrument does not exist
+   * @throws InstrumentException If the instrument details cannot be retrieved
+   */
+  public static int buildTiles(Connection conn, CalculationDB calculationDB, DataSet dataSet) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(calculationDB, "calculationDB");
+    MissingParam.checkMissing(dataSet, "dataSet");
+
+    List<String> fields = new ArrayList<String>();
+    StringBuilder sql = new StringBuilder("SELECT d.id, d.date, d.longitude, d.latitude");
+
+    for (String field : DataSetDataDB.getSensorFields(conn, dataSet)) {
+      fields.add(field);
+      sql.append(", d.");
+      sql.append(field);
+    }
+
+    for (String field : calculationDB.getCalculatedValueFields()) {
+      fields.add(field);
+      sql.append(", c.");
+      sql.append(field);
+    }
+
+    sql.append(" FROM dataset_data d INNER JOIN ");
+    sql.append(calculationDB.getCalculationTable());
+    sql.append(" c ON d.id = c.measurement_id WHERE d.dataset_id = ? ORDER BY d.date ASC, d.id ASC");
+
+    // The tiles for each field, keyed by zoom level and position
+    List<Map<Long, Tile>> fieldTiles = new ArrayList<Map<Long, Tile>>(fields.size());
+    for (int i = 0; i < fields.size(); i++) {
+      fieldTiles.add(new HashMap<Long, Tile>());
+    }
+
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    try {
+      stmt = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      stmt.setLong(1, dataSet.getId());
+
+      records = stmt.executeQuery();
+
+      while (records.next()) {
+        long measurementId = records.getLong(1);
+        long date = records.getLong(2);
+        double longitude = records.getDouble(3);
+        boolean hasLongitude = !records.wasNull();
+        double latitude = records.getDouble(4);
+        boolean hasLatitude = !records.wasNull();
+
+        if (hasLongitude && hasLatitude && longitude != DataSetRawDataRecord.NO_POSITION
+            && latitude != DataSetRawDataRecord.NO_POSITION) {
+
+          for (int i = 0; i < fields.size(); i++) {
+            double value = records.getDouble(i + 5);
+            if (!records.wasNull() && !Double.isNaN(value)) {
+              for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+                long key = getTileKey(zoom, getTileX(zoom, longitude), getTileY(zoom, latitude));
+                Tile tile = fieldTiles.get(i).get(key);
+                if (null == tile) {
+                  tile = new Tile(measurementId, date);
+                  fieldTiles.get(i).put(key, tile);
+                }
+
+                tile.add(longitude, latitude, value);
+              }
+            }
+          }
+        }
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while reading data for map tiles", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return storeTiles(conn, dataSet, fields, fieldTiles);
+  }
+
+  /**
+   * Replace the stored tiles for a data set
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param fields The fields
+   * @param fieldTiles The tiles for each field, keyed by zoom level and position
+   * @return The number of tiles stored
+   * @throws DatabaseException If a database error occurs
+   */
+  private static int storeTiles(Connection conn, DataSet dataSet, List<String> fields, List<Map<Long, Tile>> fieldTiles) throws DatabaseException {
+
+    PreparedStatement deleteStmt = null;
+    PreparedStatement stmt = null;
+    int tileCount = 0;
+
+    try {
+      deleteStmt = conn.prepareStatement(DELETE_TILES_STATEMENT);
+      deleteStmt.setLong(1, dataSet.getId());
+      deleteStmt.execute();
+
+      stmt = conn.prepareStatement(STORE_TILE_STATEMENT);
+
+      for (int i = 0; i < fields.size(); i++) {
+        for (Map.Entry<Long, Tile> entry : fieldTiles.get(i).entrySet()) {
+          long key = entry.getKey();
+          Tile tile = entry.getValue();
+
+          stmt.setLong(1, dataSet.getId());
+          stmt.setString(2, fields.get(i));
+          stmt.setInt(3, (int) (key >> 48));
+          stmt.setInt(4, (int) ((key >> 24) & 0xFFFFFF));
+          stmt.setInt(5, (int) (key & 0xFFFFFF));
+          stmt.setInt(6, tile.count);
+          stmt.setDouble(7, tile.min);
+          stmt.setDouble(8, tile.max);
+          stmt.setDouble(9, tile.sum / tile.count);
+          stmt.setDouble(10, tile.longitudeSum / tile.count);
+          stmt.setDouble(11, tile.latitudeSum / tile.count);
+          stmt.setLong(12, tile.measurementId);
+          stmt.setLong(13, tile.date);
+          stmt.addBatch();
+
+          tileCount++;
+          if (tileCount % BATCH_SIZE == 0) {
+            stmt.executeBatch();
+          }
+        }
+      }
+
+      stmt.executeBatch();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while storing map tiles", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt, deleteStmt);
+    }
+
+    return tileCount;
+  }
+
+  /**
+   * Delete the map tiles for a data set
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static void deleteTiles(Connection conn, DataSet dataSet) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(dataSet, "dataSet");
+
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = conn.prepareStatement(DELETE_TILES_STATEMENT);
+      stmt.setLong(1, dataSet.getId());
+      stmt.execute();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while deleting map tiles", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+  }
+
+  /**
+   * Determine whether map tiles have been built for a field of a data set
+   * @param dataSource A data source
+   * @param dataSet The data set
+   * @param field The field
+   * @return {@code true} if tiles exist; {@code false} if they do not
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static boolean hasTiles(DataSource dataSource, DataSet dataSet, String field) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(field, "field");
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+    boolean result = false;
+
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(HAS_TILES_QUERY);
+      stmt.setLong(1, dataSet.getId());
+      stmt.setString(2, field);
+
+      records = stmt.executeQuery();
+      result = records.next();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while checking map tiles", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the map tiles for a field of a data set within the specified bounds
+   * as a JSON array. Each tile is an array in the same layout as the individual
+   * map points ({@code [longitude, latitude, date, id, flag, value]}), with
+   * the tile's mean position, first measurement and mean value, followed by
+   * the number of values and their minimum and maximum. The flag is {@code null}.
+   * @param dataSource A data source
+   * @param dataSet The data set
+   * @param field The field
+   * @param zoom The zoom level
+   * @param bounds The bounds of the map view ({@code [minx, miny, maxx, maxy]})
+   * @return The tiles
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static String getJsonTiles(DataSource dataSource, DataSet dataSet, String field, int zoom, List<Double> bounds) throws MissingParamException, DatabaseException {
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkMissing(dataSet, "dataSet");
+    MissingParam.checkMissing(field, "field");
+    MissingParam.checkZeroPositive(zoom, "zoom");
+    MissingParam.checkMissing(bounds, "bounds");
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    JSONArray json = new JSONArray();
+
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(GET_TILES_QUERY);
+      stmt.setLong(1, dataSet.getId());
+      stmt.setString(2, field);
+      stmt.setInt(3, zoom);
+      stmt.setInt(4, getTileX(zoom, bounds.get(0)));
+      stmt.setInt(5, getTileX(zoom, bounds.get(2)));
+      stmt.setInt(6, getTileY(zoom, bounds.get(1)));
+      stmt.setInt(7, getTileY(zoom, bounds.get(3)));
+
+      records = stmt.executeQuery();
+
+      while (records.next()) {
+        JSONArray tileJson = new JSONArray();
+        tileJson.put(records.getDouble(1));
+        tileJson.put(records.getDouble(2));
+        tileJson.put(records.getLong(3));
+        tileJson.put(records.getLong(4));
+        tileJson.put(JSONObject.NULL);
+        tileJson.put(records.getDouble(5));
+        tileJson.put(records.getInt(6));
+        tileJson.put(records.getDouble(7));
+        tileJson.put(records.getDouble(8));
+        json.put(tileJson);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while getting map tiles", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    return json.toString();
+  }
+
+  /**
+   * Get the zoom level whose tiles best suit a map view. Each tile will
+   * be roughly {@link #TILE_PIXELS} pixels wide on screen.
+   * @param bounds The bounds of the map view ({@code [minx, miny, maxx, maxy]})
+   * @param pixelWidth The width of the map view in pixels
+   * @return The zoom level, or {@link #NO_ZOOM} if the view is zoomed in
+   *         beyond {@link #MAX_ZOOM} or its size is not known
+   */
+  public static int getZoomLevel(List<Double> bounds, int pixelWidth) {
+    int result = NO_ZOOM;
+
+    if (null != bounds && bounds.size() >= 4 && pixelWidth > 0) {
+      double viewWidth = Math.min(bounds.get(2) - bounds.get(0), 360);
+      if (viewWidth > 0) {
+        double tilesAcross = (double) pixelWidth / TILE_PIXELS;
+        int zoom = (int) Math.ceil(Math.log(360 * tilesAcross / viewWidth) / Math.log(2));
+        zoom = Math.max(zoom, 0);
+        if (zoom <= MAX_ZOOM) {
+          result = zoom;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the horizontal position of the tile containing a longitude
+   * @param zoom The zoom level
+   * @param longitude The longitude
+   * @return The tile position
+   */
+  public static int getTileX(int zoom, double longitude) {
+    return getTilePosition(zoom, (longitude + 180) / 360);
+  }
+
+  /**
+   * Get the vertical position of the tile containing a latitude
+   * @param zoom The zoom level
+   * @param latitude The latitude
+   * @return The tile position
+   */
+  public static int getTileY(int zoom, double latitude) {
+    return getTilePosition(zoom, (latitude + 90) / 180);
+  }
+
+  /**
+   * Get the position of a tile from the fraction of the way across the world
+   * @param zoom The zoom level
+   * @param fraction The fraction of the way across the world
+   * @return The tile position
+   */
+  private static int getTilePosition(int zoom, double fraction) {
+    int tiles = 1 << zoom;
+    int position = (int) Math.floor(fraction * tiles);
+    return Math.max(0, Math.min(position, tiles - 1));
+  }
+
+  /**
+   * Combine a tile's zoom level and position into a single key
+   * @param zoom The zoom level
+   * @param x The horizontal position
+   * @param y The vertical position
+   * @return The key
+   */
+  private static long getTileKey(int zoom, int x, int y) {
+    return ((long) zoom << 48) | ((long) x << 24) | y;
+  }
+
+  /**
+   * The aggregated values for a tile while it is being built
+   */
+  private static class Tile {
+
+    /**
+     * The ID of the first measurement in the tile
+     */
+    private long measurementId;
+
+    /**
+     * The date of the first measurement in the tile
+     */
+    private long date;
+
+    /**
+     * The number of values
+     */
+    private int count = 0;
+
+    /**
+     * The smallest value
+     */
+    private double min = Double.MAX_VALUE;
+
+    /**
+     * The largest value
+     */
+    private double max = -Double.MAX_VALUE;
+
+    /**
+     * The sum of the values
+     */
+    private double sum = 0;
+
+    /**
+     * The sum of the longitudes
+     */
+    private double longitudeSum = 0;
+
+    /**
+     * The sum of the latitudes
+     */
+    private double latitudeSum = 0;
+
+    /**
+     * Create a tile
+     * @param measurementId The ID of the first measurement in the tile
+     * @param date The date of the first measurement in the tile
+     */
+    private Tile(long measurementId, long date) {
+      this.measurementId = measurementId;
+      this.date = date;
+    }
+
+    /**
+     * Add a value to the tile
+     * @param longitude The longitude of the value
+     * @param latitude The latitude of the value
+     * @param value The value
+     */
+    private void add(double longitude, double latitude, double value) {
+      count++;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sum += value;
+      longitudeSum += longitude;
+      latitudeSum += latitude;
+    }
+  }
+}
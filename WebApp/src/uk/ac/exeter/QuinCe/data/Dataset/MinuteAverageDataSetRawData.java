@@ -0,0 +1,177 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.time.LocalDateTime;
+
+import javax.sql.DataSource;
+
+import uk.ac.exeter.QuinCe.data.Files.DataFileException;
+import uk.ac.exeter.QuinCe.data.Files.DataFileLine;
+import uk.ac.exeter.QuinCe.data.Instrument.FileDefinitionException;
+import uk.ac.exeter.QuinCe.data.Instrument.Instrument;
+import uk.ac.exeter.QuinCe.data.Instrument.DataFormats.PositionException;
+import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeCategory;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+
+/**
+ * Instance of the {@link DataSetRawData} class for an instrument
+ * whose measurements are averaged every minute.
+ *
+ * <p>
+ *   Sets of matching lines are grouped into one-minute buckets, starting
+ *   on the minute. A new bucket is also started whenever the Run Type
+ *   changes. Only running totals of the sensor values are kept for the
+ *   current bucket, and one record is produced for each bucket. The record
+ *   has the time of the start of the minute, and the position of the first
+ *   line in the bucket.
+ * </p>
+ *
+ * @author Steve Jones
+ *
+ */
+public class MinuteAverageDataSetRawData extends DataSetRawData {
+
+  /**
+   * The length of each averaging bucket, in milliseconds
+   */
+  private static final long BUCKET_LENGTH = 60000;
+
+  /**
+   * The sensor value totals for the current bucket
+   */
+  private SensorValueTotals bucketValues;
+
+  /**
+   * Indicates whether a bucket is currently being filled
+   */
+  private boolean bucketOpen = false;
+
+  /**
+   * The start time of the current bucket, in UTC milliseconds
+   */
+  private long bucketStart;
+
+  /**
+   * The longitude of the current bucket
+   */
+  private double bucketLongitude;
+
+  /**
+   * The latitude of the current bucket
+   */
+  private double bucketLatitude;
+
+  /**
+   * The Run Type of the current bucket
+   */
+  private String bucketRunType;
+
+  /**
+   * The Run Type Category of the current bucket
+   */
+  private RunTypeCategory bucketRunTypeCategory;
+
+  /**
+   * Constructor for the parent {@link DataSetRawData} class
+   * @param dataSource A data source
+   * @param dataSet The data set
+   * @param instrument The instrument to which the data set belongs
+   * @throws RecordNotFoundException If no data files are found within the data set
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DataFileException If the data cannot be extracted from the files
+   */
+  public MinuteAverageDataSetRawData(DataSource dataSource, DataSet dataSet, Instrument instrument) throws MissingParamException, DatabaseException, RecordNotFoundException, DataFileException {
+    super(dataSource, dataSet, instrument);
+    bucketValues = new SensorValueTotals(instrument);
+  }
+
+  /**
+   * Constructor for the parent {@link DataSetRawData} class,
+   * reading from the specified time
+   * @param dataSource A data source
+   * @param dataSet The data set
+   * @param instrument The instrument to which the data set belongs
+   * @param readFrom The time from which records are to be read
+   * @throws RecordNotFoundException If no data files are found within the data set
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DataFileException If the data cannot be extracted from the files
+   */
+  public MinuteAverageDataSetRawData(DataSource dataSource, DataSet dataSet, Instrument instrument, LocalDateTime readFrom) throws MissingParamException, DatabaseException, RecordNotFoundException, DataFileException {
+    super(dataSource, dataSet, instrument, readFrom);
+    bucketValues = new SensorValueTotals(instrument);
+  }
+
+  @Override
+  public DataSetRawDataRecord getNextRecord() throws DataSetException, DataFileException {
+
+    DataSetRawDataRecord record = null;
+    boolean finished = false;
+
+    try {
+      while (null == record && !finished) {
+        if (!selectNextLines()) {
+          // Emit the last bucket
+          if (bucketOpen) {
+            record = closeBucket();
+          }
+          finished = true;
+        } else {
+          long lineBucket = getCoreTime() - Math.floorMod(getCoreTime(), BUCKET_LENGTH);
+          String runType = getCoreLine().getRunType();
+
+          if (bucketOpen && (lineBucket != bucketStart || !runType.equals(bucketRunType))) {
+            record = closeBucket();
+          }
+
+          if (!bucketOpen) {
+            openBucket(lineBucket);
+          }
+
+          bucketValues.addValues(this);
+        }
+      }
+    } catch (FileDefinitionException|PositionException e) {
+      throw new DataSetException(e);
+    }
+
+    return record;
+  }
+
+  /**
+   * Start a new bucket from the currently selected lines
+   * @param start The start time of the bucket
+   * @throws DataFileException If the line details cannot be extracted
+   * @throws FileDefinitionException If the Run Type is invalid
+   * @throws PositionException If the position is invalid
+   */
+  private void openBucket(long start) throws DataFileException, FileDefinitionException, PositionException {
+    DataFileLine coreLine = getCoreLine();
+    DataFileLine positionLine = getPositionLine();
+
+    bucketStart = start;
+    bucketRunType = coreLine.getRunType();
+    bucketRunTypeCategory = coreLine.getRunTypeCategory();
+    bucketLongitude = positionLine.getLongitude();
+    bucketLatitude = positionLine.getLatitude();
+    bucketValues.clear();
+    bucketOpen = true;
+  }
+
+  /**
+   * Create the record for the current bucket, and close the bucket
+   * @return The record
+   */
+  private DataSetRawDataRecord closeBucket() {
+    DataSetRawDataRecord record = new DataSetRawDataRecord(getDataSet(), DateTimeUtils.longToDate(bucketStart),
+        bucketLongitude, bucketLatitude, bucketRunType, bucketRunTypeCategory);
+
+    bucketValues.setRecordValues(record);
+    bucketOpen = false;
+
+    return record;
+  }
+}
@@ -0,0 +1,149 @@
+package uk.ac.exeter.QuinCe.data.Dataset;
+
+import java.util.Map;
+import java.util.Set;
+
+import uk.ac.exeter.QuinCe.data.Files.DataFileException;
+import uk.ac.exeter.QuinCe.data.Instrument.Instrument;
+import uk.ac.exeter.QuinCe.data.Instrument.SensorDefinition.SensorAssignment;
+import uk.ac.exeter.QuinCe.data.Instrument.SensorDefinition.SensorType;
+
+/**
+ * Running totals of the sensor values for an instrument, used to
+ * build the sensor values of a {@link DataSetRawDataRecord} from one
+ * or more sets of selected lines.
+ *
+ * <p>
+ *   For sensor types used in calculations, the final value is the mean
+ *   of all the primary sensor values. If there are no primary values, the
+ *   mean of the fallback sensor values is used. Diagnostic sensors are
+ *   averaged individually.
+ * </p>
+ *
+ * <p>
+ *   The totals are held in arrays ordered by the instrument's sensor
+ *   assignments, so no objects are created as values are added.
+ * </p>
+ *
+ * @author Steve Jones
+ *
+ */
+public class SensorValueTotals {
+
+  /**
+   * The instrument
+   */
+  private Instrument instrument;
+
+  /**
+   * The total of the values for each sensor assignment
+   */
+  private double[] totals;
+
+  /**
+   * The number of values for each sensor assignment
+   */
+  private int[] counts;
+
+  /**
+   * Create an empty set of totals for an instrument
+   * @param instrument The instrument
+   */
+  public SensorValueTotals(Instrument instrument) {
+    this.instrument = instrument;
+
+    int assignmentCount = 0;
+    for (Set<SensorAssignment> assignments : instrument.getSensorAssignments().values()) {
+      assignmentCount += assignments.size();
+    }
+
+    totals = new double[assignmentCount];
+    counts = new int[assignmentCount];
+  }
+
+  /**
+   * Add the sensor values from the currently selected lines of a data set
+   * @param rawData The data set's raw data
+   * @throws DataFileException If any values cannot be extracted
+   */
+  public void addValues(DataSetRawData rawData) throws DataFileException {
+    int index = 0;
+
+    for (Set<SensorAssignment> assignments : instrument.getSensorAssignments().values()) {
+      for (SensorAssignment assignment : assignments) {
+        Double value = rawData.getSensorValue(assignment);
+        if (null != value) {
+          totals[index] += value;
+          counts[index]++;
+        }
+
+        index++;
+      }
+    }
+  }
+
+  /**
+   * Set the averaged sensor and diagnostic values on a record
+   * @param record The record
+   */
+  public void setRecordValues(DataSetRawDataRecord record) {
+    int index = 0;
+
+    for (Map.Entry<SensorType, Set<SensorAssignment>> entry : instrument.getSensorAssignments().entrySet()) {
+
+      SensorType sensorType = entry.getKey();
+      Set<SensorAssignment> assignments = entry.getValue();
+
+      if (sensorType.isUsedInCalculation()) {
+
+        double primarySensorTotal = 0.0;
+        int primarySensorCount = 0;
+
+        double fallbackSensorTotal = 0.0;
+        int fallbackSensorCount = 0;
+
+        for (SensorAssignment assignment : assignments) {
+          if (assignment.isPrimary()) {
+            primarySensorTotal += totals[index];
+            primarySensorCount += counts[index];
+          } else {
+            fallbackSensorTotal += totals[index];
+            fallbackSensorCount += counts[index];
+          }
+
+          index++;
+        }
+
+        Double finalSensorValue = null;
+
+        if (primarySensorCount > 0) {
+          finalSensorValue = new Double(primarySensorTotal / primarySensorCount);
+        } else if (fallbackSensorCount > 0) {
+          finalSensorValue = new Double(fallbackSensorTotal / fallbackSensorCount);
+        }
+
+        record.setSensorValue(sensorType.getName(), finalSensorValue);
+      } else {
+        for (SensorAssignment assignment : assignments) {
+          Double value = null;
+          if (counts[index] > 0) {
+            value = new Double(totals[index] / counts[index]);
+          }
+
+          record.setDiagnosticValue(assignment.getDatabaseId(), value);
+          index++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reset all the totals to zero
+   */
+  public void clear() {
+    for (int i = 0; i < totals.length; i++) {
+      totals[i] = 0.0;
+      counts[i] = 0;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -19,6 +20,7 @@ import uk.ac.exeter.QuinCe.data.Instrument.DataFormats.PositionException;
 import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeAssignment;
 import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeCategory;
 import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
 import uk.ac.exeter.QuinCe.utils.HighlightedString;
 import uk.ac.exeter.QuinCe.utils.MissingParam;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
@@ -96,6 +98,12 @@ public class DataFile {
    */
   private Set<RunTypeAssignment> missingRunTypes = new HashSet<RunTypeAssignment>();
 
+  /**
+   * The parsed data lines of the file. This is {@code null}
+   * unless {@link #parseColumns(Map)} has been called.
+   */
+  private DataFileColumns columns = null;
+
 
   public List<RunTypeAssignment> getMissingRunTypes() {
     List<RunTypeAssignment> list = new ArrayList<>(missingRunTypes);
@@ -190,6 +198,7 @@ public class DataFile {
       throw new FileDefinitionException("File Definition does not match file contents");
     } else {
       this.fileDefinition = newDefinition;
+      this.columns = null;
     }
   }
 
@@ -449,8 +458,37 @@ public class DataFile {
    * @throws DataFileException If any date/time fields are empty
    */
   public LocalDateTime getDate(int line) throws DataFileException {
-    loadContents();
-    return fileDefinition.getDateTimeSpecification().getDateTime(headerDate, fileDefinition.extractFields(contents.get(line)));
+    LocalDateTime result;
+
+    if (isParsed(line)) {
+      result = DateTimeUtils.longToDate(columns.getTime(line));
+    } else {
+      loadContents();
+      result = fileDefinition.getDateTimeSpecification().getDateTime(headerDate, fileDefinition.extractFields(contents.get(line)));
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the time of a line in the file as UTC milliseconds.
+   * This avoids creating a {@link LocalDateTime} object if
+   * the file has been parsed using {@link #parseColumns(Map)}.
+   * @param line The line
+   * @return The time
+   * @throws DataFileException If any date/time fields are empty
+   * @see DateTimeUtils#dateToLong(LocalDateTime)
+   */
+  public long getTime(int line) throws DataFileException {
+    long result;
+
+    if (isParsed(line)) {
+      result = columns.getTime(line);
+    } else {
+      result = DateTimeUtils.dateToLong(getDate(line));
+    }
+
+    return result;
   }
 
   /**
@@ -465,8 +503,12 @@ public class DataFile {
     int runTypeColumn = fileDefinition.getRunTypeColumn();
 
     if (runTypeColumn > -1) {
-      loadContents();
-      runType = fileDefinition.getRunType(contents.get(line), true);
+      if (isParsed(line)) {
+        runType = columns.getRunType(line);
+      } else {
+        loadContents();
+        runType = fileDefinition.getRunType(contents.get(line), true);
+      }
     }
 
     return runType;
@@ -484,8 +526,12 @@ public class DataFile {
     int runTypeColumn = fileDefinition.getRunTypeColumn();
 
     if (runTypeColumn > -1) {
-      loadContents();
-      runType = fileDefinition.getRunTypeCategory(contents.get(line));
+      if (isParsed(line)) {
+        runType = columns.getRunTypeCategory(line);
+      } else {
+        loadContents();
+        runType = fileDefinition.getRunTypeCategory(contents.get(line));
+      }
     }
 
     return runType;
@@ -499,8 +545,16 @@ public class DataFile {
    * @throws PositionException If the longitude is invalid
    */
   public double getLongitude(int line) throws DataFileException, PositionException {
-    loadContents();
-    return fileDefinition.getLongitudeSpecification().getValue(fileDefinition.extractFields(contents.get(line)));
+    double result;
+
+    if (isParsed(line) && columns.hasPositions()) {
+      result = columns.getLongitude(line);
+    } else {
+      loadContents();
+      result = fileDefinition.getLongitudeSpecification().getValue(fileDefinition.extractFields(contents.get(line)));
+    }
+
+    return result;
   }
 
   /**
@@ -511,8 +565,16 @@ public class DataFile {
    * @throws PositionException If the latitude is invalid
    */
   public double getLatitude(int line) throws DataFileException, PositionException {
-    loadContents();
-    return fileDefinition.getLatitudeSpecification().getValue(fileDefinition.extractFields(contents.get(line)));
+    double result;
+
+    if (isParsed(line) && columns.hasPositions()) {
+      result = columns.getLatitude(line);
+    } else {
+      loadContents();
+      result = fileDefinition.getLatitudeSpecification().getValue(fileDefinition.extractFields(contents.get(line)));
+    }
+
+    return result;
   }
 
   /**
@@ -646,6 +708,7 @@ public class DataFile {
    * @param contents The contents
    */
   protected void setContents(String contents) {
+    this.columns = null;
     this.contents = Arrays.asList(contents.split("\n"));
     // Remove empty lines at the end of the list
     ListIterator<String> li = this.contents.listIterator(getContentLineCount());
@@ -688,9 +751,50 @@ public class DataFile {
    * @throws DataFileException If the data cannot be extracted
    */
   public Double getDoubleValue(int line, int field, String missingValue) throws DataFileException {
-    loadContents();
-    String fieldValue = fileDefinition.extractFields(contents.get(line)).get(field);
-    return extractDoubleFieldValue(fieldValue, missingValue);
+    Double result;
+
+    if (isParsed(line) && columns.hasColumn(field, missingValue)) {
+      result = columns.getValue(line, field);
+    } else {
+      loadContents();
+      String fieldValue = fileDefinition.extractFields(contents.get(line)).get(field);
+      result = extractDoubleFieldValue(fieldValue, missingValue);
+    }
+
+    return result;
+  }
+
+  /**
+   * Parse the data lines of the file once, so that subsequent calls to
+   * {@link #getDate(int)}, {@link #getRunType(int)}, {@link #getRunTypeCategory(int)},
+   * {@link #getLongitude(int)}, {@link #getLatitude(int)} and
+   * {@link #getDoubleValue(int, int, String)} are served from primitive
+   * arrays instead of re-splitting the line each time.
+   *
+   * <p>
+   *   Only the specified sensor columns are cached; values from other columns
+   *   (or requested with a different missing value) are extracted from the line
+   *   as normal.
+   * </p>
+   *
+   * @param sensorColumns The sensor columns to cache, mapped to their missing values
+   * @throws DataFileException If the file contents cannot be loaded
+   */
+  public void parseColumns(Map<Integer, String> sensorColumns) throws DataFileException {
+    if (null == columns) {
+      loadContents();
+      columns = new DataFileColumns(fileDefinition, headerDate, contents, getFirstDataLine(), sensorColumns);
+    }
+  }
+
+  /**
+   * Determine whether or not the specified line has been parsed
+   * by {@link #parseColumns(Map)}
+   * @param line The line
+   * @return {@code true} if the line has been parsed; {@code false} if not
+   */
+  private boolean isParsed(int line) {
+    return null != columns && columns.containsLine(line);
   }
 
   /**
@@ -0,0 +1,387 @@
+package uk.ac.exeter.QuinCe.data.Files;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import uk.ac.exeter.QuinCe.data.Instrument.FileDefinition;
+import uk.ac.exeter.QuinCe.data.Instrument.FileDefinitionException;
+import uk.ac.exeter.QuinCe.data.Instrument.DataFormats.PositionException;
+import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeCategory;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+
+/**
+ * Columnar cache of the parsed data lines of a {@link DataFile}.
+ *
+ * <p>
+ *   Each data line in the file is split into fields exactly once, and the
+ *   values needed during data set extraction are stored in primitive arrays:
+ *   the line times (as UTC milliseconds, see {@link DateTimeUtils#dateToLong(LocalDateTime)}),
+ *   the positions, the run types (stored as codes into a small table of
+ *   distinct values) and the values of the requested sensor columns.
+ * </p>
+ *
+ * <p>
+ *   Any error encountered while parsing a value is stored and thrown when that
+ *   value is requested, so callers see the same behaviour as they would when
+ *   parsing the line directly.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see DataFile#parseColumns(Map)
+ */
+public class DataFileColumns {
+
+  /**
+   * Run type code indicating that a line has no run type
+   */
+  private static final int NO_RUN_TYPE = -1;
+
+  /**
+   * The file line number of the first cached line
+   */
+  private int firstLine;
+
+  /**
+   * The number of cached lines
+   */
+  private int lineCount;
+
+  /**
+   * The line times, in UTC milliseconds
+   */
+  private long[] times;
+
+  /**
+   * The line longitudes. Only populated if the file contains positions.
+   */
+  private double[] longitudes = null;
+
+  /**
+   * The line latitudes. Only populated if the file contains positions.
+   */
+  private double[] latitudes = null;
+
+  /**
+   * The run type codes for each line. Only populated if the
+   * file contains run types.
+   */
+  private int[] runTypeCodes = null;
+
+  /**
+   * The distinct run types found in the file. The run type
+   * codes are indices into this list.
+   */
+  private List<String> runTypes = new ArrayList<String>();
+
+  /**
+   * The Run Type Categories for each entry in {@link #runTypes}
+   */
+  private List<RunTypeCategory> runTypeCategories = new ArrayList<RunTypeCategory>();
+
+  /**
+   * The cached sensor columns, keyed by column index
+   */
+  private Map<Integer, SensorColumn> sensorColumns;
+
+  /**
+   * Errors encountered while extracting line times
+   */
+  private Map<Integer, Exception> timeErrors = new HashMap<Integer, Exception>();
+
+  /**
+   * Errors encountered while extracting longitudes
+   */
+  private Map<Integer, Exception> longitudeErrors = new HashMap<Integer, Exception>();
+
+  /**
+   * Errors encountered while extracting latitudes
+   */
+  private Map<Integer, Exception> latitudeErrors = new HashMap<Integer, Exception>();
+
+  /**
+   * Errors encountered while extracting run types
+   */
+  private Map<Integer, Exception> runTypeErrors = new HashMap<Integer, Exception>();
+
+  /**
+   * Parse the data lines of a file.
+   * @param fileDefinition The file's definition
+   * @param headerDate The date from the file header (may be {@code null})
+   * @param contents The file contents
+   * @param firstLine The first data line in the file
+   * @param columns The sensor columns to cache, mapped to their missing values
+   */
+  protected DataFileColumns(FileDefinition fileDefinition, LocalDateTime headerDate, List<String> contents, int firstLine, Map<Integer, String> columns) {
+
+    this.firstLine = firstLine;
+    this.lineCount = Math.max(0, contents.size() - firstLine);
+
+    times = new long[lineCount];
+
+    boolean hasPositions = null != fileDefinition.getLongitudeSpecification()
+        && null != fileDefinition.getLatitudeSpecification();
+
+    if (hasPositions) {
+      longitudes = new double[lineCount];
+      latitudes = new double[lineCount];
+    }
+
+    if (fileDefinition.hasRunTypes()) {
+      runTypeCodes = new int[lineCount];
+    }
+
+    sensorColumns = new HashMap<Integer, SensorColumn>(columns.size());
+    for (Map.Entry<Integer, String> column : columns.entrySet()) {
+      sensorColumns.put(column.getKey(), new SensorColumn(column.getValue(), lineCount));
+    }
+
+    Map<String, Integer> runTypeLookup = new HashMap<String, Integer>();
+
+    for (int i = 0; i < lineCount; i++) {
+      List<String> fields = fileDefinition.extractFields(contents.get(firstLine + i));
+
+      try {
+        times[i] = DateTimeUtils.dateToLong(fileDefinition.getDateTimeSpecification().getDateTime(headerDate, fields));
+      } catch (DataFileException|RuntimeException e) {
+        timeErrors.put(i, e);
+      }
+
+      if (hasPositions) {
+        try {
+          longitudes[i] = fileDefinition.getLongitudeSpecification().getValue(fields);
+        } catch (PositionException|RuntimeException e) {
+          longitudeErrors.put(i, e);
+        }
+
+        try {
+          latitudes[i] = fileDefinition.getLatitudeSpecification().getValue(fields);
+        } catch (PositionException|RuntimeException e) {
+          latitudeErrors.put(i, e);
+        }
+      }
+
+      if (null != runTypeCodes) {
+        try {
+          String runType = fileDefinition.getRunType(fields, true);
+          if (null == runType) {
+            runTypeCodes[i] = NO_RUN_TYPE;
+          } else {
+            Integer code = runTypeLookup.get(runType);
+            if (null == code) {
+              code = runTypes.size();
+              runTypes.add(runType.intern());
+              runTypeCategories.add(fileDefinition.getRunTypes().getRunTypeCategory(runType));
+              runTypeLookup.put(runType, code);
+            }
+            runTypeCodes[i] = code;
+          }
+        } catch (FileDefinitionException|RuntimeException e) {
+          runTypeErrors.put(i, e);
+        }
+      }
+
+      for (Map.Entry<Integer, SensorColumn> column : sensorColumns.entrySet()) {
+        column.getValue().parse(i, fields, column.getKey());
+      }
+    }
+  }
+
+  /**
+   * Determine whether or not a line of the file is held in this cache
+   * @param line The file line number
+   * @return {@code true} if the line is cached; {@code false} if it is not
+   */
+  protected boolean containsLine(int line) {
+    return line >= firstLine && line < firstLine + lineCount;
+  }
+
+  /**
+   * Get the time of a line in UTC milliseconds
+   * @param line The file line number
+   * @return The line time
+   * @throws DataFileException If the line's date/time is missing or invalid
+   */
+  protected long getTime(int line) throws DataFileException {
+    int index = line - firstLine;
+    rethrow(timeErrors.get(index), DataFileException.class);
+    return times[index];
+  }
+
+  /**
+   * Get the longitude of a line
+   * @param line The file line number
+   * @return The longitude
+   * @throws PositionException If the longitude is invalid
+   */
+  protected double getLongitude(int line) throws PositionException {
+    int index = line - firstLine;
+    rethrow(longitudeErrors.get(index), PositionException.class);
+    return longitudes[index];
+  }
+
+  /**
+   * Get the latitude of a line
+   * @param line The file line number
+   * @return The latitude
+   * @throws PositionException If the latitude is invalid
+   */
+  protected double getLatitude(int line) throws PositionException {
+    int index = line - firstLine;
+    rethrow(latitudeErrors.get(index), PositionException.class);
+    return latitudes[index];
+  }
+
+  /**
+   * Determine whether or not positions are cached for this file
+   * @return {@code true} if positions are cached; {@code false} if not
+   */
+  protected boolean hasPositions() {
+    return null != longitudes;
+  }
+
+  /**
+   * Get the Run Type of a line, with aliases resolved
+   * @param line The file line number
+   * @return The Run Type
+   * @throws FileDefinitionException If the Run Type is not recognised
+   */
+  protected String getRunType(int line) throws FileDefinitionException {
+    int code = getRunTypeCode(line);
+    return code == NO_RUN_TYPE ? null : runTypes.get(code);
+  }
+
+  /**
+   * Get the Run Type Category of a line
+   * @param line The file line number
+   * @return The Run Type Category
+   * @throws FileDefinitionException If the Run Type is not recognised
+   */
+  protected RunTypeCategory getRunTypeCategory(int line) throws FileDefinitionException {
+    int code = getRunTypeCode(line);
+    return code == NO_RUN_TYPE ? null : runTypeCategories.get(code);
+  }
+
+  /**
+   * Get the Run Type code of a line
+   * @param line The file line number
+   * @return The Run Type code
+   * @throws FileDefinitionException If the Run Type is not recognised
+   */
+  private int getRunTypeCode(int line) throws FileDefinitionException {
+    int index = line - firstLine;
+    rethrow(runTypeErrors.get(index), FileDefinitionException.class);
+    return runTypeCodes[index];
+  }
+
+  /**
+   * Determine whether or not the specified column is cached
+   * with the specified missing value
+   * @param field The column index
+   * @param missingValue The missing value
+   * @return {@code true} if the column values are cached; {@code false} if not
+   */
+  protected boolean hasColumn(int field, String missingValue) {
+    SensorColumn column = sensorColumns.get(field);
+    return null != column && Objects.equals(column.missingValue, missingValue);
+  }
+
+  /**
+   * Get a cached value from a sensor column. If the value is missing
+   * (empty or equal to the column's missing value), {@code null} is returned.
+   * @param line The file line number
+   * @param field The column index
+   * @return The value
+   * @throws DataFileException If the value is not numeric
+   */
+  protected Double getValue(int line, int field) throws DataFileException {
+    return sensorColumns.get(field).getValue(line - firstLine);
+  }
+
+  /**
+   * Throw a stored parsing error, if there is one
+   * @param error The error (may be {@code null})
+   * @param type The checked exception type thrown by the calling method
+   * @throws E If the error is of the checked type
+   */
+  private static <E extends Exception> void rethrow(Exception error, Class<E> type) throws E {
+    if (null != error) {
+      if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      } else {
+        throw type.cast(error);
+      }
+    }
+  }
+
+  /**
+   * The cached values of a single sensor column
+   */
+  private static class SensorColumn {
+
+    /**
+     * The missing value string used when parsing the column
+     */
+    private String missingValue;
+
+    /**
+     * The parsed values
+     */
+    private double[] values;
+
+    /**
+     * Flags for lines whose value is empty or missing
+     */
+    private BitSet missing;
+
+    /**
+     * Errors encountered while parsing values
+     */
+    private Map<Integer, Exception> errors = new HashMap<Integer, Exception>();
+
+    /**
+     * Create an empty column
+     * @param missingValue The missing value string
+     * @param lineCount The number of lines in the file
+     */
+    private SensorColumn(String missingValue, int lineCount) {
+      this.missingValue = missingValue;
+      values = new double[lineCount];
+      missing = new BitSet(lineCount);
+    }
+
+    /**
+     * Parse the value for a line
+     * @param index The line index within the cache
+     * @param fields The line fields
+     * @param column The column index
+     */
+    private void parse(int index, List<String> fields, int column) {
+      try {
+        Double value = DataFile.extractDoubleFieldValue(fields.get(column), missingValue);
+        if (null == value) {
+          missing.set(index);
+        } else {
+          values[index] = value;
+        }
+      } catch (DataFileException|RuntimeException e) {
+        errors.put(index, e);
+      }
+    }
+
+    /**
+     * Get the value for a line
+     * @param index The line index within the cache
+     * @return The value
+     * @throws DataFileException If the value is not numeric
+     */
+    private Double getValue(int index) throws DataFileException {
+      rethrow(errors.get(index), DataFileException.class);
+      return missing.get(index) ? null : values[index];
+    }
+  }
+}
@@ -116,6 +116,16 @@ public class DataFileDB {
       + "start_date < ? AND end_date >= ?) "
       + "ORDER BY start_date ASC";
 
+  /**
+   * Query to find the last time for which every file definition
+   * of an instrument has data
+   * @see #getLastCompleteDate(DataSource, long)
+   */
+  private static final String GET_LAST_COMPLETE_DATE_QUERY = "SELECT MIN(last_date) FROM "
+      + "(SELECT MAX(f.end_date) AS last_date FROM data_file AS f "
+      + "INNER JOIN file_definition AS d ON f.file_definition_id = d.id "
+      + "WHERE d.instrument_id = ? GROUP BY d.id) AS l";
+
   /**
    * Store a file in the database and in the file store
    * @param dataSource A data source
@@ -257,6 +267,50 @@ public class DataFileDB {
     return exists;
   }
 
+  /**
+   * Get the last time for which data files of every type defined for
+   * an instrument are available. This is the earliest of the end dates
+   * of the last file of each type.
+   * @param dataSource A data source
+   * @param instrumentId The instrument's database ID
+   * @return The last time, or {@code null} if the instrument has no files
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static LocalDateTime getLastCompleteDate(DataSource dataSource, long instrumentId) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkZeroPositive(instrumentId, "instrumentId");
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    LocalDateTime result = null;
+
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(GET_LAST_COMPLETE_DATE_QUERY);
+      stmt.setLong(1, instrumentId);
+
+      records = stmt.executeQuery();
+      if (records.next()) {
+        long date = records.getLong(1);
+        if (!records.wasNull()) {
+          result = DateTimeUtils.longToDate(date);
+        }
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while finding data files", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    return result;
+  }
+
   /**
    * Determines whether a file with the specified ID exists in the database
    * @param conn A database connection
@@ -59,6 +59,16 @@ public class DataFileLine {
     return file.getDate(line);
   }
 
+  /**
+   * Get the time of the line in UTC milliseconds
+   * @return The time
+   * @throws DataFileException If the date cannot be extracted
+   * @see DataFile#getTime(int)
+   */
+  public long getTime() throws DataFileException {
+    return file.getTime(line);
+  }
+
   /**
    * Determines whether or not this line should be ignored based on its Run Type.
    *
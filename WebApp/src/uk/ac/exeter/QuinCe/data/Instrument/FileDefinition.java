@@ -784,12 +784,24 @@ public class FileDefinition implements Comparable<FileDefinition> {
    * @throws FileDefinitionException If this file does not contain run types, the run type is not present, or the run type is not recognised
    */
   public String getRunType(String line, boolean followAlias) throws FileDefinitionException {
+    return getRunType(extractFields(line), followAlias);
+  }
+
+  /**
+   * Get the run type from a data line that has already been split into fields
+   * @param fields The line fields
+   * @param followAlias Indicates whether aliases should be resolved to their target run type
+   * @return The run type
+   * @throws FileDefinitionException If this file does not contain run types, the run type is not present, or the run type is not recognised
+   * @see #extractFields(String)
+   */
+  public String getRunType(List<String> fields, boolean followAlias) throws FileDefinitionException {
     String result = null;
 
     if (!hasRunTypes()) {
       throw new FileDefinitionException("File does not contain run types");
     } else {
-      String runTypeValue = extractFields(line).get(runTypeColumn).toUpperCase();
+      String runTypeValue = fields.get(runTypeColumn).toUpperCase();
       if (null != runTypeValue && runTypeValue.length() > 0) {
         if (!runTypes.containsKey(runTypeValue)) {
           throw new MissingRunTypeException("Unrecognised run type '"
@@ -821,6 +833,18 @@ public class FileDefinition implements Comparable<FileDefinition> {
    * @throws FileDefinitionException If the Run Type is not recognised
    */
   public RunTypeCategory getRunTypeCategory(String line) throws FileDefinitionException {
-    return runTypes.getRunTypeCategory(getRunType(line, true));
+    return getRunTypeCategory(extractFields(line));
+  }
+
+  /**
+   * Get the Run Type Category of the Run Type in a data line
+   * that has already been split into fields
+   * @param fields The line fields
+   * @return The Run Type Category
+   * @throws FileDefinitionException If the Run Type is not recognised
+   * @see #extractFields(String)
+   */
+  public RunTypeCategory getRunTypeCategory(List<String> fields) throws FileDefinitionException {
+    return runTypes.getRunTypeCategory(getRunType(fields, true));
   }
 }
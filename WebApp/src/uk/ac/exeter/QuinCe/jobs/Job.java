@@ -48,6 +48,22 @@ public abstract class Job {
    */
   public static final String KILLED_STATUS = "KILLED";
 
+  /**
+   * Priority for jobs that a user is waiting for, which are
+   * run ahead of all other jobs
+   */
+  public static final int INTERACTIVE_PRIORITY = 1;
+
+  /**
+   * Priority for all other jobs
+   */
+  public static final int BULK_PRIORITY = 0;
+
+  /**
+   * Checkpoint value indicating that the job has not committed any work
+   */
+  public static final long NO_CHECKPOINT = 0;
+
   /**
    * The job's ID
    */
@@ -73,6 +89,11 @@ public abstract class Job {
    */
   protected Properties config;
 
+  /**
+   * The performance metrics for this run of the job
+   */
+  protected JobMetrics metrics = new JobMetrics();
+
   /**
    * The set of parameters passed to the job
    */
@@ -112,8 +133,9 @@ public abstract class Job {
     this.id = id;
     this.parameters = parameters;
 
-    // Extract the data source into its own variable, since it's what we use most
-    this.dataSource = resourceManager.getDBDataSource();
+    // Extract the data source into its own variable, since it's what we use most.
+    // All statements run by the job are counted in its metrics.
+    this.dataSource = metrics.countStatements(resourceManager.getDBDataSource());
 
     validateParameters();
   }
@@ -160,6 +182,66 @@ public abstract class Job {
     }
   }
 
+  /**
+   * Get the checkpoint stored by a previous run of this job.
+   *
+   * <p>
+   *   Long running jobs commit their work in chunks, storing a checkpoint
+   *   with each chunk (usually the ID of the last record processed). If the
+   *   job is interrupted and requeued, it can use the checkpoint to continue
+   *   from the end of the last committed chunk.
+   * </p>
+   *
+   * @return The checkpoint, or {@link #NO_CHECKPOINT} if no work has been committed
+   * @throws MissingParamException If any required parameters are missing in internal calls
+   * @throws NoSuchJobException If the job is not in the database
+   * @throws DatabaseException If a database error occurs
+   * @see #commitCheckpoint(Connection, long, double)
+   */
+  protected long getCheckpoint() throws MissingParamException, NoSuchJobException, DatabaseException {
+    Connection conn = null;
+    long checkpoint;
+
+    try {
+      conn = dataSource.getConnection();
+      checkpoint = JobManager.getCheckpoint(conn, id);
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while retrieving a database connection", e);
+    } finally {
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    return checkpoint;
+  }
+
+  /**
+   * Commit a chunk of the job's work. The checkpoint is stored and the
+   * connection's transaction is committed, and then the job's progress
+   * is updated.
+   * @param conn The connection on which the work was done
+   * @param checkpoint The checkpoint
+   * @param progress The progress of the job after this chunk, as a percentage
+   * @throws MissingParamException If any required parameters are missing
+   * @throws BadProgressException If the progress is not between 0 and 100
+   * @throws NoSuchJobException If the job is not in the database
+   * @throws DatabaseException If a database error occurs
+   * @see #getCheckpoint()
+   */
+  protected void commitCheckpoint(Connection conn, long checkpoint, double progress) throws MissingParamException, BadProgressException, NoSuchJobException, DatabaseException {
+    metrics.startPhase(JobMetrics.COMMIT_PHASE);
+
+    try {
+      JobManager.setCheckpoint(conn, id, checkpoint);
+      conn.commit();
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while committing the job's work", e);
+    } finally {
+      metrics.endPhase();
+    }
+
+    setProgress(progress);
+  }
+
   /**
    * Log the fact that the job has been started in the appropriate locations.
    * Initially this is just in the job manager, but it can be extended by other classes
@@ -172,7 +254,7 @@ public abstract class Job {
     Connection conn = null;
     try {
       conn = dataSource.getConnection();
-      JobManager.logJobStarted(conn, id, threadName);
+      JobManager.logJobStarted(conn, id, threadName, resourceManager.getJobNodeId());
     } catch (SQLException e) {
       throw new DatabaseException("An error occurred while retrieving a database connection", e);
     } finally {
@@ -237,6 +319,32 @@ public abstract class Job {
     }
   }
 
+  /**
+   * Store the job's performance metrics with the job record
+   * @throws DatabaseException If an error occurs while updating the database
+   * @throws MissingParamException If any parameters in called methods are missing
+   * @throws NoSuchJobException If the job has disappeared
+   */
+  protected void logMetrics() throws DatabaseException, MissingParamException, NoSuchJobException {
+    Connection conn = null;
+    try {
+      conn = dataSource.getConnection();
+      JobManager.setJobMetrics(conn, id, metrics.toJson());
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while storing a job's metrics", e);
+    } finally {
+      DatabaseUtils.closeConnection(conn);
+    }
+  }
+
+  /**
+   * Get the performance metrics for this run of the job
+   * @return The metrics
+   */
+  public JobMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Get the job's ID
    * @return The job ID
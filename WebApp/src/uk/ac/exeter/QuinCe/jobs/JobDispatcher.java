@@ -0,0 +1,140 @@
+package uk.ac.exeter.QuinCe.jobs;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import uk.ac.exeter.QuinCe.web.system.ResourceManager;
+
+/**
+ * Starts queued jobs as soon as they can be run.
+ *
+ * <p>
+ *   The dispatcher runs on its own thread, which waits on a blocking queue
+ *   of signals. A signal is sent whenever a job is added or requeued, and
+ *   whenever a job thread becomes free. Each signal wakes the dispatcher,
+ *   which then starts waiting jobs from the database until the queue is
+ *   empty or there are no free threads. Signals that arrive while the
+ *   dispatcher is busy are merged into one, so the dispatcher never falls
+ *   behind.
+ * </p>
+ *
+ * <p>
+ *   The database remains the only record of which jobs are waiting, so a
+ *   signal can never cause a job to be lost or run twice. The
+ *   {@link JobRunScheduler} also sends a signal periodically, in case
+ *   a job was added in a way that did not send one.
+ * </p>
+ *
+ * @author Steve Jones
+ *
+ */
+public class JobDispatcher implements Runnable {
+
+  /**
+   * The singleton instance of the dispatcher
+   */
+  private static JobDispatcher instance = null;
+
+  /**
+   * The application's resource manager
+   */
+  private ResourceManager resourceManager;
+
+  /**
+   * The queue of dispatch signals. Only one pending signal
+   * is needed, so the queue holds a single entry.
+   */
+  private BlockingQueue<Boolean> signals = new ArrayBlockingQueue<Boolean>(1);
+
+  /**
+   * The thread on which the dispatcher runs
+   */
+  private Thread thread;
+
+  /**
+   * Indicates whether or not the dispatcher is running
+   */
+  private volatile boolean running = true;
+
+  /**
+   * Create the dispatcher and start its thread
+   * @param resourceManager The application's resource manager
+   */
+  private JobDispatcher(ResourceManager resourceManager) {
+    this.resourceManager = resourceManager;
+
+    thread = new Thread(this, "Job dispatcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Initialise the dispatcher. Calling this method when the dispatcher
+   * has already been initialised has no effect.
+   * @param resourceManager The application's resource manager
+   */
+  public static synchronized void initialise(ResourceManager resourceManager) {
+    if (null == instance) {
+      instance = new JobDispatcher(resourceManager);
+    }
+  }
+
+  /**
+   * Tests whether or not the dispatcher has been initialised
+   * @return {@code true} if the dispatcher has been initialised; {@code false} if it has not.
+   */
+  public static boolean isInitialised() {
+    return !(null == instance);
+  }
+
+  /**
+   * Stop the dispatcher. Jobs that are already running are not affected.
+   */
+  public static synchronized void destroy() {
+    if (null != instance) {
+      instance.running = false;
+      instance.thread.interrupt();
+      instance = null;
+    }
+  }
+
+  /**
+   * Signal the dispatcher that jobs may be ready to run.
+   * If the dispatcher has not been initialised, no action is taken.
+   */
+  public static void signal() {
+    JobDispatcher dispatcher = instance;
+    if (null != dispatcher) {
+      // If a signal is already pending, this one is not needed
+      dispatcher.signals.offer(Boolean.TRUE);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        signals.take();
+        dispatch();
+      } catch (InterruptedException e) {
+        running = false;
+      }
+    }
+  }
+
+  /**
+   * Start waiting jobs until there are no more jobs
+   * or no more free threads
+   */
+  private void dispatch() {
+    try {
+      boolean ranJob = true;
+      while (running && ranJob) {
+        ranJob = JobManager.startNextJob(resourceManager, resourceManager.getConfig());
+      }
+    } catch (Exception e) {
+      // The next signal will try again
+      e.printStackTrace();
+    }
+  }
+}
@@ -16,9 +16,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.sql.DataSource;
 
+import org.primefaces.json.JSONArray;
+import org.primefaces.json.JSONObject;
+
 import uk.ac.exeter.QuinCe.User.NoSuchUserException;
 import uk.ac.exeter.QuinCe.User.User;
 import uk.ac.exeter.QuinCe.User.UserDB;
@@ -29,6 +33,7 @@ import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
 import uk.ac.exeter.QuinCe.utils.MissingParam;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+import uk.ac.exeter.QuinCe.utils.StringFormatException;
 import uk.ac.exeter.QuinCe.utils.StringUtils;
 import uk.ac.exeter.QuinCe.web.system.ResourceManager;
 
@@ -68,7 +73,7 @@ public class JobManager {
   /**
    * SQL statement to create a job record
    */
-  private static final String CREATE_JOB_STATEMENT = "INSERT INTO job (owner, created, class, parameters) VALUES (?, ?, ?, ?)";
+  private static final String CREATE_JOB_STATEMENT = "INSERT INTO job (owner, created, class, parameters, priority) VALUES (?, ?, ?, ?, ?)";
 
   /**
    * SQL statement to see if a job with a given ID exists
@@ -78,7 +83,28 @@ public class JobManager {
   /**
    * Statement to retrieve the list of jobs
    */
-  private static final String JOB_LIST_QUERY = "SELECT id, owner, class, created, status, started, ended, progress, stack_trace FROM job ORDER BY created DESC";
+  private static final String JOB_LIST_QUERY = "SELECT id, owner, class, created, status, started, ended, progress, stack_trace, metrics FROM job ORDER BY created DESC";
+
+  /**
+   * Query to get the metrics of recently created jobs
+   */
+  private static final String RECENT_JOB_METRICS_QUERY = "SELECT id, class, status, created, started, ended, metrics FROM job "
+      + "WHERE created > (NOW() - INTERVAL ? HOUR) ORDER BY created DESC";
+
+  /**
+   * Statement to store the metrics for a job
+   */
+  private static final String SET_METRICS_STATEMENT = "UPDATE job SET metrics = ? WHERE id = ?";
+
+  /**
+   * Statement to store the checkpoint for a job
+   */
+  private static final String SET_CHECKPOINT_STATEMENT = "UPDATE job SET checkpoint = ? WHERE id = ?";
+
+  /**
+   * Query to get the checkpoint for a job
+   */
+  private static final String GET_CHECKPOINT_QUERY = "SELECT checkpoint FROM job WHERE id = ?";
 
   /**
    * SQL statement for setting a job's status
@@ -93,7 +119,7 @@ public class JobManager {
   /**
    * SQL statement for recording that a job has started
    */
-  private static final String START_JOB_STATEMENT = "UPDATE job SET status = '" + Job.RUNNING_STATUS + "', started = ?, thread_name = ? WHERE id = ?";
+  private static final String START_JOB_STATEMENT = "UPDATE job SET status = '" + Job.RUNNING_STATUS + "', started = ?, thread_name = ?, node_id = ? WHERE id = ?";
 
   /**
    * SQL statement for recording that a job has completed
@@ -116,9 +142,68 @@ public class JobManager {
   private static final String GET_JOB_QUERY = "SELECT id, class, parameters FROM job WHERE id = ?";
 
   /**
-   * SQL statement to retrieve the next queued job
+   * The number of waiting jobs retrieved when looking for the next job. If
+   * other nodes claim the first jobs, the later ones can be tried instead.
    */
-  private static final String GET_NEXT_JOB_QUERY = "SELECT id, class, parameters FROM job WHERE status='WAITING' ORDER BY created ASC LIMIT 1";
+  private static final int NEXT_JOB_CANDIDATES = 10;
+
+  /**
+   * Query to find the next jobs to run. Jobs with a higher priority are
+   * run first. Within each priority, jobs from the owners with the fewest
+   * running jobs are run first, so that one owner with many jobs cannot
+   * hold up everyone else. Otherwise the oldest job is run first.
+   */
+  private static final String GET_NEXT_JOB_QUERY = "SELECT j.id, j.class, j.parameters FROM job j "
+      + "LEFT JOIN (SELECT owner, COUNT(*) AS running FROM job WHERE status = 'RUNNING' GROUP BY owner) r ON j.owner <=> r.owner "
+      + "WHERE j.status = 'WAITING' AND j.node_id IS NULL "
+      + "ORDER BY j.priority DESC, COALESCE(r.running, 0) ASC, j.created ASC LIMIT " + NEXT_JOB_CANDIDATES;
+
+  /**
+   * Statement to claim a waiting job for a node. The job is only claimed
+   * if no other node has claimed it first.
+   */
+  private static final String CLAIM_JOB_STATEMENT = "UPDATE job SET node_id = ? WHERE id = ? AND status = 'WAITING' AND node_id IS NULL";
+
+  /**
+   * Statement to release a node's claim on a job that it could not start
+   */
+  private static final String RELEASE_JOB_STATEMENT = "UPDATE job SET node_id = NULL WHERE id = ? AND node_id = ? AND status = 'WAITING'";
+
+  /**
+   * Statement to record a node's heartbeat
+   */
+  private static final String NODE_HEARTBEAT_STATEMENT = "INSERT INTO job_node (node_id, heartbeat) VALUES (?, NOW()) "
+      + "ON DUPLICATE KEY UPDATE heartbeat = NOW()";
+
+  /**
+   * Statement to release the claims of a node on jobs that it has not started
+   */
+  private static final String RELEASE_NODE_JOBS_STATEMENT = "UPDATE job SET node_id = NULL WHERE node_id = ? AND status = 'WAITING'";
+
+  /**
+   * Query to find the other nodes that own queued or running jobs
+   * but have not sent a heartbeat within their lease. Nodes record a heartbeat
+   * before they claim any jobs, so a node without a heartbeat is only treated
+   * as stopped if its jobs are older than the lease.
+   */
+  private static final String GET_STOPPED_NODES_QUERY = "SELECT DISTINCT j.node_id FROM job j "
+      + "LEFT JOIN job_node n ON j.node_id = n.node_id "
+      + "WHERE (j.status = 'WAITING' OR j.status = 'RUNNING') AND j.node_id IS NOT NULL AND j.node_id != ? "
+      + "AND ((n.node_id IS NULL AND COALESCE(j.started, j.created) < (NOW() - INTERVAL ? SECOND)) "
+      + "OR n.heartbeat < (NOW() - INTERVAL ? SECOND))";
+
+  /**
+   * Statement to reset all the queued and running jobs of a node to WAITING status.
+   * Their checkpoints are kept so they can continue where they stopped.
+   */
+  private static final String REQUEUE_NODE_JOBS_STATEMENT = "UPDATE job SET "
+      + "status = 'WAITING', started = NULL, ended = NULL, thread_name = NULL, node_id = NULL, progress = 0, "
+      + "stack_trace = NULL, metrics = NULL WHERE node_id = ? AND (status = 'WAITING' OR status = 'RUNNING')";
+
+  /**
+   * Statement to remove a stopped node
+   */
+  private static final String DELETE_NODE_STATEMENT = "DELETE FROM job_node WHERE node_id = ?";
 
   /**
    * Statement to get the number of jobs of each status
@@ -136,16 +221,41 @@ public class JobManager {
   private static final String GET_JOB_OWNER_QUERY = "SELECT owner FROM job WHERE id = ?";
 
   /**
-   * Statement to reset a set of jobs to WAITING status, ready to be re-run
+   * Query to get the priority of a job
+   */
+  private static final String GET_JOB_PRIORITY_QUERY = "SELECT priority FROM job WHERE id = ?";
+
+  /**
+   * Query to get the waiting time of the jobs currently in the queue for each priority
+   */
+  private static final String GET_QUEUED_WAIT_TIMES_QUERY = "SELECT priority, COUNT(*), "
+      + "MAX(TIMESTAMPDIFF(SECOND, created, NOW())) FROM job WHERE status = 'WAITING' GROUP BY priority";
+
+  /**
+   * Query to get the average time that recently started jobs waited in the queue for each priority
+   */
+  private static final String GET_STARTED_WAIT_TIMES_QUERY = "SELECT priority, "
+      + "AVG(TIMESTAMPDIFF(SECOND, created, started)) FROM job WHERE started > (NOW() - INTERVAL ? HOUR) GROUP BY priority";
+
+  /**
+   * Statement to reset a set of jobs to WAITING status, ready to be re-run from the beginning
    */
   private static final String REQUEUE_JOBS_STATEMENT = "UPDATE job SET "
-      + "status = 'WAITING', started = NULL, ended = NULL, thread_name = NULL, progress = 0, "
-      + "stack_trace = NULL WHERE id IN (%%IDS%%)";
+      + "status = 'WAITING', started = NULL, ended = NULL, thread_name = NULL, node_id = NULL, progress = 0, "
+      + "checkpoint = NULL, stack_trace = NULL, metrics = NULL WHERE id IN (%%IDS%%)";
+
+  /**
+   * Statement to reset a set of jobs to WAITING status, ready to be resumed from their checkpoints
+   */
+  private static final String RESUME_JOBS_STATEMENT = "UPDATE job SET "
+      + "status = 'WAITING', started = NULL, ended = NULL, thread_name = NULL, node_id = NULL, progress = 0, "
+      + "stack_trace = NULL, metrics = NULL WHERE id IN (%%IDS%%)";
 
   /**
-   * Query to get the thread names of currently running jobs
+   * Query to get the thread names of jobs currently running on a node.
+   * Jobs started before nodes were recorded are included.
    */
-  private static final String GET_RUNNING_THREAD_NAMES_STATEMENT = "SELECT id, thread_name FROM job WHERE status = 'RUNNING'";
+  private static final String GET_RUNNING_THREAD_NAMES_STATEMENT = "SELECT id, thread_name FROM job WHERE status = 'RUNNING' AND (node_id = ? OR node_id IS NULL)";
 
   /**
    * Query to get the details of jobs that are either running or waiting to run
@@ -173,13 +283,35 @@ public class JobManager {
    * @throws JobException If an unknown problem is found with the specified job class
    */
   public static long addJob(DataSource dataSource, User owner, String jobClass, Map<String,String> parameters) throws DatabaseException, MissingParamException, NoSuchUserException, JobClassNotFoundException, InvalidJobClassTypeException, InvalidJobConstructorException, JobException {
+    return addJob(dataSource, owner, jobClass, parameters, Job.BULK_PRIORITY);
+  }
+
+  /**
+   * Adds a job to the database with a specified priority
+   * @param dataSource A data source
+   * @param owner The job's owner (can be {@code null}
+   * @param jobClass The class name of the job to be run
+   * @param parameters The parameters of the job
+   * @param priority The job's priority
+   * @return The database ID of the created job
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException Generated by internal checks - should never be thrown
+   * @throws NoSuchUserException If the supplied user does not exist in the database
+   * @throws JobClassNotFoundException If the specified job class does not exist
+   * @throws InvalidJobClassTypeException If the specified job class is not of the correct type
+   * @throws InvalidJobConstructorException If the specified job class does not have the correct constructor
+   * @throws JobException If an unknown problem is found with the specified job class
+   * @see Job#INTERACTIVE_PRIORITY
+   * @see Job#BULK_PRIORITY
+   */
+  public static long addJob(DataSource dataSource, User owner, String jobClass, Map<String,String> parameters, int priority) throws DatabaseException, MissingParamException, NoSuchUserException, JobClassNotFoundException, InvalidJobClassTypeException, InvalidJobConstructorException, JobException {
 
     long result = -1;
     Connection conn = null;
 
     try {
       conn = dataSource.getConnection();
-      result = addJob(conn, owner, jobClass, parameters);
+      result = addJob(conn, owner, jobClass, parameters, priority);
     } catch (SQLException e) {
       throw new DatabaseException("An error occurred while adding the job", e);
     } catch (DatabaseException|MissingParamException|NoSuchUserException|JobClassNotFoundException|InvalidJobClassTypeException|InvalidJobConstructorException|JobException e) {
@@ -188,11 +320,17 @@ public class JobManager {
       DatabaseUtils.closeConnection(conn);
     }
 
+    // The job has been committed, so it can be started straight away if a thread is free
+    JobDispatcher.signal();
+
     return result;
   }
 
   /**
-   * Adds a job to the database
+   * Adds a job to the database. The job is not started until the
+   * transaction on the connection has been committed, so the caller must call
+   * {@link JobDispatcher#signal()} after {@code commit()}. Jobs added from within
+   * another job are started when that job's thread is released.
    * @param conn A database connection
    * @param owner The job's owner (can be {@code null}
    * @param jobClass The class name of the job to be run
@@ -207,6 +345,31 @@ public class JobManager {
    * @throws JobException If an unknown problem is found with the specified job class
    */
   public static long addJob(Connection conn, User owner, String jobClass, Map<String,String> parameters) throws DatabaseException, MissingParamException, NoSuchUserException, JobClassNotFoundException, InvalidJobClassTypeException, InvalidJobConstructorException, JobException {
+    return addJob(conn, owner, jobClass, parameters, Job.BULK_PRIORITY);
+  }
+
+  /**
+   * Adds a job to the database with a specified priority. The job is not
+   * started until the transaction on the connection has been committed, so
+   * the caller must call {@link JobDispatcher#signal()} after {@code commit()}.
+   * Jobs added from within another job are started when that job's thread is released.
+   * @param conn A database connection
+   * @param owner The job's owner (can be {@code null}
+   * @param jobClass The class name of the job to be run
+   * @param parameters The parameters of the job
+   * @param priority The job's priority
+   * @return The database ID of the created job
+   * @throws DatabaseException If a database error occurs
+   * @throws MissingParamException Generated by internal checks - should never be thrown
+   * @throws NoSuchUserException If the supplied user does not exist in the database
+   * @throws JobClassNotFoundException If the specified job class does not exist
+   * @throws InvalidJobClassTypeException If the specified job class is not of the correct type
+   * @throws InvalidJobConstructorException If the specified job class does not have the correct constructor
+   * @throws JobException If an unknown problem is found with the specified job class
+   * @see Job#INTERACTIVE_PRIORITY
+   * @see Job#BULK_PRIORITY
+   */
+  public static long addJob(Connection conn, User owner, String jobClass, Map<String,String> parameters, int priority) throws DatabaseException, MissingParamException, NoSuchUserException, JobClassNotFoundException, InvalidJobClassTypeException, InvalidJobConstructorException, JobException {
 
     MissingParam.checkMissing(conn, "conn");
     MissingParam.checkMissing(owner, "owner");
@@ -265,6 +428,7 @@ public class JobManager {
         stmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
         stmt.setString(3, jobClass);
         stmt.setString(4, StringUtils.mapToDelimited(parameters));
+        stmt.setInt(5, priority);
 
         stmt.execute();
 
@@ -299,7 +463,8 @@ public class JobManager {
   }
 
   /**
-   * Adds a job to the database, and instantly runs it
+   * Adds a job to the database, and instantly runs it. If there are no free
+   * threads, the job is placed in the queue instead.
    * @param resourceManager The application's resource manager
    * @param config The application configuration
    * @param owner The job's owner (can be {@code null}
@@ -318,14 +483,59 @@ public class JobManager {
    */
   public static void addInstantJob(ResourceManager resourceManager, Properties config, User owner, String jobClass, Map<String,String> parameters) throws DatabaseException, MissingParamException, NoSuchUserException, JobClassNotFoundException, InvalidJobClassTypeException, InvalidJobConstructorException, JobException, JobThreadPoolNotInitialisedException, NoSuchJobException, JobFailedException {
     DataSource dataSource = resourceManager.getDBDataSource();
-    long jobID = addJob(dataSource, owner, jobClass, parameters);
-    JobThread jobThread = JobThreadPool.getInstance().getInstantJobThread(JobManager.getJob(resourceManager, config, jobID));
+    Connection conn = null;
+    JobThread jobThread = null;
+
     try {
-      logJobStarted(dataSource.getConnection(), jobID, jobThread.getName());
+      // The job is created and marked as running in one transaction,
+      // so the dispatcher cannot start it as well
+      conn = dataSource.getConnection();
+      conn.setAutoCommit(false);
+
+      // A user is waiting for the job, so if it has to be queued it should be run first
+      long jobID = addJob(conn, owner, jobClass, parameters, Job.INTERACTIVE_PRIORITY);
+      jobThread = JobThreadPool.getInstance().getInstantJobThread(createJob(jobID, jobClass, parameters, resourceManager, config));
+      if (null != jobThread) {
+        logJobStarted(conn, jobID, jobThread.getName(), resourceManager.getJobNodeId());
+      }
+      conn.commit();
     } catch (SQLException e) {
+      DatabaseUtils.rollBack(conn);
+      returnInstantThread(jobThread);
       throw new DatabaseException("An error occurred while updating the job status", e);
+    } catch (Exception e) {
+      DatabaseUtils.rollBack(conn);
+      returnInstantThread(jobThread);
+      throw e;
+    } finally {
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    if (null == jobThread) {
+      // The job has been left in the queue
+      JobDispatcher.signal();
+    } else {
+      try {
+        jobThread.start();
+      } catch (RejectedExecutionException e) {
+        // The job is marked as running, so it will be
+        // requeued when the interrupted jobs are reset
+        returnInstantThread(jobThread);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Return the thread taken for an instant job that could not be started
+   * to the thread pool, so that its lane does not lose a thread
+   * @param jobThread The job thread. If {@code null}, nothing is done
+   * @throws JobThreadPoolNotInitialisedException If the job thread pool has not been initialised
+   */
+  private static void returnInstantThread(JobThread jobThread) throws JobThreadPoolNotInitialisedException {
+    if (null != jobThread) {
+      JobThreadPool.getInstance().returnThread(jobThread);
     }
-    jobThread.start();
   }
 
   /**
@@ -391,13 +601,15 @@ public class JobManager {
    * @param conn A database connection
    * @param jobID The job that has been started
    * @param threadName The name of the thread that is running the job
+   * @param nodeId The ID of the node that is running the job
    * @throws MissingParamException If any required parameters are missing
    * @throws DatabaseException If an error occurs while updating the record
    * @throws NoSuchJobException If the specified job doesn't exist
    */
-  public static void logJobStarted(Connection conn, long jobID, String threadName) throws MissingParamException, DatabaseException, NoSuchJobException {
+  public static void logJobStarted(Connection conn, long jobID, String threadName, String nodeId) throws MissingParamException, DatabaseException, NoSuchJobException {
 
     MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkMissing(nodeId, "nodeId");
 
     if (!jobExists(conn, jobID)) {
       throw new NoSuchJobException(jobID);
@@ -409,7 +621,8 @@ public class JobManager {
       stmt = conn.prepareStatement(START_JOB_STATEMENT);
       stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
       stmt.setString(2, threadName);
-      stmt.setLong(3, jobID);
+      stmt.setString(3, nodeId);
+      stmt.setLong(4, jobID);
       stmt.execute();
     } catch (SQLException e) {
       throw new DatabaseException("An error occurred while setting the job to 'started' state", e);
@@ -474,15 +687,30 @@ public class JobManager {
    */
   private static Job getJobFromResultSet(ResultSet result, ResourceManager resourceManager, Properties config) throws JobFailedException, SQLException {
 
-    long jobId = -1;
+    long jobId = result.getLong(1);
 
     try {
-      jobId = result.getLong(1);
-      Class<?> jobClazz = Class.forName(result.getString(2));
+      return createJob(jobId, result.getString(2), StringUtils.delimitedToMap(result.getString(3)), resourceManager, config);
+    } catch (StringFormatException e) {
+      throw new JobFailedException(jobId, "Error while creating job object", e);
+    }
+  }
+
+  /**
+   * Create a {@link Job} object
+   * @param jobId The job's database ID
+   * @param jobClass The class name of the job
+   * @param parameters The job parameters
+   * @param resourceManager The application's resource manager
+   * @param config The application configuration
+   * @return The Job object
+   * @throws JobFailedException If the Job object could not be created
+   */
+  private static Job createJob(long jobId, String jobClass, Map<String, String> parameters, ResourceManager resourceManager, Properties config) throws JobFailedException {
+    try {
+      Class<?> jobClazz = Class.forName(jobClass);
       Constructor<?> jobConstructor = jobClazz.getConstructor(ResourceManager.class, Properties.class, long.class, Map.class);
-      return (Job) jobConstructor.newInstance(resourceManager, config, result.getLong(1), StringUtils.delimitedToMap(result.getString(3)));
-    } catch (SQLException e) {
-      throw e;
+      return (Job) jobConstructor.newInstance(resourceManager, config, jobId, parameters);
     } catch (Throwable e) {
       throw new JobFailedException(jobId, "Error while creating job object", e);
     }
@@ -620,6 +848,178 @@ public class JobManager {
     }
   }
 
+  /**
+   * Store the performance metrics for a job
+   * @param conn A database connection
+   * @param jobID The ID of the job
+   * @param metrics The metrics, as a JSON string
+   * @throws MissingParamException If any required parameters are missing
+   * @throws NoSuchJobException If the specified job does not exist
+   * @throws DatabaseException If an error occurs while storing the metrics in the database
+   * @see JobMetrics#toJson()
+   */
+  public static void setJobMetrics(Connection conn, long jobID, String metrics) throws MissingParamException, NoSuchJobException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkPositive(jobID, "jobID");
+    MissingParam.checkMissing(metrics, "metrics");
+
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = conn.prepareStatement(SET_METRICS_STATEMENT);
+      stmt.setString(1, metrics);
+      stmt.setLong(2, jobID);
+      if (stmt.executeUpdate() == 0) {
+        throw new NoSuchJobException(jobID);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while storing the job metrics", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+  }
+
+  /**
+   * Store the checkpoint for a job. This should be done in the same
+   * transaction as the work that the checkpoint describes, so the two
+   * are committed together.
+   * @param conn A database connection
+   * @param jobID The ID of the job
+   * @param checkpoint The checkpoint
+   * @throws MissingParamException If any required parameters are missing
+   * @throws NoSuchJobException If the specified job does not exist
+   * @throws DatabaseException If an error occurs while storing the checkpoint in the database
+   * @see Job#commitCheckpoint(Connection, long, double)
+   */
+  public static void setCheckpoint(Connection conn, long jobID, long checkpoint) throws MissingParamException, NoSuchJobException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkPositive(jobID, "jobID");
+    MissingParam.checkPositive(checkpoint, "checkpoint");
+
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = conn.prepareStatement(SET_CHECKPOINT_STATEMENT);
+      stmt.setLong(1, checkpoint);
+      stmt.setLong(2, jobID);
+      if (stmt.executeUpdate() == 0) {
+        throw new NoSuchJobException(jobID);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while storing the job checkpoint", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+    }
+  }
+
+  /**
+   * Get the checkpoint for a job
+   * @param conn A database connection
+   * @param jobID The ID of the job
+   * @return The checkpoint, or {@link Job#NO_CHECKPOINT} if the job has not stored one
+   * @throws MissingParamException If any required parameters are missing
+   * @throws NoSuchJobException If the specified job does not exist
+   * @throws DatabaseException If a database error occurs
+   */
+  public static long getCheckpoint(Connection conn, long jobID) throws MissingParamException, NoSuchJobException, DatabaseException {
+
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkPositive(jobID, "jobID");
+
+    long checkpoint;
+
+    PreparedStatement stmt = null;
+    ResultSet record = null;
+
+    try {
+      stmt = conn.prepareStatement(GET_CHECKPOINT_QUERY);
+      stmt.setLong(1, jobID);
+
+      record = stmt.executeQuery();
+
+      if (!record.next()) {
+        throw new NoSuchJobException(jobID);
+      } else {
+        checkpoint = record.getLong(1);
+        if (record.wasNull()) {
+          checkpoint = Job.NO_CHECKPOINT;
+        }
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while retrieving the job checkpoint", e);
+    } finally {
+      DatabaseUtils.closeResultSets(record);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return checkpoint;
+  }
+
+  /**
+   * Get the metrics for recently created jobs as a JSON array. Each entry contains
+   * the job's ID, class, status, creation time, queue wait and run time (both in
+   * milliseconds) and the metrics recorded by the job, if it has finished.
+   * @param dataSource A data source
+   * @param hours The number of hours of jobs to include
+   * @return The metrics JSON
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static String getRecentJobMetricsJson(DataSource dataSource, int hours) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkPositive(hours, "hours");
+
+    JSONArray result = new JSONArray();
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet records = null;
+
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(RECENT_JOB_METRICS_QUERY);
+      stmt.setInt(1, hours);
+
+      records = stmt.executeQuery();
+      while (records.next()) {
+        JSONObject job = new JSONObject();
+        job.put("id", records.getLong(1));
+        job.put("class", records.getString(2));
+        job.put("status", records.getString(3));
+
+        Timestamp created = records.getTimestamp(4);
+        Timestamp started = records.getTimestamp(5);
+        Timestamp ended = records.getTimestamp(6);
+        job.put("created", created.getTime());
+
+        if (null != started) {
+          job.put("queueWait", started.getTime() - created.getTime());
+          if (null != ended) {
+            job.put("runTime", ended.getTime() - started.getTime());
+          }
+        }
+
+        String metrics = records.getString(7);
+        if (null != metrics) {
+          job.put("metrics", new JSONObject(metrics));
+        }
+
+        result.put(job);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while retrieving job metrics", e);
+    } finally {
+      DatabaseUtils.closeResultSets(records);
+      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    return result.toString();
+  }
+
   /**
    * Determines whether or not a job with the given ID exists in the database
    * @param conn A database connection
@@ -659,7 +1059,8 @@ public class JobManager {
 
   /**
    * Retrieve the next queued job (i.e. the job with the oldest submission date)
-   * from the database
+   * from the database, and claim it for this node. Jobs already claimed by
+   * other nodes are skipped.
    * @param resourceManager The application's resource manager
    * @param config The application configuration
    * @return The next queued job, or {@code null} if there are no jobs.
@@ -674,6 +1075,7 @@ public class JobManager {
     Job job = null;
     Connection connection = null;
     PreparedStatement stmt = null;
+    PreparedStatement claimStmt = null;
     ResultSet result = null;
     long nextJobId = -1;
 
@@ -681,11 +1083,19 @@ public class JobManager {
       DataSource dataSource = resourceManager.getDBDataSource();
       connection = dataSource.getConnection();
       stmt = connection.prepareStatement(GET_NEXT_JOB_QUERY);
+      claimStmt = connection.prepareStatement(CLAIM_JOB_STATEMENT);
+      claimStmt.setString(1, resourceManager.getJobNodeId());
 
       result = stmt.executeQuery();
-      if (result.next()) {
-        nextJobId = result.getLong(1);
-        job = getJobFromResultSet(result, resourceManager, config);
+      while (null == job && result.next()) {
+        long candidateId = result.getLong(1);
+
+        // Only one node can make this update, so if it succeeds the job is ours
+        claimStmt.setLong(2, candidateId);
+        if (claimStmt.executeUpdate() == 1) {
+          nextJobId = candidateId;
+          job = getJobFromResultSet(result, resourceManager, config);
+        }
       }
     } catch (JobFailedException e) {
       try {
@@ -702,7 +1112,7 @@ public class JobManager {
       throw new DatabaseException("Error while retrieving details for next queued job", e);
     } finally {
       DatabaseUtils.closeResultSets(result);
-      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeStatements(claimStmt, stmt);
       DatabaseUtils.closeConnection(connection);
     }
 
@@ -819,6 +1229,56 @@ public class JobManager {
     return result;
   }
 
+  /**
+   * Get statistics on how long jobs wait in the queue before they are run
+   * @param dataSource A data source
+   * @param hours The number of hours for which started jobs are included in the statistics
+   * @return The statistics
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static QueueWaitStatistics getQueueWaitStatistics(DataSource dataSource, int hours) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(dataSource, "dataSource");
+    MissingParam.checkPositive(hours, "hours");
+
+    QueueWaitStatistics result = new QueueWaitStatistics();
+
+    Connection conn = null;
+    PreparedStatement queuedStmt = null;
+    ResultSet queuedRecords = null;
+    PreparedStatement startedStmt = null;
+    ResultSet startedRecords = null;
+
+    try {
+
+      conn = dataSource.getConnection();
+      queuedStmt = conn.prepareStatement(GET_QUEUED_WAIT_TIMES_QUERY);
+
+      queuedRecords = queuedStmt.executeQuery();
+      while (queuedRecords.next()) {
+        result.setQueued(queuedRecords.getInt(1), queuedRecords.getInt(2), queuedRecords.getLong(3));
+      }
+
+      startedStmt = conn.prepareStatement(GET_STARTED_WAIT_TIMES_QUERY);
+      startedStmt.setInt(1, hours);
+
+      startedRecords = startedStmt.executeQuery();
+      while (startedRecords.next()) {
+        result.setStarted(startedRecords.getInt(1), startedRecords.getDouble(2));
+      }
+
+    } catch (SQLException e) {
+      throw new DatabaseException("Exception while retrieving job wait statistics", e);
+    } finally {
+      DatabaseUtils.closeResultSets(queuedRecords, startedRecords);
+      DatabaseUtils.closeStatements(queuedStmt, startedStmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    return result;
+  }
+
   /**
     * Retrieve summaries of the complete list of jobs in the system.
     * @param dataSource A data source
@@ -864,9 +1324,10 @@ public class JobManager {
 
         double progress = records.getDouble(8);
         String stackTrace = records.getString(9);
+        String metrics = records.getString(10);
 
         result.add(new JobSummary(id, owner, className, created, status,
-            started, ended, progress, stackTrace));
+            started, ended, progress, stackTrace, metrics));
       }
 
     } catch (SQLException e) {
@@ -893,36 +1354,144 @@ public class JobManager {
    */
   public static boolean startNextJob(ResourceManager resourceManager, Properties config) throws MissingParamException, JobFailedException, DatabaseException, JobThreadPoolNotInitialisedException, NoSuchJobException {
     boolean jobStarted = false;
-    Job nextJob = getNextJob(resourceManager, config);
-    if (null != nextJob) {
-      JobThread thread = JobThreadPool.getInstance().getJobThread(nextJob);
-      if (null != thread) {
-        thread.start();
-
-        // Wait until the job's status is updated in the database
-        boolean jobRunning = false;
-        while (!jobRunning) {
-          if (!getJobStatus(resourceManager.getDBDataSource(), nextJob.getID()).equals(Job.WAITING_STATUS)) {
-            jobRunning = true;
-          } else {
+
+    // Don't claim a job unless there is a thread to run it
+    if (JobThreadPool.getInstance().getAvailableThreads() > 0) {
+      Job nextJob = getNextJob(resourceManager, config);
+      if (null != nextJob) {
+        JobThread thread = JobThreadPool.getInstance().getJobThread(nextJob);
+        if (null == thread) {
+          // The last thread was taken by an instant job, so let another node have the job
+          releaseJob(resourceManager, nextJob.getID());
+        } else {
+          boolean threadStarted = false;
+
+          try {
+            thread.start();
+            threadStarted = true;
+          } catch (RejectedExecutionException e) {
+            // The pool is shutting down, so let another node have the job
+            e.printStackTrace();
+            JobThreadPool.getInstance().returnThread(thread);
+            releaseJob(resourceManager, nextJob.getID());
+          }
+
+          if (threadStarted) {
+            // Wait until the job's status is updated in the database,
+            // so it is not selected again by the next call
             try {
-              Thread.sleep(250);
+              thread.awaitStarted();
             } catch (InterruptedException e) {
-              // Do nothing
+              // The caller is being stopped, so let it see the interruption
+              Thread.currentThread().interrupt();
             }
+
+            jobStarted = true;
           }
         }
-
-        jobStarted = true;
       }
     }
+
     return jobStarted;
   }
 
+  /**
+   * Release this node's claim on a waiting job so that any node can run it
+   * @param resourceManager The application's resource manager
+   * @param jobId The job's database ID
+   * @throws DatabaseException If a database error occurs
+   */
+  private static void releaseJob(ResourceManager resourceManager, long jobId) throws DatabaseException {
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+
+    try {
+      conn = resourceManager.getDBDataSource().getConnection();
+      stmt = conn.prepareStatement(RELEASE_JOB_STATEMENT);
+      stmt.setLong(1, jobId);
+      stmt.setString(2, resourceManager.getJobNodeId());
+      stmt.execute();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while releasing job", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+  }
+
+  /**
+   * Record that this node is still running. Other nodes will requeue
+   * this node's jobs if it does not send a heartbeat within its lease.
+   * @param resourceManager The application's resource manager
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @see ResourceManager#getJobNodeLease()
+   */
+  public static void sendNodeHeartbeat(ResourceManager resourceManager) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(resourceManager, "resourceManager");
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+
+    try {
+      conn = resourceManager.getDBDataSource().getConnection();
+      stmt = conn.prepareStatement(NODE_HEARTBEAT_STATEMENT);
+      stmt.setString(1, resourceManager.getJobNodeId());
+      stmt.execute();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while recording node heartbeat", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+  }
+
+  /**
+   * Prepare this node to run jobs when the application starts. The node's
+   * heartbeat is recorded before it claims any jobs, so other nodes do not
+   * treat it as stopped. Jobs claimed by a previous run of this node that
+   * were never started are released so any node can run them, and jobs
+   * that were running are requeued.
+   * @param resourceManager The application's resource manager
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  public static void startNode(ResourceManager resourceManager) throws MissingParamException, DatabaseException {
+
+    MissingParam.checkMissing(resourceManager, "resourceManager");
+
+    sendNodeHeartbeat(resourceManager);
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+
+    try {
+      conn = resourceManager.getDBDataSource().getConnection();
+      stmt = conn.prepareStatement(RELEASE_NODE_JOBS_STATEMENT);
+      stmt.setString(1, resourceManager.getJobNodeId());
+      int releasedCount = stmt.executeUpdate();
+
+      if (releasedCount > 0) {
+        System.out.println("Released " + releasedCount + " unstarted jobs from node " + resourceManager.getJobNodeId());
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while releasing node jobs", e);
+    } finally {
+      DatabaseUtils.closeStatements(stmt);
+      DatabaseUtils.closeConnection(conn);
+    }
+
+    resetInterruptedJobs(resourceManager);
+  }
+
   /**
    * This method restarts jobs that have been interrupted. They are identified by
-   * jobs that are marked as running, but whose thread does not exist. (When a job
-   * is name, the thread name is stored in the database.)
+   * jobs that are marked as running on this node, but whose thread does not exist.
+   * (When a job is name, the thread name is stored in the database.) Jobs belonging
+   * to other nodes that have not sent a heartbeat within their lease are also
+   * restarted. Restarted jobs continue from their last checkpoint.
    * @param resourceManager The application's resource manager
    * @throws MissingParamException If any required parameters are missing
    * @throws DatabaseException If a database error occurs
@@ -935,12 +1504,17 @@ public class JobManager {
     Connection conn = null;
     PreparedStatement threadNamesStmt = null;
     ResultSet runningThreadNames = null;
+    PreparedStatement stoppedNodesStmt = null;
+    ResultSet stoppedNodes = null;
+    PreparedStatement requeueNodeStmt = null;
+    PreparedStatement deleteNodeStmt = null;
 
     try {
 
       conn = dataSource.getConnection();
       conn.setAutoCommit(false);
       threadNamesStmt = conn.prepareStatement(GET_RUNNING_THREAD_NAMES_STATEMENT);
+      threadNamesStmt.setString(1, resourceManager.getJobNodeId());
       runningThreadNames = threadNamesStmt.executeQuery();
 
       List<Long> jobsToRequeue = new ArrayList<Long>();
@@ -956,7 +1530,29 @@ public class JobManager {
       }
 
       if (jobsToRequeue.size() > 0) {
-        requeueJobs(conn, jobsToRequeue);
+        resumeJobs(conn, jobsToRequeue);
+      }
+
+      // Requeue the jobs of nodes that have stopped
+      stoppedNodesStmt = conn.prepareStatement(GET_STOPPED_NODES_QUERY);
+      stoppedNodesStmt.setString(1, resourceManager.getJobNodeId());
+      stoppedNodesStmt.setInt(2, resourceManager.getJobNodeLease());
+      stoppedNodesStmt.setInt(3, resourceManager.getJobNodeLease());
+      stoppedNodes = stoppedNodesStmt.executeQuery();
+
+      requeueNodeStmt = conn.prepareStatement(REQUEUE_NODE_JOBS_STATEMENT);
+      deleteNodeStmt = conn.prepareStatement(DELETE_NODE_STATEMENT);
+
+      while (stoppedNodes.next()) {
+        String nodeId = stoppedNodes.getString(1);
+
+        requeueNodeStmt.setString(1, nodeId);
+        int requeuedCount = requeueNodeStmt.executeUpdate();
+
+        deleteNodeStmt.setString(1, nodeId);
+        deleteNodeStmt.execute();
+
+        System.out.println("Requeued " + requeuedCount + " jobs from stopped node " + nodeId);
       }
 
       conn.commit();
@@ -967,8 +1563,8 @@ public class JobManager {
       DatabaseUtils.rollBack(conn);
       // Not much we can do about that.
     } finally {
-      DatabaseUtils.closeResultSets(runningThreadNames);
-      DatabaseUtils.closeStatements(threadNamesStmt);
+      DatabaseUtils.closeResultSets(runningThreadNames, stoppedNodes);
+      DatabaseUtils.closeStatements(threadNamesStmt, stoppedNodesStmt, requeueNodeStmt, deleteNodeStmt);
       DatabaseUtils.closeConnection(conn);
     }
 
@@ -1114,15 +1710,82 @@ public class JobManager {
     return owner;
   }
 
+  /**
+   * Get the priority of a job
+   * @param conn A database connection
+   * @param jobId The job's database ID
+   * @return The priority of the job
+   * @throws MissingParamException If any parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @throws NoSuchJobException If the job does not exist
+   */
+  public static int getJobPriority(Connection conn, long jobId) throws MissingParamException, DatabaseException, NoSuchJobException {
+    MissingParam.checkMissing(conn, "conn");
+    MissingParam.checkPositive(jobId, "jobId");
+
+    int priority;
+
+    PreparedStatement stmt = null;
+    ResultSet record = null;
+
+    try {
+      stmt = conn.prepareStatement(GET_JOB_PRIORITY_QUERY);
+      stmt.setLong(1, jobId);
+
+      record = stmt.executeQuery();
+
+      if (!record.next()) {
+        throw new NoSuchJobException(jobId);
+      } else {
+        priority = record.getInt(1);
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occured while finding the job priority", e);
+    } finally {
+      DatabaseUtils.closeResultSets(record);
+      DatabaseUtils.closeStatements(stmt);
+    }
+
+    return priority;
+  }
+
   /**
    * Place a set of jobs in the {@link Job#WAITING_STATUS} state so
-   * they can be re-run.
+   * they can be re-run. Their checkpoints are removed, so they
+   * will start again from the beginning.
    * @param conn A database connection
    * @param jobIds The job IDs
    * @throws MissingParamException If any required parameters are missing
    * @throws DatabaseException If a database error occurs
    */
   public static void requeueJobs(Connection conn, List<Long> jobIds) throws MissingParamException, DatabaseException {
+    requeueJobs(conn, jobIds, REQUEUE_JOBS_STATEMENT);
+  }
+
+  /**
+   * Place a set of jobs in the {@link Job#WAITING_STATUS} state so
+   * they can be re-run. Their checkpoints are kept, so they will
+   * continue from the point where they stopped.
+   * @param conn A database connection
+   * @param jobIds The job IDs
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @see #getCheckpoint(Connection, long)
+   */
+  public static void resumeJobs(Connection conn, List<Long> jobIds) throws MissingParamException, DatabaseException {
+    requeueJobs(conn, jobIds, RESUME_JOBS_STATEMENT);
+  }
+
+  /**
+   * Place a set of jobs in the {@link Job#WAITING_STATUS} state
+   * using the specified statement
+   * @param conn A database connection
+   * @param jobIds The job IDs
+   * @param requeueStatement The statement used to reset the jobs
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   */
+  private static void requeueJobs(Connection conn, List<Long> jobIds, String requeueStatement) throws MissingParamException, DatabaseException {
 
     MissingParam.checkMissing(conn, "conn");
     MissingParam.checkMissing(jobIds, "jobIds");
@@ -1130,7 +1793,7 @@ public class JobManager {
     PreparedStatement stmt = null;
 
     try {
-      String statement = REQUEUE_JOBS_STATEMENT.replaceAll("%%IDS%%", StringUtils.collectionToDelimited(jobIds));
+      String statement = requeueStatement.replaceAll("%%IDS%%", StringUtils.collectionToDelimited(jobIds));
       stmt = conn.prepareStatement(statement);
       stmt.execute();
 
@@ -1141,11 +1804,7 @@ public class JobManager {
     }
 
     // Start the next job in the queue
-    try {
-      startNextJob(ResourceManager.getInstance(), ResourceManager.getInstance().getConfig());
-    } catch (Exception e) {
-      // Don't sweat it
-    }
+    JobDispatcher.signal();
   }
 
   /**
@@ -1186,6 +1845,21 @@ public class JobManager {
     requeueJobs(conn, jobList);
   }
 
+  /**
+   * Place a job in the {@link Job#WAITING_STATUS} state so it
+   * can be re-run, continuing from its checkpoint.
+   * @param conn A database connection
+   * @param jobId The job ID
+   * @throws MissingParamException If any required parameters are missing
+   * @throws DatabaseException If a database error occurs
+   * @see #resumeJobs(Connection, List)
+   */
+  public static void resumeJob(Connection conn, long jobId) throws MissingParamException, DatabaseException {
+    List<Long> jobList = new ArrayList<Long>(1);
+    jobList.add(jobId);
+    resumeJobs(conn, jobList);
+  }
+
   /**
    * Place a job in the {@link Job#WAITING_STATUS} state so it
    * can be re-run.
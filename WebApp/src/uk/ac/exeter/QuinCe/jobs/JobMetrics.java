@@ -0,0 +1,267 @@
+package uk.ac.exeter.QuinCe.jobs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.primefaces.json.JSONObject;
+
+/**
+ * Performance measurements for a single run of a job.
+ *
+ * <p>
+ *   Jobs record the time spent in each phase of their work, using
+ *   {@link #startPhase(String)} and {@link #endPhase()}, and the number of
+ *   rows they process. The number of database statements executed by the
+ *   job is counted automatically for all connections obtained from the job's
+ *   data source. The metrics are stored with the job record when the job
+ *   finishes.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see Job#getMetrics()
+ */
+public class JobMetrics {
+
+  /**
+   * Phase for loading data from the database or files
+   */
+  public static final String LOAD_PHASE = "load";
+
+  /**
+   * Phase for calculations
+   */
+  public static final String COMPUTE_PHASE = "compute";
+
+  /**
+   * Phase for writing results to the database
+   */
+  public static final String WRITE_PHASE = "write";
+
+  /**
+   * Phase for committing transactions
+   */
+  public static final String COMMIT_PHASE = "commit";
+
+  /**
+   * The total time spent in each phase, in nanoseconds
+   */
+  private Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+
+  /**
+   * The phase that is currently being timed
+   */
+  private String currentPhase = null;
+
+  /**
+   * The time at which the current phase started, in nanoseconds
+   */
+  private long phaseStart = 0;
+
+  /**
+   * The time at which the job started, in nanoseconds
+   */
+  private long startTime = 0;
+
+  /**
+   * The time at which the job finished, in nanoseconds
+   */
+  private long endTime = 0;
+
+  /**
+   * The number of rows processed by the job
+   */
+  private long rows = 0;
+
+  /**
+   * The number of database statements executed by the job
+   */
+  private AtomicLong statements = new AtomicLong(0);
+
+  /**
+   * The number of statements added to database batches by the job
+   */
+  private AtomicLong batchedStatements = new AtomicLong(0);
+
+  /**
+   * Record that the job has started
+   */
+  protected void start() {
+    startTime = System.nanoTime();
+  }
+
+  /**
+   * Record that the job has finished. Any phase
+   * that is being timed is ended.
+   */
+  protected void finish() {
+    endPhase();
+    endTime = System.nanoTime();
+  }
+
+  /**
+   * Start timing a phase. If another phase is being timed, it is ended.
+   * The times for a phase are added together if it is started more than once.
+   * @param phase The phase
+   */
+  public void startPhase(String phase) {
+    endPhase();
+    currentPhase = phase;
+    phaseStart = System.nanoTime();
+  }
+
+  /**
+   * Stop timing the current phase
+   */
+  public void endPhase() {
+    if (null != currentPhase) {
+      Long time = phaseTimes.get(currentPhase);
+      phaseTimes.put(currentPhase, (null == time ? 0 : time) + System.nanoTime() - phaseStart);
+      currentPhase = null;
+    }
+  }
+
+  /**
+   * Add to the number of rows processed by the job
+   * @param count The number of rows
+   */
+  public void addRows(long count) {
+    rows += count;
+  }
+
+  /**
+   * Get the number of rows processed by the job
+   * @return The number of rows
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * Get the number of database statements executed by the job
+   * @return The number of statements
+   */
+  public long getStatements() {
+    return statements.get();
+  }
+
+  /**
+   * Get the time that the job has been running, in milliseconds
+   * @return The running time
+   */
+  public long getRunTime() {
+    long end = endTime == 0 ? System.nanoTime() : endTime;
+    return startTime == 0 ? 0 : (end - startTime) / 1000000;
+  }
+
+  /**
+   * Get the number of rows processed per second of running time
+   * @return The number of rows per second
+   */
+  public double getRowsPerSecond() {
+    return rows / (Math.max(getRunTime(), 1) / 1000.0);
+  }
+
+  /**
+   * Get the metrics as a JSON string
+   * @return The JSON string
+   */
+  public String toJson() {
+    JSONObject json = new JSONObject();
+    json.put("runTime", getRunTime());
+    json.put("rows", rows);
+    json.put("rowsPerSecond", Math.round(getRowsPerSecond()));
+    json.put("statements", statements.get());
+    json.put("batchedStatements", batchedStatements.get());
+
+    JSONObject phases = new JSONObject();
+    for (Map.Entry<String, Long> phase : phaseTimes.entrySet()) {
+      phases.put(phase.getKey(), phase.getValue() / 1000000);
+    }
+    json.put("phases", phases);
+
+    return json.toString();
+  }
+
+  /**
+   * Wrap a data source so that all statements executed on its
+   * connections are counted in these metrics
+   * @param dataSource The data source
+   * @return The wrapped data source
+   */
+  protected DataSource countStatements(DataSource dataSource) {
+    return wrap(DataSource.class, dataSource);
+  }
+
+  /**
+   * Wrap a JDBC object in a proxy that counts statements
+   * @param <T> The JDBC interface
+   * @param type The JDBC interface
+   * @param target The object to be wrapped
+   * @return The wrapped object
+   */
+  private <T> T wrap(Class<T> type, T target) {
+    return type.cast(Proxy.newProxyInstance(JobMetrics.class.getClassLoader(), new Class<?>[] {type}, new CountingHandler(target)));
+  }
+
+  /**
+   * Proxy handler that wraps the connections and statements created
+   * by a JDBC object, and counts the statements that are executed
+   */
+  private class CountingHandler implements InvocationHandler {
+
+    /**
+     * The wrapped object
+     */
+    private Object target;
+
+    /**
+     * Create the handler
+     * @param target The wrapped object
+     */
+    private CountingHandler(Object target) {
+      this.target = target;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      Object result;
+
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+
+      String name = method.getName();
+
+      if (result instanceof Connection) {
+        result = wrap(Connection.class, (Connection) result);
+      } else if (result instanceof CallableStatement) {
+        result = wrap(CallableStatement.class, (CallableStatement) result);
+      } else if (result instanceof PreparedStatement) {
+        result = wrap(PreparedStatement.class, (PreparedStatement) result);
+      } else if (result instanceof Statement) {
+        result = wrap(Statement.class, (Statement) result);
+      } else if (target instanceof Statement) {
+        if (name.startsWith("execute")) {
+          statements.incrementAndGet();
+        } else if (name.equals("addBatch")) {
+          batchedStatements.incrementAndGet();
+        }
+      }
+
+      return result;
+    }
+  }
+}
@@ -7,7 +7,16 @@ import uk.ac.exeter.QuinCe.utils.BackgroundTaskException;
 import uk.ac.exeter.QuinCe.web.system.ResourceManager;
 
 /**
- * Monitors the job queue and runs jobs if needed
+ * Safety net for the job queue.
+ *
+ * <p>
+ *   Jobs are normally started by the {@link JobDispatcher} as soon as they
+ *   are queued. This task periodically records this node's heartbeat,
+ *   requeues jobs that were interrupted on this node or belong to nodes
+ *   that have stopped, and signals the dispatcher in case any waiting
+ *   jobs were missed.
+ * </p>
+ *
  * @author Steve Jones
  *
  */
@@ -16,26 +25,19 @@ public class JobRunScheduler extends BackgroundTask {
 
   protected void doTask() throws BackgroundTaskException {
     ResourceManager resourceManager = ResourceManager.getInstance();
-    try {
-      JobManager.resetInterruptedJobs(resourceManager);
-    } catch (Exception e) {
-      // We don't mind if this fails.
-    }
 
     try {
+      JobManager.sendNodeHeartbeat(resourceManager);
       JobManager.resetInterruptedJobs(resourceManager);
-
-      boolean ranJob = true;
-      while (ranJob) {
-        ranJob = JobManager.startNextJob(resourceManager, resourceManager.getConfig());
-      }
     } catch (Exception e) {
       throw new BackgroundTaskException(e);
+    } finally {
+      JobDispatcher.signal();
     }
   }
 
   @Override
   protected long getRunInterval() {
-    return 15;
+    return 60;
   }
 }
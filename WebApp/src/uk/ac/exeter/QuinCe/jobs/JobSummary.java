@@ -3,6 +3,7 @@ package uk.ac.exeter.QuinCe.jobs;
 import java.util.Date;
 
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.primefaces.json.JSONObject;
 
 import uk.ac.exeter.QuinCe.User.User;
 
@@ -63,6 +64,11 @@ public class JobSummary {
    */
   private String stackTrace;
 
+  /**
+   * The performance metrics for the job, as a JSON string
+   */
+  private String metrics;
+
   /**
    * Basic constructor - simply takes in all values for the summary
    * @param id The job's database ID
@@ -74,9 +80,10 @@ public class JobSummary {
    * @param ended The date/time that the job finished
    * @param progress The current progress of the job
    * @param stackTrace The stack trace for the job
+   * @param metrics The performance metrics for the job
    */
   @Deprecated
-  public JobSummary(long id, User owner, String className, Date created, String status, Date started, Date ended, double progress, String stackTrace) {
+  public JobSummary(long id, User owner, String className, Date created, String status, Date started, Date ended, double progress, String stackTrace, String metrics) {
     this.id = id;
     this.owner = owner;
     this.className = className;
@@ -86,6 +93,7 @@ public class JobSummary {
     this.ended = ended;
     this.progress = progress;
     this.stackTrace = stackTrace;
+    this.metrics = metrics;
   }
 
   /**
@@ -177,4 +185,50 @@ public class JobSummary {
 
     return result;
   }
+
+  /**
+   * Get the time that the job waited in the queue before it started
+   * @return The queue wait in seconds, or {@code -1} if the job has not started
+   */
+  public long getQueueWait() {
+    return null == started ? -1 : (started.getTime() - created.getTime()) / 1000;
+  }
+
+  /**
+   * Get the performance metrics for the job as a JSON string
+   * @return The metrics, or {@code null} if the job has not finished
+   * @see JobMetrics#toJson()
+   */
+  public String getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Get a short summary of the job's performance metrics for display
+   * @return The summary, or an empty string if there are no metrics
+   */
+  public String getMetricsSummary() {
+    StringBuilder result = new StringBuilder();
+
+    if (null != metrics) {
+      JSONObject json = new JSONObject(metrics);
+      result.append(json.getLong("rows"));
+      result.append(" rows (");
+      result.append(json.getLong("rowsPerSecond"));
+      result.append("/s), ");
+      result.append(json.getLong("statements"));
+      result.append(" statements");
+
+      JSONObject phases = json.getJSONObject("phases");
+      for (String phase : phases.keySet()) {
+        result.append(", ");
+        result.append(phase);
+        result.append(' ');
+        result.append(phases.getLong(phase));
+        result.append("ms");
+      }
+    }
+
+    return result.toString();
+  }
 }
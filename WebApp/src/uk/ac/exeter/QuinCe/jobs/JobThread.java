@@ -1,82 +1,163 @@
 package uk.ac.exeter.QuinCe.jobs;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
 import uk.ac.exeter.QuinCe.utils.MissingParam;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 
 /**
- * A thread object that is used to run a job.
+ * Runs a single job on one of the {@link JobThreadPool}'s threads.
+ *
+ * <p>
+ *   Each job thread is used once. Jobs can call {@link #isInterrupted()}
+ *   to see whether they have been asked to stop.
+ * </p>
+ *
  * @author Steve Jones
  *
  */
-public class JobThread extends Thread implements Comparable<JobThread> {
+public class JobThread implements Runnable, Comparable<JobThread> {
 
   /**
-   * The name set on any thread that is in the stack waiting to run
+   * The name set on any thread that is not yet running a job
    */
   private static final String WAITING_THREAD_NAME = "waiting";
 
+  /**
+   * Source of unique IDs for job threads
+   */
+  private static final AtomicLong nextId = new AtomicLong(0);
+
+  /**
+   * The unique ID of this job thread
+   */
+  private long id;
+
+  /**
+   * The name of this job thread, which is stored in the database
+   * for the job it is running
+   */
+  private volatile String name = WAITING_THREAD_NAME;
+
   /**
    * The object that will run the job
    */
   private Job job;
 
   /**
-   * Indicates whether or not this is an overflow thread.
-   * Overflow threads are not returned to the stack, but are destroyed
-   * once they have completed.
+   * The database ID of the job
    */
-  private boolean overflowThread;
+  private long jobId;
 
   /**
-   * Creates a job thread
-   * @param overflowThread Indicates whether or not this is an overflow thread
+   * The pool lane in which the job runs
    */
-  public JobThread(boolean overflowThread) {
-    this.overflowThread = overflowThread;
-    setName(WAITING_THREAD_NAME);
-  }
+  private JobThreadPool.Lane lane;
 
   /**
-   * Sets up the job that this thread will run.
+   * The pool thread that is running the job, or {@code null}
+   * if the job is not running
+   */
+  private Thread runningThread = null;
+
+  /**
+   * Indicates whether or not the job has been asked to stop
+   */
+  private volatile boolean interrupted = false;
+
+  /**
+   * Released once the job's status has left {@link Job#WAITING_STATUS}
+   * in the database, either because it has started or because it failed
+   */
+  private CountDownLatch startLatch = new CountDownLatch(1);
+
+  /**
+   * Creates a job thread
+   * @param lane The pool lane in which the job will run
    * @param job The job
    * @throws MissingParamException If any required parameters are missing
    */
-  public void setupJob(Job job) throws MissingParamException {
+  protected JobThread(JobThreadPool.Lane lane, Job job) throws MissingParamException {
+    MissingParam.checkMissing(lane, "lane");
     MissingParam.checkMissing(job, "job");
+    this.id = nextId.incrementAndGet();
+    this.lane = lane;
     this.job = job;
+    this.jobId = job.getID();
   }
 
   /**
-   * Reset this job thread so it can be returned to the job pool.
+   * Reset this job thread once its job has finished.
    */
   protected void reset() {
     setName(WAITING_THREAD_NAME);
     job.destroy();
-    job = null;
   }
 
   /**
-   * Checks whether or not this is an overflow thread, and therefore
-   * whether it should be destroyed when finished with or returned to the thread pool
-   * @return {@code true} if it is an overflow thread; {@code false} if it is not
+   * Get the pool lane in which the job runs
+   * @return The lane
+   */
+  protected JobThreadPool.Lane getLane() {
+    return lane;
+  }
+
+  /**
+   * Get the database ID of the job run by this thread
+   * @return The job ID
+   */
+  public long getJobId() {
+    return jobId;
+  }
+
+  /**
+   * Get the name of this job thread
+   * @return The name
    */
-  protected boolean isOverflowThread() {
-    return overflowThread;
+  public String getName() {
+    return name;
   }
 
   /**
-   * Start the thread and run the job.
+   * Set the name of this job thread
+   * @param name The name
+   */
+  protected void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Start running the job on a pool thread
+   */
+  public void start() {
+    lane.execute(this);
+  }
+
+  /**
+   * Run the job.
    * When finished the thread will return itself to the thread pool
    */
   public void run() {
+    synchronized (this) {
+      runningThread = Thread.currentThread();
+      if (interrupted) {
+        runningThread.interrupt();
+      }
+    }
+
     try {
-      setName(String.valueOf(job.getID()) + '_' + System.currentTimeMillis());
+      setName(String.valueOf(jobId) + '_' + System.currentTimeMillis());
 
       // Run the job
       job.setFinishState(Job.FINISHED_STATUS);
       job.setProgress(0);
       job.logStarted(getName());
+      startLatch.countDown();
+
+      job.getMetrics().start();
       job.execute(this);
+      job.getMetrics().finish();
 
       switch (job.getFinishState()) {
       case (Job.KILLED_STATUS):
@@ -100,30 +181,72 @@ public class JobThread extends Thread implements Comparable<JobThread> {
         e.printStackTrace();
       }
     } finally {
-      job.destroy();
-      setName(WAITING_THREAD_NAME);
+      // If the job failed before it was logged as started, its error
+      // status has now been recorded
+      startLatch.countDown();
+
+      try {
+        job.logMetrics();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+
+      // The pool thread will be used for other jobs, so
+      // make sure it doesn't carry over an interruption
+      synchronized (this) {
+        runningThread = null;
+        Thread.interrupted();
+      }
+
       try {
         // Return ourselves to the thread pool
         JobThreadPool.getInstance().returnThread(this);
       } catch (JobThreadPoolNotInitialisedException e) {
         // If the thread pool is gone, what happens to this thread
         // is irrelevant.
+        reset();
       }
+
+      // A thread is now free, and this job may have queued
+      // another, so see if anything else can be run
+      JobDispatcher.signal();
     }
   }
 
+  /**
+   * Wait until the job's status has been updated in the database
+   * after the thread has been started
+   * @throws InterruptedException If the current thread is interrupted while waiting
+   */
+  protected void awaitStarted() throws InterruptedException {
+    startLatch.await();
+  }
+
   @Override
   public int compareTo(JobThread o) {
-    return Long.signum(getId() - o.getId());
+    return Long.signum(id - o.id);
+  }
+
+  /**
+   * Determine whether or not the job has been asked to stop
+   * @return {@code true} if the job should stop; {@code false} otherwise
+   */
+  public boolean isInterrupted() {
+    return interrupted;
   }
 
   /**
    * Stop the job immediately, and set its status is {@link Job#KILLED_STATUS}.
    */
-  @Override
   public void interrupt() {
-    // Do the standard thread interruption
-    super.interrupt();
+    synchronized (this) {
+      interrupted = true;
+
+      // Interrupt the pool thread so that any blocking calls are stopped
+      if (null != runningThread) {
+        runningThread.interrupt();
+      }
+    }
 
     // Set the finish state on the job to KILLED
     try {
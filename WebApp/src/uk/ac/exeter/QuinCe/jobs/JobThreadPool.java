@@ -1,18 +1,30 @@
 package uk.ac.exeter.QuinCe.jobs;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Stack;
+import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 
 /**
  * Thread pool for background jobs.
- * The pool has a maximum number of threads. However,
- * high priority jobs will always be given a thread,
- * so the true number of threads may occasionally be
- * larger. Any extra threads will be destroyed when
- * they are finished.
+ *
+ * <p>
+ *   Jobs are run in one of two lanes, each of which has a fixed maximum
+ *   number of threads. Jobs from the queue are run in the queued lane.
+ *   Instant jobs, which a user is waiting for, are run in the instant lane
+ *   so that they are not held up by long running jobs from the queue. If the
+ *   instant lane is full, an instant job can borrow a free thread from the
+ *   queued lane. The total number of threads can never be larger than the
+ *   sizes of the two lanes combined.
+ * </p>
  *
  * @author Steve Jones
  *
@@ -29,20 +41,25 @@ public class JobThreadPool {
    */
   public static final int THREAD_INTERRUPTED = 1;
 
+  /**
+   * The number of seconds that idle threads are kept before being destroyed
+   */
+  private static final long IDLE_THREAD_TIMEOUT = 60;
+
   /**
    * The singleton instance of the thread pool
    */
   private static JobThreadPool instance = null;
 
   /**
-   * The maximum number of threads in the pool
+   * The lane for jobs taken from the queue
    */
-  private int maxThreads;
+  private Lane queuedLane;
 
   /**
-   * The pool of idle job threads
+   * The lane for instant jobs
    */
-  private Stack<JobThread> threads = new Stack<JobThread>();
+  private Lane instantLane;
 
   /**
    * The set of threads that are currently busy running jobs
@@ -50,98 +67,85 @@ public class JobThreadPool {
   private Collection<JobThread> allocatedThreads = new TreeSet<JobThread>();
 
   /**
-   * Creates the thread pool and fills it with waiting job threads
-   * @param maxThreads The maximum number of threads in the pool
+   * Creates the thread pool
+   * @param maxThreads The maximum number of threads for queued jobs
+   * @param instantThreads The maximum number of threads for instant jobs
    */
-  private JobThreadPool(int maxThreads) {
-    this.maxThreads = maxThreads;
-
-    synchronized(threads) {
-      for (int i = 0; i < maxThreads; i++) {
-        threads.push(new JobThread(false));
-      }
-    }
+  private JobThreadPool(int maxThreads, int instantThreads) {
+    queuedLane = new Lane("Job", maxThreads);
+    instantLane = new Lane("Instant job", instantThreads);
   }
 
   /**
-   * Retrieves a job thread from the pool and configures it ready to execute a job.
-   * If there are no available threads in the stack, {@code null} is returned.
+   * Retrieves a job thread from the queued lane and configures it ready to execute a job.
+   * If the lane has no free threads, {@code null} is returned.
    *
    * @param job The job to be executed
-   * @return A configured job thread, or {@code null} if the thread stack is empty
+   * @return A configured job thread, or {@code null} if there are no free threads
    * @throws MissingParamException If any of the required parameters are null
   */
   public JobThread getJobThread(Job job) throws MissingParamException {
 
     JobThread thread = null;
 
-    synchronized(threads) {
-      if (!threads.isEmpty()) {
-        thread = threads.pop();
+    if (queuedLane.acquire()) {
+      thread = new JobThread(queuedLane, job);
+      synchronized(allocatedThreads) {
         allocatedThreads.add(thread);
       }
     }
 
-    if (null != thread) {
-      thread.setupJob(job);
-    }
-
-
     return thread;
   }
 
   /**
-   * Returns the number of threads available in the pool
-   * @return The number of threads available in the pool
+   * Returns the number of free threads in the queued lane
+   * @return The number of free threads in the queued lane
    */
   public int getAvailableThreads() {
-    return threads.size();
+    return queuedLane.getAvailableThreads();
   }
 
   /**
-   * Retrieves a job thread from the pool and configures it ready to execute a job.
-   * If there are no available threads in the stack, an overflow thread is created instead.
-   * The overflow thread will not be returned to the stack when the job is finished.
-   * This method should only be used for high priority jobs that cannot wait for a
-   * normal thread to become available.
+   * Retrieves a job thread from the instant lane and configures it ready to execute a job.
+   * If the instant lane is full, a free thread from the queued lane is used instead.
+   * If there are no free threads in either lane, {@code null} is returned and the job
+   * must wait in the queue.
    *
    * @param job The job to be executed
-   * @return A configured job thread
+   * @return A configured job thread, or {@code null} if there are no free threads
    * @throws MissingParamException If any of the required parameters are null
    */
   public JobThread getInstantJobThread(Job job) throws MissingParamException {
 
     JobThread thread = null;
 
-    synchronized(threads) {
-      if (!threads.isEmpty()) {
-        thread = threads.pop();
-      } else {
-        thread = new JobThread(true);
-      }
-
-      allocatedThreads.add(thread);
+    if (instantLane.acquire()) {
+      thread = new JobThread(instantLane, job);
+    } else if (queuedLane.acquire()) {
+      thread = new JobThread(queuedLane, job);
     }
 
-    thread.setupJob(job);
-    thread.setName("Instant job thread (not yet started)");
+    if (null != thread) {
+      thread.setName("Instant job thread (not yet started)");
+      synchronized(allocatedThreads) {
+        allocatedThreads.add(thread);
+      }
+    }
 
     return thread;
-
   }
 
   /**
-   * Returns a job thread to the stack ready for another job.
-   * If the thread is an overflow thread, it is not returned to the stack.
-   * @param thread The thread to be returned.
+   * Release the pool thread used by a job thread so it can run another job.
+   * @param thread The job thread
    */
   public void returnThread(JobThread thread) {
     thread.reset();
 
-    synchronized(threads) {
-      allocatedThreads.remove(thread);
-      if (!thread.isOverflowThread() && threads.size() < maxThreads) {
-        threads.push(new JobThread(false));
+    synchronized(allocatedThreads) {
+      if (allocatedThreads.remove(thread)) {
+        thread.getLane().release();
       }
     }
   }
@@ -157,21 +161,21 @@ public class JobThreadPool {
   }
 
   /**
-   * Initialise the job thread pool with the specified maximum number of threads.
-   * Calling this method when the pool has already been initialised will replace the
-   * existing instance.
+   * Initialise the job thread pool with the specified numbers of threads.
+   * Calling this method when the pool has already been initialised has no effect.
    *
-   * @param maxThreads The maximum number of threads in the pool
-   * @throws InvalidThreadCountException If the number of threads is zero or negative
+   * @param maxThreads The maximum number of threads for queued jobs
+   * @param instantThreads The maximum number of threads for instant jobs
+   * @throws InvalidThreadCountException If either number of threads is zero or negative
    */
-  public static void initialise(int maxThreads) throws InvalidThreadCountException {
+  public static void initialise(int maxThreads, int instantThreads) throws InvalidThreadCountException {
 
-    if (maxThreads <= 0) {
+    if (maxThreads <= 0 || instantThreads <= 0) {
       throw new InvalidThreadCountException();
     }
 
     if (null == instance) {
-      instance = new JobThreadPool(maxThreads);
+      instance = new JobThreadPool(maxThreads, instantThreads);
     }
   }
 
@@ -189,26 +193,31 @@ public class JobThreadPool {
   }
 
   /**
-   * Destroy the thread pool
+   * Destroy the thread pool. Running jobs are allowed to finish,
+   * but no new jobs can be started.
    */
   public static void destroy() {
-    instance = null;
+    if (null != instance) {
+      instance.queuedLane.shutdown();
+      instance.instantLane.shutdown();
+      instance = null;
+    }
   }
 
   /**
-   * Get the number of idle threads in the pool
-   * @return The number of idle threads in the pool
+   * Get the number of idle threads in the queued lane
+   * @return The number of idle threads in the queued lane
    */
   public int getPoolThreadCount() {
-    return threads.size();
+    return queuedLane.getAvailableThreads();
   }
 
   /**
-   * Get the maximum number of threads in the pool
-   * @return The maximum number of threads in the pool
+   * Get the maximum number of threads in the queued lane
+   * @return The maximum number of threads in the queued lane
    */
   public int getMaxThreads() {
-    return maxThreads;
+    return queuedLane.getMaxThreads();
   }
 
   /**
@@ -216,25 +225,18 @@ public class JobThreadPool {
    * @return The number of running threads
    */
   public int getRunningThreadsCount() {
-    return allocatedThreads.size();
+    synchronized(allocatedThreads) {
+      return allocatedThreads.size();
+    }
   }
 
   /**
-   * Get the number of overflow threads. These are threads
-   * that have been created for high priority jobs in excess
-   * of the maximum thread count.
-   * @return The number of overflow threads
+   * Get the number of threads running instant jobs in the instant lane.
+   * These are in addition to the threads in the queued lane.
+   * @return The number of running instant threads
    */
   public int getOverflowThreadsCount() {
-    int overflowThreads = 0;
-
-    for (JobThread thread : allocatedThreads) {
-      if (thread.isOverflowThread()) {
-        overflowThreads++;
-      }
-    }
-
-    return overflowThreads;
+    return instantLane.getMaxThreads() - instantLane.getAvailableThreads();
   }
 
   /**
@@ -249,10 +251,12 @@ public class JobThreadPool {
   public boolean isThreadRunning(String threadName) {
     boolean threadRunning = false;
 
-    for (JobThread thread : allocatedThreads) {
-      if (thread.getName().equals(threadName)) {
-        threadRunning = true;
-        break;
+    synchronized(allocatedThreads) {
+      for (JobThread thread : allocatedThreads) {
+        if (thread.getName().equals(threadName)) {
+          threadRunning = true;
+          break;
+        }
       }
     }
 
@@ -279,20 +283,138 @@ public class JobThreadPool {
   public int killJob(long jobId) {
 
     int result = THREAD_NOT_RUNNING;
+    List<JobThread> jobThreads = new ArrayList<JobThread>();
 
     // We don't want the list of allocated threads changing underneath us
     synchronized (allocatedThreads) {
-
       for (JobThread thread : allocatedThreads) {
-        if (thread.getId() == jobId) {
-          // Interrupt the thread
-          thread.interrupt();
-          result = THREAD_INTERRUPTED;
-          break;
+        if (thread.getJobId() == jobId) {
+          jobThreads.add(thread);
         }
       }
     }
 
+    // Interrupt outside the lock, since the job may try to return its thread
+    for (JobThread thread : jobThreads) {
+      thread.interrupt();
+      result = THREAD_INTERRUPTED;
+    }
+
     return result;
   }
+
+  /**
+   * A set of threads with a fixed maximum size. Threads are only
+   * created when needed, and are destroyed after they have been
+   * idle for {@link JobThreadPool#IDLE_THREAD_TIMEOUT} seconds.
+   */
+  protected static class Lane {
+
+    /**
+     * The maximum number of threads in the lane
+     */
+    private int maxThreads;
+
+    /**
+     * The executor that runs the lane's threads
+     */
+    private ThreadPoolExecutor executor;
+
+    /**
+     * One permit for each thread that is not running a job
+     */
+    private Semaphore freeThreads;
+
+    /**
+     * Create a lane
+     * @param name The name of the lane, used to name its threads
+     * @param maxThreads The maximum number of threads in the lane
+     */
+    private Lane(String name, int maxThreads) {
+      this.maxThreads = maxThreads;
+      freeThreads = new Semaphore(maxThreads);
+
+      executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(name));
+      executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reserve a thread in the lane
+     * @return {@code true} if a thread was reserved; {@code false} if the lane is full
+     */
+    private boolean acquire() {
+      return freeThreads.tryAcquire();
+    }
+
+    /**
+     * Release a thread reserved by {@link #acquire()}
+     */
+    private void release() {
+      freeThreads.release();
+    }
+
+    /**
+     * Run a job thread in the lane. A thread must have been reserved
+     * with {@link #acquire()} first.
+     * @param thread The job thread
+     */
+    protected void execute(JobThread thread) {
+      executor.execute(thread);
+    }
+
+    /**
+     * Get the number of threads that are not running jobs
+     * @return The number of free threads
+     */
+    private int getAvailableThreads() {
+      return freeThreads.availablePermits();
+    }
+
+    /**
+     * Get the maximum number of threads in the lane
+     * @return The maximum number of threads
+     */
+    private int getMaxThreads() {
+      return maxThreads;
+    }
+
+    /**
+     * Stop accepting new jobs. Running jobs are allowed to finish.
+     */
+    private void shutdown() {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Creates named daemon threads for a lane
+   */
+  private static class LaneThreadFactory implements ThreadFactory {
+
+    /**
+     * The name of the lane
+     */
+    private String name;
+
+    /**
+     * The number of threads created so far
+     */
+    private AtomicInteger threadCount = new AtomicInteger(0);
+
+    /**
+     * Create the factory
+     * @param name The name of the lane
+     */
+    private LaneThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name + " thread " + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
 }
@@ -4,7 +4,7 @@ package uk.ac.exeter.QuinCe.jobs;
  * Exception thrown when an attempt is made to access the
  * {@link JobThreadPool} before it has been initialised.
  * @author Steve Jones
- * @see JobThreadPool#initialise(int)
+ * @see JobThreadPool#initialise(int, int)
  */
 public class JobThreadPoolNotInitialisedException extends Exception {
 
@@ -0,0 +1,87 @@
+package uk.ac.exeter.QuinCe.jobs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only statistics on how long jobs wait in the queue
+ * before they are run, for each job priority.
+ *
+ * @author Steve Jones
+ * @see JobManager#getQueueWaitStatistics(javax.sql.DataSource, int)
+ */
+public class QueueWaitStatistics {
+
+  /**
+   * The number of jobs waiting in the queue
+   */
+  private Map<Integer, Integer> queuedCounts = new HashMap<Integer, Integer>();
+
+  /**
+   * The time that the oldest job in the queue has been waiting, in seconds
+   */
+  private Map<Integer, Long> longestWaits = new HashMap<Integer, Long>();
+
+  /**
+   * The average time that recently started jobs waited in the queue, in seconds
+   */
+  private Map<Integer, Double> meanStartedWaits = new HashMap<Integer, Double>();
+
+  /**
+   * Create an empty set of statistics
+   */
+  protected QueueWaitStatistics() {
+    // Nothing to do
+  }
+
+  /**
+   * Set the statistics for the jobs in the queue with a given priority
+   * @param priority The priority
+   * @param count The number of jobs in the queue
+   * @param longestWait The time that the oldest job has been waiting, in seconds
+   */
+  protected void setQueued(int priority, int count, long longestWait) {
+    queuedCounts.put(priority, count);
+    longestWaits.put(priority, longestWait);
+  }
+
+  /**
+   * Set the statistics for recently started jobs with a given priority
+   * @param priority The priority
+   * @param meanWait The average time that the jobs waited in the queue, in seconds
+   */
+  protected void setStarted(int priority, double meanWait) {
+    meanStartedWaits.put(priority, meanWait);
+  }
+
+  /**
+   * Get the number of jobs with a given priority waiting in the queue
+   * @param priority The priority
+   * @return The number of jobs
+   */
+  public int getQueuedCount(int priority) {
+    Integer count = queuedCounts.get(priority);
+    return null == count ? 0 : count;
+  }
+
+  /**
+   * Get the time that the oldest job with a given priority has been waiting in the queue
+   * @param priority The priority
+   * @return The waiting time in seconds, or zero if there are no jobs in the queue
+   */
+  public long getLongestWait(int priority) {
+    Long wait = longestWaits.get(priority);
+    return null == wait ? 0 : wait;
+  }
+
+  /**
+   * Get the average time that recently started jobs with a given
+   * priority waited in the queue
+   * @param priority The priority
+   * @return The average waiting time in seconds, or {@link Double#NaN} if no jobs have started
+   */
+  public double getMeanStartedWait(int priority) {
+    Double wait = meanStartedWaits.get(priority);
+    return null == wait ? Double.NaN : wait;
+  }
+}
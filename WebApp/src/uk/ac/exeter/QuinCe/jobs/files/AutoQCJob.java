@@ -10,23 +10,21 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import uk.ac.exeter.QCRoutines.config.RoutinesConfig;
 import uk.ac.exeter.QCRoutines.data.DataRecord;
-import uk.ac.exeter.QCRoutines.data.InvalidDataException;
-import uk.ac.exeter.QCRoutines.data.NoSuchColumnException;
 import uk.ac.exeter.QCRoutines.messages.Flag;
 import uk.ac.exeter.QCRoutines.messages.Message;
-import uk.ac.exeter.QCRoutines.messages.MessageException;
 import uk.ac.exeter.QCRoutines.routines.Routine;
+import uk.ac.exeter.QuinCe.data.Calculation.AutoQCResult;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDBFactory;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecord;
-import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecordFactory;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
-import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
 import uk.ac.exeter.QuinCe.jobs.InvalidJobParametersException;
 import uk.ac.exeter.QuinCe.jobs.Job;
 import uk.ac.exeter.QuinCe.jobs.JobFailedException;
 import uk.ac.exeter.QuinCe.jobs.JobManager;
+import uk.ac.exeter.QuinCe.jobs.JobMetrics;
 import uk.ac.exeter.QuinCe.jobs.JobThread;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
 import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
@@ -105,6 +103,11 @@ public class AutoQCJob extends Job {
    */
   private final String jobName = "Automatic Quality Control";
 
+  /**
+   * The number of records whose QC details are written to the database in each batch
+   */
+  private static final int STORE_BATCH_SIZE = 1000;
+
   /**
    * Constructor that allows the {@link JobManager} to create an instance of this job.
    * @param resourceManager The application's resource manager
@@ -141,10 +144,11 @@ public class AutoQCJob extends Job {
 
       CalculationDB calculationDB = CalculationDBFactory.getCalculationDB();
 
-      // TODO This should be replaced with something that gets all the records in one query.
-      //      This will need changes to how the CalculationRecords are built
-      List<Long> measurementIds = DataSetDataDB.getMeasurementIds(conn, datasetId);
-      List<? extends DataRecord> records = getRecords(conn, datasetId, measurementIds);
+      metrics.startPhase(JobMetrics.LOAD_PHASE);
+      List<? extends DataRecord> records = getRecords(conn, calculationDB, dataSet);
+      metrics.addRows(records.size());
+
+      metrics.startPhase(JobMetrics.COMPUTE_PHASE);
 
       // Remove any existing automatic QC flags or records
       for (DataRecord record : records) {
@@ -157,91 +161,76 @@ public class AutoQCJob extends Job {
         routine.processRecords((List<DataRecord>) records, null);
       }
 
-      // Record the messages from the QC in the database
-      conn = dataSource.getConnection();
+      // Record the messages from the QC in the database. Only records
+      // whose QC details have changed are written. The changed records
+      // are committed in chunks, each with a checkpoint so the job can be resumed.
       conn.setAutoCommit(false);
-      for (DataRecord record : records) {
+      Map<Long, AutoQCResult> previousResults = calculationDB.getAutoQCResults(conn, datasetId);
+      List<CalculationRecord> changedRecords = new ArrayList<CalculationRecord>(STORE_BATCH_SIZE);
+      long updatedCount = 0;
+
+      // If a previous run of this job was interrupted, the records
+      // up to its checkpoint have already been written
+      int firstRecord = 0;
+      long checkpoint = getCheckpoint();
+      if (checkpoint != NO_CHECKPOINT) {
+        for (int i = 0; i < records.size(); i++) {
+          if (records.get(i).getLineNumber() == checkpoint) {
+            firstRecord = i + 1;
+            System.out.println("Job " + id + ": Resuming after measurement " + checkpoint);
+            break;
+          }
+        }
+      }
+
+      for (int recordIndex = firstRecord; recordIndex < records.size(); recordIndex++) {
 
         if (thread.isInterrupted()) {
           break;
         }
 
-        CalculationRecord qcRecord = (CalculationRecord) record;
-        boolean writeRecord = false;
-
-        int messageCount = qcRecord.getMessages().size();
+        metrics.startPhase(JobMetrics.COMPUTE_PHASE);
+        CalculationRecord qcRecord = (CalculationRecord) records.get(recordIndex);
 
-        Flag previousQCFlag = calculationDB.getAutoQCFlag(conn, qcRecord.getLineNumber());
-        if (previousQCFlag.equals(Flag.NOT_SET)) {
-          writeRecord = true;
+        AutoQCResult previousResult = previousResults.get(qcRecord.getLineNumber());
+        if (null == previousResult) {
+          throw new RecordNotFoundException("Cannot find calculation record", calculationDB.getCalculationTable(), qcRecord.getLineNumber());
         }
 
-        if (messageCount == 0) {
-          if (!previousQCFlag.isGood()) {
-            qcRecord.setAutoFlag(Flag.GOOD);
-            qcRecord.setUserFlag(Flag.ASSUMED_GOOD);
-            qcRecord.setUserMessage(null);
-            writeRecord = true;
-          } else {
-            Flag userFlag = qcRecord.getUserFlag();
-            if (!userFlag.equals(Flag.ASSUMED_GOOD) && !userFlag.equals(Flag.GOOD)) {
-              qcRecord.setUserFlag(Flag.ASSUMED_GOOD);
-              qcRecord.setUserMessage(null);
-              writeRecord = true;
-            }
-          }
-        } else {
+        boolean writeRecord = applyQcFlags(qcRecord, previousResult);
 
-          // Compare the QC comment (which is the Rebuild Codes for the
-          // messages) with the new rebuild codes. If they're the same,
-          // take no action. Otherwise reset the QC & WOCE flags and comments
-          boolean messagesMatch = true;
-          List<Message> databaseMessages = calculationDB.getQCMessages(conn, qcRecord.getLineNumber());
-          if (databaseMessages.size() != qcRecord.getMessages().size()) {
-            messagesMatch = false;
-          } else {
-            for (int i = 0; i < databaseMessages.size() && messagesMatch; i++) {
-              Message databaseMessage = databaseMessages.get(i);
-              boolean databaseMessageFound = false;
-              for (Message recordMessage : qcRecord.getMessages()) {
-                if (recordMessage.equals(databaseMessage)) {
-                  databaseMessageFound = true;
-                  break;
-                }
-              }
-
-              if (!databaseMessageFound) {
-                messagesMatch = false;
-              }
-            }
-          }
-
-          if (!messagesMatch) {
-            if (qcRecord.getAutoFlag().equals(Flag.FATAL)) {
-              qcRecord.setUserFlag(Flag.FATAL);
-            } else {
-              qcRecord.setUserFlag(Flag.NEEDED);
-            }
-            qcRecord.setUserMessage(qcRecord.getMessageSummaries());
-            writeRecord = true;
-          }
+        if (writeRecord) {
+          changedRecords.add(qcRecord);
         }
 
-        if (writeRecord) {
-          calculationDB.storeQC(conn, (CalculationRecord) record);
+        if (changedRecords.size() == STORE_BATCH_SIZE) {
+          metrics.startPhase(JobMetrics.WRITE_PHASE);
+          calculationDB.storeQC(conn, changedRecords, STORE_BATCH_SIZE);
+          updatedCount += changedRecords.size();
+          changedRecords.clear();
+          commitCheckpoint(conn, qcRecord.getLineNumber(), 100.0 * (recordIndex + 1) / records.size());
         }
       }
 
-      // If the thread was interrupted, undo everything
+      if (!thread.isInterrupted()) {
+        metrics.startPhase(JobMetrics.WRITE_PHASE);
+        calculationDB.storeQC(conn, changedRecords, STORE_BATCH_SIZE);
+        updatedCount += changedRecords.size();
+        System.out.println("Job " + id + ": Updated QC for " + updatedCount + " of " + records.size() + " records");
+      }
+
+      // If the thread was interrupted, undo the current chunk
       if (thread.isInterrupted()) {
         conn.rollback();
       } else {
-        // Commit all the records
+        // Commit the remaining records
         if (dataSet != null) {
           dataSet.setStatus(DataSet.STATUS_USER_QC);
           DataSetDB.updateDataSet(conn, dataSet);
         }
+        metrics.startPhase(JobMetrics.COMMIT_PHASE);
         conn.commit();
+        metrics.endPhase();
       }
     } catch (Exception e) {
       // Revert all changes
@@ -271,30 +260,105 @@ public class AutoQCJob extends Job {
     }
   }
 
+  /**
+   * Set the QC and WOCE flags and WOCE message of a record from the results of
+   * the QC routines, comparing them with the record's previous QC results.
+   * If the QC messages are unchanged, the user's flags are kept.
+   * @param qcRecord The record
+   * @param previousResult The record's previous QC results, or {@code null} if it has not been checked before
+   * @return {@code true} if the record's QC details have changed and must be stored; {@code false} otherwise
+   */
+  protected static boolean applyQcFlags(CalculationRecord qcRecord, AutoQCResult previousResult) {
+    boolean writeRecord = false;
+
+    int messageCount = qcRecord.getMessages().size();
+
+    Flag previousQCFlag = Flag.NOT_SET;
+    List<Message> databaseMessages = new ArrayList<Message>();
+    if (null != previousResult) {
+      previousQCFlag = previousResult.getFlag();
+      databaseMessages = previousResult.getMessages();
+    }
+
+    if (previousQCFlag.equals(Flag.NOT_SET)) {
+      writeRecord = true;
+    }
+
+    if (messageCount == 0) {
+      if (!previousQCFlag.isGood()) {
+        qcRecord.setAutoFlag(Flag.GOOD);
+        qcRecord.setUserFlag(Flag.ASSUMED_GOOD);
+        qcRecord.setUserMessage(null);
+        writeRecord = true;
+      } else {
+        Flag userFlag = qcRecord.getUserFlag();
+        if (!userFlag.equals(Flag.ASSUMED_GOOD) && !userFlag.equals(Flag.GOOD)) {
+          qcRecord.setUserFlag(Flag.ASSUMED_GOOD);
+          qcRecord.setUserMessage(null);
+          writeRecord = true;
+        }
+      }
+    } else {
+
+      // Compare the QC comment (which is the Rebuild Codes for the
+      // messages) with the new rebuild codes. If they're the same,
+      // take no action. Otherwise reset the QC & WOCE flags and comments
+      boolean messagesMatch = true;
+      if (databaseMessages.size() != qcRecord.getMessages().size()) {
+        messagesMatch = false;
+      } else {
+        for (int i = 0; i < databaseMessages.size() && messagesMatch; i++) {
+          Message databaseMessage = databaseMessages.get(i);
+          boolean databaseMessageFound = false;
+          for (Message recordMessage : qcRecord.getMessages()) {
+            if (recordMessage.equals(databaseMessage)) {
+              databaseMessageFound = true;
+              break;
+            }
+          }
+
+          if (!databaseMessageFound) {
+            messagesMatch = false;
+          }
+        }
+      }
+
+      if (!messagesMatch) {
+        if (qcRecord.getAutoFlag().equals(Flag.FATAL)) {
+          qcRecord.setUserFlag(Flag.FATAL);
+        } else {
+          qcRecord.setUserFlag(Flag.NEEDED);
+        }
+        qcRecord.setUserMessage(qcRecord.getMessageSummaries());
+        writeRecord = true;
+      }
+    }
+
+    return writeRecord;
+  }
+
   @Override
   protected void validateParameters() throws InvalidJobParametersException {
     // TODO Auto-generated method stub
   }
 
   /**
-   * Get the calculation records for a set of measurements. QUESTIONABLE, BAD or IGNORED records
+   * Get the calculation records for a data set. QUESTIONABLE, BAD or IGNORED records
    * are not included.
-   * @param datasetId The dataset ID
-   * @param ids The measurement IDs
+   * @param conn A database connection
+   * @param calculationDB The calculation DB
+   * @param dataSet The data set
    * @return The calculation records
    * @throws MissingParamException If any required parameters are missing
    * @throws DatabaseException If a database error occurs
-   * @throws RecordNotFoundException If the record is not in the database
-   * @throws InvalidDataException If a field cannot be added to the record
-   * @throws MessageException If the automatic QC messages cannot be parsed
-   * @throws NoSuchColumnException If the automatic QC messages cannot be parsed
+   * @throws RecordNotFoundException If the data set's instrument is not in the database
+   * @throws InstrumentException If the data set's instrument cannot be retrieved
    */
-  private List<CalculationRecord> getRecords(Connection conn, long datasetId, List<Long> ids) throws MissingParamException, InvalidDataException, NoSuchColumnException, DatabaseException, RecordNotFoundException, MessageException {
-    List<CalculationRecord> records = new ArrayList<CalculationRecord>(ids.size());
+  private List<CalculationRecord> getRecords(Connection conn, CalculationDB calculationDB, DataSet dataSet) throws MissingParamException, DatabaseException, RecordNotFoundException, InstrumentException {
+    List<CalculationRecord> allRecords = calculationDB.getCalculationRecords(conn, dataSet);
+    List<CalculationRecord> records = new ArrayList<CalculationRecord>(allRecords.size());
 
-    for (long id : ids) {
-      CalculationRecord record = CalculationRecordFactory.makeCalculationRecord(datasetId, id);
-      record.loadData(conn);
+    for (CalculationRecord record : allRecords) {
       if (!record.getUserFlag().equals(Flag.QUESTIONABLE) && !record.getUserFlag().equals(Flag.BAD) && !record.getUserFlag().equals(Flag.IGNORED)) {
         records.add(record);
       }
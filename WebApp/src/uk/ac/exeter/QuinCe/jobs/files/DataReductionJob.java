@@ -1,32 +1,40 @@
 package uk.ac.exeter.QuinCe.jobs.files;
 
 import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import uk.ac.exeter.QuinCe.EquilibratorPco2.EquilibratorPco2Calculator;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDBFactory;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationValueBuffer;
 import uk.ac.exeter.QuinCe.data.Calculation.DataReductionCalculator;
 import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataDB;
 import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataReader;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
+import uk.ac.exeter.QuinCe.data.Dataset.MapTileDB;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.ExternalStandardDB;
 import uk.ac.exeter.QuinCe.jobs.InvalidJobParametersException;
 import uk.ac.exeter.QuinCe.jobs.Job;
 import uk.ac.exeter.QuinCe.jobs.JobFailedException;
 import uk.ac.exeter.QuinCe.jobs.JobManager;
+import uk.ac.exeter.QuinCe.jobs.JobMetrics;
 import uk.ac.exeter.QuinCe.jobs.JobThread;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
 import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
 import uk.ac.exeter.QuinCe.web.system.ResourceManager;
@@ -43,11 +51,28 @@ public class DataReductionJob extends Job {
    */
   public static final String ID_PARAM = "id";
 
+  /**
+   * The parameter name for the time of the first measurement to be
+   * calculated. If this is not set, all measurements are calculated
+   */
+  public static final String REDUCE_FROM_PARAM = "reduce_from";
+
   /**
    * Name of the job, used for reporting
    */
   private final String jobName = "Data Reduction";
 
+  /**
+   * The default number of measurements whose calculated
+   * values are written to the database in each batch
+   */
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+
+  /**
+   * The configuration property for the batch size
+   */
+  private static final String BATCH_SIZE_PROPERTY = "reduction.batch_size";
+
   /**
    * Constructor for a data reduction job to be run on a specific data file.
    * The job record must already have been created in the database.
@@ -69,6 +94,8 @@ public class DataReductionJob extends Job {
   protected void execute(JobThread thread) throws JobFailedException {
 
     Connection conn = null;
+    Connection readConn = null;
+    DataSetDataReader reader = null;
     CalculationDB calculationDB = CalculationDBFactory.getCalculationDB();
     DataSet dataSet = null;
 
@@ -82,9 +109,17 @@ public class DataReductionJob extends Job {
       dataSet.clearMessages();
       dataSet.setStatus(DataSet.STATUS_DATA_REDUCTION);
       DataSetDB.updateDataSet(conn, dataSet);
-      List<DataSetRawDataRecord> measurements = DataSetDataDB.getMeasurements(conn, dataSet);
+      conn.commit();
+
+      // The external standards are those in force at the
+      // time of the first measurement in the data set
+      List<DataSetRawDataRecord> firstMeasurement = DataSetDataDB.getMeasurements(conn, dataSet, 0, 1);
+      if (firstMeasurement.size() == 0) {
+        throw new JobFailedException(id, "No measurements found in data set");
+      }
+
       CalibrationDataSet calibrationRecords = CalibrationDataDB.getCalibrationRecords(conn, dataSet);
-      CalibrationSet externalStandards = ExternalStandardDB.getInstance().getStandardsSet(conn, dataSet.getInstrumentId(), measurements.get(0).getDate());
+      CalibrationSet externalStandards = ExternalStandardDB.getInstance().getStandardsSet(conn, dataSet.getInstrumentId(), firstMeasurement.get(0).getDate());
 
       if (!externalStandards.isComplete()) {
         throw new JobFailedException(id, "No complete set of external standards available");
@@ -93,29 +128,88 @@ public class DataReductionJob extends Job {
       // TODO This will loop through all available calculators
       DataReductionCalculator calculator = new EquilibratorPco2Calculator(externalStandards, calibrationRecords);
 
-      for (DataSetRawDataRecord measurement : measurements) {
-        Map<String, Double> calculatedValues = calculator.performDataReduction(measurement);
-        calculationDB.storeCalculationValues(conn, measurement.getId(), calculatedValues);
+      // If a previous run of this job was interrupted, continue
+      // after the last measurement whose values were committed
+      long checkpoint = getCheckpoint();
+      if (checkpoint != NO_CHECKPOINT) {
+        System.out.println("Job " + id + ": Resuming after measurement " + checkpoint);
+      } else if (null != parameters.get(REDUCE_FROM_PARAM)) {
+        // Only the measurements from the specified time are calculated
+        LocalDateTime reduceFrom = DateTimeUtils.longToDate(Long.parseLong(parameters.get(REDUCE_FROM_PARAM)));
+        checkpoint = DataSetDataDB.getLastMeasurementIdBefore(conn, dataSet, reduceFrom);
+        System.out.println("Job " + id + ": Calculating measurements from " + DateTimeUtils.formatDateTime(reduceFrom));
       }
 
-      // If the thread was interrupted, undo everything
+      long measurementCount = DataSetDataDB.getMeasurementCount(conn, dataSet.getId());
+
+      // The measurements are streamed on their own connection, since
+      // the results are written while they are being read
+      readConn = dataSource.getConnection();
+      reader = new DataSetDataReader(readConn, dataSet, checkpoint);
+      long skippedCount = reader.getPosition();
+      DataSetRawDataRecord measurement = reader.next();
+
+      // Measurements are read in chunks, and the chunk's values are calculated
+      // in parallel into a fixed-size buffer which is then written to the database.
+      // Each chunk is committed with a checkpoint so the job can be resumed.
+      int batchSize = getBatchSize();
+      ForkJoinPool pool = ResourceManager.getInstance().getCalculationPool();
+      List<DataSetRawDataRecord> chunk = new ArrayList<DataSetRawDataRecord>(batchSize);
+      CalculationValueBuffer values = calculator.createValueBuffer(batchSize);
+      long recordCount = 0;
+      long startTime = System.currentTimeMillis();
+
+      while (null != measurement && !thread.isInterrupted()) {
+        metrics.startPhase(JobMetrics.LOAD_PHASE);
+        chunk.add(measurement);
+        measurement = reader.next();
+
+        if (chunk.size() == batchSize || null == measurement) {
+          metrics.startPhase(JobMetrics.COMPUTE_PHASE);
+          calculator.performDataReduction(chunk, values, pool);
+          metrics.startPhase(JobMetrics.WRITE_PHASE);
+          calculationDB.storeCalculationValues(conn, values);
+          recordCount += values.size();
+          metrics.addRows(values.size());
+
+          commitCheckpoint(conn, chunk.get(chunk.size() - 1).getId(),
+              Math.min(100.0 * (skippedCount + recordCount) / measurementCount, 100));
+
+          values.clear();
+          chunk.clear();
+        }
+      }
+      metrics.endPhase();
+
+      double elapsedSeconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+      System.out.println("Job " + id + ": Calculated " + recordCount
+          + " records (" + Math.round(recordCount / elapsedSeconds) + " records/s)");
+
+      // If the thread was interrupted, undo the current chunk
       if (thread.isInterrupted()) {
         conn.rollback();
 
-        // Requeue the data reduction job
-        JobManager.requeueJob(conn, id);
+        // Requeue the data reduction job so it continues from its checkpoint
+        JobManager.resumeJob(conn, id);
         conn.commit();
       } else {
 
+        // Aggregate the calculated values for the map
+        metrics.startPhase(JobMetrics.WRITE_PHASE);
+        int tileCount = MapTileDB.buildTiles(conn, calculationDB, dataSet);
+        System.out.println("Job " + id + ": Stored " + tileCount + " map tiles");
+
         // Set up the Auto QC job
         dataSet.setStatus(DataSet.STATUS_AUTO_QC);
         DataSetDB.updateDataSet(conn, dataSet);
         Map<String, String> jobParams = new HashMap<String, String>();
         jobParams.put(AutoQCJob.ID_PARAM, String.valueOf(Long.parseLong(parameters.get(ID_PARAM))));
         jobParams.put(AutoQCJob.PARAM_ROUTINES_CONFIG, ResourceManager.QC_ROUTINES_CONFIG);
-        JobManager.addJob(dataSource, JobManager.getJobOwner(dataSource, id), AutoQCJob.class.getCanonicalName(), jobParams);
+        JobManager.addJob(conn, JobManager.getJobOwner(conn, id), AutoQCJob.class.getCanonicalName(), jobParams, JobManager.getJobPriority(conn, id));
 
+        metrics.startPhase(JobMetrics.COMMIT_PHASE);
         conn.commit();
+        metrics.endPhase();
       }
 
     } catch (Exception e) {
@@ -142,10 +236,32 @@ public class DataReductionJob extends Job {
 
       throw new JobFailedException(id, e);
     } finally {
+      if (null != reader) {
+        reader.close();
+      }
+      DatabaseUtils.closeConnection(readConn);
       DatabaseUtils.closeConnection(conn);
     }
   }
 
+  /**
+   * Get the number of measurements whose calculated values are
+   * written to the database in each batch.
+   * Uses {@link #DEFAULT_BATCH_SIZE} if the size
+   * is not set in the application configuration.
+   * @return The batch size
+   */
+  private int getBatchSize() {
+    int result = DEFAULT_BATCH_SIZE;
+
+    String batchSize = config.getProperty(BATCH_SIZE_PROPERTY);
+    if (null != batchSize && batchSize.trim().length() > 0) {
+      result = Integer.parseInt(batchSize.trim());
+    }
+
+    return result;
+  }
+
   /**
    * Removes any previously calculated data reduction results from the database
    * @throws JobFailedException If an error occurs
@@ -184,6 +300,15 @@ public class DataReductionJob extends Job {
     } catch (NumberFormatException e) {
       throw new InvalidJobParametersException(ID_PARAM + "is not numeric");
     }
+
+    String reduceFromString = parameters.get(REDUCE_FROM_PARAM);
+    if (null != reduceFromString) {
+      try {
+        Long.parseLong(reduceFromString);
+      } catch (NumberFormatException e) {
+        throw new InvalidJobParametersException(REDUCE_FROM_PARAM + "is not numeric");
+      }
+    }
   }
 
   @Override
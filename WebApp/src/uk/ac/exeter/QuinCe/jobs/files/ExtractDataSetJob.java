@@ -2,6 +2,7 @@ package uk.ac.exeter.QuinCe.jobs.files;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -13,6 +14,7 @@ import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataWriter;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawData;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataFactory;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
@@ -23,15 +25,19 @@ import uk.ac.exeter.QuinCe.jobs.InvalidJobParametersException;
 import uk.ac.exeter.QuinCe.jobs.Job;
 import uk.ac.exeter.QuinCe.jobs.JobFailedException;
 import uk.ac.exeter.QuinCe.jobs.JobManager;
+import uk.ac.exeter.QuinCe.jobs.JobMetrics;
 import uk.ac.exeter.QuinCe.jobs.JobThread;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
 import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
 import uk.ac.exeter.QuinCe.web.system.ResourceManager;
 
 /**
- * Job to extract the data for a data set from the uploaded data files
+ * Job to extract the data for a data set from the uploaded data files.
+ * If the data set has been extended to cover newly added files, only
+ * the records after its previous end are extracted.
  * @author Steve Jones
  *
  */
@@ -42,6 +48,20 @@ public class ExtractDataSetJob extends Job {
    */
   public static final String ID_PARAM = "id";
 
+  /**
+   * The parameter name for the previous end of a data set that has been
+   * extended to include newly added data files. If this is set, only the
+   * records from around this time onwards are extracted
+   */
+  public static final String EXTEND_FROM_PARAM = "extend_from";
+
+  /**
+   * The number of seconds before the previous end of an extended data set
+   * that are extracted again, in addition to the instrument's flushing
+   * time, to cover the last averaged record
+   */
+  private static final int AVERAGING_MARGIN = 60;
+
   /**
    * The data set being processed by the job
    */
@@ -57,6 +77,12 @@ public class ExtractDataSetJob extends Job {
    */
   private final String jobName = "Dataset Extraction";
 
+  /**
+   * The configuration property for the number of records
+   * written to the database in each batch
+   */
+  private static final String BATCH_SIZE_PROPERTY = "extract.batch_size";
+
   /**
    * Initialise the job object so it is ready to run
    *
@@ -77,6 +103,7 @@ public class ExtractDataSetJob extends Job {
   protected void execute(JobThread thread) throws JobFailedException {
 
     Connection conn = null;
+    DataSetDataWriter writer = null;
 
     try {
       conn = dataSource.getConnection();
@@ -84,8 +111,40 @@ public class ExtractDataSetJob extends Job {
 
       // Get the data set from the database
       dataSet = DataSetDB.getDataSet(conn, Long.parseLong(parameters.get(ID_PARAM)));
-      // Reset the data set and all associated data
-      reset(conn);
+
+      // Get related data
+      instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), resourceManager.getSensorsConfiguration(), resourceManager.getRunTypeCategoryConfiguration());
+
+      // If the data set has been extended, only the records after its previous
+      // end are extracted. The last records before that can change because
+      // of the flushing and averaging periods, so they are extracted again. The
+      // files are read from earlier still, so the flushing periods are the same
+      // as they would be if the whole data set was extracted.
+      LocalDateTime extractFrom = null;
+      LocalDateTime readFrom = dataSet.getStart();
+      if (null != parameters.get(EXTEND_FROM_PARAM)) {
+        LocalDateTime extendFrom = DateTimeUtils.longToDate(Long.parseLong(parameters.get(EXTEND_FROM_PARAM)));
+        int margin = instrument.getPostFlushingTime() + AVERAGING_MARGIN;
+        extractFrom = extendFrom.minusSeconds(margin);
+        readFrom = extractFrom.minusSeconds(instrument.getPreFlushingTime() + margin);
+        System.out.println("Job " + id + ": Extracting records from " + DateTimeUtils.formatDateTime(extractFrom));
+      }
+
+      // If a previous run of this job was interrupted, continue after the
+      // last measurement that it committed. Otherwise reset the data set
+      // and all associated data in the range being extracted
+      LocalDateTime resumeAfter = null;
+      long checkpoint = getCheckpoint();
+      if (checkpoint == NO_CHECKPOINT) {
+        if (null == extractFrom) {
+          reset(conn, dataSet);
+        } else {
+          reset(conn, dataSet, extractFrom);
+        }
+      } else {
+        resumeAfter = DataSetDataDB.getMeasurement(conn, dataSet, checkpoint).getDate();
+        System.out.println("Job " + id + ": Resuming after measurement " + checkpoint);
+      }
 
       // Clear messages before executing job
       dataSet.clearMessages();
@@ -94,30 +153,65 @@ public class ExtractDataSetJob extends Job {
       DataSetDB.updateDataSet(conn, dataSet);
       conn.commit();
 
-      // Get related data
-      instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), resourceManager.getSensorsConfiguration(), resourceManager.getRunTypeCategoryConfiguration());
+      DataSetRawData rawData = DataSetRawDataFactory.getDataSetRawData(dataSource, dataSet, instrument, readFrom);
+      LocalDateTime progressStart = null == extractFrom ? dataSet.getStart() : extractFrom;
 
-      DataSetRawData rawData = DataSetRawDataFactory.getDataSetRawData(dataSource, dataSet, instrument);
+      // Each batch of measurements written to the database is committed,
+      // along with any calibration records stored since the previous batch
+      writer = new DataSetDataWriter(conn, getBatchSize(config));
+      long committedCount = 0;
 
+      metrics.startPhase(JobMetrics.LOAD_PHASE);
       DataSetRawDataRecord record = rawData.getNextRecord();
       while (null != record) {
-        if (record.isMeasurement()) {
-          DataSetDataDB.storeRecord(conn, record);
-        } else if (record.isCalibration()) {
-          CalibrationDataDB.storeCalibrationRecord(conn, record);
+
+        // Records up to the checkpoint, or before the extracted
+        // range, are already in the database
+        if ((null == resumeAfter || record.getDate().isAfter(resumeAfter))
+            && (null == extractFrom || !record.getDate().isBefore(extractFrom))) {
+          metrics.startPhase(JobMetrics.WRITE_PHASE);
+          if (record.isMeasurement()) {
+            writer.addRecord(record);
+          } else if (record.isCalibration()) {
+            CalibrationDataDB.storeCalibrationRecord(conn, record);
+          }
+
+          if (writer.getRecordCount() > committedCount) {
+            commitCheckpoint(conn, writer.getLastMeasurementId(), getProgress(progressStart, dataSet.getEnd(), record.getDate()));
+            committedCount = writer.getRecordCount();
+          }
         }
 
         // Read the next record
+        metrics.startPhase(JobMetrics.LOAD_PHASE);
         record = rawData.getNextRecord();
       }
 
+      metrics.startPhase(JobMetrics.WRITE_PHASE);
+      writer.flush();
+      metrics.endPhase();
+      metrics.addRows(writer.getRecordCount());
+      System.out.println("Job " + id + ": Stored " + writer.getRecordCount()
+          + " records (" + Math.round(writer.getRecordsPerSecond()) + " records/s)");
+
       dataSet.setStatus(DataSet.STATUS_DATA_REDUCTION);
       DataSetDB.updateDataSet(conn, dataSet);
       Map<String, String> jobParams = new HashMap<String, String>();
       jobParams.put(DataReductionJob.ID_PARAM, String.valueOf(Long.parseLong(parameters.get(ID_PARAM))));
-      JobManager.addJob(dataSource, JobManager.getJobOwner(dataSource, id), DataReductionJob.class.getCanonicalName(), jobParams);
 
+      // Only the measurements whose bracketing calibration records
+      // may have changed need to be calculated again
+      if (null != extractFrom) {
+        LocalDateTime reduceFrom = CalibrationDataDB.getLastCalibrationDate(conn, dataSet, extractFrom);
+        if (null != reduceFrom) {
+          jobParams.put(DataReductionJob.REDUCE_FROM_PARAM, String.valueOf(DateTimeUtils.dateToLong(reduceFrom)));
+        }
+      }
+      JobManager.addJob(conn, JobManager.getJobOwner(conn, id), DataReductionJob.class.getCanonicalName(), jobParams, JobManager.getJobPriority(conn, id));
+
+      metrics.startPhase(JobMetrics.COMMIT_PHASE);
       conn.commit();
+      metrics.endPhase();
 
     } catch (Exception e) {
       e.printStackTrace();
@@ -138,13 +232,73 @@ public class ExtractDataSetJob extends Job {
       }
       throw new JobFailedException(id, e);
     } finally {
+      if (null != writer) {
+        writer.close();
+      }
       DatabaseUtils.closeConnection(conn);
     }
   }
 
+  /**
+   * Get the progress of extracting a data set from the date of the last
+   * record processed, as a percentage of the data set's time span
+   * @param dataSet The data set
+   * @param date The date of the last record processed
+   * @return The progress
+   */
+  static double getProgress(DataSet dataSet, LocalDateTime date) {
+    return getProgress(dataSet.getStart(), dataSet.getEnd(), date);
+  }
+
+  /**
+   * Get the progress of extracting part of a data set from the date of the
+   * last record processed, as a percentage of the extracted time span
+   * @param startDate The start of the extracted time span
+   * @param endDate The end of the extracted time span
+   * @param date The date of the last record processed
+   * @return The progress
+   */
+  static double getProgress(LocalDateTime startDate, LocalDateTime endDate, LocalDateTime date) {
+    double result = 0;
+
+    long start = DateTimeUtils.dateToLong(startDate);
+    long length = DateTimeUtils.dateToLong(endDate) - start;
+    if (length > 0) {
+      result = Math.max(0, Math.min(100.0 * (DateTimeUtils.dateToLong(date) - start) / length, 100));
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the number of records to write to the database in each batch.
+   * Uses {@link DataSetDataWriter#DEFAULT_BATCH_SIZE} if the size
+   * is not set in the application configuration.
+   * @param config The application configuration
+   * @return The batch size
+   */
+  static int getBatchSize(Properties config) {
+    int result = DataSetDataWriter.DEFAULT_BATCH_SIZE;
+
+    String batchSize = config.getProperty(BATCH_SIZE_PROPERTY);
+    if (null != batchSize && batchSize.trim().length() > 0) {
+      result = Integer.parseInt(batchSize.trim());
+    }
+
+    return result;
+  }
+
   @Override
   protected void validateParameters() throws InvalidJobParametersException {
-    // TODO Auto-generated method stub
+
+    String extendFromString = parameters.get(EXTEND_FROM_PARAM);
+    if (null != extendFromString) {
+      try {
+        Long.parseLong(extendFromString);
+      } catch (NumberFormatException e) {
+        throw new InvalidJobParametersException(EXTEND_FROM_PARAM + "is not numeric");
+      }
+    }
   }
 
   /**
@@ -152,6 +306,8 @@ public class ExtractDataSetJob extends Job {
    *
    * Delete all related records and reset the status
    *
+   * @param conn A database connection
+   * @param dataSet The data set
    * @throws MissingParamException
    *           If any of the parameters are invalid
    * @throws InvalidDataSetStatusException
@@ -161,7 +317,7 @@ public class ExtractDataSetJob extends Job {
    * @throws RecordNotFoundException
    *           If the record don't exist
    */
-  private void reset(Connection conn)
+  static void reset(Connection conn, DataSet dataSet)
       throws MissingParamException, InvalidDataSetStatusException,
       DatabaseException, RecordNotFoundException {
 
@@ -177,6 +333,39 @@ public class ExtractDataSetJob extends Job {
     }
   }
 
+  /**
+   * Reset the processing of part of a data set.
+   *
+   * Delete all related records from the specified time onwards and reset the status
+   *
+   * @param conn A database connection
+   * @param dataSet The data set
+   * @param from The time of the first record to be deleted
+   * @throws MissingParamException
+   *           If any of the parameters are invalid
+   * @throws InvalidDataSetStatusException
+   *           If the method sets an invalid data set status
+   * @throws DatabaseException
+   *           If a database error occurs
+   * @throws RecordNotFoundException
+   *           If the record don't exist
+   */
+  static void reset(Connection conn, DataSet dataSet, LocalDateTime from)
+      throws MissingParamException, InvalidDataSetStatusException,
+      DatabaseException, RecordNotFoundException {
+
+    try {
+      CalibrationDataDB.deleteDatasetData(conn, dataSet, from);
+      CalculationDBFactory.getCalculationDB().deleteDatasetCalculationData(conn, dataSet, from);
+      DataSetDB.deleteDatasetData(conn, dataSet, from);
+      dataSet.setStatus(DataSet.STATUS_WAITING);
+      DataSetDB.updateDataSet(conn, dataSet);
+      conn.commit();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error while resetting dataset data", e);
+    }
+  }
+
   @Override
   public String getJobName() {
     return jobName;
@@ -0,0 +1,323 @@
+package uk.ac.exeter.QuinCe.jobs.files;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import uk.ac.exeter.QCRoutines.config.RoutinesConfig;
+import uk.ac.exeter.QCRoutines.data.DataRecord;
+import uk.ac.exeter.QCRoutines.routines.Routine;
+import uk.ac.exeter.QuinCe.EquilibratorPco2.EquilibratorPco2Calculator;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDBFactory;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecord;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationValueBuffer;
+import uk.ac.exeter.QuinCe.data.Calculation.DataReductionCalculator;
+import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataDB;
+import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataSet;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataWriter;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawData;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataFactory;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
+import uk.ac.exeter.QuinCe.data.Dataset.MapTileDB;
+import uk.ac.exeter.QuinCe.data.Instrument.Instrument;
+import uk.ac.exeter.QuinCe.data.Instrument.InstrumentDB;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
+import uk.ac.exeter.QuinCe.data.Instrument.Calibration.ExternalStandardDB;
+import uk.ac.exeter.QuinCe.jobs.InvalidJobParametersException;
+import uk.ac.exeter.QuinCe.jobs.Job;
+import uk.ac.exeter.QuinCe.jobs.JobFailedException;
+import uk.ac.exeter.QuinCe.jobs.JobManager;
+import uk.ac.exeter.QuinCe.jobs.JobMetrics;
+import uk.ac.exeter.QuinCe.jobs.JobThread;
+import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
+import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
+import uk.ac.exeter.QuinCe.web.system.ResourceManager;
+
+/**
+ * Job to extract, reduce and automatically QC a data set in a single pass.
+ *
+ * <p>
+ *   This does the same work as {@link ExtractDataSetJob}, {@link DataReductionJob}
+ *   and {@link AutoQCJob} run one after the other, but the records are kept in
+ *   memory between the stages instead of being written to the database and read
+ *   back by the next job. The measurements are written to {@code dataset_data} as
+ *   they are extracted, and each calculation record is inserted once with its
+ *   calculated values and QC flags.
+ * </p>
+ *
+ * <p>
+ *   The separate jobs are still used to re-run individual stages for
+ *   an existing data set. If this job is interrupted it starts again from
+ *   the beginning, since the QC routines need the complete data set.
+ * </p>
+ *
+ * @author Steve Jones
+ * @see #isEnabled(Properties)
+ */
+public class ProcessDataSetJob extends Job {
+
+  /**
+   * The parameter name for the data set id
+   */
+  public static final String ID_PARAM = "id";
+
+  /**
+   * The configuration property that selects this job for processing new data sets
+   */
+  private static final String FUSED_PIPELINE_PROPERTY = "extract.fused_pipeline";
+
+  /**
+   * The share of the job's progress used by extracting the records
+   */
+  private static final double EXTRACTION_PROGRESS = 50;
+
+  /**
+   * The share of the job's progress used by data reduction and QC
+   */
+  private static final double CALCULATION_PROGRESS = 10;
+
+  /**
+   * Name of the job, used for reporting
+   */
+  private final String jobName = "Dataset Processing";
+
+  /**
+   * Initialise the job object so it is ready to run
+   *
+   * @param resourceManager The system resource manager
+   * @param config The application configuration
+   * @param jobId The id of the job in the database
+   * @param parameters The job parameters, containing the data set ID
+   * @throws InvalidJobParametersException If the parameters are not valid for the job
+   * @throws MissingParamException If any of the parameters are invalid
+   * @throws RecordNotFoundException If the job record cannot be found in the database
+   * @throws DatabaseException If a database error occurs
+   */
+  public ProcessDataSetJob(ResourceManager resourceManager, Properties config, long jobId, Map<String, String> parameters) throws MissingParamException, InvalidJobParametersException, DatabaseException, RecordNotFoundException {
+    super(resourceManager, config, jobId, parameters);
+  }
+
+  /**
+   * Determine whether new data sets should be processed by this job
+   * instead of the separate extraction, data reduction and QC jobs.
+   * This is the default unless it is disabled in the application configuration.
+   * @param config The application configuration
+   * @return {@code true} if this job should be used; {@code false} if the separate jobs should be used
+   */
+  public static boolean isEnabled(Properties config) {
+    String fused = config.getProperty(FUSED_PIPELINE_PROPERTY);
+    return null == fused || fused.trim().length() == 0 || Boolean.parseBoolean(fused.trim());
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void execute(JobThread thread) throws JobFailedException {
+
+    Connection conn = null;
+    DataSetDataWriter writer = null;
+    DataSet dataSet = null;
+    CalculationDB calculationDB = CalculationDBFactory.getCalculationDB();
+
+    try {
+      conn = dataSource.getConnection();
+      conn.setAutoCommit(false);
+
+      dataSet = DataSetDB.getDataSet(conn, Long.parseLong(parameters.get(ID_PARAM)));
+
+      // Reset the data set and all associated data
+      ExtractDataSetJob.reset(conn, dataSet);
+
+      // Clear messages before executing job
+      dataSet.clearMessages();
+      dataSet.setStatus(DataSet.STATUS_DATA_EXTRACTION);
+      DataSetDB.updateDataSet(conn, dataSet);
+      conn.commit();
+
+      // Extract the records. The measurements are stored so their
+      // database IDs are known, and are also kept for the next stages.
+      // Calculation records are not created until the end.
+      Instrument instrument = InstrumentDB.getInstrument(conn, dataSet.getInstrumentId(), resourceManager.getSensorsConfiguration(), resourceManager.getRunTypeCategoryConfiguration());
+      DataSetRawData rawData = DataSetRawDataFactory.getDataSetRawData(dataSource, dataSet, instrument);
+
+      int batchSize = ExtractDataSetJob.getBatchSize(config);
+      writer = new DataSetDataWriter(conn, batchSize, false);
+      List<DataSetRawDataRecord> measurements = new ArrayList<DataSetRawDataRecord>();
+      long committedCount = 0;
+
+      metrics.startPhase(JobMetrics.LOAD_PHASE);
+      DataSetRawDataRecord record = rawData.getNextRecord();
+      while (null != record && !thread.isInterrupted()) {
+        metrics.startPhase(JobMetrics.WRITE_PHASE);
+        if (record.isMeasurement()) {
+          writer.addRecord(record);
+          measurements.add(record);
+        } else if (record.isCalibration()) {
+          CalibrationDataDB.storeCalibrationRecord(conn, record);
+        }
+
+        if (writer.getRecordCount() > committedCount) {
+          metrics.startPhase(JobMetrics.COMMIT_PHASE);
+          conn.commit();
+          committedCount = writer.getRecordCount();
+          setProgress(ExtractDataSetJob.getProgress(dataSet, record.getDate()) * EXTRACTION_PROGRESS / 100);
+        }
+
+        metrics.startPhase(JobMetrics.LOAD_PHASE);
+        record = rawData.getNextRecord();
+      }
+
+      metrics.startPhase(JobMetrics.WRITE_PHASE);
+      writer.flush();
+      metrics.endPhase();
+      metrics.addRows(measurements.size());
+      System.out.println("Job " + id + ": Stored " + writer.getRecordCount()
+          + " records (" + Math.round(writer.getRecordsPerSecond()) + " records/s)");
+
+      if (!thread.isInterrupted()) {
+        if (measurements.size() == 0) {
+          throw new JobFailedException(id, "No measurements found in data set");
+        }
+
+        dataSet.setStatus(DataSet.STATUS_DATA_REDUCTION);
+        DataSetDB.updateDataSet(conn, dataSet);
+        conn.commit();
+
+        // Data reduction. The calibration records were stored
+        // during extraction, and are all needed before calculating
+        CalibrationDataSet calibrationRecords = CalibrationDataDB.getCalibrationRecords(conn, dataSet);
+        CalibrationSet externalStandards = ExternalStandardDB.getInstance().getStandardsSet(conn, dataSet.getInstrumentId(), measurements.get(0).getDate());
+
+        if (!externalStandards.isComplete()) {
+          throw new JobFailedException(id, "No complete set of external standards available");
+        }
+
+        // TODO This will loop through all available calculators
+        DataReductionCalculator calculator = new EquilibratorPco2Calculator(externalStandards, calibrationRecords);
+        ForkJoinPool pool = ResourceManager.getInstance().getCalculationPool();
+
+        metrics.startPhase(JobMetrics.COMPUTE_PHASE);
+        CalculationValueBuffer values = calculator.createValueBuffer(measurements.size());
+        calculator.performDataReduction(measurements, values, pool);
+
+        // Automatic QC
+        metrics.endPhase();
+        dataSet.setStatus(DataSet.STATUS_AUTO_QC);
+        DataSetDB.updateDataSet(conn, dataSet);
+        conn.commit();
+
+        metrics.startPhase(JobMetrics.COMPUTE_PHASE);
+        List<DataRecord> records = new ArrayList<DataRecord>(measurements.size());
+        for (int i = 0; i < measurements.size(); i++) {
+          records.add(calculationDB.makeCalculationRecord(measurements.get(i), values, i));
+        }
+
+        // The sensor values have been copied to the calculation records
+        measurements.clear();
+
+        List<Routine> routines = RoutinesConfig.getInstance(ResourceManager.QC_ROUTINES_CONFIG).getRoutines();
+        for (Routine routine : routines) {
+          routine.processRecords(records, null);
+        }
+
+        // The records have no previous QC
+        for (DataRecord dataRecord : records) {
+          AutoQCJob.applyQcFlags((CalculationRecord) dataRecord, null);
+        }
+
+        setProgress(EXTRACTION_PROGRESS + CALCULATION_PROGRESS);
+
+        // Write the complete calculation records
+        double writeProgress = 100 - EXTRACTION_PROGRESS - CALCULATION_PROGRESS;
+        List<CalculationRecord> qcRecords = (List<CalculationRecord>) (List<?>) records;
+        for (int start = 0; start < qcRecords.size() && !thread.isInterrupted(); start += batchSize) {
+          int end = Math.min(start + batchSize, qcRecords.size());
+
+          metrics.startPhase(JobMetrics.WRITE_PHASE);
+          calculationDB.storeCalculationRecords(conn, qcRecords.subList(start, end), values, start);
+          metrics.startPhase(JobMetrics.COMMIT_PHASE);
+          conn.commit();
+          metrics.endPhase();
+
+          setProgress(EXTRACTION_PROGRESS + CALCULATION_PROGRESS + writeProgress * end / qcRecords.size());
+        }
+
+        System.out.println("Job " + id + ": Calculated and checked " + qcRecords.size() + " records");
+      }
+
+      // If the thread was interrupted, undo the current chunk and
+      // start again. The data set will be reset when the job restarts
+      if (thread.isInterrupted()) {
+        conn.rollback();
+        JobManager.requeueJob(conn, id);
+        conn.commit();
+      } else {
+        // Aggregate the calculated values for the map
+        metrics.startPhase(JobMetrics.WRITE_PHASE);
+        int tileCount = MapTileDB.buildTiles(conn, calculationDB, dataSet);
+        System.out.println("Job " + id + ": Stored " + tileCount + " map tiles");
+
+        dataSet.setStatus(DataSet.STATUS_USER_QC);
+        DataSetDB.updateDataSet(conn, dataSet);
+        metrics.startPhase(JobMetrics.COMMIT_PHASE);
+        conn.commit();
+        metrics.endPhase();
+      }
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      DatabaseUtils.rollBack(conn);
+      try {
+        if (null != dataSet) {
+          // Set the dataset to Error status
+          dataSet.setStatus(DataSet.STATUS_ERROR);
+          // And add a (friendly) message...
+          StringBuffer message = new StringBuffer();
+          message.append(getJobName());
+          message.append(" - error: ");
+          message.append(e.getMessage());
+          dataSet.addMessage(message.toString(), ExceptionUtils.getStackTrace(e));
+          DataSetDB.updateDataSet(conn, dataSet);
+          conn.commit();
+        }
+      } catch (Exception e1) {
+        e1.printStackTrace();
+      }
+      throw new JobFailedException(id, e);
+    } finally {
+      if (null != writer) {
+        writer.close();
+      }
+      DatabaseUtils.closeConnection(conn);
+    }
+  }
+
+  @Override
+  protected void validateParameters() throws InvalidJobParametersException {
+
+    String datasetIdString = parameters.get(ID_PARAM);
+    if (null == datasetIdString) {
+      throw new InvalidJobParametersException(ID_PARAM + "is missing");
+    }
+
+    try {
+      Long.parseLong(datasetIdString);
+    } catch (NumberFormatException e) {
+      throw new InvalidJobParametersException(ID_PARAM + "is not numeric");
+    }
+  }
+
+  @Override
+  public String getJobName() {
+    return jobName;
+  }
+}
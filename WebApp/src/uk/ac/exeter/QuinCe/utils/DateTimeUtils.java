@@ -273,6 +273,19 @@ public class DateTimeUtils {
     return ChronoUnit.SECONDS.between(date1, date2);
   }
 
+  /**
+   * Calculate the time between two UTC millisecond times, in whole seconds.
+   * Gives the same result as {@link #secondsBetween(LocalDateTime, LocalDateTime)}
+   * for the equivalent {@link LocalDateTime} objects.
+   * @param time1 The first time
+   * @param time2 The second time
+   * @return The number of seconds between the times
+   * @see #dateToLong(LocalDateTime)
+   */
+  public static long secondsBetween(long time1, long time2) {
+    return (time2 - time1) / 1000;
+  }
+
   /**
    * Parses a date-time string on the general format YYYY-MM-DD HH:MM:SS to a
    * LocalDateTime object
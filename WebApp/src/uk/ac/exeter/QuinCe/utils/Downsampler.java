@@ -0,0 +1,440 @@
+package uk.ac.exeter.QuinCe.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.primefaces.json.JSONArray;
+
+/**
+ * Reduces the number of points in plot and map data so that the
+ * shape of the data is kept, including any spikes.
+ *
+ * <p>
+ *   Rows are added one at a time in display order using {@link #add(JSONArray)},
+ *   and only the rows of the buckets currently being examined are held
+ *   in memory. The total number of rows must be known before the first row
+ *   is added. Two methods are available:
+ * </p>
+ * <ul>
+ *   <li>
+ *     {@link #LARGEST_TRIANGLE} uses the Largest-Triangle-Three-Buckets
+ *     algorithm, which is suitable for time series. One point is kept from
+ *     each bucket for each value column, along with the first and last rows.
+ *   </li>
+ *   <li>
+ *     {@link #MIN_MAX} keeps the rows with the smallest and largest
+ *     value in each bucket for each value column.
+ *   </li>
+ * </ul>
+ *
+ * <p>
+ *   If there is more than one value column, a row is kept if it is
+ *   selected for any of them.
+ * </p>
+ *
+ * @author Steve Jones
+ */
+public class Downsampler {
+
+  /**
+   * Method indicator for Largest-Triangle-Three-Buckets
+   */
+  public static final int LARGEST_TRIANGLE = 0;
+
+  /**
+   * Method indicator for minimum and maximum per bucket
+   */
+  public static final int MIN_MAX = 1;
+
+  /**
+   * The downsampling method
+   */
+  private int method;
+
+  /**
+   * The column containing the X values. If this is negative,
+   * the row index is used as the X value.
+   */
+  private int xColumn;
+
+  /**
+   * The columns containing the values to be preserved
+   */
+  private int[] valueColumns;
+
+  /**
+   * The maximum number of points to keep for each value column
+   */
+  private int targetPoints;
+
+  /**
+   * The total number of rows
+   */
+  private long rowCount = 0;
+
+  /**
+   * The number of buckets
+   */
+  private int bucketCount;
+
+  /**
+   * The number of rows added so far
+   */
+  private long rowIndex = 0;
+
+  /**
+   * The index of the current bucket
+   */
+  private int bucket = 0;
+
+  /**
+   * The rows in the current bucket
+   */
+  private List<Point> currentBucket = new ArrayList<Point>();
+
+  /**
+   * The rows in the bucket after the current bucket
+   * ({@link #LARGEST_TRIANGLE} only)
+   */
+  private List<Point> nextBucket = new ArrayList<Point>();
+
+  /**
+   * The last point selected for each value column
+   * ({@link #LARGEST_TRIANGLE} only)
+   */
+  private Point[] lastSelected;
+
+  /**
+   * The selected rows
+   */
+  private JSONArray result = new JSONArray();
+
+  /**
+   * Create a downsampler
+   * @param method The downsampling method
+   * @param xColumn The column containing the X values, or {@code -1} to use the row index
+   * @param valueColumns The columns containing the values to be preserved
+   * @param targetPoints The maximum number of points to keep for each value column
+   * @throws MissingParamException If any required parameters are missing
+   */
+  public Downsampler(int method, int xColumn, List<Integer> valueColumns, int targetPoints) throws MissingParamException {
+    MissingParam.checkMissing(valueColumns, "valueColumns");
+    MissingParam.checkPositive(targetPoints, "targetPoints");
+
+    this.method = method;
+    this.xColumn = xColumn;
+    this.targetPoints = targetPoints;
+
+    this.valueColumns = new int[valueColumns.size()];
+    for (int i = 0; i < valueColumns.size(); i++) {
+      this.valueColumns[i] = valueColumns.get(i);
+    }
+
+    lastSelected = new Point[this.valueColumns.length];
+  }
+
+  /**
+   * Set the total number of rows that will be added. This must
+   * be called before any rows are added.
+   * @param rowCount The number of rows
+   */
+  public void setRowCount(long rowCount) {
+    this.rowCount = rowCount;
+
+    if (method == LARGEST_TRIANGLE) {
+      // The first and last rows are kept as they are
+      bucketCount = Math.max(targetPoints - 2, 1);
+    } else {
+      // Each bucket can give two points
+      bucketCount = Math.max(targetPoints / 2, 1);
+    }
+  }
+
+  /**
+   * Determine whether the rows need to be downsampled
+   * @return {@code true} if there are more rows than the target number of points
+   */
+  private boolean isReducing() {
+    return rowCount > targetPoints;
+  }
+
+  /**
+   * Add a row
+   * @param row The row
+   */
+  public void add(JSONArray row) {
+    if (!isReducing()) {
+      result.put(row);
+    } else {
+      Point point = new Point(rowIndex, row);
+
+      if (method == LARGEST_TRIANGLE) {
+        addLargestTriangle(point);
+      } else {
+        addMinMax(point);
+      }
+    }
+
+    rowIndex++;
+  }
+
+  /**
+   * Get the selected rows. This must be called once all rows have been added.
+   * @return The selected rows
+   */
+  public JSONArray getResult() {
+    if (isReducing()) {
+      if (method == LARGEST_TRIANGLE) {
+        finishLargestTriangle();
+      } else {
+        selectMinMax();
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the index of the first row after the specified bucket.
+   * Rows in the middle of the data set are divided evenly between the
+   * buckets; for {@link #LARGEST_TRIANGLE} the first and last rows
+   * are excluded. Any rows beyond the stated row count are
+   * put in the last bucket.
+   * @param bucketIndex The bucket
+   * @return The index of the first row in the next bucket
+   */
+  private long getBucketEnd(int bucketIndex) {
+    long end;
+
+    if (bucketIndex >= bucketCount - 1) {
+      end = Long.MAX_VALUE;
+    } else if (method == LARGEST_TRIANGLE) {
+      end = (long) Math.floor((bucketIndex + 1) * ((double) (rowCount - 2) / bucketCount)) + 1;
+    } else {
+      end = (long) Math.floor((bucketIndex + 1) * ((double) rowCount / bucketCount));
+    }
+
+    return end;
+  }
+
+  /**
+   * Add a row for the {@link #LARGEST_TRIANGLE} method. Once the bucket after
+   * the current bucket is complete, the points from the current bucket are
+   * selected using the average of the next bucket.
+   * @param point The row
+   */
+  private void addLargestTriangle(Point point) {
+    if (point.index == 0) {
+      for (int i = 0; i < valueColumns.length; i++) {
+        if (!Double.isNaN(point.values[i])) {
+          lastSelected[i] = point;
+        }
+      }
+      result.put(point.row);
+    } else if (point.index == rowCount - 1) {
+      // The last row is always kept
+      selectLargestTriangle(currentBucket, nextBucket.isEmpty() ? singleBucket(point) : nextBucket);
+      if (!nextBucket.isEmpty()) {
+        selectLargestTriangle(nextBucket, singleBucket(point));
+      }
+      result.put(point.row);
+      currentBucket = new ArrayList<Point>();
+      nextBucket = new ArrayList<Point>();
+    } else if (point.index < getBucketEnd(bucket)) {
+      currentBucket.add(point);
+    } else {
+      if (point.index >= getBucketEnd(bucket + 1)) {
+        selectLargestTriangle(currentBucket, nextBucket);
+        currentBucket = nextBucket;
+        nextBucket = new ArrayList<Point>();
+        bucket++;
+      }
+
+      nextBucket.add(point);
+    }
+  }
+
+  /**
+   * Select the remaining points for the {@link #LARGEST_TRIANGLE} method if
+   * fewer rows were added than expected.
+   */
+  private void finishLargestTriangle() {
+    if (!nextBucket.isEmpty()) {
+      selectLargestTriangle(currentBucket, nextBucket);
+      currentBucket = nextBucket;
+    }
+
+    if (!currentBucket.isEmpty()) {
+      result.put(currentBucket.get(currentBucket.size() - 1).row);
+    }
+
+    currentBucket = new ArrayList<Point>();
+    nextBucket = new ArrayList<Point>();
+  }
+
+  /**
+   * Create a bucket containing a single point
+   * @param point The point
+   * @return The bucket
+   */
+  private List<Point> singleBucket(Point point) {
+    List<Point> result = new ArrayList<Point>(1);
+    result.add(point);
+    return result;
+  }
+
+  /**
+   * Select the points from a bucket that form the largest triangles with the
+   * previously selected point and the average of the following bucket,
+   * and add them to the result.
+   * @param bucketPoints The points in the bucket
+   * @param followingBucket The points in the following bucket
+   */
+  private void selectLargestTriangle(List<Point> bucketPoints, List<Point> followingBucket) {
+    boolean[] selected = new boolean[bucketPoints.size()];
+
+    for (int i = 0; i < valueColumns.length; i++) {
+
+      double averageX = 0;
+      double averageY = 0;
+      int count = 0;
+      for (Point point : followingBucket) {
+        if (!Double.isNaN(point.values[i])) {
+          averageX += point.x;
+          averageY += point.values[i];
+          count++;
+        }
+      }
+
+      Point previous = lastSelected[i];
+      int selectedPoint = -1;
+      double maxArea = -1;
+
+      for (int p = 0; p < bucketPoints.size(); p++) {
+        Point point = bucketPoints.get(p);
+        if (!Double.isNaN(point.values[i])) {
+          double area = 0;
+          if (null != previous) {
+            double nextX = count == 0 ? point.x : averageX / count;
+            double nextY = count == 0 ? previous.values[i] : averageY / count;
+            area = Math.abs((previous.x - nextX) * (point.values[i] - previous.values[i])
+                - (previous.x - point.x) * (nextY - previous.values[i]));
+          }
+
+          if (area > maxArea) {
+            maxArea = area;
+            selectedPoint = p;
+          }
+        }
+      }
+
+      if (selectedPoint > -1) {
+        selected[selectedPoint] = true;
+        lastSelected[i] = bucketPoints.get(selectedPoint);
+      }
+    }
+
+    addSelected(bucketPoints, selected);
+  }
+
+  /**
+   * Add a row for the {@link #MIN_MAX} method
+   * @param point The row
+   */
+  private void addMinMax(Point point) {
+    if (point.index >= getBucketEnd(bucket)) {
+      selectMinMax();
+      bucket++;
+    }
+
+    currentBucket.add(point);
+  }
+
+  /**
+   * Select the points with the smallest and largest values for each
+   * value column from the current bucket, and add them to the result.
+   */
+  private void selectMinMax() {
+    boolean[] selected = new boolean[currentBucket.size()];
+
+    for (int i = 0; i < valueColumns.length; i++) {
+      int min = -1;
+      int max = -1;
+
+      for (int p = 0; p < currentBucket.size(); p++) {
+        double value = currentBucket.get(p).values[i];
+        if (!Double.isNaN(value)) {
+          if (min == -1 || value < currentBucket.get(min).values[i]) {
+            min = p;
+          }
+          if (max == -1 || value > currentBucket.get(max).values[i]) {
+            max = p;
+          }
+        }
+      }
+
+      if (min > -1) {
+        selected[min] = true;
+        selected[max] = true;
+      }
+    }
+
+    addSelected(currentBucket, selected);
+    currentBucket = new ArrayList<Point>();
+  }
+
+  /**
+   * Add the selected points from a bucket to the result, in their original order
+   * @param bucketPoints The points in the bucket
+   * @param selected The selection flags for the points
+   */
+  private void addSelected(List<Point> bucketPoints, boolean[] selected) {
+    for (int p = 0; p < bucketPoints.size(); p++) {
+      if (selected[p]) {
+        result.put(bucketPoints.get(p).row);
+      }
+    }
+  }
+
+  /**
+   * A row with its X value and the values to be preserved
+   */
+  private class Point {
+
+    /**
+     * The index of the row
+     */
+    private long index;
+
+    /**
+     * The X value
+     */
+    private double x;
+
+    /**
+     * The values to be preserved. Missing values are {@code NaN}.
+     */
+    private double[] values;
+
+    /**
+     * The row
+     */
+    private JSONArray row;
+
+    /**
+     * Extract the values from a row
+     * @param index The index of the row
+     * @param row The row
+     */
+    private Point(long index, JSONArray row) {
+      this.index = index;
+      this.row = row;
+      this.x = xColumn < 0 ? index : row.optDouble(xColumn, index);
+
+      values = new double[valueColumns.length];
+      for (int i = 0; i < valueColumns.length; i++) {
+        values[i] = row.optDouble(valueColumns[i], Double.NaN);
+      }
+    }
+  }
+}
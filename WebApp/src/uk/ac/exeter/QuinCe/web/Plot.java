@@ -4,7 +4,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDBFactory;
+import uk.ac.exeter.QuinCe.data.Dataset.MapTileDB;
+import uk.ac.exeter.QuinCe.utils.Downsampler;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.StringUtils;
+import uk.ac.exeter.QuinCe.web.system.ResourceManager;
 
 /**
  * Information about a plot on the Plot Page
@@ -22,6 +26,11 @@ public class Plot {
    */
   public static final String MODE_MAP = "map";
 
+  /**
+   * The number of points to keep for each pixel of the plot width
+   */
+  private static final int POINTS_PER_PIXEL = 2;
+
   /**
    * The bean to which this plot belongs
    */
@@ -73,6 +82,12 @@ public class Plot {
    */
   private List<Double> mapScaleLimits = null;
 
+  /**
+   * The width of the plot on screen, in pixels.
+   * Zero if it is not known.
+   */
+  private int pixelWidth = 0;
+
   /**
    * Basic constructor
    * @param parentBean The bean to which this plot belongs
@@ -332,12 +347,73 @@ public class Plot {
     return fields;
   }
 
+  /**
+   * @return the pixelWidth
+   */
+  public int getPixelWidth() {
+    return pixelWidth;
+  }
+
+  /**
+   * @param pixelWidth the pixelWidth to set
+   */
+  public void setPixelWidth(int pixelWidth) {
+    this.pixelWidth = pixelWidth;
+  }
+
+  /**
+   * Create the downsampler for the plot data in its current configuration.
+   * Time series are reduced using Largest-Triangle-Three-Buckets; other
+   * plots and the map keep the minimum and maximum values in each bucket.
+   * The number of points is set from the plot width. If the width is not
+   * known, plots are not reduced and maps are reduced to the configured
+   * maximum number of points.
+   * @return The downsampler, or {@code null} if the data should not be reduced
+   * @throws MissingParamException If the downsampler cannot be created
+   */
+  private Downsampler getDownsampler() throws MissingParamException {
+
+    Downsampler result = null;
+
+    switch(mode) {
+    case MODE_PLOT: {
+      if (pixelWidth > 0 && null != yAxis && yAxis.size() > 0) {
+        // The Y axis fields follow the X axis, ID and flag fields
+        List<Integer> valueColumns = new ArrayList<Integer>(yAxis.size());
+        for (int i = 0; i < yAxis.size(); i++) {
+          valueColumns.add(i + 3);
+        }
+
+        int method = xAxis.getFieldName().equals("date") ? Downsampler.LARGEST_TRIANGLE : Downsampler.MIN_MAX;
+        result = new Downsampler(method, 0, valueColumns, pixelWidth * POINTS_PER_PIXEL);
+      }
+
+      break;
+    }
+    case MODE_MAP: {
+      int targetPoints;
+      if (pixelWidth > 0) {
+        targetPoints = pixelWidth * POINTS_PER_PIXEL;
+      } else {
+        targetPoints = Integer.parseInt(ResourceManager.getInstance().getConfig().getProperty("map.max_points"));
+      }
+
+      // The map variable is the last field, and the date is the X value
+      List<Integer> valueColumns = new ArrayList<Integer>(1);
+      valueColumns.add(5);
+      result = new Downsampler(Downsampler.MIN_MAX, 2, valueColumns, targetPoints);
+    }
+    }
+
+    return result;
+  }
+
   /**
    * Update the plot data
      */
   public void updatePlot() {
     try {
-      data = parentBean.getData(getPlotDataFields());
+      data = parentBean.getData(getPlotDataFields(), getDownsampler());
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -404,7 +480,13 @@ public class Plot {
             // if (mapUpdateScale) { // This doesn't work well. Since the performance hit is small, leave out the check for now.
                 mapScaleLimits = loadMapScaleLimits();
             //}
-            mapData = CalculationDBFactory.getCalculationDB().getJsonData(parentBean.getDataSource(), parentBean.getDataset(), getPlotDataFields(), null, mapBounds, true);
+            // Use the aggregated map tiles if the view is zoomed out far enough
+            int zoom = MapTileDB.getZoomLevel(mapBounds, pixelWidth);
+            if (zoom != MapTileDB.NO_ZOOM && MapTileDB.hasTiles(parentBean.getDataSource(), parentBean.getDataset(), mapVariable.getFieldName())) {
+              mapData = MapTileDB.getJsonTiles(parentBean.getDataSource(), parentBean.getDataset(), mapVariable.getFieldName(), zoom, mapBounds);
+            } else {
+              mapData = CalculationDBFactory.getCalculationDB().getJsonData(parentBean.getDataSource(), parentBean.getDataset(), getPlotDataFields(), "date", mapBounds, getDownsampler());
+            }
     } catch (Exception e) {
       e.printStackTrace();
     }
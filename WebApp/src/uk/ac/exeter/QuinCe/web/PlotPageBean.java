@@ -7,6 +7,7 @@ import org.primefaces.json.JSONArray;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
+import uk.ac.exeter.QuinCe.utils.Downsampler;
 import uk.ac.exeter.QuinCe.utils.StringUtils;
 
 /**
@@ -611,8 +612,9 @@ public abstract class PlotPageBean extends BaseManagedBean {
   /**
    * Retrieve the data for the specified fields as a JSON string
    * @param fields The fields to retrieve
+   * @param downsampler The downsampler used to limit the number of points. Can be {@code null}
    * @return The data
    * @throws Exception If an error occurs
    */
-  protected abstract String getData(List<String> fields) throws Exception;
+  protected abstract String getData(List<String> fields, Downsampler downsampler) throws Exception;
 }
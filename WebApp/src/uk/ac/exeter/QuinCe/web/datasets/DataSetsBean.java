@@ -1,5 +1,7 @@
 package uk.ac.exeter.QuinCe.web.datasets;
 
+import java.sql.Connection;
+import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,11 +22,14 @@ import uk.ac.exeter.QuinCe.data.Instrument.InstrumentException;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.CalibrationSet;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.ExternalStandardDB;
 import uk.ac.exeter.QuinCe.data.Instrument.Calibration.SensorCalibrationDB;
+import uk.ac.exeter.QuinCe.jobs.JobDispatcher;
 import uk.ac.exeter.QuinCe.jobs.JobManager;
 import uk.ac.exeter.QuinCe.jobs.files.AutoQCJob;
 import uk.ac.exeter.QuinCe.jobs.files.DataReductionJob;
 import uk.ac.exeter.QuinCe.jobs.files.ExtractDataSetJob;
+import uk.ac.exeter.QuinCe.jobs.files.ProcessDataSetJob;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
 import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.RecordNotFoundException;
@@ -325,7 +330,12 @@ public class DataSetsBean extends BaseManagedBean {
       Map<String, String> params = new HashMap<String, String>();
       params.put(ExtractDataSetJob.ID_PARAM, String.valueOf(newDataSet.getId()));
 
-      JobManager.addJob(getDataSource(), getUser(), ExtractDataSetJob.class.getCanonicalName(), params);
+      String jobClass = ExtractDataSetJob.class.getCanonicalName();
+      if (ProcessDataSetJob.isEnabled(ResourceManager.getInstance().getConfig())) {
+        jobClass = ProcessDataSetJob.class.getCanonicalName();
+      }
+
+      JobManager.addJob(getDataSource(), getUser(), jobClass, params);
 
       loadDataSets();
     } catch (Exception e) {
@@ -411,6 +421,53 @@ public class DataSetsBean extends BaseManagedBean {
     }
   }
 
+  /**
+   * Extend the data set to include any data files added after its end, and
+   * submit a job to extract and process the new data. The data set is not
+   * extended past the start of the next data set for the instrument.
+   */
+  public void submitAppendJob() {
+    Connection conn = null;
+
+    try {
+      DataSet dataSet = DataSetDB.getDataSet(getDataSource(), datasetId);
+      LocalDateTime newEnd = DataFileDB.getLastCompleteDate(getDataSource(), dataSet.getInstrumentId());
+
+      if (null != newEnd) {
+        for (DataSet other : DataSetDB.getDataSets(getDataSource(), dataSet.getInstrumentId())) {
+          if (other.getStart().isAfter(dataSet.getStart()) && other.getStart().isBefore(newEnd)) {
+            newEnd = other.getStart();
+          }
+        }
+      }
+
+      if (null != newEnd && newEnd.isAfter(dataSet.getEnd())) {
+        LocalDateTime previousEnd = dataSet.getEnd();
+        dataSet.setEnd(newEnd);
+
+        conn = getDataSource().getConnection();
+        conn.setAutoCommit(false);
+        DataSetDB.updateDataSet(conn, dataSet);
+
+        Map<String, String> jobParams = new HashMap<String, String>();
+        jobParams.put(ExtractDataSetJob.ID_PARAM, String.valueOf(datasetId));
+        jobParams.put(ExtractDataSetJob.EXTEND_FROM_PARAM, String.valueOf(DateTimeUtils.dateToLong(previousEnd)));
+        JobManager.addJob(conn, getUser(), ExtractDataSetJob.class.getCanonicalName(), jobParams);
+        conn.commit();
+
+        // The dispatcher can only see the job once it has been committed
+        JobDispatcher.signal();
+      }
+
+      loadDataSets();
+    } catch (Exception e) {
+      e.printStackTrace();
+      DatabaseUtils.rollBack(conn);
+    } finally {
+      DatabaseUtils.closeConnection(conn);
+    }
+  }
+
   /**
    * Check if this instrument has a valid calibration for the start-time of the
    * data set the user wants to create. Checks both sensor calibrations
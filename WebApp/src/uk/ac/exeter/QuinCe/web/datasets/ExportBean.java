@@ -1,9 +1,13 @@
 package uk.ac.exeter.QuinCe.web.datasets;
 
-import java.io.OutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.faces.bean.ManagedBean;
@@ -14,14 +18,14 @@ import javax.faces.context.FacesContext;
 import uk.ac.exeter.QCRoutines.messages.Flag;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDBFactory;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecord;
-import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecordFactory;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecordReader;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
-import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
 import uk.ac.exeter.QuinCe.data.Export.ExportConfig;
 import uk.ac.exeter.QuinCe.data.Export.ExportException;
 import uk.ac.exeter.QuinCe.data.Export.ExportOption;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
 import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
 import uk.ac.exeter.QuinCe.utils.StringUtils;
 import uk.ac.exeter.QuinCe.web.BaseManagedBean;
@@ -51,6 +55,11 @@ public class ExportBean extends BaseManagedBean {
    */
   private static DecimalFormat numberFormatter;
 
+  /**
+   * The size of the buffer used when writing the export file
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 65536;
+
   static {
     numberFormatter = new DecimalFormat("#.000");
     numberFormatter.setRoundingMode(RoundingMode.HALF_UP);
@@ -135,119 +144,144 @@ public class ExportBean extends BaseManagedBean {
   }
 
   /**
-   * Export the dataset in the chosen format
+   * Export the dataset in the chosen format.
+   *
+   * <p>
+   *   The records are streamed from the database and written straight
+   *   to the response as they are read, so the memory used does not depend
+   *   on the size of the data set. The response length is not known in
+   *   advance, so the file is sent using chunked transfer.
+   * </p>
    */
   public void exportDataset() {
 
+    Connection conn = null;
+    CalculationRecordReader reader = null;
+
     try {
       ExportOption exportOption = getExportOptions().get(chosenExportOption);
 
-      // TODO This will get all sensor columns. When the sensor data storage is updated (Issue #576), this can be revised.
-      List<DataSetRawDataRecord> datasetData = DataSetDataDB.getMeasurements(getDataSource(), getDataset());
+      // TODO Replace when mutiple calculation paths are in place
+      List<String> calculationColumns = exportOption.getCalculationColumns("equilibrator_pco2");
 
-      List<CalculationRecord> calculationData = new ArrayList<CalculationRecord>(datasetData.size());
-      for (DataSetRawDataRecord record : datasetData) {
-        CalculationRecord calcRecord = CalculationRecordFactory.makeCalculationRecord(getDatasetId(), record.getId());
-        CalculationDBFactory.getCalculationDB().getCalculationValues(getDataSource(), calcRecord);
-        calculationData.add(calcRecord);
-      }
+      // Open the query before the response is started,
+      // so any database errors are reported properly
+      conn = getDataSource().getConnection();
+      reader = new CalculationRecordReader(conn, CalculationDBFactory.getCalculationDB(), getDataset());
 
-      StringBuilder output = new StringBuilder();
+      FacesContext fc = FacesContext.getCurrentInstance();
+      ExternalContext ec = fc.getExternalContext();
 
-      // The header
-      output.append("Date");
-      output.append(exportOption.getSeparator());
-      output.append("Longitude");
-      output.append(exportOption.getSeparator());
-      output.append("Latitude");
-      output.append(exportOption.getSeparator());
+      ec.responseReset();
+      ec.setResponseContentType("text/csv; charset=UTF-8");
+      ec.setResponseHeader("Content-Disposition", "attachment; filename=\"" + getExportFilename(exportOption) + "\""); // The Save As popup magic is done here. You can give it any file name you want, this only won't work in MSIE, it will use current request URL as file name instead.
 
-      for (String sensorColumn : exportOption.getSensorColumns()) {
-        output.append(sensorColumn);
-        output.append(exportOption.getSeparator());
-      }
+      Writer output = new BufferedWriter(new OutputStreamWriter(ec.getResponseOutputStream(), StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
 
-      // TODO Replace when mutiple calculation paths are in place
-      List<String> calculationColumns = exportOption.getCalculationColumns("equilibrator_pco2");
-      for (int i = 0; i < calculationColumns.size(); i++) {
-        output.append(calculationColumns.get(i));
-        output.append(exportOption.getSeparator());
-      }
+      writeHeader(output, exportOption, calculationColumns);
 
-      output.append("QC Flag");
-      output.append(exportOption.getSeparator());
-      output.append("QC Message");
-      output.append('\n');
+      CalculationRecord calculationRecord = reader.next();
+      while (null != calculationRecord) {
+        if (exportOption.flagAllowed(calculationRecord.getUserFlag())) {
+          writeRecord(output, exportOption, calculationColumns, reader.getCurrentMeasurement(), calculationRecord);
+        }
 
+        calculationRecord = reader.next();
+      }
 
-      for (int i = 0; i < datasetData.size(); i++) {
+      output.flush();
+      fc.responseComplete();
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      if (null != reader) {
+        reader.close();
+      }
+      DatabaseUtils.closeConnection(conn);
+    }
+  }
 
-        DataSetRawDataRecord sensorRecord = datasetData.get(i);
-        CalculationRecord calculationRecord = calculationData.get(i);
+  /**
+   * Write the header line of the export file
+   * @param output The output
+   * @param exportOption The export option
+   * @param calculationColumns The calculation columns to be exported
+   * @throws IOException If the header cannot be written
+   */
+  private void writeHeader(Writer output, ExportOption exportOption, List<String> calculationColumns) throws IOException {
+    output.write("Date");
+    output.write(exportOption.getSeparator());
+    output.write("Longitude");
+    output.write(exportOption.getSeparator());
+    output.write("Latitude");
+    output.write(exportOption.getSeparator());
+
+    for (String sensorColumn : exportOption.getSensorColumns()) {
+      output.write(sensorColumn);
+      output.write(exportOption.getSeparator());
+    }
 
-        if (exportOption.flagAllowed(calculationRecord.getUserFlag())) {
+    for (String calculationColumn : calculationColumns) {
+      output.write(calculationColumn);
+      output.write(exportOption.getSeparator());
+    }
 
-          output.append(DateTimeUtils.formatDateTime(sensorRecord.getDate()));
-          output.append(exportOption.getSeparator());
-          output.append(numberFormatter.format(sensorRecord.getLongitude()));
-          output.append(exportOption.getSeparator());
-          output.append(numberFormatter.format(sensorRecord.getLatitude()));
-          output.append(exportOption.getSeparator());
-
-          for (String sensorColumn : exportOption.getSensorColumns()) {
-            Double value = sensorRecord.getSensorValue(sensorColumn);
-            if (null == value) {
-              output.append("NaN");
-            } else {
-              output.append(numberFormatter.format(value));
-            }
-
-            output.append(exportOption.getSeparator());
-          }
-
-          for (String calculatedColumn : exportOption.getCalculationColumns("equilibrator_pco2")) {
-            Double value = calculationRecord.getNumericValue(calculatedColumn);
-            if (null == value) {
-              output.append("NaN");
-            } else {
-              output.append(numberFormatter.format(value));
-            }
-
-            output.append(exportOption.getSeparator());
-          }
-
-          output.append(Flag.getWoceValue(calculationRecord.getUserFlag().getFlagValue()));
-          output.append(exportOption.getSeparator());
-
-          String qcMessage = calculationRecord.getUserMessage();
-          if (null != qcMessage) {
-            if (qcMessage.length() > 0) {
-              output.append(StringUtils.makeCsvString(qcMessage.trim()));
-            }
-          }
-
-          output.append('\n');
-        }
+    output.write("QC Flag");
+    output.write(exportOption.getSeparator());
+    output.write("QC Message");
+    output.write('\n');
+  }
 
+  /**
+   * Write a single record to the export file
+   * @param output The output
+   * @param exportOption The export option
+   * @param calculationColumns The calculation columns to be exported
+   * @param sensorRecord The measurement's sensor values
+   * @param calculationRecord The measurement's calculation values
+   * @throws Exception If the record cannot be written
+   */
+  private void writeRecord(Writer output, ExportOption exportOption, List<String> calculationColumns, DataSetRawDataRecord sensorRecord, CalculationRecord calculationRecord) throws Exception {
+    output.write(DateTimeUtils.formatDateTime(sensorRecord.getDate()));
+    output.write(exportOption.getSeparator());
+    output.write(numberFormatter.format(sensorRecord.getLongitude()));
+    output.write(exportOption.getSeparator());
+    output.write(numberFormatter.format(sensorRecord.getLatitude()));
+    output.write(exportOption.getSeparator());
+
+    for (String sensorColumn : exportOption.getSensorColumns()) {
+      Double value = sensorRecord.getSensorValue(sensorColumn);
+      if (null == value) {
+        output.write("NaN");
+      } else {
+        output.write(numberFormatter.format(value));
       }
 
-      byte[] fileContent = output.toString().getBytes();
+      output.write(exportOption.getSeparator());
+    }
 
-      FacesContext fc = FacesContext.getCurrentInstance();
-      ExternalContext ec = fc.getExternalContext();
+    for (String calculatedColumn : calculationColumns) {
+      Double value = calculationRecord.getNumericValue(calculatedColumn);
+      if (null == value) {
+        output.write("NaN");
+      } else {
+        output.write(numberFormatter.format(value));
+      }
 
-      ec.responseReset();
-      ec.setResponseContentType("text/csv");
-      ec.setResponseContentLength(fileContent.length); // Set it with the file size. This header is optional. It will work if it's omitted, but the download progress will be unknown.
-      ec.setResponseHeader("Content-Disposition", "attachment; filename=\"" + getExportFilename(exportOption) + "\""); // The Save As popup magic is done here. You can give it any file name you want, this only won't work in MSIE, it will use current request URL as file name instead.
+      output.write(exportOption.getSeparator());
+    }
 
-      OutputStream outputStream = ec.getResponseOutputStream();
-      outputStream.write(fileContent);
+    output.write(String.valueOf(Flag.getWoceValue(calculationRecord.getUserFlag().getFlagValue())));
+    output.write(exportOption.getSeparator());
 
-      fc.responseComplete();
-    } catch (Exception e) {
-      e.printStackTrace();
+    String qcMessage = calculationRecord.getUserMessage();
+    if (null != qcMessage) {
+      if (qcMessage.length() > 0) {
+        output.write(StringUtils.makeCsvString(qcMessage.trim()));
+      }
     }
+
+    output.write('\n');
   }
 
   /**
@@ -1,5 +1,6 @@
 package uk.ac.exeter.QuinCe.web.datasets;
 
+import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -12,19 +13,25 @@ import org.primefaces.json.JSONArray;
 import org.primefaces.json.JSONObject;
 
 import uk.ac.exeter.QCRoutines.messages.Flag;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationDB;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationDBFactory;
 import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecord;
-import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecordFactory;
+import uk.ac.exeter.QuinCe.data.Calculation.CalculationRecordReader;
 import uk.ac.exeter.QuinCe.data.Calculation.CommentSet;
 import uk.ac.exeter.QuinCe.data.Calculation.CommentSetEntry;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetCache;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetColumns;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDataDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetRawDataRecord;
 import uk.ac.exeter.QuinCe.data.Dataset.DiagnosticDataDB;
+import uk.ac.exeter.QuinCe.jobs.Job;
 import uk.ac.exeter.QuinCe.jobs.JobManager;
 import uk.ac.exeter.QuinCe.jobs.files.DataReductionJob;
+import uk.ac.exeter.QuinCe.utils.DatabaseUtils;
 import uk.ac.exeter.QuinCe.utils.DateTimeUtils;
+import uk.ac.exeter.QuinCe.utils.Downsampler;
 import uk.ac.exeter.QuinCe.web.PlotPageBean;
 import uk.ac.exeter.QuinCe.web.Variable;
 import uk.ac.exeter.QuinCe.web.VariableList;
@@ -63,6 +70,12 @@ public class ManualQcBean extends PlotPageBean {
    */
   private int diagnosticColumnCount = 0;
 
+  /**
+   * The diagnostic sensors shown in the table, indexed by database ID.
+   * These are loaded with the table headings.
+   */
+  private Map<Long, String> diagnosticSensors = null;
+
   /**
    * The column containing the auto QC flag
    */
@@ -113,7 +126,8 @@ public class ManualQcBean extends PlotPageBean {
     sensorColumnCount = dataHeadings.size() - 4; // Skip id, date, lat, lon
     List<String> calculationHeadings = CalculationDBFactory.getCalculationDB().getCalculationColumnHeadings();
     calculationColumnCount = calculationHeadings.size();
-    List<String> diagnosticHeadings = DiagnosticDataDB.getDiagnosticSensorNames(getDataSource(), getDataset().getInstrumentId());
+    diagnosticSensors = DiagnosticDataDB.getDiagnosticSensors(getDataSource(), getDataset().getInstrumentId());
+    List<String> diagnosticHeadings = new ArrayList<String>(diagnosticSensors.values());
     diagnosticColumnCount = diagnosticHeadings.size();
 
     JSONArray headings = new JSONArray();
@@ -174,104 +188,199 @@ public class ManualQcBean extends PlotPageBean {
 
   @Override
   protected String loadTableData(int start, int length) throws Exception {
-    List<DataSetRawDataRecord> datasetData = DataSetDataDB.getMeasurements(getDataSource(), getDataset(), start, length);
-
-    List<Long> measurementIds = new ArrayList<Long>(datasetData.size());
-    List<CalculationRecord> calculationData = new ArrayList<CalculationRecord>(datasetData.size());
-    for (DataSetRawDataRecord record : datasetData) {
-      measurementIds.add(record.getId());
-      CalculationRecord calcRecord = CalculationRecordFactory.makeCalculationRecord(getDatasetId(), record.getId());
-      CalculationDBFactory.getCalculationDB().getCalculationValues(getDataSource(), calcRecord);
-      calculationData.add(calcRecord);
+
+    String result;
+
+    CalculationDB calculationDB = CalculationDBFactory.getCalculationDB();
+    DataSetColumns columns = DataSetCache.getColumns(getDataSource(), calculationDB, getDataset());
+
+    if (null == columns) {
+      result = loadDatabaseTableData(start, length);
+    } else {
+      int end = length < 0 ? columns.size() : Math.min(start + length, columns.size());
+
+      List<Long> ids = new ArrayList<Long>();
+      for (int row = start; row < end; row++) {
+        ids.add(columns.getId(row));
+      }
+
+      // Only the QC messages are not held in the cache
+      Map<Long, String[]> messages = calculationDB.getTableMessages(getDataSource(), ids);
+
+      JSONArray json = new JSONArray();
+      for (int row = start; row < end; row++) {
+        json.put(makeTableRow(row, columns, messages.get(columns.getId(row))));
+      }
+
+      result = json.toString();
     }
 
-    List<String> diagnosticHeadings = DiagnosticDataDB.getDiagnosticSensorNames(getDataSource(), getDataset().getInstrumentId());
-    Map<Long, Map<String, Double>> diagnosticData = DiagnosticDataDB.getDiagnosticValues(getDataSource(), getDataset().getInstrumentId(), measurementIds, diagnosticHeadings);
+    return result;
+  }
+
+  /**
+   * Read a page of the table directly from the database.
+   * This is used if the data set cache has not been created.
+   * @param start The first row of the page
+   * @param length The number of rows in the page
+   * @return The table data
+   * @throws Exception If the data cannot be read
+   */
+  private String loadDatabaseTableData(int start, int length) throws Exception {
+
+    if (null == diagnosticSensors) {
+      diagnosticSensors = DiagnosticDataDB.getDiagnosticSensors(getDataSource(), getDataset().getInstrumentId());
+    }
 
     JSONArray json = new JSONArray();
 
-    int rowId = start - 1;
-    for (int i = 0; i < datasetData.size(); i++) {
-      rowId++;
+    // The whole page is read with a single query
+    Connection conn = null;
+    CalculationRecordReader reader = null;
 
-      DataSetRawDataRecord dsData = datasetData.get(i);
-      CalculationRecord calcData = calculationData.get(i);
+    try {
+      conn = getDataSource().getConnection();
+      reader = new CalculationRecordReader(conn, CalculationDBFactory.getCalculationDB(), getDataset(), diagnosticSensors, start, length);
+
+      int rowId = start - 1;
+      CalculationRecord calcData = reader.next();
+      while (null != calcData) {
+        rowId++;
+        json.put(makeTableRow(rowId, reader.getCurrentMeasurement(), calcData, reader.getCurrentDiagnosticValues()));
+        calcData = reader.next();
+      }
+    } finally {
+      if (null != reader) {
+        reader.close();
+      }
+      DatabaseUtils.closeConnection(conn);
+    }
 
-      JSONObject obj = new JSONObject();
+    return json.toString();
+  }
 
-      obj.put("DT_RowId", "row" + rowId);
+  /**
+   * Build the JSON object for a row of the table from the data set cache
+   * @param row The row number
+   * @param columns The cached data set
+   * @param messages The automatic and user QC messages for the row's measurement
+   * @return The JSON object
+   * @see CalculationDB#getTableMessages(javax.sql.DataSource, List)
+   */
+  private JSONObject makeTableRow(int row, DataSetColumns columns, String[] messages) {
 
-      int columnIndex = 0;
-      obj.put(String.valueOf(columnIndex), dsData.getId()); // ID
+    JSONObject obj = new JSONObject();
 
-      columnIndex++;
-      obj.put(String.valueOf(columnIndex), DateTimeUtils.dateToLong(dsData.getDate())); // Date
+    obj.put("DT_RowId", "row" + row);
 
+    // ID, date, position, sensor, calculation and diagnostic values
+    JSONArray values = columns.getTableValues(row);
+    int columnIndex = 0;
+    while (columnIndex < values.length()) {
+      obj.put(String.valueOf(columnIndex), values.get(columnIndex));
       columnIndex++;
-      obj.put(String.valueOf(columnIndex), dsData.getLongitude()); // Longitude
+    }
 
-      columnIndex++;
-      obj.put(String.valueOf(columnIndex), dsData.getLatitude()); // Latitude
-
-      // Sensor values
-      for (Map.Entry<String, Double> entry : dsData.getSensorValues().entrySet()) {
-        columnIndex++;
-        Double value = entry.getValue();
-        if (null == value) {
-          obj.put(String.valueOf(columnIndex), JSONObject.NULL);
-        } else {
-          obj.put(String.valueOf(columnIndex), value);
-        }
-      }
+    obj.put(String.valueOf(columnIndex), columns.getAutoFlag(row));
 
-      // Calculation values
-      List<String> calcColumns = calcData.getCalculationColumns();
+    columnIndex++;
+    obj.put(String.valueOf(columnIndex), null == messages ? "" : messages[0]);
 
-      for (int j = 0; j < calcColumns.size(); j++) {
-        columnIndex++;
-        Double value = calcData.getNumericValue(calcColumns.get(j));
-        if (null == value) {
-          obj.put(String.valueOf(columnIndex), JSONObject.NULL);
-        } else {
-          obj.put(String.valueOf(columnIndex), value);
-        }
-      }
+    columnIndex++;
+    obj.put(String.valueOf(columnIndex), columns.getUserFlag(row));
 
-      // Diagnostic values
-      Map<String, Double> diagnosticValues = diagnosticData.get(dsData.getId());
-      for (String column : diagnosticHeadings) {
-        columnIndex++;
-        if (null == diagnosticValues.get(column)) {
-          obj.put(String.valueOf(columnIndex), JSONObject.NULL);
-        } else {
-          obj.put(String.valueOf(columnIndex), diagnosticValues.get(column));
-        }
-      }
+    columnIndex++;
+    if (null == messages || null == messages[1]) {
+      obj.put(String.valueOf(columnIndex), JSONObject.NULL);
+    } else {
+      obj.put(String.valueOf(columnIndex), messages[1]);
+    }
 
-      columnIndex++;
-      obj.put(String.valueOf(columnIndex), calcData.getAutoFlag().getFlagValue());
+    return obj;
+  }
+
+  /**
+   * Build the JSON object for a row of the table
+   * @param rowId The row number
+   * @param dsData The measurement
+   * @param calcData The calculation record for the measurement
+   * @param diagnosticValues The diagnostic values for the measurement
+   * @return The JSON object
+   * @throws Exception If the calculation values cannot be read
+   */
+  private JSONObject makeTableRow(int rowId, DataSetRawDataRecord dsData, CalculationRecord calcData, Map<String, Double> diagnosticValues) throws Exception {
+
+    JSONObject obj = new JSONObject();
+
+    obj.put("DT_RowId", "row" + rowId);
+
+    int columnIndex = 0;
+    obj.put(String.valueOf(columnIndex), dsData.getId()); // ID
 
+    columnIndex++;
+    obj.put(String.valueOf(columnIndex), DateTimeUtils.dateToLong(dsData.getDate())); // Date
+
+    columnIndex++;
+    obj.put(String.valueOf(columnIndex), dsData.getLongitude()); // Longitude
+
+    columnIndex++;
+    obj.put(String.valueOf(columnIndex), dsData.getLatitude()); // Latitude
+
+    // Sensor values
+    for (Map.Entry<String, Double> entry : dsData.getSensorValues().entrySet()) {
       columnIndex++;
-      if (null == calcData.getAutoQCMessagesString()) {
+      Double value = entry.getValue();
+      if (null == value) {
         obj.put(String.valueOf(columnIndex), JSONObject.NULL);
       } else {
-        obj.put(String.valueOf(columnIndex), calcData.getAutoQCMessagesString());
+        obj.put(String.valueOf(columnIndex), value);
       }
+    }
 
+    // Calculation values
+    List<String> calcColumns = calcData.getCalculationColumns();
+
+    for (int j = 0; j < calcColumns.size(); j++) {
       columnIndex++;
-      obj.put(String.valueOf(columnIndex), calcData.getUserFlag().getFlagValue());
+      Double value = calcData.getNumericValue(calcColumns.get(j));
+      if (null == value) {
+        obj.put(String.valueOf(columnIndex), JSONObject.NULL);
+      } else {
+        obj.put(String.valueOf(columnIndex), value);
+      }
+    }
 
+    // Diagnostic values
+    for (String column : diagnosticSensors.values()) {
       columnIndex++;
-      if (null == calcData.getUserMessage()) {
+      if (null == diagnosticValues.get(column)) {
         obj.put(String.valueOf(columnIndex), JSONObject.NULL);
       } else {
-        obj.put(String.valueOf(columnIndex), calcData.getUserMessage());
+        obj.put(String.valueOf(columnIndex), diagnosticValues.get(column));
       }
+    }
 
-      json.put(obj);
+    columnIndex++;
+    obj.put(String.valueOf(columnIndex), calcData.getAutoFlag().getFlagValue());
+
+    columnIndex++;
+    if (null == calcData.getAutoQCMessagesString()) {
+      obj.put(String.valueOf(columnIndex), JSONObject.NULL);
+    } else {
+      obj.put(String.valueOf(columnIndex), calcData.getAutoQCMessagesString());
     }
 
-    return json.toString();
+    columnIndex++;
+    obj.put(String.valueOf(columnIndex), calcData.getUserFlag().getFlagValue());
+
+    columnIndex++;
+    if (null == calcData.getUserMessage()) {
+      obj.put(String.valueOf(columnIndex), JSONObject.NULL);
+    } else {
+      obj.put(String.valueOf(columnIndex), calcData.getUserMessage());
+    }
+
+    return obj;
   }
 
   /**
@@ -284,7 +393,7 @@ public class ManualQcBean extends PlotPageBean {
         DataSetDB.setDatasetStatus(getDataSource(), getDatasetId(), DataSet.STATUS_DATA_REDUCTION);
         Map<String, String> jobParams = new HashMap<String, String>();
         jobParams.put(DataReductionJob.ID_PARAM, String.valueOf(getDatasetId()));
-        JobManager.addJob(getDataSource(), getUser(), DataReductionJob.class.getCanonicalName(), jobParams);
+        JobManager.addJob(getDataSource(), getUser(), DataReductionJob.class.getCanonicalName(), jobParams, Job.INTERACTIVE_PRIORITY);
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -314,7 +423,9 @@ public class ManualQcBean extends PlotPageBean {
    */
   public void acceptAutoQc() {
     try {
-      CalculationDBFactory.getCalculationDB().acceptAutoQc(getDataSource(), getSelectedRowsList());
+      List<Long> rows = getSelectedRowsList();
+      CalculationDBFactory.getCalculationDB().acceptAutoQc(getDataSource(), rows);
+      DataSetDB.recordUserFlags(getDataSource(), getDatasetId(), rows, null);
       dirty = true;
     } catch (Exception e) {
       e.printStackTrace();
@@ -417,7 +528,9 @@ public class ManualQcBean extends PlotPageBean {
    */
   public void applyManualFlag() {
     try {
-      CalculationDBFactory.getCalculationDB().applyManualFlag(getDataSource(), getSelectedRowsList(), userFlag, userComment);
+      List<Long> rows = getSelectedRowsList();
+      CalculationDBFactory.getCalculationDB().applyManualFlag(getDataSource(), rows, userFlag, userComment);
+      DataSetDB.recordUserFlags(getDataSource(), getDatasetId(), rows, userFlag);
       dirty = true;
     } catch (Exception e) {
       e.printStackTrace();
@@ -466,8 +579,8 @@ public class ManualQcBean extends PlotPageBean {
   }
 
   @Override
-  protected String getData(List<String> fields) throws Exception {
-    return CalculationDBFactory.getCalculationDB().getJsonData(getDataSource(), getDataset(), fields, fields.get(0));
+  protected String getData(List<String> fields, Downsampler downsampler) throws Exception {
+    return CalculationDBFactory.getCalculationDB().getJsonData(getDataSource(), getDataset(), fields, fields.get(0), null, downsampler);
   }
 
   @Override
@@ -13,9 +13,11 @@ import org.primefaces.json.JSONArray;
 import uk.ac.exeter.QuinCe.data.Dataset.CalibrationDataDB;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSet;
 import uk.ac.exeter.QuinCe.data.Dataset.DataSetDB;
+import uk.ac.exeter.QuinCe.jobs.Job;
 import uk.ac.exeter.QuinCe.jobs.JobManager;
 import uk.ac.exeter.QuinCe.jobs.files.DataReductionJob;
 import uk.ac.exeter.QuinCe.utils.DatabaseException;
+import uk.ac.exeter.QuinCe.utils.Downsampler;
 import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.web.PlotPageBean;
 import uk.ac.exeter.QuinCe.web.Variable;
@@ -67,7 +69,7 @@ public class ReviewCalibrationDataBean extends PlotPageBean {
         DataSetDB.setDatasetStatus(getDataSource(), getDatasetId(), DataSet.STATUS_DATA_REDUCTION);
         Map<String, String> jobParams = new HashMap<String, String>();
         jobParams.put(DataReductionJob.ID_PARAM, String.valueOf(getDatasetId()));
-        JobManager.addJob(getDataSource(), getUser(), DataReductionJob.class.getCanonicalName(), jobParams);
+        JobManager.addJob(getDataSource(), getUser(), DataReductionJob.class.getCanonicalName(), jobParams, Job.INTERACTIVE_PRIORITY);
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -173,7 +175,7 @@ public class ReviewCalibrationDataBean extends PlotPageBean {
   public void setCalibrationUse() throws MissingParamException, DatabaseException {
 
     try {
-      CalibrationDataDB.setCalibrationUse(getDataSource(), getSelectedRowsList(), useCalibrations, useCalibrationsMessage);
+      CalibrationDataDB.setCalibrationUse(getDataSource(), getDatasetId(), getSelectedRowsList(), useCalibrations, useCalibrationsMessage);
       dirty = true;
     } catch (Exception e) {
       e.printStackTrace();
@@ -217,7 +219,8 @@ public class ReviewCalibrationDataBean extends PlotPageBean {
   }
 
   @Override
-  protected String getData(List<String> fields) throws Exception {
+  protected String getData(List<String> fields, Downsampler downsampler) throws Exception {
+    // Calibration data sets are small, so they are not downsampled
     List<String> standardNames = new ArrayList<String>();
     for (Variable variable : plot1.getYAxisVariables()) {
       standardNames.add(variable.getFieldName());
@@ -0,0 +1,114 @@
+package uk.ac.exeter.QuinCe.web.jobs;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import org.primefaces.json.JSONArray;
+import org.primefaces.json.JSONObject;
+
+import uk.ac.exeter.QuinCe.jobs.Job;
+import uk.ac.exeter.QuinCe.jobs.JobManager;
+import uk.ac.exeter.QuinCe.jobs.JobThreadPool;
+import uk.ac.exeter.QuinCe.jobs.QueueWaitStatistics;
+import uk.ac.exeter.QuinCe.web.system.ServletUtils;
+
+/**
+ * Servlet that returns job performance metrics as JSON, for use by
+ * monitoring tools.
+ *
+ * <p>
+ *   The response contains the thread pool usage, the queue wait statistics
+ *   for each job priority, and the metrics of every job created within the
+ *   last {@code hours} hours (default {@link #DEFAULT_HOURS}).
+ * </p>
+ *
+ * @author Steve Jones
+ * @see JobManager#getRecentJobMetricsJson(DataSource, int)
+ */
+public class JobMetricsServlet extends HttpServlet {
+
+  /**
+   * The Serial Version UID
+   */
+  private static final long serialVersionUID = -3148893560913470912L;
+
+  /**
+   * The request parameter for the number of hours of jobs to include
+   */
+  private static final String HOURS_PARAM = "hours";
+
+  /**
+   * The default number of hours of jobs to include
+   */
+  private static final int DEFAULT_HOURS = 24;
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+    int hours = DEFAULT_HOURS;
+    String hoursParam = request.getParameter(HOURS_PARAM);
+    if (null != hoursParam) {
+      try {
+        hours = Integer.parseInt(hoursParam);
+      } catch (NumberFormatException e) {
+        hours = -1;
+      }
+    }
+
+    if (hours <= 0) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid hours parameter");
+    } else {
+      try {
+        DataSource dataSource = ServletUtils.getDBDataSource();
+
+        JSONObject json = new JSONObject();
+
+        JobThreadPool pool = JobThreadPool.getInstance();
+        JSONObject threads = new JSONObject();
+        threads.put("max", pool.getMaxThreads());
+        threads.put("idle", pool.getPoolThreadCount());
+        threads.put("running", pool.getRunningThreadsCount());
+        threads.put("instant", pool.getOverflowThreadsCount());
+        json.put("threads", threads);
+
+        QueueWaitStatistics waitStatistics = JobManager.getQueueWaitStatistics(dataSource, hours);
+        JSONObject queue = new JSONObject();
+        queue.put("interactive", getQueueJson(waitStatistics, Job.INTERACTIVE_PRIORITY));
+        queue.put("bulk", getQueueJson(waitStatistics, Job.BULK_PRIORITY));
+        json.put("queue", queue);
+
+        json.put("jobs", new JSONArray(JobManager.getRecentJobMetricsJson(dataSource, hours)));
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json.toString());
+      } catch (Exception e) {
+        e.printStackTrace();
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to retrieve job metrics");
+      }
+    }
+  }
+
+  /**
+   * Build the JSON object for the queue wait statistics of one priority
+   * @param waitStatistics The queue wait statistics
+   * @param priority The priority
+   * @return The JSON object
+   */
+  private JSONObject getQueueJson(QueueWaitStatistics waitStatistics, int priority) {
+    JSONObject result = new JSONObject();
+    result.put("waiting", waitStatistics.getQueuedCount(priority));
+    result.put("longestWait", waitStatistics.getLongestWait(priority));
+
+    double meanWait = waitStatistics.getMeanStartedWait(priority);
+    if (!Double.isNaN(meanWait)) {
+      result.put("meanStartedWait", meanWait);
+    }
+
+    return result;
+  }
+}
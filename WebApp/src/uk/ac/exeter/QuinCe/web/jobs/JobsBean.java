@@ -8,6 +8,7 @@ import uk.ac.exeter.QuinCe.jobs.Job;
 import uk.ac.exeter.QuinCe.jobs.JobManager;
 import uk.ac.exeter.QuinCe.jobs.JobSummary;
 import uk.ac.exeter.QuinCe.jobs.JobThreadPool;
+import uk.ac.exeter.QuinCe.jobs.QueueWaitStatistics;
 import uk.ac.exeter.QuinCe.jobs.test.TenSecondJob;
 import uk.ac.exeter.QuinCe.web.BaseManagedBean;
 import uk.ac.exeter.QuinCe.web.system.ServletUtils;
@@ -39,6 +40,16 @@ public class JobsBean extends BaseManagedBean {
    */
   private int overflowThreads = 0;
 
+  /**
+   * The number of hours of started jobs included in the queue wait statistics
+   */
+  private static final int WAIT_STATISTICS_HOURS = 24;
+
+  /**
+   * Statistics on how long jobs wait in the queue
+   */
+  private QueueWaitStatistics waitStatistics = null;
+
   /**
    * The number of jobs with different statuses
    */
@@ -101,6 +112,13 @@ public class JobsBean extends BaseManagedBean {
       jobCounts = null;
     }
 
+    try {
+      waitStatistics = JobManager.getQueueWaitStatistics(ServletUtils.getDBDataSource(), WAIT_STATISTICS_HOURS);
+    } catch (Exception e) {
+      e.printStackTrace();
+      waitStatistics = null;
+    }
+
     try {
       jobList = JobManager.getJobList(ServletUtils.getDBDataSource());
     } catch (Exception e) {
@@ -245,6 +263,55 @@ public class JobsBean extends BaseManagedBean {
     this.overflowThreads = overflowThreads;
   }
 
+  /**
+   * Get the time that the oldest interactive job has been waiting in the queue
+   * @return The waiting time
+   */
+  public String getLongestInteractiveWait() {
+    return null == waitStatistics ? "-" : formatWait(waitStatistics.getLongestWait(Job.INTERACTIVE_PRIORITY));
+  }
+
+  /**
+   * Get the time that the oldest bulk job has been waiting in the queue
+   * @return The waiting time
+   */
+  public String getLongestBulkWait() {
+    return null == waitStatistics ? "-" : formatWait(waitStatistics.getLongestWait(Job.BULK_PRIORITY));
+  }
+
+  /**
+   * Get the average time that recently started interactive jobs waited in the queue
+   * @return The average waiting time
+   */
+  public String getMeanInteractiveWait() {
+    return null == waitStatistics ? "-" : formatWait(waitStatistics.getMeanStartedWait(Job.INTERACTIVE_PRIORITY));
+  }
+
+  /**
+   * Get the average time that recently started bulk jobs waited in the queue
+   * @return The average waiting time
+   */
+  public String getMeanBulkWait() {
+    return null == waitStatistics ? "-" : formatWait(waitStatistics.getMeanStartedWait(Job.BULK_PRIORITY));
+  }
+
+  /**
+   * Get the number of hours of started jobs included in the average waiting times
+   * @return The number of hours
+   */
+  public int getWaitStatisticsHours() {
+    return WAIT_STATISTICS_HOURS;
+  }
+
+  /**
+   * Format a waiting time for display
+   * @param seconds The waiting time in seconds
+   * @return The formatted waiting time
+   */
+  private String formatWait(double seconds) {
+    return Double.isNaN(seconds) ? "-" : String.format("%.0fs", seconds);
+  }
+
   /**
    * Get the number of waiting jobs
    * @return The number of waiting jobs
@@ -4,10 +4,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -19,6 +22,7 @@ import javax.sql.DataSource;
 import uk.ac.exeter.QCRoutines.config.ColumnConfig;
 import uk.ac.exeter.QCRoutines.config.ConfigException;
 import uk.ac.exeter.QCRoutines.config.RoutinesConfig;
+import uk.ac.exeter.QuinCe.data.Dataset.DataSetCache;
 import uk.ac.exeter.QuinCe.data.Export.ExportConfig;
 import uk.ac.exeter.QuinCe.data.Export.ExportException;
 import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeCategoryConfiguration;
@@ -26,7 +30,10 @@ import uk.ac.exeter.QuinCe.data.Instrument.RunTypes.RunTypeCategoryException;
 import uk.ac.exeter.QuinCe.data.Instrument.SensorDefinition.SensorConfigurationException;
 import uk.ac.exeter.QuinCe.data.Instrument.SensorDefinition.SensorsConfiguration;
 import uk.ac.exeter.QuinCe.jobs.InvalidThreadCountException;
+import uk.ac.exeter.QuinCe.jobs.JobDispatcher;
+import uk.ac.exeter.QuinCe.jobs.JobManager;
 import uk.ac.exeter.QuinCe.jobs.JobThreadPool;
+import uk.ac.exeter.QuinCe.utils.MissingParamException;
 import uk.ac.exeter.QuinCe.utils.StringUtils;
 
 /**
@@ -69,6 +76,67 @@ public class ResourceManager implements ServletContextListener {
 
   private RunTypeCategoryConfiguration runTypeCategoryConfiguration;
 
+  /**
+   * The configuration property for the number of threads
+   * used for data reduction calculations
+   */
+  public static final String REDUCTION_PARALLELISM_PROPERTY = "reduction.parallelism";
+
+  /**
+   * The thread pool used for data reduction calculations
+   */
+  private ForkJoinPool calculationPool = null;
+
+  /**
+   * The configuration property for the maximum number of threads
+   * used to run jobs from the queue
+   */
+  public static final String JOB_THREADS_PROPERTY = "jobs.threads";
+
+  /**
+   * The configuration property for the maximum number of threads
+   * used to run instant jobs
+   */
+  public static final String JOB_INSTANT_THREADS_PROPERTY = "jobs.instant_threads";
+
+  /**
+   * The default maximum number of threads used to run instant jobs
+   */
+  private static final int DEFAULT_JOB_INSTANT_THREADS = 2;
+
+  /**
+   * The configuration property for the ID of this node when
+   * several application instances share one database
+   */
+  public static final String JOB_NODE_ID_PROPERTY = "jobs.node_id";
+
+  /**
+   * The configuration property for the number of seconds after its last
+   * heartbeat that a node is assumed to have stopped
+   */
+  public static final String JOB_NODE_LEASE_PROPERTY = "jobs.node_lease";
+
+  /**
+   * The default node lease, in seconds
+   */
+  private static final int DEFAULT_JOB_NODE_LEASE = 300;
+
+  /**
+   * The configuration property for the maximum size of the
+   * data set cache, in megabytes
+   */
+  public static final String DATASET_CACHE_SIZE_PROPERTY = "dataset_cache.max_mb";
+
+  /**
+   * The default maximum size of the data set cache, in megabytes
+   */
+  private static final int DEFAULT_DATASET_CACHE_SIZE = 256;
+
+  /**
+   * The ID of this node, used to claim jobs
+   */
+  private String jobNodeId = null;
+
   /**
    * The singleton instance of the resource manage
    */
@@ -94,11 +162,24 @@ public class ResourceManager implements ServletContextListener {
 
     // Initialise the job thread pool
     try {
-      JobThreadPool.initialise(3);
+      JobThreadPool.initialise(getIntProperty(JOB_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+          getIntProperty(JOB_INSTANT_THREADS_PROPERTY, DEFAULT_JOB_INSTANT_THREADS));
     } catch (InvalidThreadCountException e) {
-      // Do nothing for now
+      throw new RuntimeException("Config failed: invalid job thread count", e);
+    }
+
+    jobNodeId = createJobNodeId();
+
+    // Initialise the data set cache
+    try {
+      DataSetCache.initialise(getIntProperty(DATASET_CACHE_SIZE_PROPERTY, DEFAULT_DATASET_CACHE_SIZE) * 1024L * 1024L);
+    } catch (MissingParamException e) {
+      throw new RuntimeException("Config failed: invalid data set cache size", e);
     }
 
+    // Initialise the data reduction calculation pool
+    calculationPool = new ForkJoinPool(getCalculationParallelism());
+
     // Initialise the column config
     try {
       ColumnConfig.init(configuration.getProperty("columns.configfile"));
@@ -143,6 +224,17 @@ public class ResourceManager implements ServletContextListener {
     }
 
     instance = this;
+
+    // Register this node before it claims any jobs, so other
+    // nodes do not treat it as stopped
+    try {
+      JobManager.startNode(this);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    // Start dispatching jobs now that everything they need is available
+    JobDispatcher.initialise(this);
   }
 
   protected InitialContext createInitialContext() throws NamingException {
@@ -151,7 +243,13 @@ public class ResourceManager implements ServletContextListener {
 
   @Override
   public void contextDestroyed(ServletContextEvent event) {
-    // NOOP.
+    JobDispatcher.destroy();
+    JobThreadPool.destroy();
+    DataSetCache.destroy();
+
+    if (null != calculationPool) {
+      calculationPool.shutdownNow();
+    }
   }
 
   /**
@@ -186,6 +284,80 @@ public class ResourceManager implements ServletContextListener {
     return runTypeCategoryConfiguration;
   }
 
+  /**
+   * Retrieve the thread pool used for data reduction calculations
+   * @return The calculation pool
+   */
+  public ForkJoinPool getCalculationPool() {
+    return calculationPool;
+  }
+
+  /**
+   * Get the number of threads to be used for data reduction calculations.
+   * This is read from the configuration; if it is not set, one thread
+   * is used for each available processor.
+   * @return The number of threads
+   */
+  private int getCalculationParallelism() {
+    return getIntProperty(REDUCTION_PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Get the ID of this node, which is stored against the jobs it runs
+   * @return The node ID
+   */
+  public String getJobNodeId() {
+    return jobNodeId;
+  }
+
+  /**
+   * Get the number of seconds after its last heartbeat that a node
+   * is assumed to have stopped. This is read from the configuration,
+   * and defaults to {@link #DEFAULT_JOB_NODE_LEASE}.
+   * @return The node lease in seconds
+   */
+  public int getJobNodeLease() {
+    return getIntProperty(JOB_NODE_LEASE_PROPERTY, DEFAULT_JOB_NODE_LEASE);
+  }
+
+  /**
+   * Read an integer value from the configuration
+   * @param property The property name
+   * @param defaultValue The value to use if the property is not set
+   * @return The property value
+   */
+  private int getIntProperty(String property, int defaultValue) {
+    int result = defaultValue;
+
+    String value = configuration.getProperty(property);
+    if (null != value && value.trim().length() > 0) {
+      result = Integer.parseInt(value.trim());
+    }
+
+    return result;
+  }
+
+  /**
+   * Create the ID of this node. This is read from the configuration;
+   * if it is not set, the host name is used. The ID must be the same
+   * each time the application is started, so that jobs interrupted by a
+   * restart are recognised as belonging to this node.
+   * @return The node ID
+   */
+  private String createJobNodeId() {
+    String result = configuration.getProperty(JOB_NODE_ID_PROPERTY);
+
+    if (null == result || result.trim().length() == 0) {
+      try {
+        result = InetAddress.getLocalHost().getHostName();
+      } catch (UnknownHostException e) {
+        result = "localhost";
+      }
+    }
+
+    return result.trim();
+  }
+
   /**
    * Get the list of available diagnostic sensor types.
    * This reads the comma-separated list from the quince.properties file,
@@ -0,0 +1,12 @@
+-- The node that has claimed or is running each job
+ALTER TABLE job ADD COLUMN node_id VARCHAR(100) NULL AFTER thread_name;
+CREATE INDEX job_status_node ON job (status, node_id);
+
+-- Heartbeats for each node that runs jobs
+CREATE TABLE job_node (
+  node_id VARCHAR(100) NOT NULL,
+  heartbeat TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (node_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Rollback: DROP TABLE job_node; ALTER TABLE job DROP INDEX job_status_node; ALTER TABLE job DROP COLUMN node_id;
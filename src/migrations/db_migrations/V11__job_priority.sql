@@ -0,0 +1,5 @@
+-- Job priority. Higher priority jobs are run first.
+ALTER TABLE job ADD COLUMN priority INT(11) NOT NULL DEFAULT 0 AFTER parameters;
+CREATE INDEX job_queue ON job (status, priority, created);
+
+-- Rollback: ALTER TABLE job DROP INDEX job_queue; ALTER TABLE job DROP COLUMN priority;
@@ -0,0 +1,4 @@
+-- Performance metrics recorded when a job finishes, stored as JSON
+ALTER TABLE job ADD COLUMN metrics TEXT NULL AFTER stack_trace;
+
+-- Rollback: ALTER TABLE job DROP COLUMN metrics;
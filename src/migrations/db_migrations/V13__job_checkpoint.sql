@@ -0,0 +1,5 @@
+-- The last record committed by a job, so an interrupted job
+-- can continue where it stopped
+ALTER TABLE job ADD COLUMN checkpoint BIGINT(20) NULL AFTER progress;
+
+-- Rollback: ALTER TABLE job DROP COLUMN checkpoint;
@@ -0,0 +1,5 @@
+-- Index for reading a data set's measurements in time order,
+-- so pages can be read from a known (date, id) position
+CREATE INDEX DATASETDATA_DATASET_DATE_idx ON dataset_data (dataset_id, date, id);
+
+-- Rollback: DROP INDEX DATASETDATA_DATASET_DATE_idx ON dataset_data;
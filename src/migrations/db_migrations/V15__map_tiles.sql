@@ -0,0 +1,26 @@
+-- Aggregated values of each data set field for tiles of the map
+-- at a range of zoom levels, so the map doesn't need to read every
+-- measurement in the area it is showing
+CREATE TABLE `map_tile` (
+  `dataset_id` INT(11) NOT NULL,
+  `field` VARCHAR(100) NOT NULL,
+  `zoom` TINYINT NOT NULL,
+  `tile_x` INT NOT NULL,
+  `tile_y` INT NOT NULL,
+  `count` INT NOT NULL,
+  `min` DOUBLE NOT NULL,
+  `max` DOUBLE NOT NULL,
+  `mean` DOUBLE NOT NULL,
+  `longitude` DOUBLE NOT NULL,
+  `latitude` DOUBLE NOT NULL,
+  `measurement_id` INT(11) NOT NULL,
+  `date` BIGINT(20) NOT NULL,
+  PRIMARY KEY (`dataset_id`, `field`, `zoom`, `tile_x`, `tile_y`),
+  CONSTRAINT `MAPTILE_DATASET`
+    FOREIGN KEY (`dataset_id`)
+    REFERENCES `dataset` (`id`)
+    ON DELETE CASCADE
+    ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Rollback: DROP TABLE map_tile;